@@ -0,0 +1,63 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+/**
+ * Policy used by the ClientsManager to decide from which clients the
+ * requests of a batch are taken. The ClientsManager takes one request at a
+ * time from the client returned by nextClient(), and then reports it back to
+ * the policy with requestTaken().
+ *
+ * clientReady() is invoked by the threads that receive requests, with the
+ * lock of the client held; all other methods are invoked by the proposer,
+ * one batch at a time.
+ */
+public interface BatchPolicy {
+
+    /**
+     * A client that was not being served got requests to be proposed
+     *
+     * @param clientData the client
+     */
+    public void clientReady(ClientData clientData);
+
+    /**
+     * A new batch is about to be built
+     */
+    public void batchStarted();
+
+    /**
+     * @return the client from which the next request should be taken, or null if no
+     * other client can contribute to this batch
+     */
+    public ClientData nextClient();
+
+    /**
+     * A request of the client returned by nextClient() was added to the batch
+     *
+     * @param clientData the client
+     * @param hasMore true if the client still has requests to be proposed
+     */
+    public void requestTaken(ClientData clientData, boolean hasMore);
+
+    /**
+     * The next request of the client returned by nextClient() does not fit in
+     * the batch, so it should be the first one of the next batch
+     *
+     * @param clientData the client
+     */
+    public void requestDeferred(ClientData clientData);
+}
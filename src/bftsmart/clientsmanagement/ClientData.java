@@ -18,7 +18,6 @@ package bftsmart.clientsmanagement;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.tom.core.messages.TOMMessage;
@@ -40,7 +39,7 @@ public class ClientData {
 
     private int lastMessageExecuted = -1;
 
-    private RequestList pendingRequests = new RequestList();
+    private PendingRequests pendingRequests = new PendingRequests();
     //anb: new code to deal with client requests that arrive after their execution
     private RequestList orderedRequests = new RequestList(5);
 
@@ -78,7 +77,10 @@ public class ClientData {
         this.session = session;
     }
 
-    public RequestList getPendingRequests() {
+    // true if this client is in the queue of clients with unproposed requests
+    boolean queued = false;
+
+    public PendingRequests getPendingRequests() {
         return pendingRequests;
     }
 
@@ -121,27 +123,28 @@ public class ClientData {
         return false;
     }
 
-    public boolean removeOrderedRequest(TOMMessage request) {
-        if(pendingRequests.remove(request)) {
+    /**
+     * Removes an ordered request from the pending requests
+     *
+     * @param request the ordered request
+     * @return the pending request removed, or null if it was not pending
+     */
+    public TOMMessage removeOrderedRequest(TOMMessage request) {
+        TOMMessage pending = pendingRequests.remove(request);
+        if(pending != null) {
             //anb: new code to deal with client requests that arrive after their execution
             orderedRequests.addLast(request);
-            return true;
         }
-        return false;
+        return pending;
     }
 
     public boolean removeRequest(TOMMessage request) {
 	lastMessageExecuted = request.getSequence();
-	boolean result = pendingRequests.remove(request);
+	boolean result = pendingRequests.remove(request) != null;
         //anb: new code to deal with client requests that arrive after their execution
         orderedRequests.addLast(request);
 
-	for(Iterator<TOMMessage> it = pendingRequests.iterator();it.hasNext();){
-		TOMMessage msg = it.next();
-		if(msg.getSequence()<request.getSequence()){
-			it.remove();
-		}
-	}
+	pendingRequests.removeOlderThan(request.getSequence());
 
     	return result;
     }
@@ -15,10 +15,8 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.communication.ServerCommunicationSystem;
@@ -36,25 +34,46 @@ public class ClientsManager {
 
     private ServerViewController controller;
     private RequestsTimer timer;
-    private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
+    private ConcurrentHashMap<Integer, ClientData> clientsData = new ConcurrentHashMap<Integer, ClientData>();
+    // only serializes batch formation; operations on a single client use its own lock
     private ReentrantLock clientsLock = new ReentrantLock();
 
+    // decides from which clients the requests of each batch are taken
+    private BatchPolicy batchPolicy;
+    // number of pending requests not yet proposed, from all clients
+    private AtomicInteger unproposedRequests = new AtomicInteger(0);
+
     public ClientsManager(ServerViewController controller, RequestsTimer timer) {
         this.controller = controller;
         this.timer = timer;
+
+        if (controller.getStaticConf().getBatchPolicy().equals("weighted")) {
+            this.batchPolicy = new WeightedBatchPolicy(controller.getStaticConf());
+        } else {
+            this.batchPolicy = new RoundRobinBatchPolicy(controller.getStaticConf().getMaxRequestsPerClient());
+        }
     }
 
     /**
-     * We are assuming that no more than one thread will access
-     * the same clientData during creation.
+     * Replaces the policy used to select the requests of each batch. It must
+     * be invoked before any request is received.
      *
+     * @param batchPolicy the new policy
+     */
+    public void setBatchPolicy(BatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
+    }
+
+    /**
+     * The clients table is a concurrent map, so looking up a client does
+     * not block the threads working on other clients. If two threads create
+     * the data of the same client at the same time, only one is stored and
+     * both get it.
      *
      * @param clientId
      * @return the ClientData stored on the manager
      */
     public ClientData getClientData(int clientId) {
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
         ClientData clientData = clientsData.get(clientId);
 
         if (clientData == null) {
@@ -66,12 +85,12 @@ public class ClientsManager {
                     ? controller.getStaticConf().getRSAPublicKey(clientId)
                     : null);
             //******* EDUARDO END **************//
-            clientsData.put(clientId, clientData);
+            ClientData existing = clientsData.putIfAbsent(clientId, clientData);
+            if (existing != null) {
+                clientData = existing;
+            }
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-
         return clientData;
     }
 
@@ -82,88 +101,78 @@ public class ClientsManager {
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
+        return getPendingRequests(controller.getStaticConf().getMaxBatchSize(), 0);
+    }
+
+    /**
+     * Get pending requests in a fair way, as decided by the batch policy
+     * (by default, one request from each client in turn) until the max
+     * number of requests or bytes is obtained.
+     *
+     * @param maxRequests maximum number of requests to be obtained
+     * @param maxBytes maximum size (in bytes) of the requests obtained, or 0 if there is no limit
+     * @return the set of all pending requests of this system
+     */
+    public RequestList getPendingRequests(int maxRequests, int maxBytes) {
         RequestList allReq = new RequestList();
+        int bytes = 0;
 
         clientsLock.lock();
         /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        Set<Entry<Integer, ClientData>> clientsEntrySet = clientsData.entrySet();
-        
-        for (int i = 0; true; i++) {
-            Iterator<Entry<Integer, ClientData>> it = clientsEntrySet.iterator();
-            int noMoreMessages = 0;
 
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntrySet.size()) {
+        batchPolicy.batchStarted();
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
-
-                clientData.clientLock.lock();
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+        while (allReq.size() < maxRequests) {
+            ClientData clientData = batchPolicy.nextClient();
+            if (clientData == null) {
+                break;
+            }
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            PendingRequests clientPendingRequests = clientData.getPendingRequests();
+            TOMMessage request = clientPendingRequests.peekUnproposed();
+
+            if (request == null) {
+                //this client don't have more pending requests
+                clientData.queued = false;
+            } else if (maxBytes > 0 && !allReq.isEmpty()
+                    && bytes + request.getSerializedSize() > maxBytes) {
+                //this request does not fit in the batch, it will be the first of the next one
+                batchPolicy.requestDeferred(clientData);
                 clientData.clientLock.unlock();
-
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        //this client have pending message
-                        request.alreadyProposed = true;
-                        allReq.addLast(request);
-                    }
-                } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
-                }
-            }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntrySet.size()) {
-                
                 break;
+            } else {
+                //this client have pending message
+                clientPendingRequests.markProposed(request);
+                unproposedRequests.decrementAndGet();
+                allReq.addLast(request);
+                bytes += request.getSerializedSize();
+
+                boolean hasMore = clientPendingRequests.getUnproposed() > 0;
+                if (!hasMore) {
+                    clientData.queued = false;
+                }
+                batchPolicy.requestTaken(clientData, hasMore);
             }
+
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
         }
-        
+
         /******* END CLIENTS CRITICAL SECTION ******/
         clientsLock.unlock();
         return allReq;
     }
 
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
+     * This only reads a counter of the unproposed requests of all clients,
+     * so it does not need to lock the clients table.
      *
      * @return true if there are some pending requests and false otherwise
      */
     public boolean havePendingRequests() {
-        boolean havePending = false;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
-        }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+        return unproposedRequests.get() > 0;
     }
 
     /**
@@ -195,6 +204,32 @@ public class ClientsManager {
         return pendingMessage;
     }
 
+    /**
+     * Get a request received from a client, either still pending or already
+     * ordered. Used to resolve the requests of proposals carrying only digests.
+     *
+     * @param clientId the client identifier
+     * @param sequence the sequence number of the request
+     * @return the request, or null if it is not known
+     */
+    public TOMMessage getRequest(int clientId, int sequence) {
+        //the id comes from other replicas, so no data is created for unknown clients
+        ClientData clientData = clientsData.get(clientId);
+        if (clientData == null) return null;
+
+        clientData.clientLock.lock();
+        /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        TOMMessage request = clientData.getPendingRequests().getBySequence(sequence);
+        if (request == null) {
+            request = clientData.getOrderedRequests().getBySequence(sequence);
+        }
+
+        /******* END CLIENTDATA CRITICAL SECTION ******/
+        clientData.clientLock.unlock();
+
+        return request;
+    }
+
     public boolean requestReceived(TOMMessage request, boolean fromClient) {
         return requestReceived(request, fromClient, null);
     }
@@ -248,23 +283,42 @@ public class ClientsManager {
             clientData.setSession(request.getSession());
             clientData.setLastMessageReceived(-1);
             clientData.getOrderedRequests().clear();
+            unproposedRequests.addAndGet(-clientData.getPendingRequests().getUnproposed());
             clientData.getPendingRequests().clear();
         }
 
+        //the sequence number is too far from the ones of the pending requests of this client
+        if (request.getSequence() > clientData.getLastMessageReceived()
+                && !clientData.getPendingRequests().fits(request.getSequence())) {
+            System.out.println("(ClientsManager.requestReceived) Discarding request " + request.getSequence()
+                    + " from client " + clientId + ": too far from its pending requests");
+
+            clientData.clientLock.unlock();
+            return false;
+        }
+
         if ((clientData.getLastMessageReceived() == -1) || //first message received or new session (see above)
                 (clientData.getLastMessageReceived() + 1 == request.getSequence()) || //message received is the expected
                 ((request.getSequence() > clientData.getLastMessageReceived()) && !fromClient)) {
 
             //it is a new message and I have to verify it's signature
-            if (!request.signed
-                    || clientData.verifySignature(request.serializedMessage,
+            if (!request.signed || request.signatureVerified
+                    || clientData.verifySignature(request.getSerializedMessage(),
                     request.serializedMessageSignature)) {
 
                 //I don't have the message but it is valid, I will
                 //insert it in the pending requests of this client
 
                 request.recvFromClient = fromClient;
-                clientData.getPendingRequests().add(request); 
+                if (clientData.getPendingRequests().add(request) && !request.alreadyProposed) {
+                    //the client is queued before the counter is updated, so the proposer
+                    //never sees the request accounted without being able to find it
+                    if (!clientData.queued) {
+                        clientData.queued = true;
+                        batchPolicy.clientReady(clientData);
+                    }
+                    unproposedRequests.incrementAndGet();
+                }
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
@@ -311,15 +365,15 @@ public class ClientsManager {
 
     /**
      * Notifies the ClientsManager that these requests were already executed.
+     * Only the lock of each client is taken, so this does not block the
+     * reception of requests from other clients.
      * 
      * @param requests the array of requests to account as ordered
      */
     public void requestsOrdered(TOMMessage[] requests) {
-        clientsLock.lock();
         for (TOMMessage request : requests) {
             requestOrdered(request);
         }
-        clientsLock.unlock();
     }
 
     /**
@@ -338,9 +392,13 @@ public class ClientsManager {
 
         clientData.clientLock.lock();
         /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-        if (!clientData.removeOrderedRequest(request)) {
+        TOMMessage pending = clientData.removeOrderedRequest(request);
+        if (pending == null) {
             Logger.println("(ClientsManager.requestOrdered) Request "
                     + request + " does not exist in pending requests");
+        } else if (!pending.alreadyProposed) {
+            //ordered in a batch proposed by another replica
+            unproposedRequests.decrementAndGet();
         }
         clientData.setLastMessageExecuted(request.getSequence());
 
@@ -348,6 +406,42 @@ public class ClientsManager {
         clientData.clientLock.unlock();
     }
 
+    /**
+     * Makes the requests of a consensus instance that will not be decided
+     * (e.g., started by the previous leader and abandoned in a regency change)
+     * available to be proposed again.
+     *
+     * @param requests the requests proposed in the instance
+     * @return true if some of the requests can be proposed again
+     */
+    public boolean requestsNotDecided(TOMMessage[] requests) {
+        boolean requeued = false;
+
+        for (TOMMessage request : requests) {
+            ClientData clientData = clientsData.get(request.getSender());
+            if (clientData == null) continue;
+
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            PendingRequests clientPendingRequests = clientData.getPendingRequests();
+            TOMMessage pending = clientPendingRequests.getBySequence(request.getSequence());
+
+            if (pending != null && pending.equals(request) && clientPendingRequests.markUnproposed(pending)) {
+                if (!clientData.queued) {
+                    clientData.queued = true;
+                    batchPolicy.clientReady(clientData);
+                }
+                unproposedRequests.incrementAndGet();
+                requeued = true;
+            }
+
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+        }
+
+        return requeued;
+    }
+
     public ReentrantLock getClientsLock() {
         return clientsLock;
     }
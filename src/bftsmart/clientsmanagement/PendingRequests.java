@@ -0,0 +1,257 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Pending requests of a client, stored in a ring buffer indexed by the
+ * request sequence number. Lookups and removals by sequence number take
+ * constant time, and a cursor over the requests not yet proposed allows the
+ * next request to be proposed to be found in amortized constant time.
+ *
+ * Requests of a client arrive in increasing sequence order, but some
+ * sequence numbers may be missing (e.g., the ones used by unordered
+ * requests), so the buffer may contain empty slots.
+ *
+ * This class is not thread-safe: it is protected by the lock of the
+ * ClientData that owns it.
+ */
+public class PendingRequests {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Maximum distance between the sequence numbers of the pending requests
+     * of a client. Requests further away than that are not stored, so a
+     * request with an arbitrary sequence number (e.g., proposed by a faulty
+     * leader) cannot make the buffer grow without bound.
+     */
+    public static final int MAX_WINDOW = 1 << 16;
+
+    private TOMMessage[] slots = new TOMMessage[INITIAL_CAPACITY];
+    private int head = 0; // sequence number of the first request in the buffer
+    private int tail = 0; // sequence number after the last request in the buffer
+    private int cursor = 0; // no request before this sequence number is unproposed
+    private int size = 0;
+    private int unproposed = 0;
+
+    /**
+     * Adds a request to the buffer
+     *
+     * @param request the request
+     * @return true if the request was added, false if there is already a request with the same sequence number
+     * or if its sequence number does not fit in the buffer (see fits)
+     */
+    public boolean add(TOMMessage request) {
+        int sequence = request.getSequence();
+
+        if (!fits(sequence)) {
+            return false;
+        } else if (size == 0) {
+            head = tail = cursor = sequence;
+        } else if (sequence < head) {
+            // a request older than all others (should not happen, as requests arrive in order)
+            grow(tail - sequence);
+            head = sequence;
+        } else if (sequence < tail && slots[slot(sequence)] != null) {
+            return false;
+        }
+
+        if (sequence >= tail) {
+            grow(sequence - head + 1);
+            tail = sequence + 1;
+        }
+
+        slots[slot(sequence)] = request;
+        size++;
+
+        if (!request.alreadyProposed) {
+            unproposed++;
+            if (sequence < cursor) cursor = sequence;
+        }
+        return true;
+    }
+
+    /**
+     * @param sequence a sequence number
+     * @return true if a request with the given sequence number can be stored
+     * along with the pending ones without exceeding MAX_WINDOW
+     */
+    public boolean fits(int sequence) {
+        if (size == 0) return true;
+
+        long first = Math.min(head, sequence);
+        long last = Math.max(tail, (long) sequence + 1);
+        return last - first <= MAX_WINDOW;
+    }
+
+    /**
+     * @param sequence the sequence number of the request
+     * @return the request with the given sequence number, or null if it is not pending
+     */
+    public TOMMessage getBySequence(int sequence) {
+        if (sequence < head || sequence >= tail) return null;
+        return slots[slot(sequence)];
+    }
+
+    /**
+     * Removes a request from the buffer
+     *
+     * @param request the request to be removed
+     * @return the request stored in the buffer, or null if it was not pending
+     */
+    public TOMMessage remove(TOMMessage request) {
+        TOMMessage stored = getBySequence(request.getSequence());
+        if (stored == null || !stored.equals(request)) return null;
+
+        removeAt(request.getSequence());
+        return stored;
+    }
+
+    /**
+     * Removes all requests with a sequence number lower than the given one
+     *
+     * @param sequence the sequence number
+     * @return the number of requests removed
+     */
+    public int removeOlderThan(int sequence) {
+        int removed = 0;
+        while (size > 0 && head < sequence) {
+            if (slots[slot(head)] != null) {
+                removeAt(head);
+                removed++;
+            } else {
+                head++;
+            }
+        }
+        return removed;
+    }
+
+    private void removeAt(int sequence) {
+        TOMMessage request = slots[slot(sequence)];
+        slots[slot(sequence)] = null;
+        size--;
+
+        if (!request.alreadyProposed) unproposed--;
+
+        if (size == 0) {
+            head = cursor = tail;
+        } else {
+            while (slots[slot(head)] == null) head++;
+        }
+    }
+
+    /**
+     * @return the pending request with the lowest sequence number that was not yet proposed, or null if there is none
+     */
+    public TOMMessage peekUnproposed() {
+        if (unproposed == 0) return null;
+
+        if (cursor < head) cursor = head;
+        while (cursor < tail) {
+            TOMMessage request = slots[slot(cursor)];
+            if (request != null && !request.alreadyProposed) {
+                return request;
+            }
+            cursor++;
+        }
+        return null;
+    }
+
+    /**
+     * Marks a pending request as proposed
+     *
+     * @param request the request, previously returned by peekUnproposed
+     */
+    public void markProposed(TOMMessage request) {
+        if (!request.alreadyProposed) {
+            request.alreadyProposed = true;
+            unproposed--;
+        }
+    }
+
+    /**
+     * Marks a pending request as not proposed, so it is returned again by
+     * peekUnproposed (e.g., when the instance it was proposed in is abandoned)
+     *
+     * @param request the request, stored in the buffer
+     * @return true if the request was marked as proposed before
+     */
+    public boolean markUnproposed(TOMMessage request) {
+        if (!request.alreadyProposed) return false;
+
+        request.alreadyProposed = false;
+        unproposed++;
+        if (request.getSequence() < cursor) cursor = request.getSequence();
+        return true;
+    }
+
+    /**
+     * @return the pending request with the given id, or null if it is not pending (this takes linear time)
+     */
+    public TOMMessage getById(int id) {
+        for (int sequence = head; size > 0 && sequence < tail; sequence++) {
+            TOMMessage request = slots[slot(sequence)];
+            if (request != null && request.getId() == id) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    public void clear() {
+        for (int sequence = head; size > 0 && sequence < tail; sequence++) {
+            slots[slot(sequence)] = null;
+        }
+        size = 0;
+        unproposed = 0;
+        head = tail = cursor = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of pending requests not yet proposed
+     */
+    public int getUnproposed() {
+        return unproposed;
+    }
+
+    private int slot(int sequence) {
+        return sequence & (slots.length - 1);
+    }
+
+    // makes sure the buffer can hold the given number of consecutive sequence numbers
+    private void grow(int window) {
+        if (window <= slots.length) return;
+
+        int capacity = slots.length;
+        while (capacity < window) capacity <<= 1;
+
+        TOMMessage[] newSlots = new TOMMessage[capacity];
+        for (int sequence = head; size > 0 && sequence < tail; sequence++) {
+            newSlots[sequence & (capacity - 1)] = slots[slot(sequence)];
+        }
+        slots = newSlots;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Takes one request from each client in turn. The clients with requests to
+ * be proposed are kept in a queue, and a client goes to the end of the queue
+ * after each request taken, so a batch continues where the previous one
+ * stopped instead of favoring the same clients.
+ *
+ * Optionally, a client can have at most a given number of requests in each
+ * batch; a client that reaches this limit waits for the next batch.
+ */
+public class RoundRobinBatchPolicy implements BatchPolicy {
+
+    protected final ConcurrentLinkedDeque<ClientData> readyClients = new ConcurrentLinkedDeque<ClientData>();
+    private final int maxPerClient; // 0 means no limit
+
+    // only used by the proposer
+    private final HashMap<Integer, Integer> takenInBatch = new HashMap<Integer, Integer>();
+    private final LinkedList<ClientData> parkedClients = new LinkedList<ClientData>();
+
+    public RoundRobinBatchPolicy(int maxPerClient) {
+        this.maxPerClient = maxPerClient;
+    }
+
+    @Override
+    public void clientReady(ClientData clientData) {
+        readyClients.offerLast(clientData);
+    }
+
+    @Override
+    public void batchStarted() {
+        takenInBatch.clear();
+        // clients that reached their limit in the previous batch go after the others
+        while (!parkedClients.isEmpty()) {
+            readyClients.offerLast(parkedClients.removeFirst());
+        }
+    }
+
+    @Override
+    public ClientData nextClient() {
+        return readyClients.pollFirst();
+    }
+
+    @Override
+    public void requestTaken(ClientData clientData, boolean hasMore) {
+        if (maxPerClient > 0) {
+            Integer taken = takenInBatch.get(clientData.getClientId());
+            taken = (taken == null) ? 1 : taken + 1;
+            takenInBatch.put(clientData.getClientId(), taken);
+
+            if (taken >= maxPerClient) {
+                if (hasMore) parkedClients.addLast(clientData);
+                endTurn(clientData);
+                return;
+            }
+        }
+
+        if (!hasMore) {
+            endTurn(clientData);
+        } else if (keepTurn(clientData)) {
+            readyClients.offerFirst(clientData);
+        } else {
+            readyClients.offerLast(clientData);
+        }
+    }
+
+    @Override
+    public void requestDeferred(ClientData clientData) {
+        readyClients.offerFirst(clientData);
+    }
+
+    /**
+     * @return true if the next request should also be taken from this client
+     */
+    protected boolean keepTurn(ClientData clientData) {
+        return false;
+    }
+
+    /**
+     * The turn of this client ended before keepTurn() returned false
+     */
+    protected void endTurn(ClientData clientData) {
+    }
+}
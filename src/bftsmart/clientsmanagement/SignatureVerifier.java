@@ -0,0 +1,331 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Verifies the signatures of client requests outside of the threads that
+ * receive them and of the locks of ClientsManager.
+ *
+ * Requests received from clients are verified asynchronously by a set of
+ * worker threads. All requests of a client are verified by the same worker,
+ * so they reach ClientsManager in the order they were received, while
+ * requests from different clients are verified in parallel.
+ *
+ * The requests of a proposed batch are verified in parallel by a second pool
+ * of workers. The digests of the requests whose signature was already
+ * verified are remembered, so a request received from its client is not
+ * verified again when it is proposed.
+ */
+public class SignatureVerifier {
+
+    /**
+     * Receives the result of the asynchronous verification of a request
+     */
+    public interface Callback {
+
+        /**
+         * Invoked by a worker thread after the signature of a request is
+         * verified
+         *
+         * @param request the request
+         * @param valid true if the signature is valid, false otherwise
+         */
+        public void verified(TOMMessage request, boolean valid);
+    }
+
+    private TOMConfiguration conf;
+    private ExecutorService[] workers;
+    private ExecutorService batchWorkers;
+    private int numWorkers;
+
+    private ConcurrentHashMap<Integer, PublicKey> publicKeys = new ConcurrentHashMap<Integer, PublicKey>();
+    // Signature and MessageDigest objects are not thread-safe, so each thread has its own
+    private ThreadLocal<HashMap<Integer, Signature>> engines = new ThreadLocal<HashMap<Integer, Signature>>() {
+        @Override
+        protected HashMap<Integer, Signature> initialValue() {
+            return new HashMap<Integer, Signature>();
+        }
+    };
+    private ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    };
+
+    private Map<Digest, Boolean> verified;
+
+    public SignatureVerifier(TOMConfiguration conf) {
+        this(conf, conf.getVerifierThreads());
+    }
+
+    /**
+     * @param conf the configuration of the replica
+     * @param threads number of threads in each pool of workers (0 means the number of cores)
+     */
+    public SignatureVerifier(TOMConfiguration conf, int threads) {
+        this.conf = conf;
+
+        numWorkers = threads;
+        if (numWorkers == 0) {
+            numWorkers = Runtime.getRuntime().availableProcessors();
+        }
+
+        ThreadFactory factory = threadFactory("Signature verifier");
+        workers = new ExecutorService[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(factory);
+        }
+        batchWorkers = Executors.newFixedThreadPool(numWorkers, threadFactory("Batch signature verifier"));
+
+        final int cacheSize = conf.getVerifiedCacheSize();
+        if (cacheSize > 0) {
+            verified = new LinkedHashMap<Digest, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Digest, Boolean> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " " + (count++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return the number of threads verifying requests received from clients
+     */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * Verifies the signature of a request received from a client. The
+     * callback is invoked by the worker responsible for the client of the
+     * request.
+     *
+     * @param request the request
+     * @param callback the object notified of the result
+     */
+    public void verify(final TOMMessage request, final Callback callback) {
+        int worker = (request.getSender() & Integer.MAX_VALUE) % numWorkers;
+
+        workers[worker].execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean valid = verifySignature(request, false);
+                try {
+                    callback.verified(request, valid);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Verifies the signatures of all signed requests of a batch in
+     * parallel, skipping the ones already verified. Blocks until all
+     * signatures are verified.
+     *
+     * @param requests the requests of the batch
+     * @return true if all signatures are valid, false otherwise
+     */
+    public boolean verifyBatch(TOMMessage[] requests) {
+        List<TOMMessage> pending = new ArrayList<TOMMessage>();
+        for (TOMMessage request : requests) {
+            if (request.signed && !request.signatureVerified) {
+                pending.add(request);
+            }
+        }
+
+        if (pending.size() == 1) {
+            return verifySignature(pending.get(0), true);
+        } else if (pending.isEmpty()) {
+            return true;
+        }
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(pending.size());
+        for (final TOMMessage request : pending) {
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return verifySignature(request, true);
+                }
+            });
+        }
+
+        boolean valid = true;
+        try {
+            for (Future<Boolean> result : batchWorkers.invokeAll(tasks)) {
+                valid &= result.get();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        return valid;
+    }
+
+    /**
+     * Verifies the signature of a request in the calling thread. If it is
+     * valid, the request is marked as verified.
+     *
+     * @param request the request
+     * @param checkCache true if the digests of verified requests should be consulted
+     * @return true if the signature is valid, false otherwise
+     */
+    public boolean verifySignature(TOMMessage request, boolean checkCache) {
+        if (!request.signed || request.signatureVerified) {
+            return true;
+        }
+        if (request.getSerializedSize() == 0 || request.serializedMessageSignature == null) {
+            return false;
+        }
+
+        Digest digest = (verified != null) ? digest(request) : null;
+        if (checkCache && digest != null) {
+            synchronized (verified) {
+                if (verified.get(digest) != null) { // get() updates the access order of the cache
+                    request.signatureVerified = true;
+                    return true;
+                }
+            }
+        }
+
+        boolean valid = false;
+        Signature engine = getEngine(request.getSender());
+        if (engine != null) {
+            try {
+                valid = TOMUtil.verifySignature(engine, request.getSerializedBuffer(),
+                        request.serializedMessageSignature);
+            } catch (Exception ex) {
+                System.err.println("Error in processing client " + request.getSender() + " signature: " + ex.getMessage());
+            }
+        }
+
+        if (valid) {
+            request.signatureVerified = true;
+            if (digest != null) {
+                synchronized (verified) {
+                    verified.put(digest, Boolean.TRUE);
+                }
+            }
+        } else {
+            Logger.println("(SignatureVerifier.verifySignature) invalid signature in " + request);
+        }
+        return valid;
+    }
+
+    private Signature getEngine(int clientId) {
+        HashMap<Integer, Signature> threadEngines = engines.get();
+        Signature engine = threadEngines.get(clientId);
+
+        if (engine == null) {
+            PublicKey key = publicKeys.get(clientId);
+            if (key == null) {
+                key = conf.getRSAPublicKey(clientId);
+                if (key == null) {
+                    return null;
+                }
+                publicKeys.put(clientId, key);
+            }
+            try {
+                engine = Signature.getInstance("SHA1withRSA");
+                engine.initVerify(key);
+                threadEngines.put(clientId, engine);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                return null;
+            }
+        }
+        return engine;
+    }
+
+    private Digest digest(TOMMessage request) {
+        MessageDigest md = digests.get();
+        md.update(request.getSerializedBuffer());
+        return new Digest(md.digest(request.serializedMessageSignature));
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    public void shutdown() {
+        for (ExecutorService worker : workers) {
+            worker.shutdownNow();
+        }
+        batchWorkers.shutdownNow();
+    }
+
+    // a digest of a request and its signature, used as key of the cache
+    private static final class Digest {
+
+        private final byte[] value;
+        private final int hash;
+
+        Digest(byte[] value) {
+            this.value = value;
+            this.hash = Arrays.hashCode(value);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Digest) && Arrays.equals(value, ((Digest) o).value);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Weighted round-robin: in each turn, a client with weight w gets up to w
+ * requests in the batch before the next client is served. Clients without a
+ * configured weight have weight 1.
+ */
+public class WeightedBatchPolicy extends RoundRobinBatchPolicy {
+
+    private final TOMConfiguration conf;
+
+    // only used by the proposer
+    private ClientData current = null;
+    private int takenInTurn = 0;
+
+    public WeightedBatchPolicy(TOMConfiguration conf) {
+        super(conf.getMaxRequestsPerClient());
+        this.conf = conf;
+    }
+
+    @Override
+    protected boolean keepTurn(ClientData clientData) {
+        if (clientData != current) {
+            current = clientData;
+            takenInTurn = 0;
+        }
+        takenInTurn++;
+
+        if (takenInTurn < conf.getClientWeight(clientData.getClientId())) {
+            return true;
+        }
+        current = null;
+        return false;
+    }
+
+    @Override
+    protected void endTurn(ClientData clientData) {
+        if (clientData == current) {
+            current = null;
+        }
+    }
+}
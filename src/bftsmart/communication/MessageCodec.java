@@ -0,0 +1,265 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.statemanagement.strategy.ChunkedSMMessage;
+import bftsmart.statemanagement.strategy.StandardSMMessage;
+import bftsmart.statemanagement.strategy.durability.CSTSMMessage;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.timer.ForwardedMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Binary wire format used for the messages exchanged between replicas.
+ *
+ * Each message is encoded as a version byte, a type tag and the fields
+ * written by the writeExternal method of the message, without the class
+ * descriptors of Java serialization. Byte arrays and MAC vectors written
+ * with writeObject are also encoded directly; other objects (e.g., views and
+ * application states) are still written with Java serialization.
+ *
+ * New message types are plugged in with register(). Message classes that are
+ * not registered are sent with plain Java serialization (tag 0).
+ */
+public final class MessageCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte TAG_SERIALIZED = 0;
+
+    // encoding of the objects written with writeObject
+    private static final byte OBJ_NULL = 0;
+    private static final byte OBJ_BYTES = 1;
+    private static final byte OBJ_MAC_VECTOR = 2;
+    private static final byte OBJ_SERIALIZED = 3;
+
+    private static final Map<Byte, Constructor<? extends SystemMessage>> constructors =
+            new ConcurrentHashMap<Byte, Constructor<? extends SystemMessage>>();
+    private static final Map<Class<? extends SystemMessage>, Byte> tags =
+            new ConcurrentHashMap<Class<? extends SystemMessage>, Byte>();
+
+    static {
+        register((byte) 1, PaxosMessage.class);
+        register((byte) 2, LCMessage.class);
+        register((byte) 3, StandardSMMessage.class);
+        register((byte) 4, CSTSMMessage.class);
+        register((byte) 5, ForwardedMessage.class);
+        register((byte) 6, VMMessage.class);
+        register((byte) 7, RequestFetchMessage.class);
+        register((byte) 8, ChunkedSMMessage.class);
+    }
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Registers a message type in the codec. The class must have a public
+     * constructor without arguments, and all replicas must use the same tag
+     * for it.
+     *
+     * @param tag Tag that identifies the message type on the wire (must be positive)
+     * @param type Class of the message
+     */
+    public static synchronized void register(byte tag, Class<? extends SystemMessage> type) {
+        if (tag <= TAG_SERIALIZED) {
+            throw new IllegalArgumentException("Invalid tag " + tag + " for " + type.getName());
+        }
+        if (constructors.containsKey(tag)) {
+            throw new IllegalArgumentException("Tag " + tag + " already used by "
+                    + constructors.get(tag).getDeclaringClass().getName());
+        }
+        try {
+            constructors.put(tag, type.getConstructor());
+            tags.put(type, tag);
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException(type.getName() + " has no public constructor without arguments");
+        }
+    }
+
+    /**
+     * Encodes a message into the wire format
+     *
+     * @param sm Message to be encoded
+     * @return The encoded message
+     * @throws IOException If the message could not be written
+     */
+    public static byte[] encode(SystemMessage sm) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        Byte tag = tags.get(sm.getClass());
+
+        bOut.write(VERSION);
+        if (tag == null) {
+            bOut.write(TAG_SERIALIZED);
+            ObjectOutputStream out = new ObjectOutputStream(bOut);
+            out.writeObject(sm);
+            out.flush();
+        } else {
+            bOut.write(tag);
+            BinaryOutput out = new BinaryOutput(bOut);
+            sm.writeExternal(out);
+            out.flush();
+        }
+
+        return bOut.toByteArray();
+    }
+
+    /**
+     * Decodes a message from the wire format
+     *
+     * @param data The encoded message
+     * @return The decoded message
+     * @throws IOException If the data is truncated or malformed
+     * @throws ClassNotFoundException If the version or the type of the message is unknown
+     */
+    public static SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        if (data.length < 2 || data[0] != VERSION) {
+            throw new ClassNotFoundException("Unsupported message version");
+        }
+
+        ByteArrayInputStream bIn = new ByteArrayInputStream(data, 2, data.length - 2);
+
+        if (data[1] == TAG_SERIALIZED) {
+            return (SystemMessage) new ObjectInputStream(bIn).readObject();
+        }
+
+        Constructor<? extends SystemMessage> constructor = constructors.get(data[1]);
+        if (constructor == null) {
+            throw new ClassNotFoundException("Unknown message type " + data[1]);
+        }
+
+        SystemMessage sm;
+        try {
+            sm = constructor.newInstance();
+        } catch (Exception ex) {
+            throw new ClassNotFoundException("Unable to create message of type " + data[1], ex);
+        }
+        sm.readExternal(new BinaryInput(bIn));
+        return sm;
+    }
+
+    /**
+     * ObjectOutput that writes primitive data directly and avoids Java
+     * serialization for the objects commonly found in replica messages
+     */
+    private static class BinaryOutput extends DataOutputStream implements ObjectOutput {
+
+        BinaryOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void writeObject(Object obj) throws IOException {
+            if (obj == null) {
+                writeByte(OBJ_NULL);
+            } else if (obj instanceof byte[]) {
+                byte[] bytes = (byte[]) obj;
+                writeByte(OBJ_BYTES);
+                writeInt(bytes.length);
+                write(bytes);
+            } else if (obj instanceof byte[][]) {
+                byte[][] macVector = (byte[][]) obj;
+                writeByte(OBJ_MAC_VECTOR);
+                writeInt(macVector.length);
+                for (byte[] mac : macVector) {
+                    if (mac == null) {
+                        writeInt(-1);
+                    } else {
+                        writeInt(mac.length);
+                        write(mac);
+                    }
+                }
+            } else {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+                ObjectOutputStream oOut = new ObjectOutputStream(bOut);
+                oOut.writeObject(obj);
+                oOut.flush();
+                writeByte(OBJ_SERIALIZED);
+                writeInt(bOut.size());
+                bOut.writeTo(this);
+            }
+        }
+    }
+
+    /**
+     * ObjectInput that reads the data written by BinaryOutput
+     */
+    private static class BinaryInput extends DataInputStream implements ObjectInput {
+
+        BinaryInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException {
+            byte type = readByte();
+            switch (type) {
+                case OBJ_NULL:
+                    return null;
+                case OBJ_BYTES:
+                    return readBytes();
+                case OBJ_MAC_VECTOR:
+                    int size = readInt();
+                    if (size < 0 || size > available() / 4) {
+                        throw new IOException("Invalid MAC vector size " + size);
+                    }
+                    byte[][] macVector = new byte[size][];
+                    for (int i = 0; i < size; i++) {
+                        macVector[i] = readNullableBytes();
+                    }
+                    return macVector;
+                case OBJ_SERIALIZED:
+                    return new ObjectInputStream(new ByteArrayInputStream(readBytes())).readObject();
+                default:
+                    throw new IOException("Unknown object type " + type);
+            }
+        }
+
+        private byte[] readNullableBytes() throws IOException {
+            int length = readInt();
+            return length == -1 ? null : readBytes(length);
+        }
+
+        private byte[] readBytes() throws IOException {
+            return readBytes(readInt());
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (length < 0 || length > available()) {
+                throw new IOException("Invalid length " + length);
+            }
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return bytes;
+        }
+    }
+}
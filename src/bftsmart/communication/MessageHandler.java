@@ -21,18 +21,15 @@ import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.core.messages.RequestFetchMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.timer.ForwardedMessage;
 import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.HashMap;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 
@@ -45,15 +42,21 @@ public class MessageHandler {
     private Acceptor acceptor;
     private TOMLayer tomLayer;
     //private Cipher cipher;
-    private Mac mac;
+    // messages are processed by several threads (see MessageLanes), and Mac objects are not thread-safe
+    private ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
+                return Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+            } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
+                ex.printStackTrace();
+                return null;
+            }
+        }
+    };
     
     public MessageHandler() {
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
-        }
     }
     public void setAcceptor(Acceptor acceptor) {
         this.acceptor = acceptor;
@@ -75,39 +78,12 @@ public class MessageHandler {
             else if (paxosMsg.getPaxosType() == MessageFactory.ACCEPT && paxosMsg.getProof() != null) {
                                         
                 //We are going to verify the MAC vector at the algorithm level
-                HashMap<Integer, byte[]> macVector = (HashMap<Integer, byte[]>) paxosMsg.getProof();
-                               
-                byte[] recvMAC = macVector.get(myId);
-                
-                PaxosMessage pm = new PaxosMessage(MessageFactory.ACCEPT,paxosMsg.getNumber(),
-                        paxosMsg.getRound(), paxosMsg.getSender(), paxosMsg.getValue());
-                
-                ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-                try {
-                    new ObjectOutputStream(bOut).writeObject(pm);
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-
-                byte[] data = bOut.toByteArray();
-        
-                //byte[] hash = tomLayer.computeHash(data); 
-                
-                byte[] myMAC = null;
-                
-                /*byte[] k = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender()).getEncoded();
-                SecretKeySpec key = new SecretKeySpec(new String(k).substring(0, 8).getBytes(), "DES");*/
-                
                 SecretKey key = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender());
-                try {
-                    this.mac.init(key);                   
-                    myMAC = this.mac.doFinal(data);
-                } catch (/*IllegalBlockSizeException | BadPaddingException |*/ InvalidKeyException ex) {
-                    ex.printStackTrace();
-                }
-                
-                if (recvMAC != null && myMAC != null && Arrays.equals(recvMAC, myMAC))
+
+                if (verifyMACVector(paxosMsg, key, tomLayer.controller.getCurrentViewPos(myId))) {
+                    paxosMsg.setProofVerified(true);
                     acceptor.deliver(paxosMsg);
+                }
                 else {
                     Logger.println("(MessageHandler.processData) WARNING: invalid MAC from " + sm.getSender());
                     System.out.println("(MessageHandler.processData) WARNING: invalid MAC from " + sm.getSender());
@@ -148,6 +124,9 @@ public class MessageHandler {
 	            } else if (sm instanceof ForwardedMessage) {
 	                TOMMessage request = ((ForwardedMessage) sm).getRequest();
 	                tomLayer.requestReceived(request);
+
+	            } else if (sm instanceof RequestFetchMessage) {
+	                tomLayer.getProposalResolver().deliver((RequestFetchMessage) sm);
 	
 	            /** This is Joao's code, to handle state transfer */
 	            } else if (sm instanceof SMMessage) {
@@ -155,9 +134,11 @@ public class MessageHandler {
 	                // System.out.println("(MessageHandler.processData) SM_MSG received: type " + smsg.getType() + ", regency " + smsg.getRegency() + ", (replica " + smsg.getSender() + ")");
 	                switch(smsg.getType()) {
 	                    case TOMUtil.SM_REQUEST:
+	                    case TOMUtil.SM_CHUNK_REQUEST:
 		                    tomLayer.getStateManager().SMRequestDeliver(smsg, tomLayer.controller.getStaticConf().isBFT());
 	                        break;
 	                    case TOMUtil.SM_REPLY:
+	                    case TOMUtil.SM_CHUNK_REPLY:
 		                    tomLayer.getStateManager().SMReplyDeliver(smsg, tomLayer.controller.getStaticConf().isBFT());
 	                        break;
 	                    case TOMUtil.SM_ASK_INITIAL:
@@ -180,6 +161,42 @@ public class MessageHandler {
         }
     }
     
+    /**
+     * Verifies the MAC computed for this replica in the MAC vector of an
+     * ACCEPT message
+     *
+     * @param paxosMsg the ACCEPT message, with the MAC vector as its proof
+     * @param key the secret key shared with the sender
+     * @param myPos the position of this replica in the current view
+     * @return true if the MAC is valid, false otherwise
+     */
+    public boolean verifyMACVector(PaxosMessage paxosMsg, SecretKey key, int myPos) {
+        if (!(paxosMsg.getProof() instanceof byte[][])) return false;
+
+        byte[][] macVector = (byte[][]) paxosMsg.getProof();
+
+        if (myPos < 0 || myPos >= macVector.length) return false;
+
+        byte[] recvMAC = macVector[myPos];
+
+        byte[] data = paxosMsg.getProofData();
+
+        byte[] myMAC = null;
+
+        /*byte[] k = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender()).getEncoded();
+        SecretKeySpec key = new SecretKeySpec(new String(k).substring(0, 8).getBytes(), "DES");*/
+
+        Mac mac = macs.get();
+        try {
+            mac.init(key);
+            myMAC = mac.doFinal(data);
+        } catch (/*IllegalBlockSizeException | BadPaddingException |*/ InvalidKeyException ex) {
+            ex.printStackTrace();
+        }
+
+        return recvMAC != null && myMAC != null && Arrays.equals(recvMAC, myMAC);
+    }
+
     protected void verifyPending() {
         tomLayer.processOutOfContext();
     }
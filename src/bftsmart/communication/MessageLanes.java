@@ -0,0 +1,148 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.statemanagement.SMMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Processes the messages received from the other replicas in several
+ * threads (lanes). The messages of a consensus instance always go to the
+ * same lane, chosen by its id, so they are processed in the order they
+ * were received, while different instances are processed in parallel.
+ * State transfer messages have a lane of their own.
+ *
+ * Leader change messages change how the consensus messages that follow
+ * them are handled (e.g., the regency they belong to), so they are not
+ * processed in parallel with them: the thread that dispatches a leader
+ * change message waits until the consensus lanes are idle, and processes
+ * it before dispatching the next message. Other messages are processed by
+ * the thread that dispatches them.
+ *
+ * With no consensus lanes, every message is processed by the thread that
+ * dispatches it, as a single consumer.
+ */
+public class MessageLanes {
+
+    private MessageHandler messageHandler;
+    private Lane[] consensusLanes;
+    private Lane smLane;
+    private AtomicInteger pendingConsensus = new AtomicInteger(0); // messages dispatched to the consensus lanes not processed yet
+    private Object consensusIdle = new Object();
+
+    /**
+     * @param messageHandler the handler that processes the messages
+     * @param consensusThreads the number of lanes for consensus messages (0
+     * to process all messages in the dispatching thread)
+     * @param queueSize the number of messages each lane holds before the
+     * dispatching thread blocks
+     */
+    public MessageLanes(MessageHandler messageHandler, int consensusThreads, int queueSize) {
+        this.messageHandler = messageHandler;
+        if (consensusThreads > 0) {
+            consensusLanes = new Lane[consensusThreads];
+            for (int i = 0; i < consensusThreads; i++) {
+                consensusLanes[i] = new Lane("Consensus messages " + i, queueSize, true);
+            }
+            smLane = new Lane("State transfer messages", queueSize, false);
+        }
+    }
+
+    /**
+     * @return the number of lanes for consensus messages
+     */
+    public int getConsensusThreads() {
+        return (consensusLanes != null) ? consensusLanes.length : 0;
+    }
+
+    /**
+     * Hands a message to its lane, blocking while the lane is full
+     *
+     * @param sm the message received
+     */
+    public void dispatch(SystemMessage sm) throws InterruptedException {
+        if (consensusLanes == null) {
+            messageHandler.processData(sm);
+        } else if (sm instanceof PaxosMessage) {
+            int lane = (((PaxosMessage) sm).getNumber() & Integer.MAX_VALUE) % consensusLanes.length;
+            pendingConsensus.incrementAndGet();
+            consensusLanes[lane].queue.put(sm);
+        } else if (sm instanceof LCMessage) {
+            synchronized (consensusIdle) {
+                while (pendingConsensus.get() > 0) {
+                    consensusIdle.wait();
+                }
+            }
+            messageHandler.processData(sm);
+        } else if (sm instanceof SMMessage) {
+            smLane.queue.put(sm);
+        } else {
+            messageHandler.processData(sm);
+        }
+    }
+
+    /**
+     * Stops the lanes. The messages not processed yet are discarded.
+     */
+    public void shutdown() {
+        if (consensusLanes != null) {
+            for (Lane lane : consensusLanes) {
+                lane.interrupt();
+            }
+            smLane.interrupt();
+        }
+    }
+
+    private class Lane extends Thread {
+
+        private LinkedBlockingQueue<SystemMessage> queue;
+        private boolean consensus;
+
+        Lane(String name, int queueSize, boolean consensus) {
+            super(name);
+            this.consensus = consensus;
+            queue = new LinkedBlockingQueue<SystemMessage>(queueSize);
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                SystemMessage sm;
+                try {
+                    sm = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    messageHandler.processData(sm);
+                } catch (RuntimeException e) {
+                    e.printStackTrace(System.err);
+                }
+                if (consensus && pendingConsensus.decrementAndGet() == 0) {
+                    synchronized (consensusIdle) {
+                        consensusIdle.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
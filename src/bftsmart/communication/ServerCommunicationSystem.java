@@ -39,6 +39,7 @@ public class ServerCommunicationSystem extends Thread {
     public final long MESSAGE_WAIT_TIME = 100;
     private LinkedBlockingQueue<SystemMessage> inQueue = null;//new LinkedBlockingQueue<SystemMessage>(IN_QUEUE_SIZE);
     protected MessageHandler messageHandler = new MessageHandler();
+    private MessageLanes messageLanes;
     private ServersCommunicationLayer serversConn;
     private CommunicationSystemServerSide clientsConn;
     private ServerViewController controller;
@@ -52,6 +53,8 @@ public class ServerCommunicationSystem extends Thread {
         this.controller = controller;
 
         inQueue = new LinkedBlockingQueue<SystemMessage>(controller.getStaticConf().getInQueueSize());
+        messageLanes = new MessageLanes(messageHandler, controller.getStaticConf().getConsensusThreads(),
+                controller.getStaticConf().getInQueueSize());
 
         //create a new conf, with updated port number for servers
         //TOMConfiguration serversConf = new TOMConfiguration(conf.getProcessId(),
@@ -100,6 +103,8 @@ public class ServerCommunicationSystem extends Thread {
 
     /**
      * Thread method responsible for receiving messages sent by other servers.
+     * The messages are processed here, or in the lanes of MessageLanes with
+     * system.communication.consensusThreads.
      */
     @Override
     public void run() {
@@ -115,7 +120,7 @@ public class ServerCommunicationSystem extends Thread {
 
                 if (sm != null) {
                     Logger.println("<-------receiving---------- " + sm);
-                    messageHandler.processData(sm);
+                    messageLanes.dispatch(sm);
                     count++;
                 } else {                
                     messageHandler.verifyPending();               
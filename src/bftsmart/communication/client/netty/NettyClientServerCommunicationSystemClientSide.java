@@ -25,9 +25,13 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -42,6 +46,7 @@ import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -76,6 +81,10 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	private int signatureLength;
 	private boolean closed = false;
 
+	// event loop group (and corresponding channel type) shared by all the proxies of this process
+	private static EventLoopGroup workerGroup = null;
+	private static Class<? extends Channel> channelClass;
+
 	public NettyClientServerCommunicationSystemClientSide(int clientId, ClientViewController controller) {
 		super();
 
@@ -90,6 +99,7 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 
 			ChannelFuture future = null;
 			int[] currV = controller.getCurrentViewProcesses();
+			ChannelFuture[] futures = new ChannelFuture[currV.length];
 			for (int i = 0; i < currV.length; i++) {
 				try {
 
@@ -97,12 +107,9 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 					PBEKeySpec spec = new PBEKeySpec(str.toCharArray());
 					SecretKey authKey = fac.generateSecret(spec);
 
-					EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-					//try {
 					Bootstrap b = new Bootstrap();
-					b.group(workerGroup);
-					b.channel(NioSocketChannel.class);
+					b.group(getWorkerGroup(controller));
+					b.channel(channelClass);
 					b.option(ChannelOption.SO_KEEPALIVE, true);
 					b.option(ChannelOption.TCP_NODELAY, true);
 					b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,10000);
@@ -125,11 +132,7 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 					System.out.println("Connecting to replica " + currV[i] + " at " + controller.getRemoteAddress(currV[i]));
 					//******* EDUARDO END **************//
 
-					future.awaitUninterruptibly();
-
-					if (!future.isSuccess()) {
-						System.err.println("Impossible to connect to " + currV[i]);
-					}
+					futures[i] = future;
 
 				} catch (java.lang.NullPointerException ex) {
 					//What the fuck is this??? This is not possible!!!
@@ -141,11 +144,42 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 					ex.printStackTrace(System.err);
 				}
 			}
+
+			//the connections are established in parallel, so this waits at most one connection timeout
+			for (int i = 0; i < futures.length; i++) {
+				if (futures[i] != null) {
+					futures[i].awaitUninterruptibly();
+					if (!futures[i].isSuccess()) {
+						System.err.println("Impossible to connect to " + currV[i]);
+					}
+				}
+			}
 		} catch (NoSuchAlgorithmException ex) {
 			ex.printStackTrace(System.err);
 		}
 	}
 
+	/**
+	 * Returns the event loop group shared by all the proxies of this process,
+	 * creating it the first time it is needed
+	 */
+	private static synchronized EventLoopGroup getWorkerGroup(ClientViewController controller) {
+		if (workerGroup == null) {
+			int threads = controller.getStaticConf().getClientEventLoopThreads();
+			ThreadFactory factory = new DefaultThreadFactory("Client event loop", true);
+
+			if (controller.getStaticConf().isUseEpoll() && Epoll.isAvailable()) {
+				workerGroup = new EpollEventLoopGroup(threads, factory);
+				channelClass = EpollSocketChannel.class;
+			} else {
+				workerGroup = new NioEventLoopGroup(threads, factory);
+				channelClass = NioSocketChannel.class;
+			}
+			System.out.println("Using " + channelClass.getSimpleName() + " for the connections to the replicas");
+		}
+		return workerGroup;
+	}
+
 	@Override
 	public void updateConnections() {
 		int[] currV = controller.getCurrentViewProcesses();
@@ -162,12 +196,9 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 					try {
 						// Configure the client.
 
-						EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-						//try {
 						Bootstrap b = new Bootstrap();
-						b.group(workerGroup);
-						b.channel(NioSocketChannel.class);
+						b.group(getWorkerGroup(controller));
+						b.channel(channelClass);
 						b.option(ChannelOption.SO_KEEPALIVE, true);
 						b.option(ChannelOption.TCP_NODELAY, true);
 						b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,10000);
@@ -238,17 +269,26 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	}
 
 	@Override
-	public void channelInactive(ChannelHandlerContext ctx){
+	public void channelInactive(final ChannelHandlerContext ctx){
 
 		if (this.closed) {
 			return;
 		}
 
-		try {
-			//sleeps 10 seconds before trying to reconnect
-			Thread.sleep(10000);
-		} catch (InterruptedException ex) {
-			ex.printStackTrace();
+		//waits 10 seconds before trying to reconnect. The event loop is shared
+		//with other proxies, so it must not sleep here
+		ctx.channel().eventLoop().schedule(new Runnable() {
+			@Override
+			public void run() {
+				reconnect(ctx);
+			}
+		}, 10, TimeUnit.SECONDS);
+	}
+
+	private void reconnect(ChannelHandlerContext ctx){
+
+		if (this.closed) {
+			return;
 		}
 
 		rl.writeLock().lock();
@@ -259,12 +299,9 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 			if (ncss.getChannel() == ctx.channel()) {
 				try {
 					// Configure the client.
-					EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-					//try {
 					Bootstrap b = new Bootstrap();
-					b.group(workerGroup);
-					b.channel(NioSocketChannel.class);
+					b.group(getWorkerGroup(controller));
+					b.channel(channelClass);
 					b.option(ChannelOption.SO_KEEPALIVE, true);
 					b.option(ChannelOption.TCP_NODELAY, true);
 					b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,10000);
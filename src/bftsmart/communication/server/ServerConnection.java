@@ -15,17 +15,28 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayInputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,6 +45,7 @@ import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
@@ -50,6 +62,12 @@ import java.util.HashSet;
  *
  * ServerConnections are created by ServerCommunicationLayer.
  *
+ * If an event loop group is given, the connection is still established and
+ * authenticated with blocking I/O, but afterwards the socket is handed to
+ * Netty: messages are written from pooled direct buffers and the writes of
+ * several messages are flushed together, instead of using a sender and a
+ * receiver thread for this connection.
+ *
  * @author alysson
  */
 public class ServerConnection {
@@ -75,12 +93,28 @@ public class ServerConnection {
     /** Only used when there is no sender Thread */
     private Lock sendLock;
     private boolean doWork = true;
+    /** Only used by the Netty transport */
+    private EventLoopGroup workerGroup;
+    private volatile Channel channel;
+    private final ConcurrentLinkedQueue<ByteBuf> pendingWrites = new ConcurrentLinkedQueue<ByteBuf>();
+    private final AtomicBoolean flushPending = new AtomicBoolean(false);
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
 
     public ServerConnection(ServerViewController controller, Socket socket, int remoteId,
             LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica) {
+        this(controller, socket, remoteId, inQueue, replica, null);
+    }
+
+    public ServerConnection(ServerViewController controller, Socket socket, int remoteId,
+            LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica, EventLoopGroup workerGroup) {
 
         this.controller = controller;
 
+        // the connection with the TTP is always handled by a dedicated thread
+        if (workerGroup != null && this.controller.getStaticConf().getTTPId() != remoteId) {
+            this.workerGroup = workerGroup;
+        }
+
         this.socket = socket;
 
         this.remoteId = remoteId;
@@ -94,8 +128,7 @@ public class ServerConnection {
         if (isToConnect()) {
             //I have to connect to the remote server
             try {
-                this.socket = new Socket(this.controller.getStaticConf().getHost(remoteId),
-                        this.controller.getStaticConf().getServerToServerPort(remoteId));
+                this.socket = connectSocket();
                 ServersCommunicationLayer.setSocketOptions(this.socket);
                 new DataOutputStream(this.socket.getOutputStream()).writeInt(this.controller.getStaticConf().getProcessId());
 
@@ -118,7 +151,7 @@ public class ServerConnection {
         }
                
        //******* EDUARDO BEGIN **************//
-        this.useSenderThread = this.controller.getStaticConf().isUseSenderThread();
+        this.useSenderThread = this.controller.getStaticConf().isUseSenderThread() && this.workerGroup == null;
 
         if (useSenderThread && (this.controller.getStaticConf().getTTPId() != remoteId)) {
             new SenderThread().start();
@@ -127,7 +160,13 @@ public class ServerConnection {
         }
         authenticateAndEstablishAuthKey();
         
-        if (!this.controller.getStaticConf().isTheTTP()) {
+        if (this.workerGroup != null) {
+            if (authKey != null) {
+                registerChannel();
+            } else if (isToConnect()) {
+                scheduleReconnect();
+            }
+        } else if (!this.controller.getStaticConf().isTheTTP()) {
             if (this.controller.getStaticConf().getTTPId() == remoteId) {
                 //Uma thread "diferente" para as msgs recebidas da TTP
                 new TTPReceiverThread(replica).start();
@@ -156,7 +195,11 @@ public class ServerConnection {
      * Used to send packets to the remote server.
      */
     public final void send(byte[] data, boolean useMAC) throws InterruptedException {
-        if (useSenderThread) {
+        if (workerGroup != null) {
+            sendLock.lock();
+            writeToChannel(data, useMAC);
+            sendLock.unlock();
+        } else if (useSenderThread) {
             //only enqueue messages if there queue is not full
             if (!useMAC) {
                 Logger.println("(ServerConnection.send) Not sending defaultMAC " + System.identityHashCode(data));
@@ -213,6 +256,105 @@ public class ServerConnection {
         } while (doWork);
     }
 
+    /**
+     * Writes a message to the Netty channel. Messages are queued and written
+     * by a task in the event loop, so the messages queued before that task
+     * runs are flushed together in a single gathering write.
+     */
+    private void writeToChannel(byte[] messageData, boolean useMAC) {
+        final Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            Logger.println("(ServerConnection.writeToChannel) no connection to " + remoteId + " (message discarded).");
+            return;
+        }
+
+        byte[] mac = (useMAC && this.controller.getStaticConf().getUseMACs() == 1) ? macSend.doFinal(messageData) : null;
+
+        ByteBuf buf = ch.alloc().directBuffer(5 + messageData.length + ((mac != null) ? mac.length : 0));
+        buf.writeInt(messageData.length);
+        buf.writeBytes(messageData);
+        if (mac != null) {
+            buf.writeByte(1);
+            buf.writeBytes(mac);
+        } else {
+            buf.writeByte(0);
+        }
+        pendingWrites.offer(buf);
+
+        if (flushPending.compareAndSet(false, true)) {
+            ch.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushPending.set(false);
+                    ByteBuf next;
+                    while ((next = pendingWrites.poll()) != null) {
+                        ch.write(next);
+                    }
+                    ch.flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands the (already authenticated) socket to the Netty event loop
+     */
+    private void registerChannel() {
+        if (socket == null || socket.getChannel() == null) {
+            Logger.println("Socket to " + remoteId + " has no channel, unable to use the Netty transport");
+            closeSocket();
+            return;
+        }
+
+        NioSocketChannel ch = new NioSocketChannel(socket.getChannel());
+        ch.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        ch.config().setTcpNoDelay(true);
+        ch.pipeline().addLast(new NettyReceiver());
+
+        if (workerGroup.register(ch).awaitUninterruptibly().isSuccess()) {
+            channel = ch;
+        } else {
+            Logger.println("Unable to register connection to " + remoteId + " in the event loop");
+            closeSocket();
+        }
+    }
+
+    /**
+     * Reconnects to the remote server in the background. Only used by the
+     * Netty transport, since there are no sender and receiver threads to do it
+     */
+    private void scheduleReconnect() {
+        if (!doWork || !reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+
+        new Thread("Reconnector for " + remoteId) {
+            @Override
+            public void run() {
+                while (doWork && channel == null) {
+                    try {
+                        Thread.sleep(POOL_TIME);
+                    } catch (InterruptedException ie) {
+                    }
+                    if (doWork) {
+                        reconnect(null);
+                    }
+                }
+                reconnecting.set(false);
+            }
+        }.start();
+    }
+
+    private Socket connectSocket() throws IOException {
+        if (workerGroup != null) {
+            // the Netty transport needs a socket backed by a channel
+            return SocketChannel.open(new InetSocketAddress(this.controller.getStaticConf().getHost(remoteId),
+                    this.controller.getStaticConf().getServerToServerPort(remoteId))).socket();
+        }
+        return new Socket(this.controller.getStaticConf().getHost(remoteId),
+                this.controller.getStaticConf().getServerToServerPort(remoteId));
+    }
+
     //******* EDUARDO BEGIN **************//
     //return true of a process shall connect to the remote process, false otherwise
     private boolean isToConnect() {
@@ -280,8 +422,7 @@ public class ServerConnection {
                 //******* EDUARDO BEGIN **************//
                 if (isToConnect()) {
 
-                    socket = new Socket(this.controller.getStaticConf().getHost(remoteId),
-                            this.controller.getStaticConf().getServerToServerPort(remoteId));
+                    socket = connectSocket();
                     ServersCommunicationLayer.setSocketOptions(socket);
                     new DataOutputStream(socket.getOutputStream()).writeInt(this.controller.getStaticConf().getProcessId());
 
@@ -304,6 +445,14 @@ public class ServerConnection {
                     
                     authKey = null;
                     authenticateAndEstablishAuthKey();
+
+                    if (workerGroup != null && socket != null) {
+                        if (authKey != null) {
+                            registerChannel();
+                        } else {
+                            closeSocket();
+                        }
+                    }
                 } catch (IOException ex) {
                     ex.printStackTrace();
                 }
@@ -406,6 +555,11 @@ public class ServerConnection {
     }
 
     private void closeSocket() {
+        Channel ch = channel;
+        if (ch != null) {
+            channel = null;
+            ch.close();
+        }
         if (socket != null) {
             try {
                 socketOutStream.flush();
@@ -512,7 +666,7 @@ public class ServerConnection {
                         }
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = MessageCodec.decode(data);
                             sm.authenticated = (controller.getStaticConf().getUseMACs() == 1 && hasMAC == 1);
                             
                             if (sm.getSender() == remoteId) {
@@ -541,6 +695,80 @@ public class ServerConnection {
         }
     }
 
+    /**
+     * Handler used by the Netty transport to receive packets from the remote
+     * server. It reads the same frames as ReceiverThread.
+     */
+    private class NettyReceiver extends ByteToMessageDecoder {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            while (in.readableBytes() >= 5) {
+                int start = in.readerIndex();
+                int dataLength = in.getInt(start);
+                if (in.readableBytes() < 5 + dataLength) {
+                    return;
+                }
+
+                byte hasMAC = in.getByte(start + 4 + dataLength);
+                int frameLength = 5 + dataLength + ((hasMAC == 1) ? macSize : 0);
+                if (in.readableBytes() < frameLength) {
+                    return;
+                }
+
+                byte[] data = new byte[dataLength];
+                in.getBytes(start + 4, data);
+
+                boolean result = true;
+                if (hasMAC == 1) {
+                    byte[] receivedMac = new byte[macSize];
+                    in.getBytes(start + 5 + dataLength, receivedMac);
+                    if (controller.getStaticConf().getUseMACs() == 1) {
+                        result = Arrays.equals(macReceive.doFinal(data), receivedMac);
+                    }
+                }
+                in.readerIndex(start + frameLength);
+
+                if (result) {
+                    try {
+                        SystemMessage sm = MessageCodec.decode(data);
+                        sm.authenticated = (controller.getStaticConf().getUseMACs() == 1 && hasMAC == 1);
+
+                        if (sm.getSender() == remoteId) {
+                            if (!inQueue.offer(sm)) {
+                                Logger.println("(NettyReceiver.decode) in queue full (message from " + remoteId + " discarded).");
+                                System.out.println("(NettyReceiver.decode) in queue full (message from " + remoteId + " discarded).");
+                            }
+                        }
+                    } catch (ClassNotFoundException ex) {
+                        //invalid message sent, just ignore;
+                    }
+                } else {
+                    //TODO: violation of authentication... we should do something
+                    Logger.println("WARNING: Violation of authentication in message received from " + remoteId);
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            super.channelInactive(ctx);
+            if (ctx.channel() == channel && doWork) {
+                Logger.println("Closing socket and reconnecting");
+                closeSocket();
+                if (isToConnect()) {
+                    scheduleReconnect();
+                }
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            Logger.println("Error in connection to " + remoteId + ": " + cause);
+            ctx.close();
+        }
+    }
+
     //******* EDUARDO BEGIN: special thread for receiving messages indicating the entrance into the system, coming from the TTP **************//
     // Simly pass the messages to the replica, indicating its entry into the system
     //TODO: Ask eduardo why a new thread is needed!!! 
@@ -596,7 +824,7 @@ public class ServerConnection {
                         }
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = MessageCodec.decode(data);
 
                             if (sm.getSender() == remoteId) {
                                 //System.out.println("Mensagem recebia de: "+remoteId);
@@ -15,14 +15,17 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayOutputStream;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -33,6 +36,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
@@ -59,6 +63,7 @@ public class ServersCommunicationLayer extends Thread {
     private List<PendingConnection> pendingConn = new LinkedList<PendingConnection>();
     private ServiceReplica replica;
     private SecretKey selfPwd;
+    private EventLoopGroup workerGroup = null; // only used by the Netty transport
     private static final String PASSWORD = "commsyst";
 
     public ServersCommunicationLayer(ServerViewController controller,
@@ -69,6 +74,10 @@ public class ServersCommunicationLayer extends Thread {
         this.me = controller.getStaticConf().getProcessId();
         this.replica = replica;
 
+        if (controller.getStaticConf().isNettyServerTransport()) {
+            workerGroup = new NioEventLoopGroup(controller.getStaticConf().getNumberOfNIOThreads());
+        }
+
         //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
         if (controller.isInCurrentView()) {
             int[] initialV = controller.getCurrentViewAcceptors();
@@ -79,8 +88,14 @@ public class ServersCommunicationLayer extends Thread {
             }
         }
 
-        serverSocket = new ServerSocket(controller.getStaticConf().getServerToServerPort(
-                controller.getStaticConf().getProcessId()));
+        int port = controller.getStaticConf().getServerToServerPort(controller.getStaticConf().getProcessId());
+        if (workerGroup != null) {
+            // accepted sockets must be backed by a channel to be used by Netty
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
+        } else {
+            serverSocket = new ServerSocket(port);
+        }
 
         SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
         PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray());
@@ -136,7 +151,7 @@ public class ServersCommunicationLayer extends Thread {
         connectionsLock.lock();
         ServerConnection ret = this.connections.get(remoteId);
         if (ret == null) {
-            ret = new ServerConnection(controller, null, remoteId, this.inQueue, this.replica);
+            ret = new ServerConnection(controller, null, remoteId, this.inQueue, this.replica, workerGroup);
             this.connections.put(remoteId, ret);
         }
         connectionsLock.unlock();
@@ -146,15 +161,14 @@ public class ServersCommunicationLayer extends Thread {
 
 
     public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        byte[] data = null;
         try {
-            new ObjectOutputStream(bOut).writeObject(sm);
+            data = MessageCodec.encode(sm);
         } catch (IOException ex) {
             Logger.getLogger(ServerConnection.class.getName()).log(Level.SEVERE, null, ex);
+            return;
         }
 
-        byte[] data = bOut.toByteArray();
-
         for (int i : targets) {
             try {
                 if (i == me) {
@@ -187,6 +201,10 @@ public class ServersCommunicationLayer extends Thread {
                 getConnection(activeServers[i]).shutdown();
             }
         }
+
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully();
+        }
         //******* EDUARDO END **************//
     }
 
@@ -255,7 +273,7 @@ public class ServersCommunicationLayer extends Thread {
             if (this.connections.get(remoteId) == null) { //This must never happen!!!
                 //first time that this connection is being established
                 //System.out.println("THIS DOES NOT HAPPEN....."+remoteId);
-                this.connections.put(remoteId, new ServerConnection(controller, newSocket, remoteId, inQueue, replica));
+                this.connections.put(remoteId, new ServerConnection(controller, newSocket, remoteId, inQueue, replica, workerGroup));
             } else {
                 //reconnection
                 this.connections.get(remoteId).reconnect(newSocket);
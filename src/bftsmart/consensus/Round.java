@@ -45,7 +45,7 @@ public class Round implements Serializable {
     private boolean alreadyRemoved = false; // indicates if this round was removed from its execution
 
     public byte[] propValue = null; // proposed value
-    public TOMMessage[] deserializedPropValue = null; //utility var
+    public volatile TOMMessage[] deserializedPropValue = null; //utility var (may be set after the decision, see Acceptor)
     public byte[] propValueHash = null; // proposed value hash
     public HashSet<PaxosMessage> proof; // proof from other processes
 
@@ -16,14 +16,11 @@ limitations under the License.
 package bftsmart.consensus.executionmanager;
 
 import bftsmart.consensus.Round;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
-import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Consensus;
@@ -52,12 +49,12 @@ public final class ExecutionManager {
     //private int[] acceptors; // Process ID's of all replicas, including this one
     //private int[] otherAcceptors; // Process ID's of all replicas, except this one
     //******* EDUARDO END **************//
-    private Map<Integer, Execution> executions = new TreeMap<Integer, Execution>(); // Executions
+    private InstanceWindow<Execution> executions; // Executions
     private ReentrantLock executionsLock = new ReentrantLock(); //lock for executions table
     // Paxos messages that were out of context (that didn't belong to the execution that was/is is progress
-    private Map<Integer, List<PaxosMessage>> outOfContext = new HashMap<Integer, List<PaxosMessage>>();
+    private InstanceWindow<List<PaxosMessage>> outOfContext;
     // Proposes that were out of context (that belonged to future executions, and not the one running at the time)
-    private Map<Integer, PaxosMessage> outOfContextProposes = new HashMap<Integer, PaxosMessage>();
+    private InstanceWindow<PaxosMessage> outOfContextProposes;
     private ReentrantLock outOfContextLock = new ReentrantLock(); //lock for out of context
     private boolean stopped = false; // Is the execution manager stopped?
     // When the execution manager is stopped, incoming paxos messages are stored here
@@ -69,6 +66,10 @@ public final class ExecutionManager {
     /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
     private int revivalHighMark; // Paxos high mark for consensus instances when this replica EID equals 0
     private int timeoutHighMark; // Paxos high mark for a timed-out replica
+    private int pipelineDepth; // Number of consensus instances that can be executed at the same time
+
+    // executions kept after being decided (see DeliveryThread), which are only dropped afterwards
+    private static final int DECIDED_EXECUTIONS = 3;
     
     /******************************************************************/
     /**
@@ -93,7 +94,14 @@ public final class ExecutionManager {
         /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
         this.revivalHighMark = this.controller.getStaticConf().getRevivalHighMark();
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
         /******************************************************************/
+
+        // the executions in use go from the last decided ones to the paxos high mark
+        int window = Math.max(paxosHighMark, pipelineDepth) + DECIDED_EXECUTIONS + 1;
+        this.executions = new InstanceWindow<Execution>(window);
+        this.outOfContext = new InstanceWindow<List<PaxosMessage>>(window);
+        this.outOfContextProposes = new InstanceWindow<PaxosMessage>(window);
         //******* EDUARDO END **************//
     }
 
@@ -190,6 +198,8 @@ public final class ExecutionManager {
         
         int inExec = tomLayer.getInExec();
         
+        int lastInExec = tomLayer.getLastInExec();
+        
         Logger.println("(ExecutionManager.checkLimits) Received message  " + msg);
         Logger.println("(ExecutionManager.checkLimits) I'm at execution " + 
                 inExec + " and my last execution is " + lastConsId);
@@ -221,9 +231,10 @@ public final class ExecutionManager {
                 stoppedMsgsLock.unlock();
             } else {
                 if (isRetrievingState || 
-                        msg.getNumber() > (lastConsId + 1) || 
-                        (inExec != -1 && inExec < msg.getNumber()) || 
-                        (inExec == -1 && msg.getPaxosType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
+                        msg.getNumber() > (lastConsId + pipelineDepth) || // beyond the instances that can run concurrently
+                        (pipelineDepth == 1 && inExec != -1 && inExec < msg.getNumber()) || 
+                        (inExec == -1 && msg.getPaxosType() != MessageFactory.PROPOSE) || //not propose message for the next consensus
+                        (msg.getNumber() > lastInExec && msg.getPaxosType() != MessageFactory.PROPOSE)) { //not propose message for a consensus not yet started
                     Logger.println("(ExecutionManager.checkLimits) Message for execution " + 
                             msg.getNumber() + " is out of context, adding it to out of context set");
                     
@@ -315,21 +326,8 @@ public final class ExecutionManager {
 
         outOfContextLock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        Integer[] keys = new Integer[outOfContextProposes.keySet().size()];
-        outOfContextProposes.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContextProposes.remove(keys[i]);
-            }
-        }
-
-        keys = new Integer[outOfContext.keySet().size()];
-        outOfContext.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContext.remove(keys[i]);
-            }
-        }
+        outOfContextProposes.removeUpTo(id);
+        outOfContext.removeUpTo(id);
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
         outOfContextLock.unlock();
@@ -354,8 +352,8 @@ public final class ExecutionManager {
 
             execution = new Execution(this, cons);
 
-            //...and add it to the executions table
-            executions.put(eid, execution);
+            //...and add it to the executions table, dropping the one of a stable consensus in its slot
+            executions.put(eid, execution, tomLayer.getLastExec() - DECIDED_EXECUTIONS);
         }
 
         /******* END EXECUTIONS CRITICAL SECTION *******/
@@ -367,10 +365,16 @@ public final class ExecutionManager {
     public boolean isDecidable(int eid) {
         if (receivedOutOfContextPropose(eid)) {
             Execution exec = getExecution(eid);
+            outOfContextLock.lock();
             PaxosMessage prop = outOfContextProposes.get(exec.getId());
+            List<PaxosMessage> msgs = outOfContext.get(eid);
+            msgs = (msgs == null) ? null : new ArrayList<PaxosMessage>(msgs);
+            outOfContextLock.unlock();
+            if (prop == null) {
+                return false;
+            }
             Round round = exec.getRound(prop.getRound(), controller);
             byte[] propHash = tomLayer.computeHash(prop.getValue());
-            List<PaxosMessage> msgs = outOfContext.get(eid);
             int countWrites = 0;
             int countAccepts = 0;
             if (msgs != null) {
@@ -394,34 +398,49 @@ public final class ExecutionManager {
         }
         return false;
     }
+    /**
+     * Processes the propose of an execution that was out of context. The
+     * message is processed after the out of context lock is released: the
+     * thread processing another execution may hold its lock while it waits
+     * for this one (see MessageLanes).
+     */
     public void processOutOfContextPropose(Execution execution) {
         outOfContextLock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
         
         PaxosMessage prop = outOfContextProposes.remove(execution.getId());
+
+        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextLock.unlock();
+
         if (prop != null) {
             Logger.println("(ExecutionManager.createExecution) (" + execution.getId()
                     + ") Processing out of context propose");
             acceptor.processMessage(prop);
         }
-
-        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
     }
 
+    /**
+     * Processes the messages of an execution that were out of context, after
+     * the out of context lock is released (see processOutOfContextPropose)
+     */
     public void processOutOfContext(Execution execution) {
         outOfContextLock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
         
         //then we have to put the pending paxos messages
         List<PaxosMessage> messages = outOfContext.remove(execution.getId());
+
+        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextLock.unlock();
+
         if (messages != null) {
             Logger.println("(createExecution) (" + execution.getId()
                     + ") Processing other " + messages.size()
                     + " out of context messages.");
 
-            for (Iterator<PaxosMessage> i = messages.iterator(); i.hasNext();) {
-                acceptor.processMessage(i.next());
+            for (PaxosMessage message : messages) {
+                acceptor.processMessage(message);
                 if (execution.isDecided()) {
                     Logger.println("(ExecutionManager.createExecution) execution "
                             + execution.getId() + " decided.");
@@ -431,9 +450,6 @@ public final class ExecutionManager {
             Logger.println("(createExecution) (" + execution.getId()
                     + ") Finished out of context processing");
         }
-
-        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
     }
 
     /**
@@ -447,12 +463,12 @@ public final class ExecutionManager {
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
         if (m.getPaxosType() == MessageFactory.PROPOSE) {
             Logger.println("(ExecutionManager.addOutOfContextMessage) adding " + m);
-            outOfContextProposes.put(m.getNumber(), m);
+            outOfContextProposes.put(m.getNumber(), m, tomLayer.getLastExec());
         } else {
             List<PaxosMessage> messages = outOfContext.get(m.getNumber());
             if (messages == null) {
-                messages = new LinkedList<PaxosMessage>();
-                outOfContext.put(m.getNumber(), messages);
+                messages = new ArrayList<PaxosMessage>();
+                outOfContext.put(m.getNumber(), messages, tomLayer.getLastExec());
             }
             Logger.println("(ExecutionManager.addOutOfContextMessage) adding " + m);
             messages.add(m);
@@ -0,0 +1,112 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.executionmanager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Table of values indexed by consensus id. The ids being worked on always
+ * lie within a window of consecutive instances, so each id has a fixed slot
+ * (its id modulo the size of the window) and is found without searching or
+ * boxing. An id whose slot is held by another id that is still in use (which
+ * only happens for ids far ahead of the window, e.g. while this replica is
+ * behind the others) is kept in a map instead.
+ *
+ * This class is not thread-safe, it is used with the locks of the
+ * ExecutionManager.
+ */
+final class InstanceWindow<T> {
+
+    private final int[] ids;
+    private final Object[] values;
+    private final Map<Integer, T> overflow = new HashMap<Integer, T>();
+
+    /**
+     * @param size number of consecutive ids that never share a slot
+     */
+    InstanceWindow(int size) {
+        ids = new int[size];
+        values = new Object[size];
+    }
+
+    private int slot(int eid) {
+        return (eid & Integer.MAX_VALUE) % ids.length;
+    }
+
+    /**
+     * Returns the value of the given id, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    T get(int eid) {
+        int slot = slot(eid);
+        if (values[slot] != null && ids[slot] == eid) {
+            return (T) values[slot];
+        }
+        return overflow.isEmpty() ? null : overflow.get(eid);
+    }
+
+    /**
+     * Stores the value of an id that has none (see get). The value in its
+     * slot is dropped if its id is at most stableId, i.e., no longer used
+     *
+     * @param eid the id
+     * @param value the value
+     * @param stableId the highest id whose value can be dropped
+     */
+    void put(int eid, T value, int stableId) {
+        int slot = slot(eid);
+        if (values[slot] == null || ids[slot] == eid || ids[slot] <= stableId) {
+            ids[slot] = eid;
+            values[slot] = value;
+        } else {
+            overflow.put(eid, value);
+        }
+    }
+
+    /**
+     * Removes the value of the given id
+     *
+     * @return the value removed, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    T remove(int eid) {
+        int slot = slot(eid);
+        if (values[slot] != null && ids[slot] == eid) {
+            T value = (T) values[slot];
+            values[slot] = null;
+            return value;
+        }
+        return overflow.isEmpty() ? null : overflow.remove(eid);
+    }
+
+    /**
+     * Removes the values of all ids up to the given one
+     */
+    void removeUpTo(int eid) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null && ids[slot] <= eid) {
+                values[slot] = null;
+            }
+        }
+        for (Iterator<Integer> i = overflow.keySet().iterator(); i.hasNext();) {
+            if (i.next() <= eid) {
+                i.remove();
+            }
+        }
+    }
+}
@@ -50,6 +50,7 @@ public class LeaderModule {
 	 * @param l ID of the leader
 	 */
 	public void addLeaderInfo(int c, int r, int l) {
+		leaderInfosLock.lock();
 		List<ConsInfo> list = leaderInfos.get(c);
 		if (list == null) {
 			list = new LinkedList<ConsInfo>();
@@ -62,6 +63,7 @@ public class LeaderModule {
 		} else {
 			list.add(new ConsInfo(r, l));
 		}
+		leaderInfosLock.unlock();
 	}
 
 	public void setNewLeader (int leader) {
@@ -100,9 +102,12 @@ public class LeaderModule {
 	 * @param l ID of the replica established as being the leader for the round 0 of the next consensus
 	 */
 	public void decided(int c, int l) {
+		// instances are decided by several threads (see MessageLanes)
+		leaderInfosLock.lock();
 		if (leaderInfos.get(c) == null) {
 			addLeaderInfo(c + 1, 0, l);
 		}
+		leaderInfosLock.unlock();
 	}
 
 	/**
@@ -113,6 +118,15 @@ public class LeaderModule {
 	 * @return The replica ID of the leader
 	 */
 	public int getLeader(int c, int r) {
+		leaderInfosLock.lock();
+		try {
+			return findLeader(c, r);
+		} finally {
+			leaderInfosLock.unlock();
+		}
+	}
+
+	private int findLeader(int c, int r) {
 		/***/
 		List<ConsInfo> list = leaderInfos.get(c);
 		if (list == null) {
@@ -18,6 +18,7 @@ package bftsmart.consensus.messages;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 
 import bftsmart.communication.SystemMessage;
 
@@ -34,6 +35,7 @@ public class PaxosMessage extends SystemMessage {
     private byte[] value = null; // Value used when message type is PROPOSE
     private Object proof; // Proof used when message type is COLLECT
                               // Can be either a MAC vector or a RSA signature
+    private transient boolean proofVerified = false; // Whether this replica already checked the proof
 
     /**
      * Creates a paxos message. Not used. TODO: How about making it private?
@@ -161,6 +163,55 @@ public class PaxosMessage extends SystemMessage {
     public void setProof(Object proof) {
         
         this.proof = proof;
+        this.proofVerified = false;
+    }
+
+    /**
+     * Returns the canonical encoding of the fields authenticated by the proof
+     * of an ACCEPT message: type, execution ID, round, sender and value (the
+     * hash of the proposed batch). MAC vectors and signatures are computed over
+     * these bytes, so they can be checked without serializing the message.
+     * @return The bytes covered by the proof
+     */
+    public byte[] getProofData() {
+
+        ByteBuffer data = ByteBuffer.allocate(20 + (value == null ? 0 : value.length));
+
+        data.putInt(paxosType);
+        data.putInt(number);
+        data.putInt(round);
+        data.putInt(getSender());
+
+        if (value == null) {
+
+            data.putInt(-1);
+
+        } else {
+
+            data.putInt(value.length);
+            data.put(value);
+
+        }
+
+        return data.array();
+
+    }
+
+    /**
+     * Indicates if this replica already verified the proof of this message.
+     * Set by whoever checked it, so the same message is not checked twice
+     * @return True if the proof was already verified
+     */
+    public boolean isProofVerified() {
+
+        return proofVerified;
+
+    }
+
+    public void setProofVerified(boolean proofVerified) {
+
+        this.proofVerified = proofVerified;
+
     }
     
     /**
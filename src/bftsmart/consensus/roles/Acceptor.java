@@ -34,11 +34,10 @@ import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.security.PrivateKey;
-import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 
@@ -58,8 +57,20 @@ public final class Acceptor {
     private LeaderModule leaderModule; // Manager for information about leaders
     private TOMLayer tomLayer; // TOM layer
     private ServerViewController controller;
+    private ExecutorService proposeCheckers; // check the proposed batches while the WRITE is sent, if any
     //private Cipher cipher;
-    private Mac mac;
+    // instances are processed by several threads (see MessageLanes), and Mac objects are not thread-safe
+    private ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+            } catch (NoSuchAlgorithmException ex) {
+                ex.printStackTrace();
+                return null;
+            }
+        }
+    };
 
     /**
      * Creates a new instance of Acceptor.
@@ -75,12 +86,19 @@ public final class Acceptor {
         this.factory = factory;
         this.leaderModule = lm;
         this.controller = controller;
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            //this.cipher = Cipher.getInstance(ServerConnection.MAC_ALGORITHM);
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
+
+        int checkThreads = controller.getStaticConf().getProposeCheckThreads();
+        if (checkThreads > 0) {
+            proposeCheckers = Executors.newFixedThreadPool(checkThreads, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Propose checker " + (count++));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
     }
 
@@ -179,6 +197,13 @@ public final class Acceptor {
 
         
         if(round.propValue == null) { //only accept one propose per round
+            //a batch of digests is processed only when all its requests are available
+            if (!tomLayer.getProposalResolver().isResolvable(eid, round.getNumber(), value,
+                    leaderModule.getCurrentLeader())) {
+                Logger.println("(Acceptor.executePropose) waiting for the requests of " + eid);
+                return;
+            }
+
             round.propValue = value;
             round.propValueHash = tomLayer.computeHash(value);
             
@@ -188,52 +213,195 @@ public final class Acceptor {
             /*****************************************/
 
             //start this execution if it is not already running
-            if (eid == tomLayer.getLastExec() + 1) {
+            if (tomLayer.isInPipeline(eid)) {
                 tomLayer.setInExec(eid);
             }
-            round.deserializedPropValue = tomLayer.checkProposedValue(value, true);
 
-            if (round.deserializedPropValue != null && !round.isWriteSetted(me)) {
-                if(round.getExecution().getLearner().firstMessageProposed == null) {
-                    round.getExecution().getLearner().firstMessageProposed = round.deserializedPropValue[0];
+            if (proposeCheckers == null) {
+                proposeChecked(round, tomLayer.checkProposedValue(value, true), consensusStartTime, 0);
+            } else {
+                // the WRITE is sent while the batch is checked, the ACCEPT waits for the result
+                long writeSentTime = 0;
+                if (controller.getStaticConf().isBFT()) {
+                    sendWrite(eid, round);
+                    writeSentTime = System.nanoTime();
                 }
-                if (round.getExecution().getLearner().firstMessageProposed.consensusStartTime == 0) {
-                    round.getExecution().getLearner().firstMessageProposed.consensusStartTime = consensusStartTime;
-                    
+                checkPropose(round, value, consensusStartTime, writeSentTime);
+            }
+        } 
+    }
+
+    /**
+     * Checks a proposed batch in a propose checker thread, and continues the
+     * execution with the result (see proposeChecked), unless the value of
+     * the round was replaced in the meantime
+     */
+    private void checkPropose(final Round round, final byte[] value, final long consensusStartTime,
+            final long writeSentTime) {
+        proposeCheckers.execute(new Runnable() {
+            @Override
+            public void run() {
+                TOMMessage[] requests = tomLayer.checkProposedValue(value, true);
+
+                // published before taking the lock: if the execution was decided in the
+                // meantime, its delivery waits for the requests with the lock held
+                if (round.propValue == value) {
+                    round.deserializedPropValue = requests;
                 }
-                round.getExecution().getLearner().firstMessageProposed.proposeReceivedTime = System.nanoTime();
-                
-                if(controller.getStaticConf().isBFT()){
-                    Logger.println("(Acceptor.executePropose) sending WRITE for " + eid);
 
-                    round.setWrite(me, round.propValueHash);
-                    round.getExecution().getLearner().firstMessageProposed.writeSentTime = System.nanoTime();
-                    communication.send(this.controller.getCurrentViewOtherAcceptors(),
-                            factory.createWrite(eid, round.getNumber(), round.propValueHash));
+                Execution execution = round.getExecution();
+                execution.lock.lock();
+                if (round.propValue == value) {
+                    proposeChecked(round, requests, consensusStartTime, writeSentTime);
+                }
+                execution.lock.unlock();
+            }
+        });
+    }
 
-                    Logger.println("(Acceptor.executePropose) WRITE sent for " + eid);
-                
-                    computeWrite(eid, round, round.propValueHash);
-                
-                    Logger.println("(Acceptor.executePropose) WRITE computed for " + eid);
-                
-                } else {
-                 	round.setAccept(me, round.propValueHash);
-                 	round.getExecution().getLearner().firstMessageProposed.writeSentTime = System.nanoTime();
-                        round.getExecution().getLearner().firstMessageProposed.acceptSentTime = System.nanoTime();
-                 	/**** LEADER CHANGE CODE! ******/
-                        Logger.println("(Acceptor.executePropose) (CFT Mode) Setting EID's " + eid + " QuorumWrite tiemstamp to " + round.getExecution().getEts() + " and value " + Arrays.toString(round.propValueHash));
- 	                round.getExecution().setQuorumWrites(round.propValueHash);
- 	                /*****************************************/
+    /**
+     * Continues the execution of a proposed value once its batch is checked:
+     * sends the WRITE (if it was not sent yet) and the ACCEPT, which are only
+     * sent for a valid batch. Must be invoked with the execution lock held.
+     *
+     * @param round the round where the value was proposed
+     * @param requests the requests of the batch, or null if it is invalid
+     * @param consensusStartTime when the PROPOSE started to be processed
+     * @param writeSentTime when the WRITE was sent, or 0 if it was not
+     */
+    private void proposeChecked(Round round, TOMMessage[] requests, long consensusStartTime, long writeSentTime) {
+        int eid = round.getExecution().getId();
+        round.deserializedPropValue = requests;
 
-                        communication.send(this.controller.getCurrentViewOtherAcceptors(),
- 	                    factory.createAccept(eid, round.getNumber(), round.propValueHash));
+        if (requests == null) {
+            Logger.println("(Acceptor.proposeChecked) invalid batch proposed for " + eid);
+            return;
+        }
+        if (round.getExecution().isDecided() || (writeSentTime == 0 && round.isWriteSetted(me))) {
+            // already decided (the requests are only needed for the delivery) or already written
+            return;
+        }
 
-                        computeAccept(eid, round, round.propValueHash);
-                }
-                executionManager.processOutOfContext(round.getExecution());
+        if(round.getExecution().getLearner().firstMessageProposed == null) {
+            round.getExecution().getLearner().firstMessageProposed = requests[0];
+        }
+        if (round.getExecution().getLearner().firstMessageProposed.consensusStartTime == 0) {
+            round.getExecution().getLearner().firstMessageProposed.consensusStartTime = consensusStartTime;
+
+        }
+        round.getExecution().getLearner().firstMessageProposed.proposeReceivedTime = System.nanoTime();
+
+        if(controller.getStaticConf().isBFT()){
+            if (!round.isWriteSetted(me)) {
+                sendWrite(eid, round);
+            } else if (writeSentTime != 0) {
+                round.getExecution().getLearner().firstMessageProposed.writeSentTime = writeSentTime;
             }
-        } 
+
+            computeWrite(eid, round, round.propValueHash);
+
+            Logger.println("(Acceptor.proposeChecked) WRITE computed for " + eid);
+
+        } else if (!round.isAcceptSetted(me) && canAccept(eid)) {
+            sendAccept(eid, round);
+        }
+        executionManager.processOutOfContext(round.getExecution());
+    }
+
+    /**
+     * Sends the ACCEPT for a proposed value in CFT mode, where no WRITE
+     * phase precedes it. Must be invoked with the execution lock held.
+     */
+    private void sendAccept(int eid, Round round) {
+        round.setAccept(me, round.propValueHash);
+        round.getExecution().getLearner().firstMessageProposed.writeSentTime = System.nanoTime();
+        round.getExecution().getLearner().firstMessageProposed.acceptSentTime = System.nanoTime();
+        /**** LEADER CHANGE CODE! ******/
+        Logger.println("(Acceptor.proposeChecked) (CFT Mode) Setting EID's " + eid + " QuorumWrite tiemstamp to " + round.getExecution().getEts() + " and value " + Arrays.toString(round.propValueHash));
+        round.getExecution().setQuorumWrites(round.propValueHash);
+        /*****************************************/
+
+        communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                factory.createAccept(eid, round.getNumber(), round.propValueHash));
+
+        computeAccept(eid, round, round.propValueHash);
+    }
+
+    /**
+     * Informs if the ACCEPT of a consensus can be sent. When pipelining, it
+     * is only sent once the previous consensus was decided and ordered here,
+     * so that a consensus can only be decided if f+1 correct replicas know
+     * the decision of the previous one. Then the last decided consensus
+     * reported to a new leader (STOPDATA) is at most one below any decided
+     * consensus, and the synchronization phase, which only carries the
+     * WRITEs of the consensus that follows it, cannot lose a decision.
+     *
+     * @param eid the execution id
+     * @return true if the ACCEPT of the consensus can be sent
+     */
+    private boolean canAccept(int eid) {
+        if (eid <= tomLayer.getLastExec() + 1) {
+            return true;
+        }
+        Logger.println("(Acceptor.canAccept) ACCEPT for " + eid + " waits for the decision of " + (eid - 1));
+        return false;
+    }
+
+    /**
+     * Sends the ACCEPT that was held by canAccept for a consensus, if it was
+     * held. Invoked when the consensus before it is ordered.
+     *
+     * @param eid the execution id
+     */
+    public void acceptPending(int eid) {
+        if (eid > tomLayer.getLastInExec() || executionManager.stopped()) {
+            // not started yet, or it is synchronized by the leader change
+            return;
+        }
+        Execution execution = executionManager.getExecution(eid);
+        execution.lock.lock();
+        Round round = execution.getLastRound();
+        if (round != null && round.propValueHash != null && round.deserializedPropValue != null
+                && !execution.isDecided()) {
+            if (controller.getStaticConf().isBFT()) {
+                computeWrite(eid, round, round.propValueHash);
+            } else if (!round.isAcceptSetted(me) && canAccept(eid)) {
+                sendAccept(eid, round);
+            }
+        }
+        execution.lock.unlock();
+    }
+
+    private void sendWrite(int eid, Round round) {
+        Logger.println("(Acceptor.sendWrite) sending WRITE for " + eid);
+
+        round.setWrite(me, round.propValueHash);
+        if (round.getExecution().getLearner().firstMessageProposed != null) {
+            round.getExecution().getLearner().firstMessageProposed.writeSentTime = System.nanoTime();
+        }
+        communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                factory.createWrite(eid, round.getNumber(), round.propValueHash));
+
+        Logger.println("(Acceptor.sendWrite) WRITE sent for " + eid);
+    }
+
+    /**
+     * Called by the proposal resolver when the requests of a batch of digests
+     * proposed for an execution become available.
+     *
+     * @param eid the execution id
+     * @param roundNumber the round where the value was proposed
+     * @param value Value that is proposed
+     */
+    public void resolvedPropose(int eid, int roundNumber, byte[] value) {
+        if (eid <= tomLayer.getLastExec()) return;
+
+        Execution execution = executionManager.getExecution(eid);
+
+        execution.lock.lock();
+        Round round = execution.getRound(roundNumber, controller);
+        executePropose(round, value);
+        execution.lock.unlock();
     }
 
     /**
@@ -265,9 +433,11 @@ public final class Acceptor {
         Logger.println("(Acceptor.computeWrite) I have " + writeAccepted +
                 " WRITEs for " + eid + "," + round.getNumber());
 
-        if (writeAccepted > controller.getQuorumAccept() && Arrays.equals(value, round.propValueHash)) {
+        // the ACCEPT is only sent once the proposed batch is checked (see proposeChecked)
+        if (writeAccepted > controller.getQuorumAccept() && Arrays.equals(value, round.propValueHash)
+                && round.deserializedPropValue != null) {
                         
-            if (!round.isAcceptSetted(me)) {
+            if (!round.isAcceptSetted(me) && canAccept(eid)) {
                 
                 Logger.println("(Acceptor.computeWrite) sending WRITE for " + eid);
 
@@ -286,14 +456,8 @@ public final class Acceptor {
                 PaxosMessage pm = factory.createAccept(eid, round.getNumber(), value);
 
                 // override default authentication and create a vector of MACs
-                ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-                try {
-                    new ObjectOutputStream(bOut).writeObject(pm);
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-
-                byte[] data = bOut.toByteArray();
+                // over the canonical encoding of the message
+                byte[] data = pm.getProofData();
         
                 //byte[] hash = tomLayer.computeHash(data);
                 
@@ -318,12 +482,14 @@ public final class Acceptor {
                                        
                     pm.setProof(signature);
                 
-                } else { //... if not, we can use MAC vectores
+                } else { //... if not, we can use MAC vectores, indexed by view position
                     int[] processes = this.controller.getCurrentViewAcceptors();
                 
-                    HashMap<Integer, byte[]> macVector = new HashMap<Integer, byte[]>();
+                    byte[][] macVector = new byte[processes.length][];
+                    Mac mac = macs.get();
                 
-                    for (int id : processes) {
+                    for (int i = 0; i < processes.length; i++) {
+                        int id = processes[i];
                         try {
                         
                             SecretKey key = null;
@@ -339,8 +505,8 @@ public final class Acceptor {
                                                    // recovered after a crash, but it still did not concluded
                                                    // the diffie helman protocol. Not an elegant solution,
                                                    // but for now it will do
-                            this.mac.init(key);
-                          macVector.put(id, this.mac.doFinal(data));
+                            mac.init(key);
+                            macVector[i] = mac.doFinal(data);
                         } catch (InterruptedException ex) {
                             ex.printStackTrace();
                         } catch (InvalidKeyException ex) {
@@ -352,6 +518,7 @@ public final class Acceptor {
                 
                     pm.setProof(macVector);
                 }
+                pm.setProofVerified(true);
                 
                 int[] targets = this.controller.getCurrentViewOtherAcceptors();
                 communication.getServersConn().send(targets, pm, true);
@@ -410,5 +577,12 @@ public final class Acceptor {
                 round.getNumber())*/);
 
         round.getExecution().decided(round, value);
+
+        // the decision may order the consensus whose ACCEPT was held (see canAccept);
+        // its lock is only taken after the lock of this one if its id is higher
+        int next = tomLayer.getLastExec() + 1;
+        if (next > round.getExecution().getId()) {
+            acceptPending(next);
+        }
     }
 }
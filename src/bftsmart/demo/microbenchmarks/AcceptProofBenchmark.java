@@ -0,0 +1,137 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import bftsmart.communication.MessageHandler;
+import bftsmart.communication.server.ServerConnection;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+
+/**
+ * Measures the CPU time a replica spends authenticating ACCEPT messages per
+ * decided instance: creating the MAC vector of its own ACCEPT and verifying
+ * the MACs of the ACCEPTs of the other replicas. It compares the previous
+ * scheme, with MACs computed over the Java serialization of the message and
+ * kept in a map of replica ids, with the current one, with MACs computed over
+ * the canonical encoding of the message (PaxosMessage.getProofData) and kept
+ * in an array indexed by view position.
+ */
+public final class AcceptProofBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ... AcceptProofBenchmark <replicas> <instances>");
+            System.exit(-1);
+        }
+
+        int replicas = Integer.parseInt(args[0]);
+        int instances = Integer.parseInt(args[1]);
+
+        SecretKey key = new SecretKeySpec("benchmark key".getBytes(), ServerConnection.MAC_ALGORITHM);
+        Mac mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+        MessageHandler handler = new MessageHandler();
+        byte[] value = new byte[20];
+
+        System.out.println("--- " + replicas + " replicas, " + instances + " instances ---");
+        for (int warm = 0; warm < 2; warm++) {
+            boolean print = (warm == 1);
+            run("Serialized message, map of ids", replicas, instances, value, key, mac, handler, false, print);
+            run("Canonical bytes, array by position", replicas, instances, value, key, mac, handler, true, print);
+        }
+    }
+
+    private static void run(String name, int replicas, int instances, byte[] value, SecretKey key, Mac mac,
+            MessageHandler handler, boolean canonical, boolean print) throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        int invalid = 0;
+        long cpu = bean.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+
+        for (int eid = 0; eid < instances; eid++) {
+            for (int sender = 0; sender < replicas; sender++) {
+                PaxosMessage pm = new PaxosMessage(MessageFactory.ACCEPT, eid, 0, sender, value);
+
+                if (canonical) {
+                    pm.setProof(macVector(pm.getProofData(), replicas, key, mac));
+                    // the ACCEPT of replica 0 is its own, the others are verified
+                    if (sender != 0 && !handler.verifyMACVector(pm, key, 0)) invalid++;
+                } else {
+                    pm.setProof(macMap(serialize(pm), replicas, key, mac));
+                    if (sender != 0 && !verifySerialized(pm, key, mac, 0)) invalid++;
+                }
+            }
+        }
+
+        cpu = bean.getCurrentThreadCpuTime() - cpu;
+        long time = System.nanoTime() - start;
+
+        if (print) {
+            System.out.println(name + ": " + (cpu / 1000 / instances) + " us CPU/instance, "
+                    + (time / 1000 / instances) + " us/instance");
+            if (invalid > 0) {
+                System.out.println(invalid + " invalid MACs found!");
+            }
+        }
+    }
+
+    private static byte[][] macVector(byte[] data, int replicas, SecretKey key, Mac mac) throws Exception {
+        byte[][] macVector = new byte[replicas][];
+        for (int pos = 0; pos < replicas; pos++) {
+            mac.init(key);
+            macVector[pos] = mac.doFinal(data);
+        }
+        return macVector;
+    }
+
+    // the MAC vector before the canonical encoding, as computed by Acceptor.computeWrite
+    private static HashMap<Integer, byte[]> macMap(byte[] data, int replicas, SecretKey key, Mac mac) throws Exception {
+        HashMap<Integer, byte[]> macVector = new HashMap<Integer, byte[]>();
+        for (int id = 0; id < replicas; id++) {
+            mac.init(key);
+            macVector.put(id, mac.doFinal(data));
+        }
+        return macVector;
+    }
+
+    // the verification before the canonical encoding, as done by MessageHandler.verifyMACVector
+    @SuppressWarnings("unchecked")
+    private static boolean verifySerialized(PaxosMessage paxosMsg, SecretKey key, Mac mac, int myId) throws Exception {
+        byte[] recvMAC = ((HashMap<Integer, byte[]>) paxosMsg.getProof()).get(myId);
+
+        PaxosMessage pm = new PaxosMessage(MessageFactory.ACCEPT, paxosMsg.getNumber(),
+                paxosMsg.getRound(), paxosMsg.getSender(), paxosMsg.getValue());
+
+        mac.init(key);
+        return recvMAC != null && Arrays.equals(recvMAC, mac.doFinal(serialize(pm)));
+    }
+
+    private static byte[] serialize(PaxosMessage pm) throws Exception {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        new ObjectOutputStream(bOut).writeObject(pm);
+        return bOut.toByteArray();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.BatchBuilder;
+import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Measures the cost of reading the requests of a decided batch, comparing
+ * the previous reader, which copied each request out of the batch and then
+ * its content out of the request, with the current one, whose requests are
+ * views over the batch (see TOMMessage.wrap). For each request size, it
+ * reports the time (ns/request) and the bytes allocated per request, which
+ * include the copies of the requests, when reading the batch and delivering
+ * the commands as buffers (BufferBatchExecutable) or as arrays
+ * (BatchExecutable). It must be run from a directory with a valid config
+ * folder.
+ */
+public final class BatchCopyBenchmark {
+
+    // keeps the reads of the commands from being optimized away
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ... BatchCopyBenchmark <batch size> <batches> [request sizes...]");
+            System.exit(-1);
+        }
+
+        int batchSize = Integer.parseInt(args[0]);
+        int batches = Integer.parseInt(args[1]);
+        int[] sizes = new int[] {1024, 65536};
+        if (args.length > 2) {
+            sizes = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                sizes[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        ServerViewController controller = new ServerViewController(0);
+        boolean useSignatures = controller.getStaticConf().getUseSignatures() == 1;
+
+        for (int size : sizes) {
+            List<TOMMessage> requests = new LinkedList<TOMMessage>();
+            for (int i = 0; i < batchSize; i++) {
+                TOMMessage request = new TOMMessage(1001 + (i % 100), 0, i / 100, new byte[size],
+                        0, TOMMessageType.ORDERED_REQUEST);
+                request.serializedMessage = TOMMessage.messageToBytes(request);
+                request.serializedMessageSignature = useSignatures ? new byte[TOMUtil.getSignatureSize(controller)] : null;
+                request.signed = useSignatures;
+                requests.add(request);
+            }
+            byte[] batch = new BatchBuilder().makeBatch(requests, 0, 0, controller);
+
+            System.out.println("--- " + batchSize + " requests of " + size + " bytes ---");
+            for (int warm = 0; warm < 2; warm++) {
+                boolean print = (warm == 1);
+                run("Copies (previous reader)", batch, batches, batchSize, useSignatures, controller, 0, print);
+                run("Views, buffers delivered", batch, batches, batchSize, useSignatures, controller, 1, print);
+                run("Views, arrays delivered", batch, batches, batchSize, useSignatures, controller, 2, print);
+            }
+        }
+
+        System.exit(0);
+    }
+
+    private static void run(String name, byte[] batch, int batches, int batchSize, boolean useSignatures,
+            ServerViewController controller, int mode, boolean print) throws Exception {
+        long checksum = 0;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int b = 0; b < batches; b++) {
+            if (mode == 0) {
+                for (TOMMessage request : readCopying(batch, useSignatures, controller)) {
+                    checksum += request.getContent().length;
+                }
+            } else {
+                TOMMessage[] requests = new BatchReader(batch, useSignatures).deserialiseRequests(controller);
+                for (TOMMessage request : requests) {
+                    if (mode == 1) {
+                        ByteBuffer command = request.getContentBuffer();
+                        checksum += command.remaining() + command.get(0);
+                    } else {
+                        checksum += request.getContent().length;
+                    }
+                }
+            }
+        }
+
+        long time = System.nanoTime() - start;
+        allocated = (allocated < 0) ? -1 : allocatedBytes() - allocated;
+        long total = (long) batches * batchSize;
+        sink = checksum;
+
+        if (print) {
+            System.out.println(name + ": " + (time / total) + " ns/request, "
+                    + (allocated < 0 ? "?" : String.valueOf(allocated / total)) + " bytes allocated/request");
+        }
+    }
+
+    // the reader before requests were views over the batch: the request is
+    // copied out of the batch, and its content out of the request
+    private static TOMMessage[] readCopying(byte[] batch, boolean useSignatures,
+            ServerViewController controller) {
+        ByteBuffer proposalBuffer = ByteBuffer.wrap(batch);
+        long timestamp = proposalBuffer.getLong();
+        if (proposalBuffer.getInt() > 0) {
+            proposalBuffer.getLong();
+        }
+        TOMMessage[] requests = new TOMMessage[proposalBuffer.getInt()];
+
+        for (int i = 0; i < requests.length; i++) {
+            byte[] message = new byte[proposalBuffer.getInt()];
+            proposalBuffer.get(message);
+
+            byte[] signature = null;
+            if (useSignatures) {
+                signature = new byte[TOMUtil.getSignatureSize(controller)];
+                proposalBuffer.get(signature);
+            }
+
+            TOMMessage tm = TOMMessage.bytesToMessage(message);
+            tm.serializedMessage = message;
+            tm.serializedMessageSignature = signature;
+            tm.timestamp = timestamp;
+            requests[i] = tm;
+        }
+        return requests;
+    }
+
+    // bytes allocated by this thread, or -1 if the JVM does not report them
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
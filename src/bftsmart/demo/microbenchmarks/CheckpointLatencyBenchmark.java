@@ -0,0 +1,193 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.statemanagement.StateManager;
+import bftsmart.statemanagement.strategy.StandardStateManager;
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.ReplicaContext;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.defaultservices.SnapshotHandle;
+
+/**
+ * Measures the latency of the execution of each consensus instance in
+ * DefaultRecoverable, with checkpoints taken inline and in the background,
+ * reporting the percentiles of all instances and the worst latency at the
+ * checkpoint boundaries. The application state is a set of blocks which the
+ * requests replace (never modify), so a copy of the references is a
+ * copy-on-write snapshot. It must be run from a directory with a valid config
+ * folder (the configuration of replica 0 is used; the log is kept in memory).
+ */
+public class CheckpointLatencyBenchmark {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: ... CheckpointLatencyBenchmark <state size (MB)> <checkpoint period> <consensus instances> <requests per batch>");
+            System.exit(-1);
+        }
+
+        int stateSize = Integer.parseInt(args[0]);
+        int period = Integer.parseInt(args[1]);
+        int instances = Integer.parseInt(args[2]);
+        int batchSize = Integer.parseInt(args[3]);
+
+        for (boolean async : new boolean[]{false, true, false, true}) {
+            run(stateSize, period, instances, batchSize, async);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int stateSize, final int period, int instances, int batchSize, final boolean async) {
+        final TOMConfiguration conf = new TOMConfiguration(0) {
+            @Override
+            public int getCheckpointPeriod() {
+                return period;
+            }
+
+            @Override
+            public boolean isToWriteAsyncCkp() {
+                return async;
+            }
+
+            @Override
+            public boolean logToDisk() {
+                return false;
+            }
+        };
+
+        BlockStore store = new BlockStore(stateSize * 1024 * 1024 / BLOCK_SIZE);
+        store.setReplicaContext(new ReplicaContext(null, null) {
+            @Override
+            public TOMConfiguration getStaticConfiguration() {
+                return conf;
+            }
+        });
+
+        Random rnd = new Random(0);
+        long[] latencies = new long[instances];
+        long worstCheckpoint = 0;
+
+        for (int eid = 0; eid < instances; eid++) {
+            byte[][] commands = new byte[batchSize][];
+            MessageContext[] msgCtxs = new MessageContext[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                commands[i] = new byte[8];
+                int block = rnd.nextInt(store.blocks.length);
+                commands[i][0] = (byte) (block >>> 24);
+                commands[i][1] = (byte) (block >>> 16);
+                commands[i][2] = (byte) (block >>> 8);
+                commands[i][3] = (byte) block;
+                msgCtxs[i] = new MessageContext(0, new byte[0], 0, eid, 0, null);
+            }
+
+            long start = System.nanoTime();
+            store.executeBatch(commands, msgCtxs);
+            latencies[eid] = System.nanoTime() - start;
+
+            if ((eid + 1) % period == 0) {
+                worstCheckpoint = Math.max(worstCheckpoint, latencies[eid]);
+            }
+        }
+
+        Arrays.sort(latencies);
+        System.out.println("--- " + (async ? "Background" : "Inline") + " checkpoints: " + stateSize + " MB state, every "
+                + period + " instances ---");
+        System.out.println("Latency per instance: p50 = " + (latencies[instances / 2] / 1000) + " us, p99 = "
+                + (latencies[(int) (instances * 0.99)] / 1000) + " us, p99.9 = "
+                + (latencies[(int) (instances * 0.999)] / 1000) + " us, max = "
+                + (latencies[instances - 1] / 1000) + " us");
+        System.out.println("Worst latency at a checkpoint = " + (worstCheckpoint / 1000) + " us");
+    }
+
+    private static class BlockStore extends DefaultRecoverable {
+
+        private byte[][] blocks;
+        private StateManager stateManager = new StandardStateManager() {
+            @Override
+            public void askCurrentConsensusId() {
+                // there are no other replicas
+            }
+        };
+
+        BlockStore(int numBlocks) {
+            blocks = new byte[numBlocks][];
+            for (int i = 0; i < numBlocks; i++) {
+                blocks[i] = new byte[BLOCK_SIZE];
+            }
+        }
+
+        @Override
+        public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs) {
+            byte[][] replies = new byte[commands.length][];
+            for (int i = 0; i < commands.length; i++) {
+                int block = ((commands[i][0] & 0xff) << 24) | ((commands[i][1] & 0xff) << 16)
+                        | ((commands[i][2] & 0xff) << 8) | (commands[i][3] & 0xff);
+                byte[] updated = Arrays.copyOf(blocks[block], BLOCK_SIZE);
+                updated[i % BLOCK_SIZE]++;
+                blocks[block] = updated;
+                replies[i] = commands[i];
+            }
+            return replies;
+        }
+
+        @Override
+        public SnapshotHandle getSnapshotHandle() {
+            final byte[][] version = blocks.clone();
+            return new SnapshotHandle() {
+                @Override
+                public byte[] serialize() {
+                    return BlockStore.serialize(version);
+                }
+            };
+        }
+
+        @Override
+        public byte[] getSnapshot() {
+            return serialize(blocks);
+        }
+
+        private static byte[] serialize(byte[][] blocks) {
+            byte[] state = new byte[blocks.length * BLOCK_SIZE];
+            for (int i = 0; i < blocks.length; i++) {
+                System.arraycopy(blocks[i], 0, state, i * BLOCK_SIZE, BLOCK_SIZE);
+            }
+            return state;
+        }
+
+        @Override
+        public void installSnapshot(byte[] state) {
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = Arrays.copyOfRange(state, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE);
+            }
+        }
+
+        @Override
+        public StateManager getStateManager() {
+            return stateManager;
+        }
+
+        @Override
+        public byte[] executeUnordered(byte[] command, MessageContext msgCtx) {
+            return command;
+        }
+    }
+}
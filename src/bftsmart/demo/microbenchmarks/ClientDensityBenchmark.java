@@ -0,0 +1,110 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.tom.ServiceProxy;
+import bftsmart.tom.util.Storage;
+
+/**
+ * Measures how many concurrent proxies a single process can sustain. Proxies
+ * are created in steps; after each step, every proxy invokes one ordered
+ * operation at the same time, and the latency, number of failures, number of
+ * threads and memory used by the process are reported. The benchmark stops
+ * when a step has failures or its average latency exceeds the given limit.
+ *
+ * Run it against LatencyServer or ThroughputLatencyServer.
+ */
+public class ClientDensityBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: ... ClientDensityBenchmark <initial process id> <max. proxies> <step> <request size> <max. latency (ms)>");
+            System.exit(-1);
+        }
+
+        int initId = Integer.parseInt(args[0]);
+        int maxProxies = Integer.parseInt(args[1]);
+        int step = Integer.parseInt(args[2]);
+        int requestSize = Integer.parseInt(args[3]);
+        long maxLatency = Long.parseLong(args[4]) * 1000000;
+
+        final byte[] request = new byte[requestSize];
+        final List<ServiceProxy> proxies = new ArrayList<ServiceProxy>();
+
+        while (proxies.size() < maxProxies) {
+
+            long start = System.nanoTime();
+            int target = Math.min(maxProxies, proxies.size() + step);
+            while (proxies.size() < target) {
+                proxies.add(new ServiceProxy(initId + proxies.size()));
+            }
+            long setupTime = (System.nanoTime() - start) / 1000000;
+
+            final Storage st = new Storage(proxies.size());
+            final AtomicInteger failures = new AtomicInteger(0);
+            final CountDownLatch done = new CountDownLatch(proxies.size());
+
+            for (final ServiceProxy proxy : proxies) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        long t = System.nanoTime();
+                        byte[] reply = null;
+                        try {
+                            reply = proxy.invokeOrdered(request);
+                        } catch (RuntimeException ex) {
+                            ex.printStackTrace(System.err);
+                        }
+                        if (reply == null) {
+                            failures.incrementAndGet();
+                        } else {
+                            synchronized (st) {
+                                st.store(System.nanoTime() - t);
+                            }
+                        }
+                        done.countDown();
+                    }
+                }.start();
+            }
+            done.await();
+
+            long latency = (st.getCount() > 0) ? st.getAverage(false) : 0;
+            Runtime rt = Runtime.getRuntime();
+
+            System.out.println("--- " + proxies.size() + " proxies ---");
+            System.out.println("Setup of the last " + step + " proxies = " + setupTime + " ms");
+            System.out.println("Average latency = " + (latency / 1000) + " us, failures = " + failures.get());
+            System.out.println("Threads = " + ManagementFactory.getThreadMXBean().getThreadCount()
+                    + ", memory used = " + ((rt.totalMemory() - rt.freeMemory()) / (1024 * 1024)) + " MB");
+
+            if (failures.get() > 0 || latency > maxLatency) {
+                System.out.println("Process could not sustain " + proxies.size() + " proxies");
+                break;
+            }
+        }
+
+        for (ServiceProxy proxy : proxies) {
+            proxy.close();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.util.concurrent.CountDownLatch;
+
+import bftsmart.clientsmanagement.ClientsManager;
+import bftsmart.clientsmanagement.RequestList;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Measures the rate at which ClientsManager accepts requests when several
+ * threads deliver them at the same time (like the Netty worker threads of a
+ * replica), while another thread forms batches and marks them as ordered
+ * (like the proposer and the delivery thread). It must be run from a
+ * directory with a valid config folder (the configuration of replica 0 is
+ * used).
+ */
+public class ClientsManagerIngestBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: ... ClientsManagerIngestBenchmark <receiver threads> <clients> <requests per client> <batch size> [rounds]");
+            System.exit(-1);
+        }
+
+        final int threads = Integer.parseInt(args[0]);
+        final int clients = Integer.parseInt(args[1]);
+        final int requestsPerClient = Integer.parseInt(args[2]);
+        final int batchSize = Integer.parseInt(args[3]);
+        int rounds = (args.length > 4) ? Integer.parseInt(args[4]) : 5;
+
+        ServerViewController controller = new ServerViewController(0);
+        final byte[] content = new byte[16];
+
+        for (int round = 0; round < rounds; round++) {
+            final ClientsManager clientsManager = new ClientsManager(controller, null);
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch received = new CountDownLatch(threads);
+            final int total = clients * requestsPerClient;
+
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException ex) {
+                        }
+                        for (int seq = 0; seq < requestsPerClient; seq++) {
+                            for (int c = thread; c < clients; c += threads) {
+                                TOMMessage request = new TOMMessage(1000 + c, 0, seq, content, 0);
+                                request.serializedMessage = content;
+                                clientsManager.requestReceived(request, true);
+                            }
+                        }
+                        received.countDown();
+                    }
+                }.start();
+            }
+
+            Thread orderer = new Thread() {
+                @Override
+                public void run() {
+                    int ordered = 0;
+                    while (ordered < total) {
+                        RequestList batch = clientsManager.getPendingRequests(batchSize, 0);
+                        if (batch.isEmpty()) {
+                            Thread.yield();
+                            continue;
+                        }
+                        clientsManager.requestsOrdered(batch.toArray(new TOMMessage[batch.size()]));
+                        ordered += batch.size();
+                    }
+                }
+            };
+            orderer.start();
+
+            long begin = System.nanoTime();
+            start.countDown();
+            received.await();
+            long ingest = System.nanoTime() - begin;
+            orderer.join();
+            long all = System.nanoTime() - begin;
+
+            System.out.println("--- Round " + round + ": " + threads + " threads, " + clients + " clients x "
+                    + requestsPerClient + " requests ---");
+            System.out.println("Ingest rate = " + (long) (total / (ingest / 1e9)) + " requests/sec");
+            System.out.println("Ordering rate = " + (long) (total / (all / 1e9)) + " requests/sec");
+        }
+    }
+}
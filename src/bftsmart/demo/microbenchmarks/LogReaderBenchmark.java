@@ -0,0 +1,95 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.LogReader;
+import bftsmart.tom.server.defaultservices.LogWriter;
+
+/**
+ * Compares the time to read the last batches of a log by scanning it from
+ * the start, as FileRecoverer did before the log was indexed, with
+ * LogReader, which locates them with the index. The log is written with
+ * LogWriter, in segments of the default size.
+ */
+public class LogReaderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: ... LogReaderBenchmark <directory> <batches in the log> <batch size> <batches read>");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int batches = Integer.parseInt(args[1]);
+        int batchSize = Integer.parseInt(args[2]);
+        int number = Integer.parseInt(args[3]);
+
+        String path = dir + File.separator + "benchmark." + System.nanoTime() + ".log";
+        LogWriter writer = new LogWriter(path, false, LogWriter.DEFAULT_GROUP_SIZE,
+                LogWriter.DEFAULT_GROUP_DELAY, LogWriter.DEFAULT_PREALLOCATION);
+        CommandsInfo batch = new CommandsInfo(new byte[][]{new byte[batchSize]}, 0, 0);
+        for (int i = 1; i <= batches; i++) {
+            writer.append(batch, i);
+        }
+        writer.close();
+
+        int first = batches - number + 1;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            CommandsInfo[] scanned = scan(path, first - 1, number);
+            long scanTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CommandsInfo[] indexed = new LogReader(path).read(first, number);
+            long indexTime = System.nanoTime() - start;
+
+            System.out.println("Read " + scanned.length + " / " + indexed.length + " batches: scan "
+                    + (scanTime / 1000) + " us, index " + (indexTime / 1000) + " us");
+        }
+        LogWriter.delete(path);
+        System.exit(0);
+    }
+
+    // the reads done by FileRecoverer before the log was indexed (the log must fit in one segment)
+    private static CommandsInfo[] scan(String path, int skip, int number) throws Exception {
+        RandomAccessFile log = new RandomAccessFile(path, "r");
+        for (int i = 0; i < skip; i++) {
+            int size = log.readInt();
+            byte[] bytes = new byte[size];
+            log.read(bytes);
+        }
+        CommandsInfo[] batches = new CommandsInfo[number];
+        int read = 0;
+        while (read < number) {
+            int size = log.readInt();
+            if (size <= 0) {
+                break;
+            }
+            byte[] bytes = new byte[size];
+            log.read(bytes);
+            batches[read++] = (CommandsInfo) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        }
+        log.close();
+        return read == number ? batches : Arrays.copyOf(batches, read);
+    }
+}
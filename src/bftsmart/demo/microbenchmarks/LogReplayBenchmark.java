@@ -0,0 +1,124 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.LogReader;
+import bftsmart.tom.server.defaultservices.LogWriter;
+
+/**
+ * Compares the size and the replay throughput of a log whose batches are
+ * serialized with Java serialization, as before the binary log format,
+ * with one written by LogWriter in the binary format. Both are replayed
+ * with LogReader, one batch at a time.
+ */
+public class LogReplayBenchmark {
+
+    private static final int INT_BYTE_SIZE = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: ... LogReplayBenchmark <directory> <batches> <commands per batch> <command size>");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int batches = Integer.parseInt(args[1]);
+        int commands = Integer.parseInt(args[2]);
+        int commandSize = Integer.parseInt(args[3]);
+
+        byte[][] batchCommands = new byte[commands][commandSize];
+        MessageContext[] msgCtx = new MessageContext[commands];
+        for (int i = 0; i < commands; i++) {
+            msgCtx[i] = new MessageContext(System.currentTimeMillis(), null, 0, 1, 1000 + i, null);
+        }
+        CommandsInfo batch = new CommandsInfo(batchCommands, msgCtx, 0, 0);
+
+        String serializedLog = dir + File.separator + "benchmark." + System.nanoTime() + ".log";
+        RandomAccessFile log = new RandomAccessFile(serializedLog, "rw");
+        for (int i = 1; i <= batches; i++) {
+            write(log, batch, i);
+        }
+        log.close();
+
+        String binaryLog = dir + File.separator + "benchmark." + System.nanoTime() + ".log";
+        LogWriter writer = new LogWriter(binaryLog, false, LogWriter.DEFAULT_GROUP_SIZE,
+                LogWriter.DEFAULT_GROUP_DELAY, 0);
+        for (int i = 1; i <= batches; i++) {
+            writer.append(batch, i);
+        }
+        writer.close();
+
+        long serializedSize = size(serializedLog);
+        long binarySize = size(binaryLog);
+        System.out.println("Serialized log: " + serializedSize + " bytes, binary log: " + binarySize + " bytes");
+
+        for (int i = 0; i < 5; i++) {
+            replay("serialized", serializedLog, serializedSize);
+            replay("binary", binaryLog, binarySize);
+        }
+        LogWriter.delete(serializedLog);
+        LogWriter.delete(binaryLog);
+        System.exit(0);
+    }
+
+    private static void replay(String name, String path, long size) throws Exception {
+        long start = System.nanoTime();
+        LogReader reader = new LogReader(path);
+        int batches = 0;
+        while (reader.next() != null) {
+            batches++;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": " + batches + " batches in " + (elapsed / 1000000) + " ms, "
+                + (batches * 1000000000L / elapsed) + " batches/s, "
+                + (size * 1000 / elapsed) + " MB/s");
+    }
+
+    private static long size(String path) {
+        long size = 0;
+        for (int segment = 0; new File(LogWriter.getSegmentPath(path, segment)).exists(); segment++) {
+            size += new File(LogWriter.getSegmentPath(path, segment)).length();
+        }
+        return size;
+    }
+
+    // the records written by DiskStateLog before the binary log format
+    private static void write(RandomAccessFile log, CommandsInfo commandsInfo, int consensusId) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(commandsInfo);
+        oos.flush();
+
+        byte[] batchBytes = bos.toByteArray();
+
+        ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE + batchBytes.length);
+        bf.putInt(batchBytes.length);
+        bf.put(batchBytes);
+        bf.putInt(0);
+        bf.putInt(consensusId);
+
+        log.write(bf.array());
+        log.seek(log.getFilePointer() - 2 * INT_BYTE_SIZE);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.LogWriter;
+
+/**
+ * Compares the log writes of DiskStateLog before group commit (one write
+ * to a RandomAccessFile per batch, opened with "rwd" with sync_log) with
+ * LogWriter, reporting the writes per second and the 99th percentile of the
+ * time to log a batch: until it is synced in sync mode, and until the call
+ * returns in async mode.
+ * Several threads append at the same time, each one waiting for its batch
+ * to be written before appending the next one, as several consecutive
+ * consensus delivered together would.
+ */
+public class LogWriterBenchmark {
+
+    private static final int INT_BYTE_SIZE = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: ... LogWriterBenchmark <directory> <batches per thread> <batch size> <threads>");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int batches = Integer.parseInt(args[1]);
+        int batchSize = Integer.parseInt(args[2]);
+        int threads = Integer.parseInt(args[3]);
+
+        byte[][] commands = new byte[][]{new byte[batchSize]};
+        CommandsInfo batch = new CommandsInfo(commands, 0, 0);
+
+        for (boolean sync : new boolean[]{true, false}) {
+            // first run to warm up
+            run(dir, false, sync, batch, batches / 10 + 1, threads);
+            run(dir, true, sync, batch, batches / 10 + 1, threads);
+
+            long[] latencies = run(dir, false, sync, batch, batches, threads);
+            report((sync ? "sync" : "async") + ", one write per batch", latencies);
+            latencies = run(dir, true, sync, batch, batches, threads);
+            report((sync ? "sync" : "async") + ", group commit", latencies);
+        }
+        System.exit(0);
+    }
+
+    private static long[] run(String dir, boolean groupCommit, final boolean sync, final CommandsInfo batch,
+            final int batches, int threads) throws Exception {
+
+        String path = dir + File.separator + "benchmark." + System.nanoTime() + ".log";
+        final LogWriter writer = groupCommit ? new LogWriter(path, sync, LogWriter.DEFAULT_GROUP_SIZE,
+                LogWriter.DEFAULT_GROUP_DELAY, LogWriter.DEFAULT_PREALLOCATION) : null;
+        final RandomAccessFile log = groupCommit ? null : new RandomAccessFile(path, sync ? "rwd" : "rw");
+
+        final long[] latencies = new long[batches * threads + 1];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger consensusId = new AtomicInteger();
+
+        Thread[] appenders = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            appenders[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < batches; i++) {
+                            long begin = System.nanoTime();
+                            if (writer != null) {
+                                long appended = writer.append(batch, consensusId.incrementAndGet());
+                                if (sync) {
+                                    writer.awaitWritten(appended);
+                                }
+                            } else {
+                                synchronized (log) {
+                                    write(log, batch, consensusId.incrementAndGet());
+                                }
+                            }
+                            latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            appenders[t].start();
+        }
+        for (Thread appender : appenders) {
+            appender.join();
+        }
+        if (writer != null) {
+            writer.close();
+        } else {
+            log.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        LogWriter.delete(path);
+
+        latencies[latencies.length - 1] = elapsed;
+        return latencies;
+    }
+
+    // the writes done by DiskStateLog before group commit
+    private static void write(RandomAccessFile log, CommandsInfo commandsInfo, int consensusId) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(commandsInfo);
+        oos.flush();
+
+        byte[] batchBytes = bos.toByteArray();
+
+        ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE + batchBytes.length);
+        bf.putInt(batchBytes.length);
+        bf.put(batchBytes);
+        bf.putInt(0);
+        bf.putInt(consensusId);
+
+        log.write(bf.array());
+        log.seek(log.length() - 2 * INT_BYTE_SIZE);
+    }
+
+    private static void report(String mode, long[] results) {
+        long elapsed = results[results.length - 1];
+        long[] latencies = Arrays.copyOf(results, results.length - 1);
+        Arrays.sort(latencies);
+        long p99 = latencies[(int) (latencies.length * 0.99)];
+        System.out.println(mode + ": " + (latencies.length * 1000000000L / elapsed) + " writes/s, p99 latency "
+                + (p99 / 1000) + " us");
+    }
+}
@@ -0,0 +1,119 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import bftsmart.communication.MessageCodec;
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Compares the binary codec used between replicas (MessageCodec) with Java
+ * serialization, reporting the encode and decode time (ns/op) and the size of
+ * each message type.
+ */
+public final class MessageCodecBenchmark {
+
+    private static final int MAC_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ... MessageCodecBenchmark <iterations> <value size> [replicas]");
+            System.exit(-1);
+        }
+
+        int iterations = Integer.parseInt(args[0]);
+        int valueSize = Integer.parseInt(args[1]);
+        int replicas = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+
+        byte[] value = new byte[valueSize];
+        byte[] hash = new byte[20];
+
+        PaxosMessage propose = new PaxosMessage(MessageFactory.PROPOSE, 1000, 0, 0, value);
+        PaxosMessage write = new PaxosMessage(MessageFactory.WRITE, 1000, 0, 1, hash);
+        PaxosMessage accept = new PaxosMessage(MessageFactory.ACCEPT, 1000, 0, 1, hash);
+        byte[][] macVector = new byte[replicas][];
+        for (int i = 0; i < replicas; i++) {
+            macVector[i] = new byte[MAC_SIZE];
+        }
+        accept.setProof(macVector);
+        LCMessage stop = new LCMessage(1, TOMUtil.STOP, 1, value);
+
+        run("PROPOSE", propose, iterations);
+        run("WRITE", write, iterations);
+        run("ACCEPT", accept, iterations);
+        run("STOP", stop, iterations);
+    }
+
+    private static void run(String name, SystemMessage sm, int iterations) throws Exception {
+        // warm up both paths before measuring
+        for (int i = 0; i < iterations; i++) {
+            MessageCodec.decode(MessageCodec.encode(sm));
+            javaDecode(javaEncode(sm));
+        }
+
+        byte[] binary = MessageCodec.encode(sm);
+        byte[] java = javaEncode(sm);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            binary = MessageCodec.encode(sm);
+        }
+        long binaryEncode = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            MessageCodec.decode(binary);
+        }
+        long binaryDecode = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            java = javaEncode(sm);
+        }
+        long javaEncode = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            javaDecode(java);
+        }
+        long javaDecode = (System.nanoTime() - start) / iterations;
+
+        System.out.println("--- " + name + " ---");
+        System.out.println("Binary codec: encode = " + binaryEncode + " ns/op, decode = " + binaryDecode
+                + " ns/op, size = " + binary.length + " bytes");
+        System.out.println("Java serialization: encode = " + javaEncode + " ns/op, decode = " + javaDecode
+                + " ns/op, size = " + java.length + " bytes");
+    }
+
+    private static byte[] javaEncode(SystemMessage sm) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        new ObjectOutputStream(bOut).writeObject(sm);
+        return bOut.toByteArray();
+    }
+
+    private static SystemMessage javaDecode(byte[] data) throws IOException, ClassNotFoundException {
+        return (SystemMessage) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import bftsmart.communication.MessageHandler;
+import bftsmart.communication.MessageLanes;
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.ServerConnection;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+
+/**
+ * Measures how many consensus messages per second a replica processes with
+ * different numbers of consensus threads (system.communication.consensusThreads).
+ * Each message is an ACCEPT whose MAC vector is verified, as MessageHandler
+ * does, and then counted for its instance while holding a lock for it, as
+ * the acceptor does. With 0 threads, the messages are processed by the
+ * thread that dispatches them, which is the single consumer used before.
+ */
+public class MessageProcessingBenchmark {
+
+    private static final int REPLICAS = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: ... MessageProcessingBenchmark <messages> <instances> <threads> [threads ...]");
+            System.exit(-1);
+        }
+
+        int total = Integer.parseInt(args[0]);
+        int instances = Integer.parseInt(args[1]);
+
+        SecretKey key = new SecretKeySpec("benchmark key".getBytes(), ServerConnection.MAC_ALGORITHM);
+        PaxosMessage[] messages = accepts(total, instances, key);
+
+        for (int a = 2; a < args.length; a++) {
+            int threads = Integer.parseInt(args[a]);
+
+            run(messages, key, threads); // warm up
+            long start = System.nanoTime();
+            int invalid = run(messages, key, threads);
+            long time = System.nanoTime() - start;
+
+            System.out.println("--- " + threads + " consensus threads (" + Runtime.getRuntime().availableProcessors()
+                    + " cores), " + total + " messages, " + instances + " instances ---");
+            System.out.println("Throughput = " + (long) (total / (time / 1e9)) + " messages/sec");
+            if (invalid > 0) {
+                System.out.println(invalid + " invalid MACs found!");
+            }
+        }
+    }
+
+    private static int run(PaxosMessage[] messages, final SecretKey key, int threads) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(messages.length);
+        final AtomicInteger invalid = new AtomicInteger(0);
+        final ConcurrentHashMap<Integer, int[]> accepts = new ConcurrentHashMap<Integer, int[]>();
+
+        MessageHandler handler = new MessageHandler() {
+            @Override
+            protected void processData(SystemMessage sm) {
+                PaxosMessage msg = (PaxosMessage) sm;
+                if (!verifyMACVector(msg, key, 0)) {
+                    invalid.incrementAndGet();
+                }
+                int[] count = accepts.get(msg.getNumber());
+                if (count == null) {
+                    accepts.putIfAbsent(msg.getNumber(), new int[1]);
+                    count = accepts.get(msg.getNumber());
+                }
+                synchronized (count) {
+                    count[0]++;
+                }
+                done.countDown();
+            }
+        };
+        MessageLanes lanes = new MessageLanes(handler, threads, 10000);
+        for (PaxosMessage msg : messages) {
+            lanes.dispatch(msg);
+        }
+        done.await();
+        lanes.shutdown();
+        return invalid.get();
+    }
+
+    // ACCEPT messages of the other replicas for consecutive instances, with their MAC vectors
+    private static PaxosMessage[] accepts(int total, int instances, SecretKey key) throws Exception {
+        Mac mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+        mac.init(key);
+        byte[] value = new byte[32];
+        PaxosMessage[] messages = new PaxosMessage[total];
+        for (int i = 0; i < total; i++) {
+            int sender = 1 + (i % (REPLICAS - 1));
+            int eid = (i / (REPLICAS - 1)) % instances;
+            messages[i] = new PaxosMessage(MessageFactory.ACCEPT, eid, 0, sender, value);
+
+            byte[][] macVector = new byte[REPLICAS][];
+            for (int pos = 0; pos < REPLICAS; pos++) {
+                macVector[pos] = mac.doFinal(messages[i].getProofData());
+            }
+            messages[i].setProof(macVector);
+        }
+        return messages;
+    }
+}
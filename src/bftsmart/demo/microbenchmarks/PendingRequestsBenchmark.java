@@ -0,0 +1,109 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.util.LinkedList;
+
+import bftsmart.clientsmanagement.ClientsManager;
+import bftsmart.clientsmanagement.RequestList;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Measures the cost of the operations of ClientsManager on the pending
+ * requests: reception (including duplicate detection), batch formation and
+ * removal of ordered requests. Each client has the given number of
+ * outstanding requests, and several batches may be proposed before the
+ * oldest one is ordered (as when consensus instances are pipelined). It must
+ * be run from a directory with a valid config folder (the configuration of
+ * replica 0 is used).
+ */
+public class PendingRequestsBenchmark {
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: ... PendingRequestsBenchmark <clients> <requests per client> <batch size> <batches in flight> [rounds]");
+            System.exit(-1);
+        }
+
+        int clients = Integer.parseInt(args[0]);
+        int requestsPerClient = Integer.parseInt(args[1]);
+        int batchSize = Integer.parseInt(args[2]);
+        int inFlight = Integer.parseInt(args[3]);
+        int rounds = (args.length > 4) ? Integer.parseInt(args[4]) : 5;
+
+        ServerViewController controller = new ServerViewController(0);
+        byte[] content = new byte[16];
+
+        for (int round = 0; round < rounds; round++) {
+            ClientsManager clientsManager = new ClientsManager(controller, null);
+            int total = clients * requestsPerClient;
+
+            TOMMessage[] requests = new TOMMessage[total];
+            for (int seq = 0, i = 0; seq < requestsPerClient; seq++) {
+                for (int c = 0; c < clients; c++, i++) {
+                    requests[i] = new TOMMessage(1000 + c, 0, seq, content, 0);
+                    requests[i].serializedMessage = content;
+                }
+            }
+
+            long start = System.nanoTime();
+            for (TOMMessage request : requests) {
+                clientsManager.requestReceived(request, true);
+            }
+            long receive = System.nanoTime() - start;
+
+            // the same requests again: all of them are detected as duplicates
+            start = System.nanoTime();
+            for (TOMMessage request : requests) {
+                clientsManager.requestReceived(request, true);
+            }
+            long duplicates = System.nanoTime() - start;
+
+            long propose = 0;
+            long order = 0;
+            int batches = 0;
+            LinkedList<RequestList> proposed = new LinkedList<RequestList>();
+            while (true) {
+                start = System.nanoTime();
+                RequestList batch = clientsManager.havePendingRequests()
+                        ? clientsManager.getPendingRequests(batchSize, 0) : null;
+                propose += System.nanoTime() - start;
+
+                if (batch != null) {
+                    proposed.addLast(batch);
+                    batches++;
+                }
+                if (proposed.isEmpty()) {
+                    break;
+                }
+                if (batch == null || proposed.size() > inFlight) {
+                    RequestList decided = proposed.removeFirst();
+                    start = System.nanoTime();
+                    clientsManager.requestsOrdered(decided.toArray(new TOMMessage[decided.size()]));
+                    order += System.nanoTime() - start;
+                }
+            }
+
+            System.out.println("--- Round " + round + ": " + clients + " clients x " + requestsPerClient
+                    + " requests, " + batches + " batches ---");
+            System.out.println("Reception = " + (receive / total) + " ns/request");
+            System.out.println("Duplicate detection = " + (duplicates / total) + " ns/request");
+            System.out.println("Batch formation = " + (propose / total) + " ns/request");
+            System.out.println("Removal of ordered requests = " + (order / total) + " ns/request");
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+
+/**
+ * Server used to measure throughput as a function of the consensus pipeline
+ * depth (system.totalordermulticast.pipeline). It reports the number of
+ * operations and consensus instances executed per second.
+ *
+ * To reproduce a WAN setting, inject latency between the replicas before
+ * starting them, e.g., "tc qdisc add dev lo root netem delay 25ms", and run
+ * the experiment once for each pipeline depth using ThroughputLatencyClient
+ * with enough client threads to keep the leader busy.
+ */
+public final class PipelineThroughputServer extends DefaultRecoverable {
+
+    private int interval;
+    private int replySize;
+    private int pipelineDepth;
+
+    private int iterations = 0;
+    private int lastConsensus = -1;
+    private int consensusCount = 0;
+    private float maxTp = -1;
+    private long throughputMeasurementStartTime = System.currentTimeMillis();
+
+    public PipelineThroughputServer(int id, int interval, int replySize) {
+        this.interval = interval;
+        this.replySize = replySize;
+
+        ServiceReplica replica = new ServiceReplica(id, this, this);
+        this.pipelineDepth = replica.getReplicaContext().getStaticConfiguration().getPipelineDepth();
+    }
+
+    @Override
+    public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs) {
+
+        byte[][] replies = new byte[commands.length][];
+
+        for (int i = 0; i < commands.length; i++) {
+            replies[i] = execute(msgCtxs[i]);
+        }
+
+        return replies;
+    }
+
+    @Override
+    public byte[] executeUnordered(byte[] command, MessageContext msgCtx) {
+        return new byte[replySize];
+    }
+
+    private byte[] execute(MessageContext msgCtx) {
+        iterations++;
+
+        if (msgCtx.getConsensusId() != lastConsensus) {
+            lastConsensus = msgCtx.getConsensusId();
+            consensusCount++;
+        }
+
+        if (iterations % interval == 0) {
+            long elapsed = System.currentTimeMillis() - throughputMeasurementStartTime;
+
+            float tp = interval * 1000 / (float) elapsed;
+            float cp = consensusCount * 1000 / (float) elapsed;
+
+            if (tp > maxTp) maxTp = tp;
+
+            System.out.println("--- Measurements after " + iterations + " ops (pipeline depth: " + pipelineDepth + ") ---");
+            System.out.println("Throughput = " + tp + " operations/sec (Maximum observed: " + maxTp + " ops/sec)");
+            System.out.println("Consensus = " + cp + " instances/sec (average batch: " + (interval / (float) consensusCount) + " requests)");
+
+            consensusCount = 0;
+            throughputMeasurementStartTime = System.currentTimeMillis();
+        }
+
+        return new byte[replySize];
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: ... PipelineThroughputServer <processId> <measurement interval> <reply size>");
+            System.exit(-1);
+        }
+
+        int processId = Integer.parseInt(args[0]);
+        int interval = Integer.parseInt(args[1]);
+        int replySize = Integer.parseInt(args[2]);
+
+        new PipelineThroughputServer(processId, interval, replySize);
+    }
+
+    @Override
+    public void installSnapshot(byte[] state) {
+        //nothing
+    }
+
+    @Override
+    public byte[] getSnapshot() {
+        return new byte[0];
+    }
+}
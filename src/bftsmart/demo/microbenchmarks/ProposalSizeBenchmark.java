@@ -0,0 +1,120 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.BatchBuilder;
+import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Compares regular proposals with proposals carrying only request digests
+ * (system.totalordermulticast.digestproposals): the bytes the leader sends
+ * to the other replicas per proposal, and the time to build and to read
+ * (resolving the requests from a local store) each proposal. It must be run
+ * from a directory with a valid config folder.
+ */
+public class ProposalSizeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: ... ProposalSizeBenchmark <batch size> <request size> <proposals>");
+            System.exit(-1);
+        }
+
+        int batchSize = Integer.parseInt(args[0]);
+        int requestSize = Integer.parseInt(args[1]);
+        int proposals = Integer.parseInt(args[2]);
+
+        ServerViewController controller = new ServerViewController(0);
+        boolean useSignatures = controller.getStaticConf().getUseSignatures() == 1;
+        int others = controller.getCurrentViewN() - 1;
+
+        List<TOMMessage> batch = new LinkedList<TOMMessage>();
+        final Map<ByteBuffer, TOMMessage> received = new HashMap<ByteBuffer, TOMMessage>();
+        for (int i = 0; i < batchSize; i++) {
+            TOMMessage request = new TOMMessage(1001 + (i % 100), 0, i / 100, new byte[requestSize],
+                    0, TOMMessageType.ORDERED_REQUEST);
+            request.serializedMessage = TOMMessage.messageToBytes(request);
+            request.serializedMessageSignature = useSignatures ? new byte[TOMUtil.getSignatureSize(controller)] : null;
+            request.signed = useSignatures;
+            batch.add(request);
+            received.put(ByteBuffer.wrap(TOMUtil.computeRequestDigest(request.serializedMessage)), request);
+        }
+
+        // the requests the other replicas received from the clients
+        BatchReader.RequestStore store = new BatchReader.RequestStore() {
+            @Override
+            public TOMMessage getRequest(int sender, int sequence, byte[] digest) {
+                return received.get(ByteBuffer.wrap(digest));
+            }
+        };
+
+        BatchBuilder bb = new BatchBuilder();
+        byte[] full = bb.makeBatch(batch, 0, 0, controller);
+        byte[] digests = bb.makeDigestBatch(batch, 0, 0);
+
+        System.out.println("Proposal size: " + full.length + " bytes, with digests: " + digests.length + " bytes");
+        System.out.println("Leader egress per proposal (" + others + " replicas): " + ((long) full.length * others)
+                + " bytes, with digests: " + ((long) digests.length * others) + " bytes");
+
+        for (int warm = 0; warm < 2; warm++) {
+            long buildFull = 0, buildDigests = 0, readFull = 0, readDigests = 0;
+
+            for (int p = 0; p < proposals; p++) {
+                // the digests are computed once per request, as in the leader
+                for (TOMMessage request : batch) {
+                    request.requestDigest = null;
+                }
+
+                long start = System.nanoTime();
+                full = bb.makeBatch(batch, 0, 0, controller);
+                buildFull += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                digests = bb.makeDigestBatch(batch, 0, 0);
+                buildDigests += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                new BatchReader(full, useSignatures).deserialiseRequests(controller);
+                readFull += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                if (new BatchReader(digests, useSignatures, store).deserialiseRequests(controller) == null) {
+                    System.out.println("Requests missing from the store");
+                }
+                readDigests += System.nanoTime() - start;
+            }
+
+            if (warm == 1) {
+                System.out.println("Build (us/proposal): " + (buildFull / proposals / 1000)
+                        + ", with digests: " + (buildDigests / proposals / 1000));
+                System.out.println("Read (us/proposal): " + (readFull / proposals / 1000)
+                        + ", with digests: " + (readDigests / proposals / 1000));
+            }
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.clientsmanagement.SignatureVerifier;
+import bftsmart.reconfiguration.util.RSAKeyLoader;
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Measures how many request signatures per second SignatureVerifier checks
+ * with different numbers of worker threads, both for requests received from
+ * clients (verified asynchronously, per client) and for the requests of a
+ * proposed batch (verified in parallel, with and without the digests of
+ * already verified requests). It must be run from a directory with a valid
+ * config folder, including the keys of clients 1001 and up.
+ */
+public class SignatureVerificationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: ... SignatureVerificationBenchmark <clients> <requests> <request size> <threads> [threads ...]");
+            System.exit(-1);
+        }
+
+        int clients = Integer.parseInt(args[0]);
+        int total = Integer.parseInt(args[1]);
+        int requestSize = Integer.parseInt(args[2]);
+
+        TOMConfiguration conf = new TOMConfiguration(0);
+
+        // each request is signed by its client, as done by the proxies
+        byte[][] messages = new byte[total][];
+        byte[][] signatures = new byte[total][];
+        sign(messages, signatures, clients, requestSize, 0);
+
+        // different requests, used to warm up before measuring
+        byte[][] warmMessages = new byte[total][];
+        byte[][] warmSignatures = new byte[total][];
+        sign(warmMessages, warmSignatures, clients, requestSize, total);
+
+        for (int a = 3; a < args.length; a++) {
+            SignatureVerifier verifier = new SignatureVerifier(conf, Integer.parseInt(args[a]));
+            verifier.verifyBatch(requests(warmMessages, warmSignatures, clients));
+            verifyReceived(verifier, requests(warmMessages, warmSignatures, clients));
+
+            TOMMessage[] requests = requests(messages, signatures, clients);
+            long start = System.nanoTime();
+            boolean valid = verifier.verifyBatch(requests);
+            long batch = System.nanoTime() - start;
+
+            requests = requests(messages, signatures, clients);
+            start = System.nanoTime();
+            valid &= verifyReceived(verifier, requests);
+            long received = System.nanoTime() - start;
+
+            // the same requests again: their digests are remembered
+            requests = requests(messages, signatures, clients);
+            start = System.nanoTime();
+            valid &= verifier.verifyBatch(requests);
+            long cached = System.nanoTime() - start;
+
+            verifier.shutdown();
+
+            System.out.println("--- " + verifier.getNumWorkers() + " threads (" + Runtime.getRuntime().availableProcessors()
+                    + " cores), " + total + " requests ---");
+            System.out.println("Received requests = " + (long) (total / (received / 1e9)) + " verified signatures/sec");
+            System.out.println("Proposed batch = " + (long) (total / (batch / 1e9)) + " verified signatures/sec");
+            System.out.println("Proposed batch, already verified = " + (long) (total / (cached / 1e9)) + " requests/sec");
+            if (!valid) {
+                System.out.println("Invalid signatures found!");
+            }
+        }
+    }
+
+    private static void sign(byte[][] messages, byte[][] signatures, int clients, int requestSize, int first) throws Exception {
+        for (int i = 0; i < messages.length; i++) {
+            int clientId = 1001 + (i % clients);
+            TOMMessage request = new TOMMessage(clientId, 0, first + i / clients, new byte[requestSize], 0);
+            messages[i] = TOMMessage.messageToBytes(request);
+            signatures[i] = TOMUtil.signMessage(new RSAKeyLoader(clientId, "").loadPrivateKey(), messages[i]);
+        }
+    }
+
+    // verifies the requests as if they were received from the clients, waiting for all of them
+    private static boolean verifyReceived(SignatureVerifier verifier, TOMMessage[] requests) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(requests.length);
+        final AtomicInteger invalid = new AtomicInteger(0);
+        for (TOMMessage request : requests) {
+            verifier.verify(request, new SignatureVerifier.Callback() {
+                @Override
+                public void verified(TOMMessage request, boolean valid) {
+                    if (!valid) {
+                        invalid.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return invalid.get() == 0;
+    }
+
+    private static TOMMessage[] requests(byte[][] messages, byte[][] signatures, int clients) {
+        TOMMessage[] requests = new TOMMessage[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            requests[i] = new TOMMessage(1001 + (i % clients), 0, 0, null, 0);
+            requests[i].serializedMessage = messages[i];
+            requests[i].serializedMessageSignature = signatures[i];
+            requests[i].signed = true;
+        }
+        return requests;
+    }
+}
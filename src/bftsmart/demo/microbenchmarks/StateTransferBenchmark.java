@@ -0,0 +1,130 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.defaultservices.SnapshotChannels;
+
+/**
+ * Replica with a state of the given size, to measure how long a replica takes
+ * to recover it with the state transfer protocol (chunked with
+ * system.totalordermulticast.state_chunk_size).
+ *
+ * Start replicas 0 to 2 and run a client (e.g., CounterClient) until a
+ * checkpoint is taken (checkpoint_period), then start replica 3 without a
+ * state: it prints the time from its start until the state is installed.
+ * Each request writes its content at a different position of the state.
+ */
+public final class StateTransferBenchmark extends DefaultRecoverable {
+
+    private byte[] state;
+    private int position = 0;
+    private int executed = 0;
+    private long start;
+
+    public StateTransferBenchmark(int id, int stateSize) {
+        state = new byte[stateSize];
+        for (int i = 0; i < stateSize; i++)
+            state[i] = (byte) i;
+
+        start = System.currentTimeMillis();
+        new ServiceReplica(id, this, this);
+    }
+
+    @Override
+    public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs) {
+        byte[][] replies = new byte[commands.length][];
+        for (int i = 0; i < commands.length; i++) {
+            for (byte b : commands[i]) {
+                state[position] = b;
+                position = (position + 4099) % state.length;
+            }
+            executed++;
+            replies[i] = ByteBuffer.allocate(4).putInt(executed).array();
+        }
+        return replies;
+    }
+
+    @Override
+    public byte[] executeUnordered(byte[] command, MessageContext msgCtx) {
+        return ByteBuffer.allocate(4).putInt(executed).array();
+    }
+
+    @Override
+    public byte[] getSnapshot() {
+        ByteBuffer snapshot = ByteBuffer.allocate(8 + state.length);
+        snapshot.putInt(position);
+        snapshot.putInt(executed);
+        snapshot.put(state);
+        return snapshot.array();
+    }
+
+    @Override
+    public void writeSnapshot(WritableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(position);
+        header.putInt(executed);
+        header.flip();
+        while (header.hasRemaining())
+            out.write(header);
+        SnapshotChannels.write(state, out);
+    }
+
+    @Override
+    public void installSnapshot(byte[] snapshot) {
+        try {
+            installSnapshot(SnapshotChannels.open(snapshot), snapshot.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void installSnapshot(ReadableByteChannel in, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (header.hasRemaining() && in.read(header) >= 0);
+        header.flip();
+        position = header.getInt();
+        executed = header.getInt();
+        if (state.length != size - 8)
+            state = new byte[(int) (size - 8)];
+        ByteBuffer body = ByteBuffer.wrap(state);
+        while (body.hasRemaining() && in.read(body) >= 0);
+
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("State of " + (size / 1048576) + " MB installed " + elapsed + " ms after the replica started ("
+                + (elapsed > 0 ? (size / 1048576) * 1000 / elapsed : 0) + " MB/s), " + executed + " requests executed");
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: ... StateTransferBenchmark <processId> <state size in MB>");
+            System.exit(-1);
+        }
+
+        int processId = Integer.parseInt(args[0]);
+        int stateSize = Integer.parseInt(args[1]) * 1048576;
+
+        new StateTransferBenchmark(processId, stateSize);
+    }
+}
@@ -161,6 +161,7 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
             writeLatency.reset();
             System.out.println("Accept latency = " + acceptLatency.getAverage(false) / 1000 + " (+/- "+ (long)acceptLatency.getDP(false) / 1000 +") us ");
             acceptLatency.reset();
+            System.out.println("Batching: " + replica.getReplicaContext().getBatcher());
             
             throughputMeasurementStartTime = System.currentTimeMillis();
         }
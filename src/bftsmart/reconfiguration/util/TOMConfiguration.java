@@ -17,6 +17,7 @@ package bftsmart.reconfiguration.util;
 
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.HashMap;
 import java.util.StringTokenizer;
 
 import bftsmart.tom.util.Logger;
@@ -32,17 +33,34 @@ public class TOMConfiguration extends Configuration {
     protected int timeoutHighMark;
     protected int replyVerificationTime;
     protected int maxBatchSize;
+    protected int pipelineDepth;
+    protected int maxBatchBytes;
+    protected int batchTimeout;
+    protected boolean adaptiveBatching;
+    protected String batchPolicy;
+    protected int maxRequestsPerClient;
+    protected HashMap<Integer, Integer> clientWeights;
+    protected boolean digestProposals;
+    protected int fetchTimeout;
     protected int numberOfNonces;
     protected int inQueueSize;
     protected int outQueueSize;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
+    protected boolean nettyServerTransport;
+    protected int clientEventLoopThreads;
+    protected boolean useEpoll;
     protected RSAKeyLoader rsaLoader;
     private int debug;
     private int numNIOThreads;
     private int useMACs;
     private int useSignatures;
+    private int verifierThreads;
+    private int consensusThreads;
+    private int proposeCheckThreads;
+    private int verifiedCacheSize;
     private boolean stateTransferEnabled;
+    private int stateChunkSize;
     private int checkpointPeriod;
     private int globalCheckpointPeriod;
     private int useControlFlow;
@@ -50,10 +68,16 @@ public class TOMConfiguration extends Configuration {
     private int ttpId;
 	private boolean isToLog;
 	private boolean syncLog;
+	private int logGroupSize;
+	private int logGroupDelay;
+	private long logPreallocation;
+	private long logSegmentSize;
 	private boolean parallelLog;
 	private boolean logToDisk;
 	private boolean isToWriteCkpsToDisk;
 	private boolean syncCkp;
+	private int checkpointDeltas;
+	private boolean asyncCkp;
     private boolean isBFT;
     private int numRepliers;
     
@@ -141,6 +165,75 @@ public class TOMConfiguration extends Configuration {
                 maxBatchSize = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.maxbatchbytes");
+            if (s == null) {
+                maxBatchBytes = 0;
+            } else {
+                maxBatchBytes = Integer.parseInt(s);
+                if (maxBatchBytes < 0) {
+                    maxBatchBytes = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batchtimeout");
+            if (s == null) {
+                batchTimeout = 0;
+            } else {
+                batchTimeout = Integer.parseInt(s);
+                if (batchTimeout < 0) {
+                    batchTimeout = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.adaptivebatch");
+            adaptiveBatching = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.totalordermulticast.batchpolicy");
+            batchPolicy = (s != null) ? s.trim().toLowerCase() : "roundrobin";
+
+            s = (String) configs.remove("system.totalordermulticast.maxperclient");
+            if (s == null) {
+                maxRequestsPerClient = 0;
+            } else {
+                maxRequestsPerClient = Integer.parseInt(s);
+                if (maxRequestsPerClient < 0) {
+                    maxRequestsPerClient = 0;
+                }
+            }
+
+            clientWeights = new HashMap<Integer, Integer>();
+            s = (String) configs.remove("system.totalordermulticast.clientweights");
+            if (s != null) {
+                StringTokenizer str = new StringTokenizer(s, ",");
+                while (str.hasMoreTokens()) {
+                    String[] entry = str.nextToken().trim().split(":");
+                    clientWeights.put(Integer.valueOf(entry[0].trim()), Integer.valueOf(entry[1].trim()));
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.digestproposals");
+            digestProposals = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.totalordermulticast.fetchtimeout");
+            if (s == null) {
+                fetchTimeout = 500;
+            } else {
+                fetchTimeout = Integer.parseInt(s);
+                if (fetchTimeout <= 0) {
+                    fetchTimeout = 500;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.pipeline");
+            if (s == null) {
+                pipelineDepth = 1;
+            } else {
+                pipelineDepth = Integer.parseInt(s);
+                if (pipelineDepth < 1) {
+                    pipelineDepth = 1;
+                }
+            }
+
             s = (String) configs.remove("system.debug");
             if (s == null) {
                 Logger.debug = false;
@@ -174,6 +267,28 @@ public class TOMConfiguration extends Configuration {
                 useSenderThread = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.communication.serverTransport");
+            if (s == null) {
+                nettyServerTransport = false;
+            } else {
+                nettyServerTransport = s.trim().equalsIgnoreCase("netty");
+            }
+
+            s = (String) configs.remove("system.communication.clientEventLoopThreads");
+            if (s == null) {
+                clientEventLoopThreads = 0;
+            } else {
+                clientEventLoopThreads = Integer.parseInt(s);
+                if (clientEventLoopThreads < 0) clientEventLoopThreads = 0;
+            }
+
+            s = (String) configs.remove("system.communication.useEpoll");
+            if (s == null) {
+                useEpoll = false;
+            } else {
+                useEpoll = Boolean.parseBoolean(s);
+            }
+
             s = (String) configs.remove("system.communication.numNIOThreads");
             if (s == null) {
                 numNIOThreads = 2;
@@ -195,6 +310,40 @@ public class TOMConfiguration extends Configuration {
                 useSignatures = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.communication.verifierThreads");
+            if (s == null) {
+                verifierThreads = 0;
+            } else {
+                verifierThreads = Integer.parseInt(s);
+                if (verifierThreads < 0) verifierThreads = 0;
+            }
+
+            s = (String) configs.remove("system.communication.consensusThreads");
+            if (s == null) {
+                consensusThreads = 0;
+            } else {
+                consensusThreads = Integer.parseInt(s);
+                if (consensusThreads < 0) consensusThreads = 0;
+            }
+
+            s = (String) configs.remove("system.communication.proposeCheckThreads");
+            if (s == null) {
+                proposeCheckThreads = 0;
+            } else {
+                proposeCheckThreads = Integer.parseInt(s);
+                if (proposeCheckThreads < 0) proposeCheckThreads = 0;
+            }
+
+            s = (String) configs.remove("system.communication.verifiedCacheSize");
+            if (s == null) {
+                verifiedCacheSize = 10000;
+            } else {
+                verifiedCacheSize = Integer.parseInt(s);
+                if (verifiedCacheSize < 0) {
+                    verifiedCacheSize = 0;
+                }
+            }
+
             s = (String) configs.remove("system.totalordermulticast.state_transfer");
             if (s == null) {
                 stateTransferEnabled = false;
@@ -202,6 +351,14 @@ public class TOMConfiguration extends Configuration {
                 stateTransferEnabled = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.state_chunk_size");
+            if (s == null) {
+                stateChunkSize = 0;
+            } else {
+                stateChunkSize = Integer.parseInt(s);
+                if (stateChunkSize < 0) stateChunkSize = 0;
+            }
+
             s = (String) configs.remove("system.totalordermulticast.checkpoint_period");
             if (s == null) {
                 checkpointPeriod = 1;
@@ -290,6 +447,46 @@ public class TOMConfiguration extends Configuration {
 				syncLog = false;
 			}
 
+			s = (String) configs
+					.remove("system.totalordermulticast.log_group_size");
+			if (s != null) {
+				logGroupSize = Integer.parseInt(s);
+			} else {
+				logGroupSize = 1048576;
+			}
+
+			s = (String) configs
+					.remove("system.totalordermulticast.log_group_delay");
+			if (s != null) {
+				logGroupDelay = Integer.parseInt(s);
+			} else {
+				logGroupDelay = 1000;
+			}
+
+			s = (String) configs
+					.remove("system.totalordermulticast.log_preallocation");
+			if (s != null) {
+				logPreallocation = Long.parseLong(s);
+			} else {
+				logPreallocation = 1048576;
+			}
+
+			s = (String) configs
+					.remove("system.totalordermulticast.log_segment_size");
+			if (s != null) {
+				logSegmentSize = Long.parseLong(s);
+			} else {
+				logSegmentSize = 16777216;
+			}
+
+			s = (String) configs
+					.remove("system.totalordermulticast.checkpoint_deltas");
+			if (s != null) {
+				checkpointDeltas = Integer.parseInt(s);
+			} else {
+				checkpointDeltas = 0;
+			}
+
 			s = (String) configs
 					.remove("system.totalordermulticast.checkpoint_to_disk");
 			if (s == null) {
@@ -306,6 +503,14 @@ public class TOMConfiguration extends Configuration {
 				syncCkp = Boolean.parseBoolean(s);
 			}
 
+			s = (String) configs
+					.remove("system.totalordermulticast.async_ckp");
+			if (s == null) {
+				asyncCkp = false;
+			} else {
+				asyncCkp = Boolean.parseBoolean(s);
+			}
+
             s = (String) configs.remove("system.totalordermulticast.global_checkpoint_period");
             if (s == null) {
                 globalCheckpointPeriod = 1;
@@ -384,6 +589,72 @@ public class TOMConfiguration extends Configuration {
         return maxBatchSize;
     }
 
+    /**
+     * Indicates the maximum size (in bytes) of the requests in a batch (0 if there is no limit)
+     */
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Indicates the maximum time (in milliseconds) the leader waits for a batch to fill up
+     */
+    public int getBatchTimeout() {
+        return batchTimeout;
+    }
+
+    /**
+     * Indicates if the batch targets should follow the observed consensus latency
+     */
+    public boolean isAdaptiveBatching() {
+        return adaptiveBatching;
+    }
+
+    /**
+     * Indicates the policy used to select the requests of each batch ("roundrobin" or "weighted")
+     */
+    public String getBatchPolicy() {
+        return batchPolicy;
+    }
+
+    /**
+     * Indicates the maximum number of requests of a single client in a batch (0 means no limit)
+     */
+    public int getMaxRequestsPerClient() {
+        return maxRequestsPerClient;
+    }
+
+    /**
+     * Indicates the weight of a client, used by the weighted batch policy
+     */
+    public int getClientWeight(int clientId) {
+        Integer weight = clientWeights.get(clientId);
+        return (weight != null && weight > 0) ? weight : 1;
+    }
+
+    /**
+     * Indicates if the leader proposes only the digests of the requests, which
+     * the other replicas take from the requests they received from the clients
+     */
+    public boolean isDigestProposals() {
+        return digestProposals;
+    }
+
+    /**
+     * Indicates how long (in milliseconds) a replica waits for the leader to send
+     * the requests missing from a proposal before asking the other replicas
+     */
+    public int getFetchTimeout() {
+        return fetchTimeout;
+    }
+
+    /**
+     * Indicates how many consensus instances the leader may have in execution at the same time
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
     public boolean isShutdownHookEnabled() {
         return shutdownHookEnabled;
     }
@@ -392,6 +663,13 @@ public class TOMConfiguration extends Configuration {
         return stateTransferEnabled;
     }
 
+    /**
+     * Indicates the size (in bytes) of the chunks in which the state is transferred (0 to send it in a single message)
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
     public int getInQueueSize() {
         return inQueueSize;
     }
@@ -404,6 +682,30 @@ public class TOMConfiguration extends Configuration {
         return useSenderThread;
     }
 
+    /**
+     * Indicates if the connections between replicas use the Netty event loop
+     * transport instead of one sender and one receiver thread per connection
+     */
+    public boolean isNettyServerTransport() {
+        return nettyServerTransport;
+    }
+
+    /**
+     * Indicates how many event loop threads are shared by all the client
+     * proxies of a process (0 means the Netty default)
+     */
+    public int getClientEventLoopThreads() {
+        return clientEventLoopThreads;
+    }
+
+    /**
+     * Indicates if the client proxies should use the native epoll transport,
+     * when it is available
+     */
+    public boolean isUseEpoll() {
+        return useEpoll;
+    }
+
     /**
      *     *
      */
@@ -423,6 +725,41 @@ public class TOMConfiguration extends Configuration {
         return useSignatures;
     }
 
+    /**
+     * Indicates the number of threads used to verify the signatures of
+     * client requests (0 means the number of cores)
+     */
+    public int getVerifierThreads() {
+        return verifierThreads;
+    }
+
+    /**
+     * Indicates the number of threads processing consensus messages received
+     * from other replicas, each one for a share of the consensus instances
+     * (0 means all messages are processed in a single thread)
+     */
+    public int getConsensusThreads() {
+        return consensusThreads;
+    }
+
+    /**
+     * Indicates the number of threads checking the batches proposed by the
+     * leader while the WRITE is sent (0 means the batch is checked before
+     * the WRITE is sent)
+     */
+    public int getProposeCheckThreads() {
+        return proposeCheckThreads;
+    }
+
+    /**
+     * Indicates how many digests of requests with a verified signature are
+     * remembered, so their signature is not verified again when they are
+     * proposed (0 disables the cache)
+     */
+    public int getVerifiedCacheSize() {
+        return verifiedCacheSize;
+    }
+
     /**
      * Indicates if MACs should be used (1) or not (0) to authenticate client-server and server-server messages
      */
@@ -445,6 +782,14 @@ public class TOMConfiguration extends Configuration {
 		return syncCkp;
 	}
 
+	/**
+	 * Indicates if checkpoints should be serialized and written by a
+	 * background thread while requests continue to be executed
+	 */
+	public boolean isToWriteAsyncCkp() {
+		return asyncCkp;
+	}
+
 	public boolean isToLog() {
 		return isToLog;
 	}
@@ -453,12 +798,50 @@ public class TOMConfiguration extends Configuration {
 		return syncLog;
 	}
 
+	/**
+	 * Indicates the size (in bytes) from which a group of batches is written to the log right away
+	 */
+	public int getLogGroupSize() {
+		return logGroupSize;
+	}
+
+	/**
+	 * Indicates how long (in microseconds) a batch can wait to be written to the log with others
+	 */
+	public int getLogGroupDelay() {
+		return logGroupDelay;
+	}
+
+	/**
+	 * Indicates the size (in bytes) of the chunks log files are extended with
+	 */
+	public long getLogPreallocation() {
+		return logPreallocation;
+	}
+
+	/**
+	 * Indicates the size (in bytes) from which the log continues in a new segment file
+	 */
+	public long getLogSegmentSize() {
+		return logSegmentSize;
+	}
+
+	/**
+	 * Indicates how many delta checkpoints of a paged state are written to disk
+	 * before they are compacted into a full one (0 to write full checkpoints only)
+	 */
+	public int getCheckpointDeltas() {
+		return checkpointDeltas;
+	}
+
 	public boolean logToDisk() {
 		return logToDisk;
 	}
 
+	/**
+	 * Indicates if the batches are logged in a separate thread, while they are executed
+	 */
 	public boolean isToLogParallel() {
-		// TODO Auto-generated method stub
 		return parallelLog;
 	}
 
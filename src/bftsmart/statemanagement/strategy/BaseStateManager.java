@@ -17,7 +17,10 @@ package bftsmart.statemanagement.strategy;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Queue;
 
+import bftsmart.consensus.executionmanager.ExecutionManager;
+import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
@@ -25,6 +28,7 @@ import bftsmart.statemanagement.SMMessage;
 import bftsmart.statemanagement.StateManager;
 import bftsmart.tom.core.DeliveryThread;
 import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.leaderchange.LCManager;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 
@@ -100,6 +104,61 @@ public abstract class BaseStateManager implements StateManager {
         state = null;
     }
     
+    /**
+     * Installs a state validated by the state transfer protocol, with the
+     * regency, leader and view of the replicas that sent it, and resumes the
+     * processing of the consensus after it
+     */
+    protected void installState(ApplicationState state, int currentRegency, int currentLeader, View currentView) {
+        LCManager lcManager = tomLayer.getLCManager();
+        ExecutionManager execManager = tomLayer.execManager;
+
+        lcManager.setLastReg(currentRegency);
+        lcManager.setNextReg(currentRegency);
+        lcManager.setNewLeader(currentLeader);
+        tomLayer.lm.setNewLeader(currentLeader);
+        //if (currentRegency > 0)
+        //    tomLayer.requestsTimer.setTimeout(tomLayer.requestsTimer.getTimeout() * (currentRegency * 2));
+        
+        dt.deliverLock();
+        waitingEid = -1;
+        dt.update(state);
+        
+        if (!appStateOnly && execManager.stopped()) {
+            Queue<PaxosMessage> stoppedMsgs = execManager.getStoppedMsgs();
+            for (PaxosMessage stopped : stoppedMsgs) {
+                if (stopped.getNumber() > state.getLastEid() /*msg.getEid()*/)
+                    execManager.addOutOfContextMessage(stopped);
+            }
+            execManager.clearStopped();
+            execManager.restart();
+        }
+        
+        tomLayer.processOutOfContext();
+        
+        if (SVController.getCurrentViewId() != currentView.getId()) {
+            System.out.println("Installing current view!");
+            SVController.reconfigureTo(currentView);
+        }
+        
+        isInitializing = false;
+        
+        dt.canDeliver();
+        dt.deliverUnlock();
+
+        reset();
+
+        System.out.println("I updated the state!");
+
+        tomLayer.requestsTimer.Enabled(true);
+        tomLayer.requestsTimer.startTimer();
+        
+        if (appStateOnly) {
+            appStateOnly = false;
+            tomLayer.resumeLC();
+        }
+    }
+    
     public Collection<ApplicationState> receivedStates() {
     	return senderStates.values();
     }
@@ -0,0 +1,155 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.strategy;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import bftsmart.reconfiguration.views.View;
+import bftsmart.statemanagement.ApplicationState;
+import bftsmart.statemanagement.SMMessage;
+
+/**
+ * Message of the chunked state transfer. A reply to the state request
+ * carries the state without its serialized checkpoint, plus the size and
+ * Merkle root of the checkpoint; the checkpoint is then fetched in chunks,
+ * each sent with its proof against the root.
+ *
+ * A state request may carry the root of the paged state of the recovering
+ * replica; the replies then also carry the leaves of the tree (the hashes
+ * of all the chunks), so that the chunks it already has are not fetched.
+ */
+public class ChunkedSMMessage extends SMMessage {
+
+    private static final long serialVersionUID = 3471042385443925971L;
+
+    private long stateSize;
+    private int chunkSize;
+    private byte[] root;
+    private int chunk = -1;
+    private byte[] data;
+    private byte[][] proof;
+    private byte[][] leaves;
+
+    /**
+     * Constructs a state request or a reply with the description of the state
+     * @param stateSize Size of the serialized checkpoint
+     * @param chunkSize Size of the chunks in which it is sent
+     * @param root Merkle root of the chunks (in requests, of the paged state of the sender, if any)
+     */
+    public ChunkedSMMessage(int sender, int eid, int type, ApplicationState state, View view, int regency,
+            int leader, long stateSize, int chunkSize, byte[] root) {
+        super(sender, eid, type, state, view, regency, leader);
+        this.stateSize = stateSize;
+        this.chunkSize = chunkSize;
+        this.root = root;
+    }
+
+    /**
+     * Constructs a request or a reply for a chunk of the checkpoint
+     * @param chunk Index of the chunk
+     * @param data Content of the chunk (null in requests)
+     * @param proof Hashes that verify the chunk against the Merkle root (null in requests)
+     */
+    public ChunkedSMMessage(int sender, int eid, int type, int chunk, byte[] data, byte[][] proof) {
+        super(sender, eid, type, null, null, -1, -1);
+        this.chunk = chunk;
+        this.data = data;
+        this.proof = proof;
+    }
+
+    public ChunkedSMMessage() {
+        super();
+    }
+
+    public long getStateSize() {
+        return stateSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public byte[] getRoot() {
+        return root;
+    }
+
+    public int getChunk() {
+        return chunk;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public byte[][] getProof() {
+        return proof;
+    }
+
+    public byte[][] getLeaves() {
+        return leaves;
+    }
+
+    public void setLeaves(byte[][] leaves) {
+        this.leaves = leaves;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        out.writeLong(stateSize);
+        out.writeInt(chunkSize);
+        out.writeObject(root);
+        out.writeInt(chunk);
+        out.writeObject(data);
+        writeHashes(out, proof);
+        writeHashes(out, leaves);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        stateSize = in.readLong();
+        chunkSize = in.readInt();
+        root = (byte[]) in.readObject();
+        chunk = in.readInt();
+        data = (byte[]) in.readObject();
+        proof = readHashes(in);
+        leaves = readHashes(in);
+    }
+
+    private static void writeHashes(ObjectOutput out, byte[][] hashes) throws IOException {
+        out.writeInt(hashes != null ? hashes.length : -1);
+        if (hashes != null) {
+            for (byte[] hash : hashes) {
+                out.writeObject(hash);
+            }
+        }
+    }
+
+    private static byte[][] readHashes(ObjectInput in) throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[][] hashes = new byte[length][];
+        for (int i = 0; i < length; i++) {
+            hashes[i] = (byte[]) in.readObject();
+        }
+        return hashes;
+    }
+}
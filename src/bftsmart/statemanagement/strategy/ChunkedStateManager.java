@@ -0,0 +1,736 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.strategy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bftsmart.reconfiguration.views.View;
+import bftsmart.statemanagement.ApplicationState;
+import bftsmart.statemanagement.SMMessage;
+import bftsmart.tom.core.DeliveryThread;
+import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.server.Recoverable;
+import bftsmart.tom.server.defaultservices.DefaultApplicationState;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.defaultservices.DefaultSingleRecoverable;
+import bftsmart.tom.server.defaultservices.DiskStateLog;
+import bftsmart.tom.server.defaultservices.PagedState;
+import bftsmart.tom.server.defaultservices.SnapshotChannels;
+import bftsmart.tom.util.MerkleTree;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * State manager that transfers the checkpoint in chunks, fetched from several
+ * replicas in parallel (system.totalordermulticast.state_chunk_size).
+ *
+ * All the replicas reply to the state request with the log and the hash of
+ * the checkpoint, as in StandardStateManager, plus the size and the Merkle
+ * root of its chunks. Once f+1 replies match, the chunks are requested from
+ * the replicas that sent them, a few at a time from each one, and verified
+ * against the root. A chunk that is not received within CHUNK_TIMEOUT is
+ * requested again from another replica, keeping the chunks already received;
+ * a replica that sends an invalid chunk is not asked for more.
+ *
+ * If the application keeps its state in a PagedState, the chunks are its
+ * pages: the request carries the root of the local pages, and the replies
+ * the hashes of all the chunks, so that only the pages that differ from the
+ * local ones are fetched.
+ *
+ * The checkpoint is never kept in memory as a whole: the served one is
+ * copied to a temporary file, from which each chunk is read at its offset,
+ * and the fetched chunks are written to a temporary file which is installed
+ * through DefaultApplicationState.openState().
+ *
+ * With a chunk size of 0 it behaves as StandardStateManager.
+ */
+public class ChunkedStateManager extends StandardStateManager {
+
+    private final static long CHUNK_TIMEOUT = 2000;
+    private final static long REQUEST_TIMEOUT = 10000;
+    private final static long SERVED_STATE_TIMEOUT = 30000;
+    private final static int CHUNKS_IN_FLIGHT = 4; // chunks requested at a time from each replica
+
+    private int chunkSize;
+    private ReentrantLock lock = new ReentrantLock();
+    private Timer chunkTimer = null;
+    private long requestTime;
+    private long requestTimeout = REQUEST_TIMEOUT;
+
+    // checkpoint served to a recovering replica
+    private int servedEid = -1;
+    private int servedChunkSize;
+    private ApplicationState servedState;
+    private File servedFile;
+    private RandomAccessFile servedCheckpoint;
+    private long servedSize;
+    private MerkleTree servedTree;
+    private boolean[] sent;
+    private int unsent;
+    private int releasedEid = -1; // checkpoint released after all its chunks were sent
+    private int releasedChunkSize;
+    private long servedTime;
+    private Timer servedTimer = null;
+
+    // checkpoint being fetched
+    private HashMap<Integer, ChunkedSMMessage> manifests = new HashMap<Integer, ChunkedSMMessage>();
+    private ChunkedSMMessage manifest;
+    private List<Integer> sources = new ArrayList<Integer>();
+    private HashMap<Integer, Integer> inFlight = new HashMap<Integer, Integer>();
+    private LinkedList<Integer> pendingChunks = new LinkedList<Integer>();
+    private File checkpointFile;
+    private RandomAccessFile checkpoint;
+    private int chunkCount;
+    private boolean[] received;
+    private int[] requestedFrom;
+    private long[] requestedAt;
+    private int missing;
+    private long transferStart;
+    private int currentRegency = -1;
+    private int currentLeader = -1;
+    private View currentView = null;
+
+    @Override
+    public void init(TOMLayer tomLayer, DeliveryThread dt) {
+        super.init(tomLayer, dt);
+        chunkSize = SVController.getStaticConf().getStateChunkSize();
+    }
+
+    @Override
+    protected void requestState() {
+        if (chunkSize <= 0) {
+            super.requestState();
+            return;
+        }
+        lock.lock();
+        if (tomLayer.requestsTimer != null)
+            tomLayer.requestsTimer.clearAll();
+
+        reset();
+        requestTimeout = REQUEST_TIMEOUT;
+        sendStateRequest();
+
+        if (chunkTimer != null) chunkTimer.cancel();
+        chunkTimer = new Timer("state chunk timer");
+        chunkTimer.schedule(new TimerTask() {
+            public void run() {
+                int[] myself = { SVController.getStaticConf().getProcessId() };
+                tomLayer.getCommunication().send(myself,
+                        new StandardSMMessage(-1, waitingEid, TOMUtil.TRIGGER_SM_LOCALLY, -1, null, null, -1, -1));
+            }
+        }, CHUNK_TIMEOUT, CHUNK_TIMEOUT);
+        lock.unlock();
+    }
+
+    private void sendStateRequest() {
+        PagedState local = getLocalState();
+        SMMessage smsg = new ChunkedSMMessage(SVController.getStaticConf().getProcessId(), waitingEid,
+                TOMUtil.SM_REQUEST, null, null, -1, -1, 0, (local != null ? local.getPageSize() : chunkSize),
+                (local != null ? local.getRoot() : null));
+        tomLayer.getCommunication().send(SVController.getCurrentViewOtherAcceptors(), smsg);
+        requestTime = System.currentTimeMillis();
+
+        System.out.println("(ChunkedStateManager.requestState) I just sent a request to the other replicas for the state up to EID " + waitingEid);
+    }
+
+    /**
+     * Invoked periodically while the state is fetched. Chunks that timed out
+     * are requested again from other replicas; the state request is sent
+     * again if f+1 matching replies did not arrive.
+     */
+    @Override
+    public void stateTimeout() {
+        if (chunkSize <= 0) {
+            super.stateTimeout();
+            return;
+        }
+        lock.lock();
+        long now = System.currentTimeMillis();
+        if (waitingEid == -1) {
+            cancelChunkTimer();
+        } else if (manifest == null) {
+            if (now - requestTime >= requestTimeout) {
+                requestTimeout *= 2;
+                sendStateRequest();
+            }
+        } else {
+            Set<Integer> timedOut = new HashSet<Integer>();
+            for (int i = chunkCount - 1; i >= 0; i--) {
+                if (!received[i] && requestedFrom[i] != -1 && now - requestedAt[i] >= CHUNK_TIMEOUT) {
+                    timedOut.add(requestedFrom[i]);
+                    releaseChunk(i);
+                    pendingChunks.addFirst(i);
+                }
+            }
+            if (!timedOut.isEmpty()) {
+                System.out.println("(ChunkedStateManager.stateTimeout) Requesting chunks again, " + missing
+                        + " of " + chunkCount + " missing");
+            }
+            for (int source : new ArrayList<Integer>(sources)) {
+                if (!timedOut.contains(source) || timedOut.size() == sources.size()) {
+                    requestChunks(source);
+                }
+            }
+        }
+        lock.unlock();
+    }
+
+    @Override
+    public void SMRequestDeliver(SMMessage msg, boolean isBFT) {
+        if (!(msg instanceof ChunkedSMMessage)) {
+            super.SMRequestDeliver(msg, isBFT);
+            return;
+        }
+        if (SVController.getStaticConf().isStateTransferEnabled() && dt.getRecoverer() != null) {
+            lock.lock();
+            if (msg.getType() == TOMUtil.SM_CHUNK_REQUEST) {
+                sendChunk((ChunkedSMMessage) msg);
+            } else {
+                sendManifest((ChunkedSMMessage) msg);
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replies to a state request with the state without its checkpoint, which
+     * is kept to serve the chunks requested next, in the chunk size of the
+     * request
+     */
+    private void sendManifest(ChunkedSMMessage msg) {
+        int size = (msg.getChunkSize() > 0 ? msg.getChunkSize() : chunkSize);
+        if (servedState == null || servedEid != msg.getEid() || servedChunkSize != size) {
+            ApplicationState thisState = serveState(msg.getEid(), size);
+            if (thisState == null) {
+                // the recovering replica fetches the state from the other replicas
+                return;
+            }
+            if (servedTree == null) {
+                // nothing to serve
+                int[] targets = { msg.getSender() };
+                tomLayer.getCommunication().send(targets, new ChunkedSMMessage(SVController.getStaticConf().getProcessId(),
+                        msg.getEid(), TOMUtil.SM_REPLY, thisState, SVController.getCurrentView(),
+                        tomLayer.getLCManager().getLastReg(), tomLayer.lm.getCurrentLeader(), 0, 0, null));
+                return;
+            }
+        }
+        servedTime = System.currentTimeMillis();
+        scheduleServedStateRelease();
+
+        int[] targets = { msg.getSender() };
+        SMMessage smsg = new ChunkedSMMessage(SVController.getStaticConf().getProcessId(), msg.getEid(),
+                TOMUtil.SM_REPLY, servedState, SVController.getCurrentView(), tomLayer.getLCManager().getLastReg(),
+                tomLayer.lm.getCurrentLeader(), servedSize, servedChunkSize, servedTree.getRoot());
+        if (msg.getRoot() != null) {
+            // the recovering replica has a paged state, to compare with the chunks
+            ((ChunkedSMMessage) smsg).setLeaves(servedTree.getLeaves());
+        }
+        System.out.println("Sending state of " + servedSize + " bytes in " + servedTree.getLeafCount() + " chunks");
+        tomLayer.getCommunication().send(targets, smsg);
+    }
+
+    /**
+     * Keeps the checkpoint of a consensus to serve its chunks
+     *
+     * @return the state without its checkpoint, which is only served if it
+     * has a checkpoint, or null if it could not be read
+     */
+    private ApplicationState serveState(int eid, int size) {
+        ApplicationState thisState = dt.getRecoverer().getState(eid, true);
+        if (thisState == null) {
+            System.out.println("-- For some reason, I am sending a void state");
+            thisState = dt.getRecoverer().getState(-1, true);
+        }
+        releaseServedState();
+        ReadableByteChannel in = null;
+        try {
+            long stateSize = 0;
+            if (thisState instanceof DefaultApplicationState) {
+                in = ((DefaultApplicationState) thisState).openState();
+                stateSize = ((DefaultApplicationState) thisState).getStateSize();
+            } else if (thisState.getSerializedState() != null) {
+                in = SnapshotChannels.open(thisState.getSerializedState());
+                stateSize = thisState.getSerializedState().length;
+            }
+            thisState.setSerializedState(null);
+            if (!thisState.hasState() || in == null || size <= 0) {
+                return thisState;
+            }
+            servedTree = copyServedState(in, stateSize, size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            releaseServedState();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        servedState = thisState;
+        servedEid = eid;
+        servedChunkSize = size;
+        sent = new boolean[servedTree.getLeafCount()];
+        unsent = sent.length;
+        return thisState;
+    }
+
+    private void sendChunk(ChunkedSMMessage msg) {
+        int chunk = msg.getChunk();
+        if (servedTree == null && msg.getEid() == releasedEid) {
+            // another replica still fetches the checkpoint released once all its chunks were sent
+            serveState(releasedEid, releasedChunkSize);
+            scheduleServedStateRelease();
+        }
+        if (servedTree == null || msg.getEid() != servedEid || chunk < 0 || chunk >= servedTree.getLeafCount()) {
+            // the recovering replica asks another replica when the chunk times out
+            return;
+        }
+        servedTime = System.currentTimeMillis();
+        long offset = (long) chunk * servedChunkSize;
+        byte[] data = new byte[(int) Math.min(servedChunkSize, servedSize - offset)];
+        try {
+            readFully(servedCheckpoint, offset, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        int[] targets = { msg.getSender() };
+        tomLayer.getCommunication().send(targets, new ChunkedSMMessage(SVController.getStaticConf().getProcessId(),
+                servedEid, TOMUtil.SM_CHUNK_REPLY, chunk, data, servedTree.getProof(chunk)));
+        if (!sent[chunk]) {
+            sent[chunk] = true;
+            unsent--;
+        }
+        if (unsent == 0) {
+            // the checkpoint is read again if some chunk is requested once more
+            int eid = servedEid;
+            int size = servedChunkSize;
+            releaseServedState();
+            releasedEid = eid;
+            releasedChunkSize = size;
+        }
+    }
+
+    /**
+     * Releases the checkpoint kept to serve chunks once all of them were sent,
+     * or once no chunk was requested for SERVED_STATE_TIMEOUT
+     */
+    private void scheduleServedStateRelease() {
+        if (servedTimer != null)
+            return;
+        servedTimer = new Timer("served state timer");
+        servedTimer.schedule(new TimerTask() {
+            public void run() {
+                lock.lock();
+                if (System.currentTimeMillis() - servedTime >= SERVED_STATE_TIMEOUT) {
+                    releaseServedState();
+                    releasedEid = -1;
+                    servedTimer.cancel();
+                    servedTimer = null;
+                }
+                lock.unlock();
+            }
+        }, SERVED_STATE_TIMEOUT, SERVED_STATE_TIMEOUT);
+    }
+
+    /**
+     * Copies the served checkpoint to a temporary file, hashing its chunks
+     * while they are copied
+     *
+     * @return the Merkle tree of the chunks
+     */
+    private MerkleTree copyServedState(ReadableByteChannel in, long stateSize, int size) throws IOException {
+        servedFile = File.createTempFile("served", ".state", getTempDir());
+        servedFile.deleteOnExit();
+        servedCheckpoint = new RandomAccessFile(servedFile, "rw");
+        servedSize = stateSize;
+        byte[][] leaves = new byte[MerkleTree.getChunkCount(stateSize, size)][];
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, stateSize));
+        for (int i = 0; i < leaves.length; i++) {
+            buffer.clear();
+            buffer.limit((int) Math.min(size, stateSize - (long) i * size));
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    throw new IOException("State ended after " + ((long) i * size + buffer.position()) + " of " + stateSize + " bytes");
+                }
+            }
+            leaves[i] = MerkleTree.leafHash(buffer.array(), 0, buffer.limit());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                servedCheckpoint.getChannel().write(buffer);
+            }
+        }
+        return new MerkleTree(leaves);
+    }
+
+    /**
+     * Deletes the checkpoint kept to serve chunks
+     */
+    private void releaseServedState() {
+        servedEid = -1;
+        servedState = null;
+        servedTree = null;
+        sent = null;
+        unsent = 0;
+        releasedEid = -1;
+        closeQuietly(servedCheckpoint);
+        servedCheckpoint = null;
+        if (servedFile != null) servedFile.delete();
+        servedFile = null;
+        servedSize = 0;
+    }
+
+    /**
+     * @return the directory of the log files, if any, where the state fits
+     * better than in the default temporary directory
+     */
+    private static File getTempDir() {
+        File dir = new File(DiskStateLog.DEFAULT_DIR);
+        return (dir.isDirectory() ? dir : null);
+    }
+
+    private static void readFully(RandomAccessFile file, long offset, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (file.getChannel().read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("The state file ended at " + (offset + buffer.position()) + " bytes");
+            }
+        }
+    }
+
+    private static void writeFully(RandomAccessFile file, long offset, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            file.getChannel().write(buffer, offset + buffer.position());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void SMReplyDeliver(SMMessage msg, boolean isBFT) {
+        if (chunkSize <= 0 || !(msg instanceof ChunkedSMMessage)) {
+            super.SMReplyDeliver(msg, isBFT);
+            return;
+        }
+        lock.lock();
+        if (SVController.getStaticConf().isStateTransferEnabled() && waitingEid != -1 && msg.getEid() == waitingEid) {
+            if (msg.getType() == TOMUtil.SM_CHUNK_REPLY) {
+                chunkReceived((ChunkedSMMessage) msg);
+            } else {
+                manifestReceived((ChunkedSMMessage) msg);
+            }
+        }
+        lock.unlock();
+    }
+
+    private void manifestReceived(ChunkedSMMessage msg) {
+        if (!appStateOnly) {
+            senderRegencies.put(msg.getSender(), msg.getRegency());
+            senderLeaders.put(msg.getSender(), msg.getLeader());
+            senderViews.put(msg.getSender(), msg.getView());
+            if (moreThan2F_Regencies(msg.getRegency())) currentRegency = msg.getRegency();
+            if (moreThan2F_Leaders(msg.getLeader())) currentLeader = msg.getLeader();
+            if (moreThan2F_Views(msg.getView())) currentView = msg.getView();
+        }
+        senderStates.put(msg.getSender(), msg.getState());
+        manifests.put(msg.getSender(), msg);
+
+        if (manifest != null) {
+            if (sameState(manifest, msg) && !sources.contains(msg.getSender())) {
+                sources.add(msg.getSender());
+                requestChunks(msg.getSender());
+            }
+            installIfComplete();
+            return;
+        }
+
+        List<Integer> matching = new ArrayList<Integer>();
+        for (ChunkedSMMessage other : manifests.values()) {
+            if (sameState(msg, other)) matching.add(other.getSender());
+        }
+        if (matching.size() > SVController.getCurrentViewF()) {
+            if (!msg.getState().hasState() || msg.getStateSize() < 0 || msg.getChunkSize() <= 0) {
+                System.out.println("(ChunkedStateManager.SMReplyDeliver) The replicas do not have a state that can be transferred");
+                giveUp();
+                return;
+            }
+            try {
+                startTransfer(msg, matching);
+            } catch (IOException e) {
+                e.printStackTrace();
+                giveUp();
+            }
+        } else if (SVController.getCurrentViewN() - SVController.getCurrentViewF() <= getReplies()
+                && manifests.size() == getReplies() && !anyMatch()) {
+            System.out.println("(ChunkedStateManager.SMReplyDeliver) Could not obtain the state, retrying");
+            giveUp();
+        }
+    }
+
+    private boolean anyMatch() {
+        List<ChunkedSMMessage> replies = new ArrayList<ChunkedSMMessage>(manifests.values());
+        int f = SVController.getCurrentViewF();
+        int notReplied = SVController.getCurrentViewN() - 1 - replies.size();
+        for (ChunkedSMMessage reply : replies) {
+            int count = 0;
+            for (ChunkedSMMessage other : replies) {
+                if (sameState(reply, other)) count++;
+            }
+            if (count + notReplied > f) return true;
+        }
+        return false;
+    }
+
+    private boolean sameState(ChunkedSMMessage m1, ChunkedSMMessage m2) {
+        return m1.getState() != null && m1.getState().equals(m2.getState()) && m1.getStateSize() == m2.getStateSize()
+                && m1.getChunkSize() == m2.getChunkSize() && Arrays.equals(m1.getRoot(), m2.getRoot());
+    }
+
+    private void startTransfer(ChunkedSMMessage agreed, List<Integer> matching) throws IOException {
+        checkpointFile = File.createTempFile("fetched", ".state", getTempDir());
+        checkpointFile.deleteOnExit();
+        checkpoint = new RandomAccessFile(checkpointFile, "rw");
+        checkpoint.setLength(agreed.getStateSize());
+        manifest = agreed;
+        chunkCount = MerkleTree.getChunkCount(agreed.getStateSize(), agreed.getChunkSize());
+        received = new boolean[chunkCount];
+        requestedFrom = new int[chunkCount];
+        Arrays.fill(requestedFrom, -1);
+        requestedAt = new long[chunkCount];
+        missing = chunkCount;
+        copyLocalPages(agreed);
+        for (int i = 0; i < chunkCount; i++) {
+            if (!received[i]) pendingChunks.add(i);
+        }
+        transferStart = System.currentTimeMillis();
+        System.out.println("(ChunkedStateManager.SMReplyDeliver) Fetching state of " + agreed.getStateSize()
+                + " bytes in " + missing + " of " + chunkCount + " chunks from replicas " + matching);
+        for (int source : matching) {
+            sources.add(source);
+            requestChunks(source);
+        }
+        installIfComplete();
+    }
+
+    /**
+     * Copies to the state being fetched the pages of the local paged state
+     * whose hashes are the ones of the chunks, after verifying the hashes of
+     * the chunks against the root
+     */
+    private void copyLocalPages(ChunkedSMMessage agreed) throws IOException {
+        PagedState local = getLocalState();
+        byte[][] leaves = agreed.getLeaves();
+        if (local == null || leaves == null || leaves.length != chunkCount || local.getPageSize() != agreed.getChunkSize()
+                || !Arrays.equals(new MerkleTree(leaves).getRoot(), agreed.getRoot())) {
+            return;
+        }
+        byte[] page = new byte[agreed.getChunkSize()];
+        for (int i = 0; i < chunkCount && i < local.getPageCount(); i++) {
+            long offset = (long) i * agreed.getChunkSize();
+            int length = (int) Math.min(agreed.getChunkSize(), agreed.getStateSize() - offset);
+            if (local.getPageLength(i) == length && Arrays.equals(local.getPageHash(i), leaves[i])) {
+                local.readPage(i, page, 0);
+                writeFully(checkpoint, offset, page, length);
+                received[i] = true;
+                missing--;
+            }
+        }
+        System.out.println("(ChunkedStateManager.SMReplyDeliver) " + (chunkCount - missing) + " of " + chunkCount
+                + " chunks are already in the local state");
+    }
+
+    /**
+     * @return the paged state of the application, if any
+     */
+    private PagedState getLocalState() {
+        Recoverable recoverer = dt.getRecoverer();
+        if (recoverer instanceof DefaultRecoverable) {
+            return ((DefaultRecoverable) recoverer).getPagedState();
+        } else if (recoverer instanceof DefaultSingleRecoverable) {
+            return ((DefaultSingleRecoverable) recoverer).getPagedState();
+        }
+        return null;
+    }
+
+    /**
+     * Requests chunks from a replica, until CHUNKS_IN_FLIGHT are pending
+     */
+    private void requestChunks(int source) {
+        Integer pending = inFlight.get(source);
+        int count = (pending != null ? pending : 0);
+        while (count < CHUNKS_IN_FLIGHT && !pendingChunks.isEmpty()) {
+            int chunk = pendingChunks.removeFirst();
+            if (received[chunk] || requestedFrom[chunk] != -1) continue;
+            requestedFrom[chunk] = source;
+            requestedAt[chunk] = System.currentTimeMillis();
+            count++;
+            int[] targets = { source };
+            tomLayer.getCommunication().send(targets, new ChunkedSMMessage(SVController.getStaticConf().getProcessId(),
+                    waitingEid, TOMUtil.SM_CHUNK_REQUEST, chunk, null, null));
+        }
+        inFlight.put(source, count);
+    }
+
+    private void releaseChunk(int chunk) {
+        Integer pending = inFlight.get(requestedFrom[chunk]);
+        if (pending != null && pending > 0) {
+            inFlight.put(requestedFrom[chunk], pending - 1);
+        }
+        requestedFrom[chunk] = -1;
+    }
+
+    private void chunkReceived(ChunkedSMMessage msg) {
+        int chunk = msg.getChunk();
+        int sender = msg.getSender();
+        if (manifest == null || chunk < 0 || chunk >= chunkCount || !sources.contains(sender)) {
+            return;
+        }
+        if (requestedFrom[chunk] == sender) {
+            releaseChunk(chunk);
+        }
+        if (!received[chunk]) {
+            long offset = (long) chunk * manifest.getChunkSize();
+            int length = (int) Math.min(manifest.getChunkSize(), manifest.getStateSize() - offset);
+            byte[] data = msg.getData();
+            if (data == null || data.length != length || !MerkleTree.verify(manifest.getRoot(), chunk, chunkCount,
+                    MerkleTree.leafHash(data, 0, data.length), msg.getProof())) {
+                System.out.println("(ChunkedStateManager.SMReplyDeliver) Replica " + sender + " sent an invalid chunk " + chunk);
+                sources.remove((Integer) sender);
+                if (requestedFrom[chunk] == -1) pendingChunks.addFirst(chunk);
+                for (int i = 0; i < chunkCount; i++) {
+                    if (requestedFrom[i] == sender) {
+                        releaseChunk(i);
+                        pendingChunks.addFirst(i);
+                    }
+                }
+                if (sources.isEmpty()) {
+                    giveUp();
+                } else {
+                    for (int source : sources) requestChunks(source);
+                }
+                return;
+            }
+            try {
+                writeFully(checkpoint, offset, data, length);
+            } catch (IOException e) {
+                e.printStackTrace();
+                giveUp();
+                return;
+            }
+            received[chunk] = true;
+            missing--;
+            if (missing == 0) {
+                System.out.println("(ChunkedStateManager.SMReplyDeliver) Received state of " + manifest.getStateSize()
+                        + " bytes from " + sources.size() + " replicas in " + (System.currentTimeMillis() - transferStart) + " ms");
+                installIfComplete();
+                return;
+            }
+        }
+        requestChunks(sender);
+    }
+
+    private void installIfComplete() {
+        if (manifest == null || missing > 0) {
+            return;
+        }
+        int regency = currentRegency;
+        int leader = currentLeader;
+        View view = currentView;
+        if (appStateOnly) {
+            leader = tomLayer.lm.getCurrentLeader();
+            regency = tomLayer.getLCManager().getLastReg();
+            view = SVController.getCurrentView();
+        }
+        if (regency > -1 && leader > -1 && view != null) {
+            System.out.println("Received state. Will install it");
+            ApplicationState agreed = manifest.getState();
+            try {
+                checkpoint.getChannel().force(false);
+                if (agreed instanceof DefaultApplicationState) {
+                    ((DefaultApplicationState) agreed).setStateFile(checkpointFile.getPath(), manifest.getStateSize());
+                } else {
+                    checkpoint.seek(0);
+                    agreed.setSerializedState(SnapshotChannels.read(checkpoint.getChannel(), manifest.getStateSize()));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                giveUp();
+                return;
+            }
+            cancelChunkTimer();
+            installState(agreed, regency, leader, view);
+        }
+    }
+
+    /**
+     * Stops fetching the state, until the state transfer is triggered again
+     */
+    private void giveUp() {
+        waitingEid = -1;
+        reset();
+        cancelChunkTimer();
+        if (appStateOnly) {
+            requestState();
+        }
+    }
+
+    private void cancelChunkTimer() {
+        if (chunkTimer != null) chunkTimer.cancel();
+        chunkTimer = null;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        manifests.clear();
+        manifest = null;
+        sources.clear();
+        inFlight.clear();
+        pendingChunks.clear();
+        closeQuietly(checkpoint);
+        checkpoint = null;
+        if (checkpointFile != null) checkpointFile.delete();
+        checkpointFile = null;
+        received = null;
+        requestedFrom = null;
+        requestedAt = null;
+        chunkCount = 0;
+        missing = 0;
+        currentRegency = -1;
+        currentLeader = -1;
+        currentView = null;
+    }
+}
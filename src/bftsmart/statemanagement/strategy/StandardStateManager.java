@@ -18,13 +18,10 @@ package bftsmart.statemanagement.strategy;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.locks.ReentrantLock;
 
-import bftsmart.consensus.executionmanager.ExecutionManager;
-import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
@@ -48,7 +45,6 @@ public class StandardStateManager extends BaseStateManager {
     private long timeout = INIT_TIMEOUT;
     
     private LCManager lcManager;
-    private ExecutionManager execManager;
 
 
     @Override
@@ -58,7 +54,6 @@ public class StandardStateManager extends BaseStateManager {
         this.tomLayer = tomLayer;
         this.dt = dt;
         this.lcManager = tomLayer.getLCManager();
-        this.execManager = tomLayer.execManager;
 
         this.replica = 0;
 
@@ -199,51 +194,8 @@ public class StandardStateManager extends BaseStateManager {
 
                     	System.out.println("Received state. Will install it");
                     	
-                        lcManager.setLastReg(currentRegency);
-                        lcManager.setNextReg(currentRegency);
-                        lcManager.setNewLeader(currentLeader);
-                        tomLayer.lm.setNewLeader(currentLeader);
-                        //if (currentRegency > 0)
-                        //    tomLayer.requestsTimer.setTimeout(tomLayer.requestsTimer.getTimeout() * (currentRegency * 2));
-                        
-                        dt.deliverLock();
-                        waitingEid = -1;
-                        dt.update(state);
-                        
-                        if (!appStateOnly && execManager.stopped()) {
-                            Queue<PaxosMessage> stoppedMsgs = execManager.getStoppedMsgs();
-                            for (PaxosMessage stopped : stoppedMsgs) {
-                                if (stopped.getNumber() > state.getLastEid() /*msg.getEid()*/)
-                                    execManager.addOutOfContextMessage(stopped);
-                            }
-                            execManager.clearStopped();
-                            execManager.restart();
-                        }
-                        
-                        tomLayer.processOutOfContext();
-                        
-                        if (SVController.getCurrentViewId() != currentView.getId()) {
-                            System.out.println("Installing current view!");
-                            SVController.reconfigureTo(currentView);
-                        }
-                        
-						isInitializing = false;
-						
-                        dt.canDeliver();
-                        dt.deliverUnlock();
-
-                        reset();
-
-                        System.out.println("I updated the state!");
-
-                        tomLayer.requestsTimer.Enabled(true);
-                        tomLayer.requestsTimer.startTimer();
+                        installState(state, currentRegency, currentLeader, currentView);
                         if (stateTimer != null) stateTimer.cancel();
-                        
-                        if (appStateOnly) {
-                        	appStateOnly = false;
-                            tomLayer.resumeLC();
-                        }
                     } else if (otherReplicaState == null && (SVController.getCurrentViewN() / 2) < getReplies()) {
                     	System.out.println("otherReplicaState == null && (SVController.getCurrentViewN() / 2) < getReplies()");
                         waitingEid = -1;
@@ -15,8 +15,14 @@ limitations under the License.
 */
 package bftsmart.statemanagement.strategy.durability;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.server.defaultservices.SnapshotChannels;
+import bftsmart.tom.server.defaultservices.durability.DurableStateLog;
 
 /**
  * Stores the data used to transfer the state to a recovering replica.
@@ -50,6 +56,8 @@ public class CSTState implements ApplicationState {
 	private final CommandsInfo[] logLower;
 	
 	private byte[] state;
+	private transient String checkpointPath; // file with the checkpoint received, when it is not in memory
+	private transient long stateSize;
 	
 	public CSTState(byte[] state, byte[] hashCheckpoint, CommandsInfo[] logLower, byte[] hashLogLower,
 			CommandsInfo[] logUpper, byte[] hashLogUpper, int checkpointEid, int lastEid) {
@@ -65,7 +73,7 @@ public class CSTState implements ApplicationState {
 	
 	@Override
 	public boolean hasState() {
-		return this.getSerializedState() != null;
+		return this.getSerializedState() != null || checkpointPath != null;
 	}
 
 	@Override
@@ -83,6 +91,41 @@ public class CSTState implements ApplicationState {
 		this.state = state;
 	}
 
+	public String getCheckpointPath() {
+		return checkpointPath;
+	}
+
+	public void setCheckpointPath(String checkpointPath) {
+		this.checkpointPath = checkpointPath;
+	}
+
+	/**
+	 * Opens the state of the checkpoint to be read as a stream, from memory
+	 * or from the checkpoint file it was received in
+	 * @return A channel with getStateSize() bytes of state, or null if there
+	 * is no state (or its checkpoint file is corrupted)
+	 */
+	public ReadableByteChannel openState() throws IOException {
+		if (state != null) {
+			stateSize = state.length;
+			return SnapshotChannels.open(state);
+		}
+		if (checkpointPath != null) {
+			FileRecoverer fr = new FileRecoverer(-1, DurableStateLog.DEFAULT_DIR);
+			ReadableByteChannel in = fr.openCkpState(checkpointPath);
+			stateSize = fr.getCkpStateSize();
+			return in;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the size of the state opened by openState, in bytes
+	 */
+	public long getStateSize() {
+		return stateSize;
+	}
+
 	@Override
 	public int getLastEid() {
 		return lastEid;
@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.statemanagement.strategy.durability;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Queue;
 import java.util.Timer;
@@ -209,22 +207,11 @@ public class DurableStateManager extends BaseStateManager {
 				Logger.println("(TOMLayer.SMReplyDeliver) The reply is for the EID that I want!");
 
 				InetSocketAddress address = reply.getCstConfig().getAddress();
-				Socket clientSocket;
 				ApplicationState stateReceived = null;
 				try {
-					clientSocket = new Socket(address.getHostName(),
-							address.getPort());
-					ObjectInputStream in = new ObjectInputStream(
-							clientSocket.getInputStream());
-					stateReceived = (ApplicationState) in.readObject();
-				} catch (UnknownHostException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					// the checkpoint and the log are written to disk as they arrive
+					stateReceived = new StateReceiver(SVController.getStaticConf().getProcessId()).receive(address);
 				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (ClassNotFoundException e) {
-					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
 
@@ -275,6 +262,7 @@ public class DurableStateManager extends BaseStateManager {
 							TOMUtil.getBytes(stateCkp.getSerializedState()),
 							stateLower.getLogLower(), stateCkp.getHashLogLower(), null, null,
 							stateCkp.getCheckpointEid(), stateUpper.getCheckpointEid());
+					statePlusLower.setCheckpointPath(stateCkp.getCheckpointPath());
 
 					if (haveState) { // validate checkpoint
 						System.out.println("validating checkpoint!!!");
@@ -286,6 +274,10 @@ public class DurableStateManager extends BaseStateManager {
 						}
 					}
 
+					// a checkpoint that was not installed is not kept
+					if (!haveState && stateCkp.getCheckpointPath() != null)
+						new File(stateCkp.getCheckpointPath()).delete();
+
 					System.out.println("-- current regency: " + currentRegency);
 					System.out.println("-- current leader: " + currentLeader);
 					System.out.println("-- current view: " + currentView);
@@ -0,0 +1,143 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.strategy.durability;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.LogReader;
+import bftsmart.tom.server.defaultservices.durability.DurableStateLog;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Receives the frames sent by a StateSender. The checkpoint and the log are
+ * written to disk with FileChannel.transferFrom as they arrive: the
+ * checkpoint is kept in a .tmp file that becomes the checkpoint of this
+ * replica when the state is installed, and the log is read back from its
+ * file.
+ */
+public class StateReceiver {
+
+	private final int id;
+
+	public StateReceiver(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * Connects to a StateSender and receives the state it sends
+	 * 
+	 * @param address the address of the StateSenderServer
+	 * @return the state received, whose checkpoint (if any) is in the file
+	 *         of getCheckpointPath()
+	 */
+	public CSTState receive(InetSocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		String ckpPath = null;
+		try {
+			CSTState state = null;
+			CommandsInfo[] logLower = null;
+			CommandsInfo[] logUpper = null;
+			ByteBuffer header = ByteBuffer.allocate(StateSender.HEADER_SIZE);
+			while (true) {
+				header.clear();
+				readFully(channel, header);
+				header.flip();
+				byte type = header.get();
+				long length = header.getLong();
+				if (length < 0)
+					throw new IOException("Invalid length " + length + " for frame " + type);
+				switch (type) {
+				case StateSender.STATE:
+					if (length > StateSender.MAX_STATE_SIZE)
+						throw new IOException("State frame of " + length + " bytes is too large");
+					ByteBuffer bytes = ByteBuffer.allocate((int) length);
+					readFully(channel, bytes);
+					state = (CSTState) TOMUtil.getObject(bytes.array());
+					break;
+				case StateSender.CHECKPOINT:
+					ckpPath = DurableStateLog.DEFAULT_DIR + id + "." + System.currentTimeMillis() + ".tmp";
+					receiveFile(channel, ckpPath, length);
+					System.out.println("--- Received checkpoint of " + length + " bytes");
+					break;
+				case StateSender.LOG_LOWER:
+					logLower = receiveLog(channel, length);
+					break;
+				case StateSender.LOG_UPPER:
+					logUpper = receiveLog(channel, length);
+					break;
+				case StateSender.END:
+					if (state == null)
+						throw new IOException("No state received");
+					CSTState received = new CSTState(null, state.getHashCheckpoint(), logLower, state.getHashLogLower(),
+							logUpper, state.getHashLogUpper(), state.getCheckpointEid(), state.getLastEid());
+					received.setCheckpointPath(ckpPath);
+					ckpPath = null;
+					return received;
+				default:
+					throw new IOException("Unknown frame " + type);
+				}
+			}
+		} finally {
+			channel.close();
+			if (ckpPath != null)
+				new File(ckpPath).delete();
+		}
+	}
+
+	private CommandsInfo[] receiveLog(ReadableByteChannel channel, long length) throws IOException {
+		String logPath = DurableStateLog.DEFAULT_DIR + id + "." + System.currentTimeMillis() + ".cst";
+		try {
+			receiveFile(channel, logPath, length);
+			CommandsInfo[] log = LogReader.readRecords(logPath);
+			System.out.println("--- Received " + log.length + " batches of the log in " + length + " bytes");
+			return log;
+		} finally {
+			new File(logPath).delete();
+		}
+	}
+
+	private static void receiveFile(ReadableByteChannel channel, String path, long length) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			FileChannel out = file.getChannel();
+			long position = 0;
+			while (position < length) {
+				long received = out.transferFrom(channel, position, length - position);
+				if (received <= 0)
+					throw new EOFException("Connection closed after " + position + " of " + length + " bytes");
+				position += received;
+			}
+			out.force(false);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException();
+	}
+}
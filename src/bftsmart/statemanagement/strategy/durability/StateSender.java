@@ -15,39 +15,98 @@ limitations under the License.
 */
 package bftsmart.statemanagement.strategy.durability;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
-import bftsmart.statemanagement.ApplicationState;
+import bftsmart.tom.server.defaultservices.durability.DurabilityCoordinator;
+import bftsmart.tom.util.TOMUtil;
 
+/**
+ * Sends the part of the state a replica is expected to send in the
+ * collaborative state transfer. It is sent in frames, each one with a type
+ * (byte) and a length (long): first a STATE frame, with the CSTState
+ * serialized without checkpoint or log, then the CHECKPOINT file or the
+ * records of a portion of the log (LOG_LOWER, LOG_UPPER), as they are on
+ * disk, and an END frame. Files are sent with FileChannel.transferTo, so
+ * they are not copied to the heap.
+ */
 public class StateSender implements Runnable {
 
-	private final Socket socket;
-	private ApplicationState state;
+	public static final byte END = 0;
+	public static final byte STATE = 1;
+	public static final byte CHECKPOINT = 2;
+	public static final byte LOG_LOWER = 3;
+	public static final byte LOG_UPPER = 4;
+	public static final int HEADER_SIZE = 1 + 8;
+	/** Largest STATE frame accepted: it only holds hashes and consensus ids */
+	public static final int MAX_STATE_SIZE = 1 << 20;
+
+	private final SocketChannel socket;
+	private final DurabilityCoordinator coordinator;
+	private final CSTRequest request;
 	
-	public StateSender(Socket socket) {
+	public StateSender(SocketChannel socket, DurabilityCoordinator coordinator, CSTRequest request) {
 		this.socket = socket;
-	}
-	
-	public void setState(ApplicationState state) {
-		this.state = state;
+		this.coordinator = coordinator;
+		this.request = request;
 	}
 	
 	@Override
 	public void run() {
 		try {
-			OutputStream os = socket.getOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(os);
-			System.out.print("--- Sending state in different socket");
-			oos.writeObject(state);
-			System.out.print("--- Sent state in different socket");
-			oos.close();
-			socket.close();
+			long milliInit = System.currentTimeMillis();
+			System.out.println("--- Sending state in different socket");
+			coordinator.sendState(request, socket);
+			System.out.println("--- Sent state in different socket in " + (System.currentTimeMillis() - milliInit) + " milliseconds");
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes the header of a frame
+	 */
+	public static void writeHeader(WritableByteChannel out, byte type, long length) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(type);
+		header.putLong(length);
+		header.flip();
+		while (header.hasRemaining())
+			out.write(header);
+	}
+
+	/**
+	 * Writes a STATE frame with a CSTState without checkpoint or log
+	 */
+	public static void writeState(WritableByteChannel out, CSTState state) throws IOException {
+		byte[] bytes = TOMUtil.getBytes(state);
+		writeHeader(out, STATE, bytes.length);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+
+	/**
+	 * Writes a frame with a region of a file, with FileChannel.transferTo
+	 */
+	public static void writeFile(WritableByteChannel out, byte type, FileChannel file, long position, long length) throws IOException {
+		writeHeader(out, type, length);
+		long end = position + length;
+		while (position < end) {
+			long sent = file.transferTo(position, end - position, out);
+			if (sent <= 0 && position >= file.size())
+				throw new EOFException("File ended at " + position + " of " + end + " bytes");
+			position += sent;
 		}
 	}
 
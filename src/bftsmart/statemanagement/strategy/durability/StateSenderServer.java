@@ -16,8 +16,9 @@ limitations under the License.
 package bftsmart.statemanagement.strategy.durability;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.server.Recoverable;
@@ -25,7 +26,7 @@ import bftsmart.tom.server.defaultservices.durability.DurabilityCoordinator;
 
 public class StateSenderServer implements Runnable {
 
-	private ServerSocket server;
+	private ServerSocketChannel server;
 	private ApplicationState state;
 	private Recoverable recoverable;
 	private DurabilityCoordinator coordinator;
@@ -46,7 +47,9 @@ public class StateSenderServer implements Runnable {
 
 	public StateSenderServer(int port) {
 		try {
-			server = new ServerSocket(port);
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(port));
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -56,10 +59,9 @@ public class StateSenderServer implements Runnable {
 	@Override
 	public void run() {
 		try {
-			Socket socket = server.accept();
-			StateSender sender = new StateSender(socket);
-			state = coordinator.getState(request);
-			sender.setState(state);
+			SocketChannel socket = server.accept();
+			server.close();
+			StateSender sender = new StateSender(socket, coordinator, request);
 			new Thread(sender).start();
 		} catch (IOException e) {
 			e.printStackTrace();
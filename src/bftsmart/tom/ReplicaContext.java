@@ -19,6 +19,7 @@ import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.reconfiguration.views.View;
+import bftsmart.tom.core.AdaptiveBatcher;
 
 /**
  *
@@ -28,11 +29,18 @@ public class ReplicaContext {
     
     private ServerCommunicationSystem cs; // Server side comunication system
     private ServerViewController SVController;
+    private AdaptiveBatcher batcher;
 
     public ReplicaContext(ServerCommunicationSystem cs, 
                                  ServerViewController SVController) {
+        this(cs, SVController, null);
+    }
+
+    public ReplicaContext(ServerCommunicationSystem cs, 
+                                 ServerViewController SVController, AdaptiveBatcher batcher) {
         this.cs = cs;
         this.SVController = SVController;
+        this.batcher = batcher;
     }
     
     //TODO: implement a method that allow the replica to send a message with
@@ -56,6 +64,15 @@ public class ReplicaContext {
         return SVController.getCurrentView();
     }
 
+    /**
+     * Returns the batching targets and metrics of this replica.
+     * 
+     * @return the batcher used when this replica is the leader
+     */
+    public AdaptiveBatcher getBatcher() {
+        return batcher;
+    }
+
 	public ServerCommunicationSystem getServerCommunicationSystem() {
 		return cs;
 	}
@@ -15,6 +15,7 @@ limitations under the License.
 */
 package bftsmart.tom;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.Condition;
@@ -37,6 +38,7 @@ import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.server.BatchExecutable;
+import bftsmart.tom.server.BufferBatchExecutable;
 import bftsmart.tom.server.Executable;
 import bftsmart.tom.server.FIFOExecutable;
 import bftsmart.tom.server.Recoverable;
@@ -258,7 +260,7 @@ public class ServiceReplica {
                                                     msgCtx.setLastInBatch();
                                                 }
 						request.deliveryTime = System.nanoTime();
-						if(executor instanceof BatchExecutable) {
+						if(executor instanceof BatchExecutable || executor instanceof BufferBatchExecutable) {
 							msgCtxts.add(msgCtx);
 							toBatch.add(request);
 						} else if(executor instanceof FIFOExecutable) {                                                    
@@ -303,22 +305,34 @@ public class ServiceReplica {
 			consensusCount++;          
                 }
 
-                if(executor instanceof BatchExecutable && numRequests > 0){
-			//Make new batch to deliver
-			byte[][] batch = new byte[numRequests][];
-
-			//Put messages in the batch
-			int line = 0;
-			for(TOMMessage m : toBatch){
-				batch[line] = m.getContent();
-				line++;
-			}
-
+                if((executor instanceof BatchExecutable || executor instanceof BufferBatchExecutable) && numRequests > 0){
 			MessageContext[] msgContexts = new MessageContext[msgCtxts.size()];
 			msgContexts = msgCtxts.toArray(msgContexts);
 
-			//Deliver the batch and wait for replies
-			byte[][] replies = ((BatchExecutable) executor).executeBatch(batch, msgContexts);
+			byte[][] replies;
+			if (executor instanceof BufferBatchExecutable) {
+				//Deliver views over the decided batches, without copying the commands
+				ByteBuffer[] batch = new ByteBuffer[numRequests];
+				int line = 0;
+				for(TOMMessage m : toBatch){
+					batch[line] = m.getContentBuffer();
+					line++;
+				}
+				replies = ((BufferBatchExecutable) executor).executeBatch(batch, msgContexts);
+			} else {
+				//Make new batch to deliver
+				byte[][] batch = new byte[numRequests][];
+
+				//Put messages in the batch
+				int line = 0;
+				for(TOMMessage m : toBatch){
+					batch[line] = m.getContent();
+					line++;
+				}
+
+				//Deliver the batch and wait for replies
+				replies = ((BatchExecutable) executor).executeBatch(batch, msgContexts);
+			}
 
 			//Send the replies back to the client
 			for(int index = 0; index < toBatch.size(); index++){                               
@@ -400,7 +414,7 @@ public class ServiceReplica {
 		tomLayer.start(); // start the layer execution
 		tomStackCreated = true;
 
-		replicaCtx = new ReplicaContext(cs, SVController);
+		replicaCtx = new ReplicaContext(cs, SVController, tomLayer.getBatcher());
 	}
 
 	/**
@@ -0,0 +1,259 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.Logger;
+
+/**
+ * This class decides when the leader should close a batch and propose it.
+ * A batch is closed when enough requests (or bytes) are pending, or when
+ * the maximum waiting time expires. If adaptive batching is enabled, these
+ * targets follow the observed consensus latency and request arrival rate,
+ * so that a batch holds roughly the requests that arrive during one
+ * consensus instance.
+ *
+ * The chosen targets and the properties of the last batch proposed are
+ * available through the getters of this class.
+ */
+public final class AdaptiveBatcher {
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final int maxBatchSize;
+    private final int maxBatchBytes; // 0 means there is no limit
+    private final long maxWait; // in nanoseconds
+    private final boolean adaptive;
+    private final int pipelineDepth;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition batchReady = lock.newCondition();
+
+    // current targets
+    private int targetBatchSize;
+    private int targetBatchBytes;
+    private long targetWait;
+
+    // estimate of the requests received but not yet proposed
+    private long pendingRequests = 0;
+    private long pendingBytes = 0;
+
+    // used to estimate the arrival rate and request size
+    private long arrivedRequests = 0;
+    private long arrivedBytes = 0;
+    private long lastSampleRequests = 0;
+    private long lastSampleTime = System.nanoTime();
+    private double arrivalRate = 0; // requests per nanosecond
+    private double consensusLatency = 0; // nanoseconds
+
+    // consensus proposed by this replica and not yet decided
+    private HashMap<Integer, Long> proposeTimes = new HashMap<Integer, Long>();
+
+    // properties of the last batch proposed
+    private int lastBatchSize = 0;
+    private int lastBatchBytes = 0;
+    private long lastBatchWait = 0;
+
+    public AdaptiveBatcher(ServerViewController controller) {
+        this.maxBatchSize = controller.getStaticConf().getMaxBatchSize();
+        this.maxBatchBytes = controller.getStaticConf().getMaxBatchBytes();
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(controller.getStaticConf().getBatchTimeout());
+        this.adaptive = controller.getStaticConf().isAdaptiveBatching();
+        this.pipelineDepth = controller.getStaticConf().getPipelineDepth();
+
+        this.targetBatchSize = maxBatchSize;
+        this.targetBatchBytes = maxBatchBytes;
+        this.targetWait = maxWait;
+    }
+
+    /**
+     * Invoked by the TOM layer each time a new request is accepted into the
+     * pending requests
+     *
+     * @param size Size (in bytes) of the request
+     */
+    public void requestArrived(int size) {
+        lock.lock();
+        pendingRequests++;
+        pendingBytes += size;
+        arrivedRequests++;
+        arrivedBytes += size;
+        if (isReady()) {
+            batchReady.signal();
+        }
+        lock.unlock();
+    }
+
+    private boolean isReady() {
+        return pendingRequests >= targetBatchSize
+                || (maxBatchBytes > 0 && pendingBytes >= targetBatchBytes);
+    }
+
+    /**
+     * Blocks until a batch can be closed, i.e., until there are enough pending
+     * requests or bytes to fill it, or until the current maximum wait expires
+     */
+    public void awaitBatch() {
+        lock.lock();
+        long start = System.nanoTime();
+        long remaining = targetWait;
+        while (!isReady() && remaining > 0) {
+            try {
+                remaining = batchReady.awaitNanos(remaining);
+            } catch (InterruptedException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+        lastBatchWait = System.nanoTime() - start;
+        lock.unlock();
+    }
+
+    /**
+     * Invoked by the TOM layer when a batch is proposed
+     *
+     * @param eid ID of the consensus in which the batch was proposed
+     * @param requests Number of requests in the batch
+     * @param bytes Number of bytes of the requests in the batch
+     */
+    public void batchProposed(int eid, int requests, int bytes) {
+        lock.lock();
+        long now = System.nanoTime();
+
+        lastBatchSize = requests;
+        lastBatchBytes = bytes;
+
+        if (requests < maxBatchSize && (maxBatchBytes == 0 || bytes < maxBatchBytes)) {
+            // the batch was not full, so there are no requests left to propose
+            pendingRequests = 0;
+            pendingBytes = 0;
+        } else {
+            pendingRequests = Math.max(0, pendingRequests - requests);
+            pendingBytes = Math.max(0, pendingBytes - bytes);
+        }
+
+        long elapsed = now - lastSampleTime;
+        if (elapsed > 0) {
+            double rate = (arrivedRequests - lastSampleRequests) / (double) elapsed;
+            arrivalRate = (arrivalRate == 0) ? rate : (1 - EWMA_WEIGHT) * arrivalRate + EWMA_WEIGHT * rate;
+            lastSampleRequests = arrivedRequests;
+            lastSampleTime = now;
+        }
+
+        proposeTimes.put(eid, now);
+
+        Logger.println("(AdaptiveBatcher.batchProposed) " + this);
+        lock.unlock();
+    }
+
+    /**
+     * Invoked by the TOM layer when a consensus is decided. If the batch was
+     * proposed by this replica, the consensus latency is used to update the
+     * batching targets.
+     *
+     * @param eid ID of the decided consensus
+     */
+    public void consensusDecided(int eid) {
+        lock.lock();
+        Long start = proposeTimes.remove(eid);
+        if (start != null) {
+            long latency = System.nanoTime() - start;
+            consensusLatency = (consensusLatency == 0) ? latency : (1 - EWMA_WEIGHT) * consensusLatency + EWMA_WEIGHT * latency;
+            if (adaptive) {
+                adapt();
+            }
+        }
+        lock.unlock();
+    }
+
+    // targets a batch with the requests expected to arrive while a consensus
+    // runs, waiting at most half of that time for the batch to fill up
+    private void adapt() {
+        double instanceTime = consensusLatency / pipelineDepth;
+
+        targetBatchSize = (int) Math.max(1, Math.min(maxBatchSize, arrivalRate * instanceTime));
+
+        if (maxBatchBytes > 0) {
+            long requestSize = (arrivedRequests > 0) ? arrivedBytes / arrivedRequests : 1;
+            targetBatchBytes = (int) Math.max(1, Math.min(maxBatchBytes, targetBatchSize * requestSize));
+        }
+
+        targetWait = Math.min(maxWait, (long) (instanceTime / 2));
+    }
+
+    /**
+     * Removes the proposals that will no longer be decided and resets the
+     * estimate of pending requests after a leader change. Followers count the
+     * requests they receive but never propose them, so the estimate they hold
+     * when they become leaders is meaningless.
+     */
+    public void clearProposals() {
+        lock.lock();
+        proposeTimes.clear();
+        pendingRequests = 0;
+        pendingBytes = 0;
+        lock.unlock();
+    }
+
+    public int getTargetBatchSize() {
+        return targetBatchSize;
+    }
+
+    public int getTargetBatchBytes() {
+        return targetBatchBytes;
+    }
+
+    /**
+     * @return the current maximum time (in microseconds) the leader waits for a batch to fill up
+     */
+    public long getTargetWait() {
+        return TimeUnit.NANOSECONDS.toMicros(targetWait);
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public int getLastBatchBytes() {
+        return lastBatchBytes;
+    }
+
+    /**
+     * @return how long (in microseconds) the leader waited for the last batch
+     */
+    public long getLastBatchWait() {
+        return TimeUnit.NANOSECONDS.toMicros(lastBatchWait);
+    }
+
+    /**
+     * @return the average consensus latency (in microseconds) observed by this replica as leader
+     */
+    public long getConsensusLatency() {
+        return TimeUnit.NANOSECONDS.toMicros((long) consensusLatency);
+    }
+
+    @Override
+    public String toString() {
+        return "target size=" + targetBatchSize + ", target bytes=" + targetBatchBytes
+                + ", target wait=" + getTargetWait() + "us, last size=" + lastBatchSize
+                + ", last bytes=" + lastBatchBytes + ", last wait=" + getLastBatchWait()
+                + "us, consensus latency=" + getConsensusLatency() + "us";
+    }
+}
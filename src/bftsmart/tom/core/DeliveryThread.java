@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import java.util.ArrayList;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import java.util.concurrent.locks.Condition;
@@ -46,6 +47,9 @@ public final class DeliveryThread extends Thread {
     private ServerViewController controller;
     private Lock decidedLock = new ReentrantLock();
     private Condition notEmptyQueue = decidedLock.newCondition();
+    // consensus decided before their predecessors (only happens when pipelining)
+    private TreeMap<Integer, Consensus> outOfOrder = new TreeMap<Integer, Consensus>();
+    private boolean pipelined;
 
     /**
      * Creates a new instance of DeliveryThread
@@ -62,6 +66,7 @@ public final class DeliveryThread extends Thread {
         //******* EDUARDO BEGIN **************//
         this.controller = controller;
         //******* EDUARDO END **************//
+        this.pipelined = controller.getStaticConf().getPipelineDepth() > 1;
     }
 
     
@@ -74,6 +79,35 @@ public final class DeliveryThread extends Thread {
      * @param cons Consensus established as being decided
      */
     public void delivery(Consensus cons) {
+        decidedLock.lock();
+        try {
+            if (pipelined && cons.getId() > tomLayer.getLastExec() + 1) {
+                // decisions must be delivered in consensus id order, so this
+                // one waits until all the previous consensus are decided
+                Logger.println("(DeliveryThread.delivery) Consensus " + cons.getId() + " decided out of order, holding it");
+                outOfOrder.put(cons.getId(), cons);
+                return;
+            }
+            deliveryInOrder(cons);
+            releaseOutOfOrder();
+        } finally {
+            decidedLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the consensus that were held by delivery() to the decided queue,
+     * as long as they follow the last executed consensus. Must be invoked
+     * with the decidedLock held.
+     */
+    private void releaseOutOfOrder() {
+        Consensus next;
+        while (!outOfOrder.isEmpty() && (next = outOfOrder.remove(tomLayer.getLastExec() + 1)) != null) {
+            deliveryInOrder(next);
+        }
+    }
+
+    private void deliveryInOrder(Consensus cons) {
         if (!containsGoodReconfig(cons)) {
 
             Logger.println("(DeliveryThread.delivery) Consensus ID " + cons.getId() + " does not contain good reconfiguration");
@@ -83,7 +117,6 @@ public final class DeliveryThread extends Thread {
             tomLayer.setInExec(-1);
         } //else if (tomLayer.controller.getStaticConf().getProcessId() == 0) System.exit(0);
         try {
-        	decidedLock.lock();
             decided.put(cons);
             
 			// clean the ordered messages from the pending buffer
@@ -91,7 +124,6 @@ public final class DeliveryThread extends Thread {
 			tomLayer.clientsManager.requestsOrdered(requests);
             
             notEmptyQueue.signalAll();
-            decidedLock.unlock();
             Logger.println("(DeliveryThread.delivery) Consensus " + cons.getId() + " finished. Decided size=" + decided.size());
         } catch (Exception e) {
             e.printStackTrace(System.out);
@@ -152,6 +184,9 @@ public final class DeliveryThread extends Thread {
 
         System.out.print("Current decided size: " + decided.size());
         decided.clear();
+        decidedLock.lock();
+        outOfOrder.clear();
+        decidedLock.unlock();
 
         System.out.println("(DeliveryThread.update) All finished up to " + lastEid);
     }
@@ -211,6 +246,12 @@ public final class DeliveryThread extends Thread {
   							// define that end of this execution
   							tomLayer.setInExec(-1);
   							// ******* EDUARDO END **************//
+
+  							// consensus decided after the reconfiguration can now be delivered
+  							decidedLock.lock();
+  							releaseOutOfOrder();
+  							decidedLock.unlock();
+  							tomLayer.acceptor.acceptPending(tomLayer.getLastExec() + 1);
   						}
   					}
 
@@ -247,7 +288,7 @@ public final class DeliveryThread extends Thread {
 
     		// obtain an array of requests from the taken consensus
     		BatchReader batchReader = new BatchReader(cons.getDecision(),
-    				controller.getStaticConf().getUseSignatures() == 1);
+    				controller.getStaticConf().getUseSignatures() == 1, tomLayer.getProposalResolver());
     		requests = batchReader.deserialiseRequests(controller);
     	} else {
     		Logger.println("(DeliveryThread.run) using cached requests from the propose.");
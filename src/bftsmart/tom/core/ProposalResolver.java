@@ -0,0 +1,313 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import bftsmart.clientsmanagement.ClientsManager;
+import bftsmart.consensus.Round;
+import bftsmart.consensus.roles.Acceptor;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.BatchBuilder;
+import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Resolves the requests referenced by proposals carrying only request
+ * digests (see BatchBuilder.makeDigestBatch). Requests are looked up in the
+ * clients manager and in a cache of requests fetched from other replicas.
+ *
+ * When some requests of a proposal are missing, they are fetched from the
+ * leader, and after system.totalordermulticast.fetchtimeout milliseconds from
+ * all the other replicas. The proposal is handed back to the acceptor once
+ * all its requests are available.
+ */
+public class ProposalResolver implements BatchReader.RequestStore {
+
+    private TOMLayer tomLayer;
+    private Acceptor acceptor;
+    private ClientsManager clientsManager;
+    private ServerViewController controller;
+    private BatchBuilder bb = new BatchBuilder();
+
+    private boolean useSignatures;
+    private int fetchTimeout;
+
+    // requests fetched from other replicas, indexed by their digests
+    private Map<ByteBuffer, TOMMessage> fetched;
+
+    // proposals waiting for requests, indexed by execution
+    private Map<Integer, PendingProposal> pending = new HashMap<Integer, PendingProposal>();
+
+    private Timer timer = new Timer("Proposal resolver timer", true);
+
+    public ProposalResolver(TOMLayer tomLayer, Acceptor acceptor,
+            ClientsManager clientsManager, ServerViewController controller) {
+        this.tomLayer = tomLayer;
+        this.acceptor = acceptor;
+        this.clientsManager = clientsManager;
+        this.controller = controller;
+        this.useSignatures = controller.getStaticConf().getUseSignatures() == 1;
+        this.fetchTimeout = controller.getStaticConf().getFetchTimeout();
+
+        final int cacheSize = Math.max(controller.getStaticConf().getMaxBatchSize(), 1)
+                * Math.max(controller.getStaticConf().getPipelineDepth(), 1) * 4;
+        this.fetched = new LinkedHashMap<ByteBuffer, TOMMessage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, TOMMessage> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public TOMMessage getRequest(int sender, int sequence, byte[] digest) {
+        TOMMessage request = clientsManager.getRequest(sender, sequence);
+        if (request != null && Arrays.equals(TOMUtil.getRequestDigest(request), digest)) {
+            return request;
+        }
+
+        synchronized (fetched) {
+            request = fetched.get(ByteBuffer.wrap(digest));
+        }
+        if (request != null && request.getSender() == sender && request.getSequence() == sequence) {
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Verifies if all the requests of a proposed value are available. If not,
+     * they are fetched and the acceptor is notified (see
+     * Acceptor.resolvedPropose) when they arrive.
+     *
+     * @param eid execution of the proposal
+     * @param roundNumber round of the proposal
+     * @param value the proposed value
+     * @param leader the replica that proposed the value
+     * @return true if the value can be processed right away
+     */
+    public boolean isResolvable(int eid, int roundNumber, byte[] value, int leader) {
+        return isResolvable(new PendingProposal(eid, roundNumber, value, null), leader);
+    }
+
+    /**
+     * Fetches the missing requests of a value decided (or bound) during the
+     * leader change, setting the deserialized value of the round once they
+     * arrive.
+     *
+     * @param round the round where the value was decided
+     * @param value the decided value
+     * @param leader the current leader
+     */
+    public void resolveDecided(Round round, byte[] value, int leader) {
+        isResolvable(new PendingProposal(round.getExecution().getId(),
+                round.getNumber(), value, round), leader);
+    }
+
+    private boolean isResolvable(PendingProposal proposal, int leader) {
+        if (!BatchReader.isDigestBatch(proposal.value)) {
+            return true;
+        }
+
+        List<byte[]> missing = new BatchReader(proposal.value, useSignatures, this).findMissingEntries();
+        if (missing.isEmpty()) {
+            return true;
+        }
+
+        Logger.println("(ProposalResolver.isResolvable) " + missing.size()
+                + " requests missing for execution " + proposal.eid + ", fetching them from " + leader);
+
+        synchronized (pending) {
+            prune();
+            PendingProposal previous = pending.put(proposal.eid, proposal);
+            if (previous != null) {
+                previous.cancel();
+            }
+            timer.schedule(proposal, fetchTimeout, fetchTimeout);
+        }
+
+        int me = controller.getStaticConf().getProcessId();
+        if (leader != me) {
+            tomLayer.getCommunication().send(new int[]{leader},
+                    new RequestFetchMessage(me, TOMUtil.FETCH_REQUEST, proposal.eid, toPayload(missing)));
+        }
+        return false;
+    }
+
+    /**
+     * Called by the message handler when a RequestFetchMessage is received
+     *
+     * @param msg the message
+     */
+    public void deliver(RequestFetchMessage msg) {
+        if (msg.getType() == TOMUtil.FETCH_REQUEST) {
+            fetchRequested(msg);
+        } else if (msg.getType() == TOMUtil.FETCH_REPLY) {
+            fetchReplied(msg);
+        }
+    }
+
+    private void fetchRequested(RequestFetchMessage msg) {
+        ByteBuffer payload = ByteBuffer.wrap(msg.getPayload());
+        List<TOMMessage> found = new LinkedList<TOMMessage>();
+
+        while (payload.remaining() >= BatchReader.DIGEST_ENTRY_SIZE) {
+            int sender = payload.getInt();
+            int sequence = payload.getInt();
+            byte[] digest = new byte[TOMUtil.REQUEST_DIGEST_SIZE];
+            payload.get(digest);
+
+            TOMMessage request = getRequest(sender, sequence, digest);
+            if (request != null) {
+                found.add(request);
+            }
+        }
+
+        Logger.println("(ProposalResolver.fetchRequested) replica " + msg.getSender() + " asked for requests of execution "
+                + msg.getEid() + ", " + found.size() + " found");
+
+        if (!found.isEmpty()) {
+            tomLayer.getCommunication().send(new int[]{msg.getSender()},
+                    new RequestFetchMessage(controller.getStaticConf().getProcessId(), TOMUtil.FETCH_REPLY,
+                    msg.getEid(), bb.makeBatch(found, 0, 0, controller)));
+        }
+    }
+
+    private void fetchReplied(RequestFetchMessage msg) {
+        TOMMessage[] requests;
+        try {
+            requests = new BatchReader(msg.getPayload(), useSignatures).deserialiseRequests(controller);
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+            return;
+        }
+
+        synchronized (fetched) {
+            for (TOMMessage request : requests) {
+                if (request != null) {
+                    fetched.put(ByteBuffer.wrap(TOMUtil.getRequestDigest(request)), request);
+                }
+            }
+        }
+
+        List<PendingProposal> resolved = new LinkedList<PendingProposal>();
+        synchronized (pending) {
+            prune();
+            Iterator<PendingProposal> it = pending.values().iterator();
+            while (it.hasNext()) {
+                PendingProposal proposal = it.next();
+                if (new BatchReader(proposal.value, useSignatures, this).findMissingEntries().isEmpty()) {
+                    proposal.cancel();
+                    it.remove();
+                    resolved.add(proposal);
+                }
+            }
+        }
+
+        for (PendingProposal proposal : resolved) {
+            resolved(proposal);
+        }
+    }
+
+    private void resolved(PendingProposal proposal) {
+        Logger.println("(ProposalResolver.resolved) requests of execution " + proposal.eid + " are available");
+
+        if (proposal.decided != null) {
+            proposal.decided.deserializedPropValue = tomLayer.checkProposedValue(proposal.value, false);
+        } else {
+            acceptor.resolvedPropose(proposal.eid, proposal.roundNumber, proposal.value);
+        }
+    }
+
+    // discards the proposals of executions already finished
+    private void prune() {
+        int lastExec = tomLayer.getLastExec();
+        Iterator<PendingProposal> it = pending.values().iterator();
+        while (it.hasNext()) {
+            PendingProposal proposal = it.next();
+            if (proposal.eid <= lastExec) {
+                proposal.cancel();
+                it.remove();
+            }
+        }
+    }
+
+    private static byte[] toPayload(List<byte[]> entries) {
+        ByteBuffer payload = ByteBuffer.allocate(entries.size() * BatchReader.DIGEST_ENTRY_SIZE);
+        for (byte[] entry : entries) {
+            payload.put(entry);
+        }
+        return payload.array();
+    }
+
+    /**
+     * A proposal waiting for requests. While pending, its missing requests
+     * are periodically asked to all the other replicas.
+     */
+    private class PendingProposal extends TimerTask {
+
+        private int eid;
+        private int roundNumber;
+        private byte[] value;
+        private Round decided;
+
+        PendingProposal(int eid, int roundNumber, byte[] value, Round decided) {
+            this.eid = eid;
+            this.roundNumber = roundNumber;
+            this.value = value;
+            this.decided = decided;
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> missing = new BatchReader(value, useSignatures, ProposalResolver.this).findMissingEntries();
+
+            synchronized (pending) {
+                if (pending.get(eid) != this || eid <= tomLayer.getLastExec()) {
+                    cancel();
+                    return;
+                }
+                if (missing.isEmpty()) {
+                    cancel();
+                    pending.remove(eid);
+                }
+            }
+
+            if (missing.isEmpty()) {
+                resolved(this);
+            } else {
+                Logger.println("(ProposalResolver.run) fetching " + missing.size()
+                        + " requests of execution " + eid + " from all replicas");
+                tomLayer.getCommunication().send(controller.getCurrentViewOtherAcceptors(),
+                        new RequestFetchMessage(controller.getStaticConf().getProcessId(),
+                        TOMUtil.FETCH_REQUEST, eid, toPayload(missing)));
+            }
+        }
+    }
+}
@@ -35,6 +35,7 @@ import org.apache.commons.codec.binary.Base64;
 
 import bftsmart.clientsmanagement.ClientsManager;
 import bftsmart.clientsmanagement.RequestList;
+import bftsmart.clientsmanagement.SignatureVerifier;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.communication.client.RequestReceiver;
 import bftsmart.consensus.Consensus;
@@ -85,15 +86,25 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	public RequestsTimer requestsTimer;
 	/** Store requests received but still not ordered */
 	public ClientsManager clientsManager;
+	/** Verifies the signatures of client requests (null if signatures are not used) */
+	private SignatureVerifier verifier = null;
+	/** Resolves the requests of proposals carrying only request digests */
+	private ProposalResolver resolver;
 	/** The id of the consensus being executed (or -1 if there is none) */
 	private int inExecution = -1;
-	private int lastExecuted = -1;
+	private volatile int lastExecuted = -1;
+	/** The highest consensus id started so far (ahead of inExecution when pipelining) */
+	private int lastInExecution = -1;
+	/** How many consensus instances can be in execution at the same time */
+	private int pipelineDepth;
 
 	private MessageDigest md;
 	private Signature engine;
 
 	//the next two are used to generate non-deterministic data in a deterministic way (by the leader)
 	private BatchBuilder bb = new BatchBuilder();
+	// decides when the pending requests should be proposed
+	private AdaptiveBatcher batcher;
 
 	/* The locks and conditions used to wait upon creating a propose */
 	private ReentrantLock leaderLock = new ReentrantLock();
@@ -134,6 +145,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		this.acceptor = a;
 		this.communication = cs;
 		this.controller = controller;
+		this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
 
 		//do not create a timer manager if the timeout is 0
 		if (this.controller.getStaticConf().getRequestTimeout() == 0){
@@ -142,6 +154,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		else this.requestsTimer = new RequestsTimer(this, communication, this.controller); // Create requests timers manager (a thread)
 
 		this.clientsManager = new ClientsManager(this.controller, requestsTimer); // Create clients manager
+		this.batcher = new AdaptiveBatcher(this.controller);
+		this.resolver = new ProposalResolver(this, a, clientsManager, this.controller);
+		if (this.controller.getStaticConf().getUseSignatures() == 1) {
+			this.verifier = new SignatureVerifier(this.controller.getStaticConf());
+		}
 
 		try {
 			this.md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
@@ -211,6 +228,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		return this.communication;
 	}
 
+	/**
+	 * Retrieve the resolver of the requests of batches of digests
+	 * @return the proposal resolver
+	 */
+	public ProposalResolver getProposalResolver() {
+		return this.resolver;
+	}
+
 	public void imAmTheLeader() {
 		leaderLock.lock();
 		iAmLeader.signal();
@@ -241,13 +266,55 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	public void setInExec(int inEx) {
 		proposeLock.lock();
 		Logger.println("(TOMLayer.setInExec) modifying inExec from " + this.inExecution + " to " + inEx);
-		this.inExecution = inEx;
-		if (inEx == -1  && !isRetrievingState()) {
+		if (inEx == -1) {
+			// when pipelining, the next instance already started (if any) becomes the one in execution
+			this.inExecution = (lastInExecution > lastExecuted) ? lastExecuted + 1 : -1;
+		} else {
+			if (pipelineDepth == 1 || this.inExecution == -1 || inEx == lastExecuted + 1) {
+				this.inExecution = inEx;
+			}
+			if (inEx > lastInExecution) {
+				lastInExecution = inEx;
+			}
+		}
+		if (canStartExecution() && !isRetrievingState()) {
 			canPropose.signalAll();
 		}
 		proposeLock.unlock();
 	}
 
+	/**
+	 * Informs if the leader can start a new consensus instance, i.e., if
+	 * there is no instance in execution or the pipeline still has free slots
+	 * 
+	 * @return True if a new instance can be started, false otherwise
+	 */
+	private boolean canStartExecution() {
+		return inExecution == -1 || lastInExecution < lastExecuted + pipelineDepth;
+	}
+
+	/**
+	 * Informs if a consensus id falls within the instances that can be
+	 * executed at the moment, i.e., between the last executed consensus
+	 * and the pipeline depth
+	 *
+	 * @param eid ID of the consensus
+	 * @return True if the consensus can be executed now, false otherwise
+	 */
+	public boolean isInPipeline(int eid) {
+		return eid > lastExecuted && eid <= lastExecuted + pipelineDepth;
+	}
+
+	/**
+	 * Gets the ID of the highest consensus started so far. When pipelining,
+	 * this may be ahead of the consensus returned by getInExec()
+	 *
+	 * @return ID of the highest consensus started so far
+	 */
+	public int getLastInExec() {
+		return this.lastInExecution;
+	}
+
 	/**
 	 * This method blocks until the PaW algorithm is finished
 	 */
@@ -280,15 +347,34 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 				msg.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST);
 		if (readOnly) {
 			dt.deliverUnordered(msg, lcManager.getLastReg());
+		} else if (verifier != null && msg.signed) {
+			// the signature is verified by another thread, which then adds the request
+			verifier.verify(msg, signatureVerified);
 		} else {
-			if (clientsManager.requestReceived(msg, true, communication)) {
-				messagesLock.lock();
-				haveMessages.signal();
-				messagesLock.unlock();
+			orderedRequestReceived(msg);
+		}
+	}
+
+	private SignatureVerifier.Callback signatureVerified = new SignatureVerifier.Callback() {
+		@Override
+		public void verified(TOMMessage request, boolean valid) {
+			if (valid) {
+				orderedRequestReceived(request);
 			} else {
-				Logger.println("(TOMLayer.requestReceive) the received TOMMessage " + msg + " was discarded.");
+				Logger.println("(TOMLayer.requestReceive) the received TOMMessage " + request + " has an invalid signature.");
 			}
 		}
+	};
+
+	private void orderedRequestReceived(TOMMessage msg) {
+		if (clientsManager.requestReceived(msg, true, communication)) {
+			batcher.requestArrived(msg.getSerializedSize());
+			messagesLock.lock();
+			haveMessages.signal();
+			messagesLock.unlock();
+		} else {
+			Logger.println("(TOMLayer.requestReceive) the received TOMMessage " + msg + " was discarded.");
+		}
 	}
 
 	/**
@@ -297,7 +383,9 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 */
 	private byte[] createPropose(Consensus cons) {
 		// Retrieve a set of pending requests from the clients manager
-		RequestList pendingRequests = clientsManager.getPendingRequests();
+		RequestList pendingRequests = clientsManager.getPendingRequests(
+				this.controller.getStaticConf().getMaxBatchSize(),
+				this.controller.getStaticConf().getMaxBatchBytes());
 
 		int numberOfMessages = pendingRequests.size(); // number of messages retrieved
 		int numberOfNonces = this.controller.getStaticConf().getNumberOfNonces(); // ammount of nonces to be generated
@@ -309,8 +397,19 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		}
 		cons.batchSize = numberOfMessages;
 
+		if (cons.getId() > -1) {
+			int numberOfBytes = 0;
+			for (TOMMessage request : pendingRequests) {
+				numberOfBytes += request.getSerializedSize();
+			}
+			batcher.batchProposed(cons.getId(), numberOfMessages, numberOfBytes);
+		}
+
 		Logger.println("(TOMLayer.run) creating a PROPOSE with " + numberOfMessages + " msgs");
 
+		if (this.controller.getStaticConf().isDigestProposals() && cons.getId() > -1) {
+			return bb.makeDigestBatch(pendingRequests, numberOfNonces, System.currentTimeMillis());
+		}
 		return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(),controller);
 	}
 	/**
@@ -337,7 +436,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			// blocks until the current consensus finishes
 			proposeLock.lock();
 
-			if (getInExec() != -1) { //there is some consensus running
+			if (!canStartExecution()) { //the pipeline of running consensus is full
 				Logger.println("(TOMLayer.run) Waiting for consensus " + getInExec() + " termination.");
 				canPropose.awaitUninterruptibly();
 			}
@@ -353,15 +452,18 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			messagesLock.unlock();
 			Logger.println("(TOMLayer.run) There are messages to be ordered.");
 
+			// blocks until the batch is full or its waiting time expires
+			batcher.awaitBatch();
+
 
 			Logger.println("(TOMLayer.run) I can try to propose.");
 
 			if ((lm.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
 					(clientsManager.havePendingRequests()) && //there are messages to be ordered
-					(getInExec() == -1)) { //there is no consensus in execution
+					canStartExecution()) { //there is room for another consensus in execution
 
 				// Sets the current execution
-				int execId = getLastExec() + 1;
+				int execId = Math.max(getLastExec(), getLastInExec()) + 1;
 				setInExec(execId);
 
 				Consensus cons = execManager.getExecution(execId).getLearner();
@@ -383,7 +485,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 					cons.decided(round);
 
 					//System.out.println("ESTOU AQUI!");
-					dt.delivery(cons);
+					decided(cons);
 					continue;
 
 				}
@@ -398,12 +500,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 * @param cons The decided consensus
 	 */
 	public void decided(Consensus cons) {
+		batcher.consensusDecided(cons.getId());
 		this.dt.delivery(cons); // Delivers the consensus to the delivery thread
 	}
 
 	/**
 	 * Verify if the value being proposed for a round is valid. It verifies the
-	 * client signature of all batch requests.
+	 * client signature of all batch requests (in parallel, skipping the ones
+	 * already verified when received from the clients).
 	 *
 	 * TODO: verify timestamps and nonces
 	 *
@@ -414,7 +518,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		Logger.println("(TOMLayer.isProposedValueValid) starting");
 
 		BatchReader batchReader = new BatchReader(proposedValue, 
-				this.controller.getStaticConf().getUseSignatures() == 1);
+				this.controller.getStaticConf().getUseSignatures() == 1, resolver);
 
 		TOMMessage[] requests = null;
 
@@ -423,12 +527,24 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			//TODO: verify Timestamps and Nonces
 			requests = batchReader.deserialiseRequests(this.controller);
 
+			if (requests == null) {
+				Logger.println("(TOMLayer.isProposedValueValid) finished, " + batchReader.getMissingEntries().size() + " requests missing");
+				return null;
+			}
+
+			if (verifier != null) {
+				if (!verifier.verifyBatch(requests)) {
+					Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
+					System.out.println("invalid signature in batch");
+					return null;
+				}
+			}
+
 			if (addToClientManager) {
 				for (int i = 0; i < requests.length; i++) {
 					//notifies the client manager that this request was received and get
 					//the result of its validation
 					if (!clientsManager.requestReceived(requests[i], false)) {
-						clientsManager.getClientsLock().unlock();
 						Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
 						System.out.println("failure in deserialize batch");
 						return null;
@@ -438,7 +554,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 		} catch (Exception e) {
 			e.printStackTrace();
-			clientsManager.getClientsLock().unlock();
 			Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
 			return null;
 		}
@@ -447,6 +562,23 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		return requests;
 	}
 
+	/**
+	 * Verifies a value decided (or bound) during the leader change. If it is a
+	 * batch of digests with missing requests, they are fetched and the round
+	 * is updated when they arrive.
+	 *
+	 * @param round the round of the value
+	 * @param value the value
+	 * @return Valid messages contained in the value, or null
+	 */
+	private TOMMessage[] checkDecidedValue(Round round, byte[] value) {
+		TOMMessage[] requests = checkProposedValue(value, false);
+		if (requests == null && BatchReader.isDigestBatch(value)) {
+			resolver.resolveDecided(round, value, lm.getCurrentLeader());
+		}
+		return requests;
+	}
+
 	public void forwardRequestToLeader(TOMMessage request) {
 		int leaderId = lm.getCurrentLeader();
 		if (this.controller.isCurrentViewMember(leaderId)) {
@@ -469,6 +601,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 		proposeLock.lock();
 		this.inExecution = -1;
+		this.lastInExecution = -1;
 		//ot.addUpdate();
 		canPropose.signalAll();
 		proposeLock.unlock();
@@ -476,9 +609,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 	public void processOutOfContext() {
 		for (int nextExecution = getLastExec() + 1;
-				execManager.receivedOutOfContextPropose(nextExecution);
-				nextExecution = getLastExec() + 1) {
-			execManager.processOutOfContextPropose(execManager.getExecution(nextExecution));
+				nextExecution <= getLastExec() + pipelineDepth;
+				nextExecution++) {
+			if (execManager.receivedOutOfContextPropose(nextExecution)) {
+				execManager.processOutOfContextPropose(execManager.getExecution(nextExecution));
+			}
 		}
 	}
 
@@ -486,6 +621,15 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		return stateManager;
 	}
 
+	/**
+	 * Retrieve the object that decides when batches are proposed, which
+	 * also holds the batching metrics of this replica
+	 * @return The batcher used by this replica
+	 */
+	public AdaptiveBatcher getBatcher() {
+		return batcher;
+	}
+
 
 	/*** THIS IS JOAO'S CODE, RELATED TO LEADER CHANGE */
         
@@ -918,6 +1062,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			int last = getLastExec(); // last eid decided
 
 			lm.setNewLeader(leader);
+			batcher.clearProposals(); // the batching estimates of the previous regency are stale
 
 			// If I am not the leader, I have to send a STOPDATA message to the elected leader
 			if (leader != this.controller.getStaticConf().getProcessId()) {
@@ -1373,7 +1518,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		r.propValueHash = hash;
 		r.propValue = tempLastHighestEid.getEidDecision();
 
-		r.deserializedPropValue = checkProposedValue(tempLastHighestEid.getEidDecision(), false);
+		r.deserializedPropValue = checkDecidedValue(r, tempLastHighestEid.getEidDecision());
 
 		finalise(tempRegency, tempLastHighestEid, tempCurrentEid,
 				tempSignedCollects, tempPropose, tempBatchSize, tempIAmLeader);
@@ -1431,7 +1576,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			r.propValueHash = hash;
 			r.propValue = lastHighestEid.getEidDecision();
 
-			r.deserializedPropValue = checkProposedValue(lastHighestEid.getEidDecision(), false);
+			r.deserializedPropValue = checkDecidedValue(r, lastHighestEid.getEidDecision());
 			exec.decided(r, hash); // pass the decision to the delivery thread
 		}
 		byte[] tmpval = null;
@@ -1473,7 +1618,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			r.propValueHash = hash;
 			r.propValue = tmpval;
 
-			r.deserializedPropValue = checkProposedValue(tmpval, false);
+			r.deserializedPropValue = checkDecidedValue(r, tmpval);
 
 			if(exec.getLearner().firstMessageProposed == null) {
 				if (r.deserializedPropValue != null &&
@@ -1484,6 +1629,37 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			if (this.controller.getStaticConf().isBFT()) r.setWrite(me, hash);
                         else r.setAccept(me, hash);
 
+			// instances that were started after currentEid (when pipelining) belong to the
+			// previous regency and are abandoned; their requests are still pending and
+			// are made available to be proposed again. None of them was decided by a
+			// correct replica, since the ACCEPT of an instance is only sent once the
+			// previous one is ordered (see Acceptor.canAccept)
+			List<TOMMessage[]> abandoned = new LinkedList<TOMMessage[]>();
+			proposeLock.lock();
+			for (int eid = currentEid + 1; eid <= lastInExecution; eid++) {
+				Execution execution = execManager.removeExecution(eid);
+				for (int ts = (execution != null ? execution.getEts() : -1); ts >= 0; ts--) {
+					Round round = execution.getRound(ts, false, controller);
+					if (round != null && round.deserializedPropValue != null) {
+						abandoned.add(round.deserializedPropValue);
+						break;
+					}
+				}
+			}
+			lastInExecution = currentEid;
+			proposeLock.unlock();
+
+			boolean requeued = false;
+			for (TOMMessage[] requests : abandoned) {
+				requeued |= clientsManager.requestsNotDecided(requests);
+			}
+			if (requeued) {
+				messagesLock.lock();
+				haveMessages.signal();
+				messagesLock.unlock();
+			}
+			batcher.clearProposals();
+
 			// resume normal operation
 			execManager.restart();
 			//leaderChanged = true;
@@ -0,0 +1,101 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core.messages;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import bftsmart.communication.SystemMessage;
+
+/**
+ * Message used to fetch the requests referenced by a proposal carrying only
+ * request digests. A FETCH_REQUEST carries the missing batch entries (sender,
+ * sequence and digest) and a FETCH_REPLY carries a regular batch with the
+ * requests found by the replica.
+ */
+public class RequestFetchMessage extends SystemMessage {
+
+    private static final long serialVersionUID = -1618736583203694157L;
+
+    private int type;
+    private int eid;
+    private byte[] payload;
+
+    /**
+     * Empty constructor
+     */
+    public RequestFetchMessage() {
+    }
+
+    /**
+     * Constructor
+     * @param from replica that creates this message
+     * @param type type of the message (FETCH_REQUEST or FETCH_REPLY)
+     * @param eid execution of the proposal being resolved
+     * @param payload batch entries or batch of requests
+     */
+    public RequestFetchMessage(int from, int type, int eid, byte[] payload) {
+        super(from);
+        this.type = type;
+        this.eid = eid;
+        this.payload = payload == null ? new byte[0] : payload;
+    }
+
+    /**
+     * Get type of message
+     * @return type of message
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Get the execution of the proposal being resolved
+     * @return execution id
+     */
+    public int getEid() {
+        return eid;
+    }
+
+    /**
+     * Get data of the message
+     * @return data of the message
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+
+        out.writeInt(type);
+        out.writeInt(eid);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+
+        type = in.readInt();
+        eid = in.readInt();
+        payload = new byte[in.readInt()];
+        in.readFully(payload);
+    }
+}
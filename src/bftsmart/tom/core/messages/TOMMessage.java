@@ -23,6 +23,7 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import bftsmart.communication.SystemMessage;
 import bftsmart.tom.util.DebugInfo;
@@ -44,6 +45,10 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	private int operationId; // Sequence number defined by the client
 
 	private byte[] content = null; // Content of the message
+	private transient ByteBuffer contentView = null; // Content of the message within a batch (see wrap)
+
+	// size of the header written by wExternal: seven fields and the content length
+	private static final int HEADER_SIZE = 32;
 
 	//the fields bellow are not serialized!!!
 	private transient int id; // ID for this message. It should be unique
@@ -53,6 +58,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 
 	public transient int destination = -1; // message destination
 	public transient boolean signed = false; // is this message signed?
+	public transient boolean signatureVerified = false; // was its signature already verified?
 
 	public transient long receptionTime;//the reception time of this message
 	public transient boolean timeout = false;//this message was timed out?
@@ -63,6 +69,8 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	public transient byte[] serializedMessage = null;
 	public transient byte[] serializedMessageSignature = null;
 	public transient byte[] serializedMessageMAC = null;
+	public transient byte[] requestDigest = null; // digest used in batches of digests (see TOMUtil.getRequestDigest)
+	private transient ByteBuffer serializedView = null; // the bytes of the request within a batch (see wrap)
 
 	//for benchmarking purposes
 	public transient long consensusStartTime = 0; //time the consensus is created
@@ -190,13 +198,68 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	}
 
 	/**
-	 * Retrieves the content of the message
+	 * Retrieves the content of the message. If the message was read from a
+	 * batch (see wrap), the content is copied out of it the first time.
 	 * @return The content of the message
 	 */
 	public byte[] getContent() {
+		if (content == null && contentView != null) {
+			byte[] copy = new byte[contentView.remaining()];
+			contentView.duplicate().get(copy);
+			content = copy;
+		}
 		return content;
 	}
 
+	/**
+	 * Retrieves the content of the message as a read-only buffer, which is a
+	 * view over the batch the message was read from, if any (see wrap)
+	 * @return The content of the message, or null if it has none
+	 */
+	public ByteBuffer getContentBuffer() {
+		if (contentView != null) {
+			return contentView.asReadOnlyBuffer();
+		}
+		return (content == null) ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Retrieves the bytes received from the client. If the message was read
+	 * from a batch (see wrap), they are copied out of it the first time.
+	 * @return The serialized message, or null if it is not available
+	 */
+	public byte[] getSerializedMessage() {
+		if (serializedMessage == null && serializedView != null) {
+			byte[] copy = new byte[serializedView.remaining()];
+			serializedView.duplicate().get(copy);
+			serializedMessage = copy;
+		}
+		return serializedMessage;
+	}
+
+	/**
+	 * Retrieves the bytes received from the client as a read-only buffer,
+	 * without copying them
+	 * @return The serialized message, or null if it is not available
+	 */
+	public ByteBuffer getSerializedBuffer() {
+		if (serializedMessage != null) {
+			return ByteBuffer.wrap(serializedMessage).asReadOnlyBuffer();
+		}
+		return (serializedView == null) ? null : serializedView.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Retrieves the size of the bytes received from the client
+	 * @return The size of the serialized message, 0 if it is not available
+	 */
+	public int getSerializedSize() {
+		if (serializedMessage != null) {
+			return serializedMessage.length;
+		}
+		return (serializedView == null) ? 0 : serializedView.remaining();
+	}
+
 	/**
 	 * Verifies if two TOMMessage are equal. For performance reasons, the method
 	 * only verifies if the send and sequence are equal.
@@ -242,11 +305,12 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		out.writeInt(operationId);
 		out.writeInt(replyServer);
 		
-		if (content == null) {
+		byte[] data = getContent();
+		if (data == null) {
 			out.writeInt(-1);
 		} else {
-			out.writeInt(content.length);
-			out.write(content);
+			out.writeInt(data.length);
+			out.write(data);
 		}
 	}
 
@@ -268,6 +332,47 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		buildId();
 	}
 
+	/**
+	 * Reads a message from its serialized form (see wExternal) without
+	 * copying it. The header is decoded, but the content and the serialized
+	 * message remain views over the given buffer, whose bytes must not be
+	 * changed afterwards, and are only copied if requested as arrays.
+	 *
+	 * @param serialized the serialized message, from its position to its limit
+	 * @return the message
+	 * @throws IOException if the message is truncated
+	 */
+	public static TOMMessage wrap(ByteBuffer serialized) throws IOException {
+		ByteBuffer view = serialized.slice();
+		if (view.remaining() < HEADER_SIZE) {
+			throw new IOException("Truncated request: " + view.remaining() + " bytes");
+		}
+
+		TOMMessage m = new TOMMessage();
+		m.sender = view.getInt(0);
+		m.viewID = view.getInt(4);
+		m.type = TOMMessageType.fromInt(view.getInt(8));
+		m.session = view.getInt(12);
+		m.sequence = view.getInt(16);
+		m.operationId = view.getInt(20);
+		m.replyServer = view.getInt(24);
+
+		int toRead = view.getInt(28);
+		if (toRead != -1) {
+			if (toRead < 0 || toRead > view.remaining() - HEADER_SIZE) {
+				throw new IOException("Truncated request: " + toRead + " bytes of content expected");
+			}
+			view.position(HEADER_SIZE);
+			view.limit(HEADER_SIZE + toRead);
+			m.contentView = view.slice();
+			view.clear();
+		}
+		m.serializedView = view;
+
+		m.buildId();
+		return m;
+	}
+
 	/**
 	 * Used to build an unique id for the message
 	 */
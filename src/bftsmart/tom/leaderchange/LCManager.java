@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.SignedObject;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -28,18 +29,18 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import bftsmart.consensus.executionmanager.TimestampValuePair;
-import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.util.TOMUtil;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 
@@ -76,6 +77,18 @@ public class LCManager {
     private int currentLeader;
     //private Cipher cipher;
     private Mac mac;
+
+    //MACs from proofs already verified, keyed by the authenticated bytes followed by the MAC.
+    //The same ACCEPTs show up in the proofs sent by different replicas
+    private static final int VERIFIED_PROOFS = 1024;
+    private Set<ByteBuffer> verifiedProofs = Collections.newSetFromMap(
+            new LinkedHashMap<ByteBuffer, Boolean>() {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                    return size() > VERIFIED_PROOFS;
+                }
+            });
     
     /**
      * Constructor
@@ -820,37 +833,48 @@ public class LCManager {
             
         for (PaxosMessage paxosMsg : PaxosMessages) {
             
-            PaxosMessage pm = new PaxosMessage(MessageFactory.ACCEPT,paxosMsg.getNumber(),
-                    paxosMsg.getRound(), paxosMsg.getSender(), paxosMsg.getValue());
-
-            ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-            try {
-                new ObjectOutputStream(bOut).writeObject(pm);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-
-            byte[] data = bOut.toByteArray();
-
-            if (paxosMsg.getProof() instanceof HashMap) { // Certificate is made of MAC vector
+            if (paxosMsg.getProof() instanceof byte[][]) { // Certificate is made of MAC vector
                 
                 bftsmart.tom.util.Logger.println("(LCManager.hasValidProof) Proof made of MAC vector");
             
-                HashMap<Integer, byte[]> macVector = (HashMap<Integer, byte[]>) paxosMsg.getProof();
-                               
-                byte[] recvMAC = macVector.get(myId);
-
-                byte[] myMAC = null;
-                                
-                secretKey = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender());
-                try {
-                    this.mac.init(secretKey);                   
-                   myMAC = this.mac.doFinal(data);
-                } catch (InvalidKeyException ex) {
-                    ex.printStackTrace();
+                if (!paxosMsg.isProofVerified()) {
+
+                    byte[][] macVector = (byte[][]) paxosMsg.getProof();
+                    int myPos = tomLayer.controller.getCurrentViewPos(myId);
+
+                    byte[] recvMAC = (myPos >= 0 && myPos < macVector.length ? macVector[myPos] : null);
+
+                    if (recvMAC == null) continue;
+
+                    byte[] data = paxosMsg.getProofData();
+                    ByteBuffer verified = ByteBuffer.allocate(data.length + recvMAC.length);
+                    verified.put(data).put(recvMAC).flip();
+
+                    if (verifiedProofs.contains(verified)) {
+
+                        paxosMsg.setProofVerified(true);
+
+                    } else {
+
+                        byte[] myMAC = null;
+
+                        secretKey = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender());
+                        try {
+                            this.mac.init(secretKey);
+                            myMAC = this.mac.doFinal(data);
+                        } catch (InvalidKeyException ex) {
+                            ex.printStackTrace();
+                        }
+
+                        if (myMAC != null && Arrays.equals(recvMAC, myMAC)) {
+
+                            verifiedProofs.add(verified);
+                            paxosMsg.setProofVerified(true);
+                        }
+                    }
                 }
-            
-                if (recvMAC != null && myMAC != null && Arrays.equals(recvMAC, myMAC) &&
+
+                if (paxosMsg.isProofVerified() &&
                         Arrays.equals(paxosMsg.getValue(), hashedValue) &&
                         paxosMsg.getNumber() == led.getEid()) {
                 
@@ -861,9 +885,14 @@ public class LCManager {
                 bftsmart.tom.util.Logger.println("(LCManager.hasValidProof) Proof made of Signatures");
                 pubRSAKey = SVController.getStaticConf().getRSAPublicKey(paxosMsg.getSender());
                    
-                byte[] signature = (byte[]) paxosMsg.getProof();
-                            
-                if (TOMUtil.verifySignature(pubRSAKey, data, signature)) countValid++;
+                if (!paxosMsg.isProofVerified() && paxosMsg.getProof() instanceof byte[]) {
+
+                    byte[] signature = (byte[]) paxosMsg.getProof();
+
+                    paxosMsg.setProofVerified(TOMUtil.verifySignature(pubRSAKey, paxosMsg.getProofData(), signature));
+                }
+
+                if (paxosMsg.isProofVerified()) countValid++;
    
             }
         }
@@ -0,0 +1,38 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import java.nio.ByteBuffer;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Executes batches of requests whose commands are read-only views over the
+ * decided batch, so they are not copied before being delivered. The views
+ * are only valid during the call: a command that must be kept has to be
+ * copied by the application.
+ */
+public interface BufferBatchExecutable extends Executable {
+
+    /**
+     * Execute a batch of requests.
+     * @param commands the commands, as read-only buffers
+     * @param msgCtx the contexts of the commands
+     * @return the replies to the commands
+     */
+    public byte[][] executeBatch(ByteBuffer[] commands, MessageContext[] msgCtx);
+
+}
@@ -15,6 +15,10 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
 
 import bftsmart.tom.server.defaultservices.CommandsInfo;
@@ -42,6 +46,10 @@ public class DefaultApplicationState implements ApplicationState {
     private int lastCheckpointRound; // Round for the last checkpoint
     private int lastCheckpointLeader; // Leader for the last checkpoint
     private byte[] logHash;
+    private transient String checkpointPath; // file with the state associated with the last checkpoint, when it is not in memory
+    private transient String stateFile; // file with the raw state, when it was received in chunks
+    private transient ReadableByteChannel stateChannel; // state opened by the log, read only once
+    private transient long stateSize;
 
     /**
      * Constructs a TansferableState
@@ -67,6 +75,18 @@ public class DefaultApplicationState implements ApplicationState {
     	this.logHash = logHash;
     }
 
+    /**
+     * Constructs a TansferableState whose state is read from a checkpoint file
+     * when it is installed, instead of being kept in memory
+     * @param messageBatches Batches received since the last checkpoint.
+     * @param checkpointPath File with the state associated with the last checkpoint
+     * @param stateHash Hash of the state associated with the last checkpoint
+     */
+    public DefaultApplicationState(CommandsInfo[] messageBatches, int lastCheckpointEid, int lastCheckpointRound, int lastCheckpointLeader, int lastEid, String checkpointPath, byte[] stateHash) {
+        this(messageBatches, lastCheckpointEid, lastCheckpointRound, lastCheckpointLeader, lastEid, (byte[]) null, stateHash);
+        this.checkpointPath = checkpointPath;
+    }
+
     /**
      * Constructs a TansferableState
      * This constructor should be used when there isn't a valid state to construct the object with
@@ -84,11 +104,11 @@ public class DefaultApplicationState implements ApplicationState {
     
     
     public void setSerializedState(byte[] state) {
-        this.state = state;
+        setState(state);
     }
 
     public byte[] getSerializedState() {
-        return state;
+        return getState();
     }
       
     /**
@@ -109,13 +129,83 @@ public class DefaultApplicationState implements ApplicationState {
     }
     
     /**
-     * Retrieves the state associated with the last checkpoint
+     * Retrieves the state associated with the last checkpoint. A state which is
+     * not in memory is read to an array the first time it is retrieved
      * @return State associated with the last checkpoint
      */
     public byte[] getState() {
+        if (state == null && (stateChannel != null || stateFile != null || checkpointPath != null)) {
+            try {
+                ReadableByteChannel in = openState();
+                if (in != null) {
+                    try {
+                        state = SnapshotChannels.read(in, stateSize);
+                    } finally {
+                        in.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         return state;
     }
 
+    /**
+     * Indicates if the state associated with the last checkpoint is only kept
+     * in a file, so it should be read with openState
+     * @return true if the state was not read to memory
+     */
+    public boolean isStateInFile() {
+        return state == null && (stateFile != null || checkpointPath != null);
+    }
+
+    /**
+     * Retrieves the checkpoint file with the state associated with the last checkpoint
+     * @return The checkpoint file, or null if the state is in memory
+     */
+    public String getCheckpointPath() {
+        return checkpointPath;
+    }
+
+    /**
+     * Opens the state associated with the last checkpoint to be read as a stream,
+     * from memory or from the checkpoint file it is saved in
+     * @return A channel with getStateSize() bytes of state, or null if there is no state
+     * (or its checkpoint file is corrupted)
+     */
+    public ReadableByteChannel openState() throws IOException {
+        if (state != null) {
+            stateSize = state.length;
+            return SnapshotChannels.open(state);
+        }
+        if (stateChannel != null) {
+            ReadableByteChannel in = stateChannel;
+            stateChannel = null;
+            return in;
+        }
+        if (stateFile != null) {
+            RandomAccessFile file = new RandomAccessFile(stateFile, "r");
+            stateSize = file.length();
+            return file.getChannel();
+        }
+        if (checkpointPath != null) {
+            FileRecoverer fr = new FileRecoverer(-1, DiskStateLog.DEFAULT_DIR);
+            ReadableByteChannel in = fr.openCkpState(checkpointPath);
+            stateSize = fr.getCkpStateSize();
+            return in;
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the size of the state opened by openState
+     * @return Size of the state associated with the last checkpoint, in bytes
+     */
+    public long getStateSize() {
+        return stateSize;
+    }
+
     /**
      * Retrieves the hash of the state associated with the last checkpoint
      * @return Hash of the state associated with the last checkpoint
@@ -130,6 +220,33 @@ public class DefaultApplicationState implements ApplicationState {
      */
     public void setState(byte[] state) {
         this.state = state;
+        this.stateChannel = null;
+        this.stateFile = null;
+        this.checkpointPath = null;
+    }
+
+    /**
+     * Sets the state associated with the last checkpoint to be read once
+     * from a channel, e.g., a checkpoint opened while it cannot be replaced
+     * @param in Channel with the state
+     * @param size Size of the state, in bytes
+     */
+    public void setState(ReadableByteChannel in, long size) {
+        setState((byte[]) null);
+        this.stateChannel = in;
+        this.stateSize = size;
+    }
+
+    /**
+     * Sets the state associated with the last checkpoint to be read from a
+     * file which only holds the state, e.g., a state received in chunks
+     * @param stateFile File with the state
+     * @param size Size of the state, in bytes
+     */
+    public void setStateFile(String stateFile, long size) {
+        setState((byte[]) null);
+        this.stateFile = stateFile;
+        this.stateSize = size;
     }
     
     /**
@@ -183,6 +300,11 @@ public class DefaultApplicationState implements ApplicationState {
         return lastCheckpointLeader;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getState(); // a state which is not in memory is sent as well
+        out.defaultWriteObject();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof DefaultApplicationState) {
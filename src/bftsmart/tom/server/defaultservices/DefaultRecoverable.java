@@ -18,16 +18,23 @@
  */
 package bftsmart.tom.server.defaultservices;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.StateManager;
-import bftsmart.statemanagement.strategy.StandardStateManager;
+import bftsmart.statemanagement.strategy.ChunkedStateManager;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
@@ -48,6 +55,11 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private MessageDigest md;
     private StateLog log;
     private StateManager stateManager;
+    private boolean asyncCheckpoint;
+    private ExecutorService checkpointer; // serializes and writes the checkpoints taken in the background
+    private volatile Future<?> pendingCheckpoint;
+    private boolean parallelLog;
+    private ExecutorService logWriter; // appends the batches to the log while they are executed
 
     public DefaultRecoverable() {
 
@@ -75,6 +87,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         if (checkpointIndex == -1) {
 
+            Future<?> logged = parallelLog ? startSaveCommands(commands, eids) : null;
+
             if (!noop) {
 
                 stateLock.lock();
@@ -83,7 +97,11 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             }
 
-            saveCommands(commands, eids);
+            if (logged == null) {
+                saveCommands(commands, eids);
+            } else {
+                awaitSaveCommands(logged);
+            }
         } else {
             // there is a replica supposed to take the checkpoint. In this case, the commands
             // must be executed in two steps. First the batch of commands containing commands
@@ -118,10 +136,31 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
 //	        if ((eid > 0) && ((eid % checkpointPeriod) == 0)) {
             System.out.println("(DefaultRecoverable.executeBatch) Performing checkpoint for consensus " + eid);
-            stateLock.lock();
-            byte[] snapshot = getSnapshot();
-            stateLock.unlock();
-            saveState(snapshot, eid, 0, 0/*tomLayer.lm.getLeader(cons.getId(), cons.getDecisionRound().getNumber())*/);
+            if (asyncCheckpoint) {
+                startCheckpoint(firstHalf, firstHalfEids, eid);
+            } else {
+                stateLock.lock();
+                if (getLog() instanceof DiskStateLog && getPagedState() != null) {
+                    // a snapshot of the pages, written as a delta when checkpoint_deltas is set
+                    saveState(getPagedState().snapshot(), eid, 0, 0);
+                    stateLock.unlock();
+                } else if (getLog() instanceof DiskStateLog) {
+                    // the state is written to the log while the execution is blocked, without copying it to an array
+                    saveState(new SnapshotWriter() {
+                        @Override
+                        public void write(WritableByteChannel out) throws IOException {
+                            writeSnapshot(out);
+                        }
+                    }, eid, 0, 0/*tomLayer.lm.getLeader(cons.getId(), cons.getDecisionRound().getNumber())*/);
+                    stateLock.unlock();
+                } else {
+                    // a log in memory keeps the array
+                    byte[] snapshot = getSnapshot();
+                    byte[] root = (getPagedState() != null) ? getPagedState().getRoot() : null;
+                    stateLock.unlock();
+                    saveState(snapshot, (root != null) ? root : computeHash(snapshot), eid, 0, 0);
+                }
+            }
 //	        } else {
 //	            Logger.println("(DefaultRecoverable.executeBatch) Storing message batch in the state log for consensus " + eid);
 //	            saveCommands(firstHalf, firstHalfEids);
@@ -134,14 +173,20 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 //	        	System.out.println("----THERE IS A SECOND HALF----");
                 eid = msgCtxs[msgCtxs.length - 1].getConsensusId();
 
+                Logger.println("(DefaultRecoverable.executeBatch) Storing message batch in the state log for consensus " + eid);
+                Future<?> logged = parallelLog ? startSaveCommands(secondHalf, secondHalfEids) : null;
+
                 if (!noop) {
                     stateLock.lock();
                     secondHalfReplies = appExecuteBatch(secondHalf, msgCtxs);
                     stateLock.unlock();
                 }
 
-                Logger.println("(DefaultRecoverable.executeBatch) Storing message batch in the state log for consensus " + eid);
-                saveCommands(secondHalf, secondHalfEids);
+                if (logged == null) {
+                    saveCommands(secondHalf, secondHalfEids);
+                } else {
+                    awaitSaveCommands(logged);
+                }
 
                 System.arraycopy(secondHalfReplies, 0, replies, firstHalfReplies.length, secondHalfReplies.length);
             }
@@ -167,7 +212,115 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return log;
     }
 
-    private void saveState(byte[] snapshot, int lastEid, int decisionRound, int leader) {
+    /**
+     * @return a new digest of the algorithm used by computeHash, to hash a
+     * state while it is streamed, or one that returns the root of the paged
+     * state (taken now, while the execution is blocked)
+     */
+    private MessageDigest newDigest() throws NoSuchAlgorithmException {
+        if (getPagedState() != null) {
+            return new RootDigest(getPagedState().getRoot());
+        }
+        return MessageDigest.getInstance(md.getAlgorithm());
+    }
+
+    /**
+     * Takes a checkpoint in the background. The state is captured here, and
+     * the checkpoint thread serializes, hashes and writes it while the
+     * following requests are executed. The commands of the consensus
+     * instances up to the checkpoint stay in the log until it is durable.
+     * A handle that is also a SnapshotWriter is streamed to the disk log.
+     */
+    private void startCheckpoint(byte[][] commands, int[] eids, final int eid) {
+        stateLock.lock();
+        final SnapshotHandle handle = getSnapshotHandle();
+        stateLock.unlock();
+
+        // only one checkpoint is taken at a time
+        awaitCheckpoint();
+
+        saveCommands(commands, eids);
+        logLock.lock();
+        getLog().checkpointStarted(eid);
+        logLock.unlock();
+
+        pendingCheckpoint = checkpointer.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                byte[] snapshot = null;
+                byte[] stateHash;
+                // the root of a paged state was computed with the snapshot
+                byte[] root = (handle instanceof PagedState.Snapshot) ? ((PagedState.Snapshot) handle).getRoot() : null;
+                if (handle instanceof PagedState.Snapshot && getLog() instanceof DiskStateLog) {
+                    try {
+                        stateHash = ((DiskStateLog) getLog()).prepareCheckpoint((PagedState.Snapshot) handle, eid);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                        return;
+                    }
+                } else if (handle instanceof SnapshotWriter && getLog() instanceof DiskStateLog) {
+                    try {
+                        MessageDigest digest = (root != null) ? new RootDigest(root) : MessageDigest.getInstance(md.getAlgorithm());
+                        stateHash = ((DiskStateLog) getLog()).prepareCheckpoint((SnapshotWriter) handle, digest, eid);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                        return;
+                    }
+                } else {
+                    snapshot = handle.serialize();
+                    stateHash = (root != null) ? root : computeHash(snapshot);
+                    getLog().prepareCheckpoint(snapshot, stateHash, eid);
+                }
+                saveState(snapshot, stateHash, eid, 0, 0);
+                Logger.println("(DefaultRecoverable.startCheckpoint) Checkpoint for consensus " + eid + " took "
+                        + ((System.nanoTime() - start) / 1000000) + " ms");
+            }
+        });
+    }
+
+    /**
+     * Appends commands to the log in the log writer thread
+     * (system.totalordermulticast.log_parallel), while they are executed.
+     * The replies are only released after awaitSaveCommands, so no client
+     * sees the result of a command that is not logged yet.
+     */
+    private Future<?> startSaveCommands(final byte[][] commands, final int[] eids) {
+        return logWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                saveCommands(commands, eids);
+            }
+        });
+    }
+
+    /**
+     * Waits until commands handed to the log writer thread are logged
+     */
+    private void awaitSaveCommands(Future<?> logged) {
+        try {
+            logged.get();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Waits until the checkpoint being taken in the background (if any) is
+     * durable and installed in the log
+     */
+    private void awaitCheckpoint() {
+        Future<?> checkpoint = pendingCheckpoint;
+        if (checkpoint != null) {
+            try {
+                checkpoint.get();
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private void saveState(byte[] snapshot, byte[] stateHash, int lastEid, int decisionRound, int leader) {
 
         StateLog thisLog = getLog();
 
@@ -175,16 +328,46 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         Logger.println("(TOMLayer.saveState) Saving state of EID " + lastEid + ", round " + decisionRound + " and leader " + leader);
 
-        thisLog.newCheckpoint(snapshot, computeHash(snapshot), lastEid);
-        thisLog.setLastEid(lastEid);
-        thisLog.setLastCheckpointEid(lastEid);
-        thisLog.setLastCheckpointRound(decisionRound);
-        thisLog.setLastCheckpointLeader(leader);
+        thisLog.newCheckpoint(snapshot, stateHash, lastEid);
+        setLastCheckpoint(thisLog, lastEid, decisionRound, leader);
+
+        logLock.unlock();
+        Logger.println("(TOMLayer.saveState) Finished saving state of EID " + lastEid + ", round " + decisionRound + " and leader " + leader);
+    }
+
+    private void saveState(SnapshotWriter snapshot, int lastEid, int decisionRound, int leader) {
+
+        StateLog thisLog = getLog();
+
+        logLock.lock();
+
+        Logger.println("(TOMLayer.saveState) Streaming state of EID " + lastEid + ", round " + decisionRound + " and leader " + leader);
+
+        try {
+            if (snapshot instanceof PagedState.Snapshot) {
+                ((DiskStateLog) thisLog).newCheckpoint((PagedState.Snapshot) snapshot, lastEid);
+            } else {
+                thisLog.newCheckpoint(snapshot, newDigest(), lastEid);
+            }
+            setLastCheckpoint(thisLog, lastEid, decisionRound, leader);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
 
         logLock.unlock();
         Logger.println("(TOMLayer.saveState) Finished saving state of EID " + lastEid + ", round " + decisionRound + " and leader " + leader);
     }
 
+    private void setLastCheckpoint(StateLog thisLog, int lastEid, int decisionRound, int leader) {
+        // batches after the checkpoint may have been logged while it was taken in the background
+        if (thisLog.getLastEid() < lastEid) {
+            thisLog.setLastEid(lastEid);
+        }
+        thisLog.setLastCheckpointEid(lastEid);
+        thisLog.setLastCheckpointRound(decisionRound);
+        thisLog.setLastCheckpointLeader(leader);
+    }
+
     /*public void saveCommands(byte[][] commands, int lastConsensusId, int decisionRound, int leader) {
      StateLog thisLog = getLog();
 
@@ -229,11 +412,14 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 }
             }
         }
+        // the batches of all the consensus delivered together are written at once
+        log.sync();
         logLock.unlock();
     }
 
     @Override
     public ApplicationState getState(int eid, boolean sendState) {
+        awaitCheckpoint();
         logLock.lock();
         ApplicationState ret = (eid > -1 ? getLog().getApplicationState(eid, sendState) : new DefaultApplicationState());
         logLock.unlock();
@@ -243,6 +429,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     @Override
     public int setState(ApplicationState recvState) {
 
+        awaitCheckpoint();
         int lastEid = -1;
         if (recvState instanceof DefaultApplicationState) {
 
@@ -258,10 +445,20 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                     + lastCheckpointEid + " to EID " + lastEid);
 
             stateLock.lock();
-            if (state.getSerializedState() != null) {
-                System.out.println("The state is not null. Will install it");
-                log.update(state);
-                installSnapshot(state.getSerializedState());
+            try {
+                // the state is in memory or, when recovered from disk, read from the checkpoint
+                ReadableByteChannel in = state.openState();
+                if (in != null) {
+                    System.out.println("The state is not null. Will install it");
+                    log.update(state);
+                    try {
+                        installSnapshot(in, state.getStateSize());
+                    } finally {
+                        in.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
             }
 
             // INUTIL??????
@@ -382,13 +579,38 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         this.config = replicaContext.getStaticConfiguration();
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
-            byte[] state = getSnapshot();
+            asyncCheckpoint = config.isToWriteAsyncCkp() && checkpointPeriod > 0;
+            if (asyncCheckpoint) {
+                checkpointer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Checkpoint thread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            parallelLog = config.isToLogParallel();
+            if (parallelLog) {
+                logWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Log writer thread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
             if (config.isToLog() && config.logToDisk()) {
                 int replicaId = config.getProcessId();
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                // the disk log does not keep the initial state in memory
+                log = new DiskStateLog(replicaId, null, null, isToLog, syncLog, syncCkp,
+                        config.getLogGroupSize(), config.getLogGroupDelay(), config.getLogPreallocation(),
+                        config.getLogSegmentSize());
+                ((DiskStateLog) log).setCheckpointDeltas(config.getCheckpointDeltas());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastEid() > 0) {
@@ -396,7 +618,10 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                     getStateManager().setLastEID(storedState.getLastEid());
                 }
             } else {
-                log = new StateLog(checkpointPeriod, state, computeHash(state));
+                byte[] state = getSnapshot();
+                byte[] stateHash = (getPagedState() != null) ? getPagedState().getRoot() : computeHash(state);
+                // with checkpoints in the background, the batches of the previous period are kept until it is durable
+                log = new StateLog(asyncCheckpoint ? 2 * checkpointPeriod : checkpointPeriod, state, stateHash);
             }
         }
         getStateManager().askCurrentConsensusId();
@@ -405,7 +630,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     @Override
     public StateManager getStateManager() {
         if (stateManager == null) {
-            stateManager = new StandardStateManager();
+            stateManager = new ChunkedStateManager();
         }
         return stateManager;
     }
@@ -420,6 +645,82 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
     }
 
+    /**
+     * Captures the state to be saved in a checkpoint taken in the background
+     * (system.totalordermulticast.async_ckp). It is invoked while the execution
+     * of requests is blocked. By default the state is serialized right away
+     * with getSnapshot, and only hashing and writing it are done in the
+     * background; applications can return a copy-on-write or versioned view
+     * of their state instead, to also serialize it in the background. A
+     * paged state is snapshotted with PagedState.snapshot.
+     *
+     * @return the handle used by the checkpoint thread to serialize the state
+     */
+    public SnapshotHandle getSnapshotHandle() {
+        if (getPagedState() != null) {
+            return getPagedState().snapshot();
+        }
+        final byte[] snapshot = getSnapshot();
+        return new SnapshotHandle() {
+            @Override
+            public byte[] serialize() {
+                return snapshot;
+            }
+        };
+    }
+
+    /**
+     * Writes the state to be saved in a checkpoint. By default it writes the
+     * array returned by getSnapshot; applications with large states can
+     * override it, together with installSnapshot(ReadableByteChannel, long),
+     * to stream their state to the log without serializing it to a single
+     * array. It is invoked while the execution of requests is blocked. A
+     * paged state writes its pages.
+     *
+     * @param out the channel to write the state to
+     */
+    public void writeSnapshot(WritableByteChannel out) throws IOException {
+        if (getPagedState() != null) {
+            getPagedState().write(out);
+            return;
+        }
+        SnapshotChannels.write(getSnapshot(), out);
+    }
+
+    /**
+     * Installs a state read from a channel, written by writeSnapshot. By
+     * default the state is read to an array and installed with
+     * installSnapshot(byte[]); a paged state only changes (and hashes again)
+     * the pages that differ.
+     *
+     * @param in the channel to read the state from
+     * @param size the size of the state, in bytes
+     */
+    public void installSnapshot(ReadableByteChannel in, long size) throws IOException {
+        if (getPagedState() != null) {
+            getPagedState().install(in, size);
+            return;
+        }
+        installSnapshot(SnapshotChannels.read(in, size));
+    }
+
+    /**
+     * Gets the state of the application, if it is kept in a PagedState. The
+     * root of its Merkle tree is then used as the hash of the checkpoints,
+     * instead of hashing the whole state, and the snapshots are its pages:
+     * writeSnapshot, installSnapshot(ReadableByteChannel, long) and
+     * getSnapshotHandle use them, and getSnapshot and installSnapshot(byte[])
+     * should use PagedState.toByteArray and PagedState.install. The state
+     * transfer then only fetches the pages that differ from the ones of the
+     * recovering replica. All the replicas should keep their state the same
+     * way, so that their checkpoint hashes match.
+     *
+     * @return the paged state, or null (the default) if the state is not paged
+     */
+    public PagedState getPagedState() {
+        return null;
+    }
+
     public abstract void installSnapshot(byte[] state);
 
     public abstract byte[] getSnapshot();
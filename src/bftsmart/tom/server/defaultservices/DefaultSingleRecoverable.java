@@ -15,6 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -25,7 +28,7 @@ import java.util.logging.Level;
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.StateManager;
-import bftsmart.statemanagement.strategy.StandardStateManager;
+import bftsmart.statemanagement.strategy.ChunkedStateManager;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.Recoverable;
@@ -86,9 +89,13 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	        if ((eid > 0) && ((eid % checkpointPeriod) == 0)) {
 	            Logger.println("(DefaultSingleRecoverable.executeOrdered) Performing checkpoint for consensus " + eid);
 	            stateLock.lock();
-	            byte[] snapshot = getSnapshot();
+	            saveState(new SnapshotWriter() {
+	                @Override
+	                public void write(WritableByteChannel out) throws IOException {
+	                    writeSnapshot(out);
+	                }
+	            }, eid, 0, 0/*tomLayer.lm.getLeader(cons.getId(), cons.getDecisionRound().getNumber())*/);
 	            stateLock.unlock();
-	            saveState(snapshot, eid, 0, 0/*tomLayer.lm.getLeader(cons.getId(), cons.getDecisionRound().getNumber())*/);
 	        } else {
 	            saveCommands(commands.toArray(new byte[0][]), eid, 0, 0);
 	        }
@@ -107,20 +114,42 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         return ret;
     }
     
+    /**
+     * @return the hash of a snapshot just taken: the root of the paged
+     * state, if any, or the hash of the snapshot
+     */
+    private byte[] getStateHash(byte[] snapshot) {
+        return (getPagedState() != null) ? getPagedState().getRoot() : computeHash(snapshot);
+    }
+
     private StateLog getLog() {
         if(log == null)
            	initLog();
     	return log;
     }
     
-    private void saveState(byte[] snapshot, int lastEid, int decisionRound, int leader) {
+    private void saveState(SnapshotWriter snapshot, int lastEid, int decisionRound, int leader) {
         StateLog thisLog = getLog();
 
         logLock.lock();
 
         Logger.println("(TOMLayer.saveState) Saving state of EID " + lastEid + ", round " + decisionRound + " and leader " + leader);
 
-        thisLog.newCheckpoint(snapshot, computeHash(snapshot), lastEid);
+        try {
+            if (getPagedState() != null && thisLog instanceof DiskStateLog) {
+                // a snapshot of the pages, written as a delta when checkpoint_deltas is set
+                ((DiskStateLog) thisLog).newCheckpoint(getPagedState().snapshot(), lastEid);
+            } else {
+                // the root of a paged state is taken while the execution is blocked
+                MessageDigest digest = (getPagedState() != null) ? new RootDigest(getPagedState().getRoot())
+                        : MessageDigest.getInstance(md.getAlgorithm());
+                thisLog.newCheckpoint(snapshot, digest, lastEid);
+            }
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            logLock.unlock();
+            return;
+        }
         thisLog.setLastEid(-1);
         thisLog.setLastCheckpointEid(lastEid);
         thisLog.setLastCheckpointRound(decisionRound);
@@ -141,6 +170,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         Logger.println("(TOMLayer.saveBatch) Saving batch of EID " + lastEid + ", round " + decisionRound + " and leader " + leader);
 
         thisLog.addMessageBatch(commands, decisionRound, leader, lastEid);
+        thisLog.sync();
 
         logLock.unlock();
         
@@ -181,7 +211,21 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                     + lastCheckpointEid + " to EID " + lastEid);
 
             stateLock.lock();
-            installSnapshot(state.getState());
+            try {
+                // the state is in memory or, when recovered from disk, read from the checkpoint
+                ReadableByteChannel in = state.openState();
+                if (in != null) {
+                    try {
+                        installSnapshot(in, state.getStateSize());
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    installSnapshot(state.getState());
+                }
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
 
             for (int eid = lastCheckpointEid + 1; eid <= lastEid; eid++) {
                 try {
@@ -218,13 +262,16 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             this.config = replicaContext.getStaticConfiguration();
             if (log == null) {
                 checkpointPeriod = config.getCheckpointPeriod();
-                byte[] state = getSnapshot();
                 if (config.isToLog() && config.logToDisk()) {
                     int replicaId = config.getProcessId();
                     boolean isToLog = config.isToLog();
                     boolean syncLog = config.isToWriteSyncLog();
                     boolean syncCkp = config.isToWriteSyncCkp();
-                    log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                    // the disk log does not keep the initial state in memory
+                    log = new DiskStateLog(replicaId, null, null, isToLog, syncLog, syncCkp,
+                            config.getLogGroupSize(), config.getLogGroupDelay(), config.getLogPreallocation(),
+                            config.getLogSegmentSize());
+                    ((DiskStateLog) log).setCheckpointDeltas(config.getCheckpointDeltas());
 
                     ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                     if (storedState.getLastEid() > 0) {
@@ -232,7 +279,8 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                         getStateManager().setLastEID(storedState.getLastEid());
                     }
                 } else {
-                    log = new StateLog(checkpointPeriod, state, computeHash(state));
+                    byte[] state = getSnapshot();
+                    log = new StateLog(checkpointPeriod, state, getStateHash(state));
                 }
             }
             getStateManager().askCurrentConsensusId();
@@ -246,22 +294,26 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	@Override
     public StateManager getStateManager() {
     	if(stateManager == null)
-    		stateManager = new StandardStateManager();
+    		stateManager = new ChunkedStateManager();
     	return stateManager;
     }
 	
 	protected void initLog() {
     	if(log == null) {
     		checkpointPeriod = config.getCheckpointPeriod();
-            byte[] state = getSnapshot();
             if(config.isToLog() && config.logToDisk()) {
             	int replicaId = config.getProcessId();
             	boolean isToLog = config.isToLog();
             	boolean syncLog = config.isToWriteSyncLog();
             	boolean syncCkp = config.isToWriteSyncCkp();
-            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
-            } else
-            	log = new StateLog(checkpointPeriod, state, computeHash(state));
+            	log = new DiskStateLog(replicaId, null, null, isToLog, syncLog, syncCkp,
+            			config.getLogGroupSize(), config.getLogGroupDelay(), config.getLogPreallocation(),
+            			config.getLogSegmentSize());
+            	((DiskStateLog) log).setCheckpointDeltas(config.getCheckpointDeltas());
+            } else {
+            	byte[] state = getSnapshot();
+            	log = new StateLog(checkpointPeriod, state, getStateHash(state));
+            }
     	}
 	}
     
@@ -273,6 +325,52 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
  
         executeOrdered(new byte[0], msgCtx, true);
     }    
+
+    /**
+     * Writes the state to be saved in a checkpoint. By default it writes the
+     * array returned by getSnapshot; applications with large states can
+     * override it, together with installSnapshot(ReadableByteChannel, long),
+     * to stream their state without serializing it to a single array. A
+     * paged state writes its pages.
+     *
+     * @param out the channel to write the state to
+     */
+    public void writeSnapshot(WritableByteChannel out) throws IOException {
+        if (getPagedState() != null) {
+            getPagedState().write(out);
+            return;
+        }
+        SnapshotChannels.write(getSnapshot(), out);
+    }
+
+    /**
+     * Installs a state read from a channel, written by writeSnapshot. By
+     * default the state is read to an array and installed with
+     * installSnapshot(byte[]); a paged state only changes (and hashes again)
+     * the pages that differ.
+     *
+     * @param in the channel to read the state from
+     * @param size the size of the state, in bytes
+     */
+    public void installSnapshot(ReadableByteChannel in, long size) throws IOException {
+        if (getPagedState() != null) {
+            getPagedState().install(in, size);
+            return;
+        }
+        installSnapshot(SnapshotChannels.read(in, size));
+    }
+
+    /**
+     * Gets the state of the application, if it is kept in a PagedState. The
+     * root of its Merkle tree is then used as the hash of the checkpoints,
+     * and the snapshots are its pages (see DefaultRecoverable.getPagedState).
+     *
+     * @return the paged state, or null (the default) if the state is not paged
+     */
+    public PagedState getPagedState() {
+        return null;
+    }
+
     public abstract void installSnapshot(byte[] state);
     public abstract byte[] getSnapshot();
     public abstract byte[] appExecuteOrdered(byte[] command, MessageContext msgCtx);
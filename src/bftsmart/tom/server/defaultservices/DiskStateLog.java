@@ -15,16 +15,23 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.statemanagement.ApplicationState;
@@ -34,38 +41,73 @@ public class DiskStateLog extends StateLog {
 	private int id;
 	public final static String DEFAULT_DIR = "files".concat(System
 			.getProperty("file.separator"));
-	private static final int INT_BYTE_SIZE = 4;
-	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private LogWriter log;
 	private boolean syncLog;
+	private int logGroupSize;
+	private int logGroupDelay;
+	private long logPreallocation;
+	private long logSegmentSize;
 	private String logPath;
 	private String lastCkpPath;
 	private boolean syncCkp;
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
-	private Map<Integer, Long> logPointers;
+	private ReentrantLock compactionLock = new ReentrantLock(); // taken before checkpointLock
+	private Map<Integer, Integer> logPointers;
+	// log files with the batches of a checkpoint being taken in the background, deleted when it is durable
+	private List<String> obsoleteLogs = new LinkedList<String>();
+	private int preparedCheckpoint = -1;
+	private long lastTimestamp;
+	// deltas of a paged state chained to the last full checkpoint, the oldest first
+	private int checkpointDeltas;
+	private List<String> deltaPaths = new LinkedList<String>();
+	private boolean fullCkpNeeded;
+	private ExecutorService compactor;
+	private boolean compacting;
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
+		this(id, initialState, initialHash, isToLog, syncLog, syncCkp, LogWriter.DEFAULT_GROUP_SIZE,
+				LogWriter.DEFAULT_GROUP_DELAY, LogWriter.DEFAULT_PREALLOCATION, LogWriter.DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates a log whose batches are written with group commit, in segments
+	 * (see LogWriter)
+	 */
+	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
+			boolean isToLog, boolean syncLog, boolean syncCkp,
+			int logGroupSize, int logGroupDelay, long logPreallocation, long logSegmentSize) {
 		super(initialState, initialHash);
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
 		this.syncCkp = syncCkp;
-		this.logPointers = new HashMap<Integer, Long>();
+		this.logGroupSize = logGroupSize;
+		this.logGroupDelay = logGroupDelay;
+		this.logPreallocation = logPreallocation;
+		this.logSegmentSize = logSegmentSize;
+		this.logPointers = new HashMap<Integer, Integer>();
+	}
+
+	/**
+	 * Sets how many delta checkpoints of a paged state are written before
+	 * they are compacted into a full checkpoint (0 to write full ones only)
+	 */
+	public void setCheckpointDeltas(int checkpointDeltas) {
+		this.checkpointDeltas = checkpointDeltas;
 	}
 
 	private void createLogFile() {
-		logPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".log";
+		long timestamp = System.currentTimeMillis();
+		logPath = DEFAULT_DIR + String.valueOf(id) + "." + timestamp + ".log";
+		while (new File(logPath).exists()) {
+			logPath = DEFAULT_DIR + String.valueOf(id) + "." + (++timestamp) + ".log";
+		}
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-			// PreAllocation
-			/*
-			 * log.setLength(TEN_MB); log.seek(0);
-			 */
-		} catch (FileNotFoundException e) {
+			log = new LogWriter(logPath, syncLog, logGroupSize, logGroupDelay, logPreallocation, logSegmentSize);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
@@ -84,64 +126,160 @@ public class DiskStateLog extends StateLog {
 		if (isToLog) {
 			if(log == null)
 				createLogFile();
-			writeCommandToDisk(command, consensusId);
+			log.append(command, consensusId);
 		}
 		setLastEid(consensusId);
 	}
 
-	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	/**
+	 * Waits until the batches added are written to disk, with sync_log.
+	 * The batches added since the last call are written together.
+	 */
+	public void sync() {
+		if (isToLog && syncLog && log != null)
+			log.flush();
+	}
+
+	/**
+	 * Starts a new log file for the batches after the checkpoint being taken
+	 * in the background. The current one is deleted when the checkpoint is
+	 * durable.
+	 */
+	public void checkpointStarted(int consensusId) {
+		if (isToLog && log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			obsoleteLogs.add(logPath);
+			createLogFile();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint taken in the background and deletes the files it
+	 * replaces: the previous checkpoint and the log files started before it.
+	 * The current log file is not touched, so batches can be added at the
+	 * same time.
+	 */
+	public void prepareCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			checkpointLock.lock();
+			String ckpPath = writeCheckpoint(state, stateHash, consensusId);
+
+			// the new checkpoint is in place before the files it replaces are deleted
+			String previousCkpPath = lastCkpPath;
+			renameCkp(ckpPath);
+			if (previousCkpPath != null && !previousCkpPath.equals(lastCkpPath))
+				new File(previousCkpPath).delete();
+			deleteObsoleteLogs();
+			preparedCheckpoint = consensusId;
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
-	    }
+		} finally {
+			checkpointLock.unlock();
+		}
 	}
 
-	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
-		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".tmp";
+	/**
+	 * Writes a checkpoint taken in the background, streamed by the application,
+	 * and deletes the files it replaces (see prepareCheckpoint(byte[], byte[], int))
+	 * 
+	 * @return the hash of the state
+	 */
+	public byte[] prepareCheckpoint(SnapshotWriter snapshot, MessageDigest digest, int consensusId) throws IOException {
 		try {
 			checkpointLock.lock();
-			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
-					(syncCkp ? "rwd" : "rw"));
-
-			ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
-					+ 4 * INT_BYTE_SIZE);
-			bf.putInt(state.length);
-			bf.put(state);
-			bf.putInt(stateHash.length);
-			bf.put(stateHash);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-
-			byte[] ckpState = bf.array();
-			
-			ckp.write(ckpState);
-			ckp.close();
+			String ckpPath = getCkpTmpPath();
+			byte[] stateHash = writeCheckpoint(ckpPath, snapshot, digest, consensusId);
 
-			if (isToLog)
-				deleteLogFile();
-			deleteLastCkp();
+			String previousCkpPath = lastCkpPath;
 			renameCkp(ckpPath);
-			if (isToLog)
-				createLogFile();
+			if (previousCkpPath != null && !previousCkpPath.equals(lastCkpPath))
+				new File(previousCkpPath).delete();
+			deleteObsoleteLogs();
+			preparedCheckpoint = consensusId;
+			return stateHash;
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of a paged state taken in the background, as a delta
+	 * when possible (see newCheckpoint(PagedState.Snapshot, int)), and deletes
+	 * the files it replaces
+	 * 
+	 * @return the hash of the state
+	 */
+	public byte[] prepareCheckpoint(PagedState.Snapshot snapshot, int consensusId) throws IOException {
+		try {
+			checkpointLock.lock();
+			boolean delta = isDeltaEnabled();
+			String ckpPath = getCkpTmpPath();
+			byte[] stateHash = writeCheckpoint(ckpPath, snapshot, delta, consensusId);
+			installCheckpoint(ckpPath, delta);
+			deleteObsoleteLogs();
+			preparedCheckpoint = consensusId;
+			return stateHash;
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	// checkpoints are named after increasing timestamps, so that the deltas follow their full checkpoint
+	private String getCkpTmpPath() {
+		lastTimestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+		return DEFAULT_DIR + String.valueOf(id) + "."
+				+ lastTimestamp + ".tmp";
+	}
+
+	private String writeCheckpoint(byte[] state, byte[] stateHash, int consensusId) throws IOException {
+		String ckpPath = getCkpTmpPath();
+		RandomAccessFile ckp = new RandomAccessFile(ckpPath,
+				(syncCkp ? "rwd" : "rw"));
+
+		byte[] ckpState = LogFormat.getCheckpoint(state, stateHash, consensusId);
+
+		ckp.write(ckpState);
+		ckp.close();
+		return ckpPath;
+	}
+
+	/**
+	 * Writes a checkpoint streamed by the application, without keeping the
+	 * state in memory. With sync_ckp, the file is forced once written.
+	 */
+	private byte[] writeCheckpoint(String ckpPath, SnapshotWriter snapshot, MessageDigest digest,
+			int consensusId) throws IOException {
+		RandomAccessFile ckp = new RandomAccessFile(ckpPath, "rw");
+		boolean written = false;
+		try {
+			ckp.setLength(0);
+			byte[] stateHash = LogFormat.writeCheckpoint(ckp.getChannel(), snapshot, digest, consensusId);
+			if (syncCkp)
+				ckp.getChannel().force(true);
+			written = true;
+			return stateHash;
+		} finally {
+			ckp.close();
+			if (!written)
+				new File(ckpPath).delete();
+		}
+	}
+
+	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+		if (consensusId == preparedCheckpoint) {
+			// already written by prepareCheckpoint
+			preparedCheckpoint = -1;
+			return;
+		}
+		try {
+			checkpointLock.lock();
+			String ckpPath = writeCheckpoint(state, stateHash, consensusId);
+
+			replaceCheckpoint(ckpPath);
 			
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
@@ -154,10 +292,279 @@ public class DiskStateLog extends StateLog {
 		}
 	}
 
+	/**
+	 * Writes a checkpoint streamed by the application to a file, computing
+	 * the hash of the state while it is written
+	 */
+	public byte[] newCheckpoint(SnapshotWriter snapshot, MessageDigest digest, int consensusId) throws IOException {
+		try {
+			checkpointLock.lock();
+			String ckpPath = getCkpTmpPath();
+			byte[] stateHash = writeCheckpoint(ckpPath, snapshot, digest, consensusId);
+			replaceCheckpoint(ckpPath);
+			return stateHash;
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of a paged state. Only the pages changed since the
+	 * previous checkpoint are written, as a delta chained to the last full
+	 * checkpoint, unless deltas are disabled, there is no full checkpoint or
+	 * the previous checkpoint failed (its pages would be missing). The log is
+	 * started again as with a full checkpoint, and the deltas are compacted
+	 * into a new full checkpoint in the background every checkpointDeltas.
+	 * 
+	 * @return the hash of the state (the root of its pages)
+	 */
+	public byte[] newCheckpoint(PagedState.Snapshot snapshot, int consensusId) throws IOException {
+		try {
+			checkpointLock.lock();
+			boolean delta = isDeltaEnabled();
+			String ckpPath = getCkpTmpPath();
+			byte[] stateHash = writeCheckpoint(ckpPath, snapshot, delta, consensusId);
+			replaceCheckpoint(ckpPath, delta);
+			return stateHash;
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	private boolean isDeltaEnabled() {
+		return checkpointDeltas > 0 && lastCkpPath != null && !fullCkpNeeded;
+	}
+
+	private byte[] writeCheckpoint(String ckpPath, PagedState.Snapshot snapshot, boolean delta,
+			int consensusId) throws IOException {
+		boolean written = false;
+		try {
+			byte[] stateHash = writeCheckpoint(ckpPath, delta ? snapshot.getDelta() : snapshot,
+					new RootDigest(snapshot.getRoot()), consensusId);
+			written = true;
+			return stateHash;
+		} finally {
+			// the pages changed since the previous snapshot are only in the failed checkpoint
+			fullCkpNeeded = !written;
+		}
+	}
+
+	/**
+	 * Installs a new checkpoint in place of the last one (which is kept if
+	 * ckpPath is null), starting a new log file
+	 */
+	private void replaceCheckpoint(String ckpPath) {
+		replaceCheckpoint(ckpPath, false);
+	}
+
+	private void replaceCheckpoint(String ckpPath, boolean delta) {
+		if (isToLog)
+			deleteLogFile();
+		deleteObsoleteLogs();
+		if (ckpPath != null)
+			installCheckpoint(ckpPath, delta);
+		if (isToLog)
+			createLogFile();
+	}
+
+	/**
+	 * Installs a checkpoint written to a temporary file: a delta is chained to
+	 * the last full checkpoint, and a full checkpoint replaces it and its deltas
+	 */
+	private void installCheckpoint(String ckpPath, boolean delta) {
+		if (delta) {
+			String deltaPath = ckpPath.replace(".tmp", ".dlt");
+			new File(ckpPath).renameTo(new File(deltaPath));
+			deltaPaths.add(deltaPath);
+			if (deltaPaths.size() >= checkpointDeltas)
+				startCompaction();
+		} else {
+			String previousCkpPath = lastCkpPath;
+			renameCkp(ckpPath);
+			if (previousCkpPath != null && !previousCkpPath.equals(lastCkpPath))
+				new File(previousCkpPath).delete();
+		}
+	}
+
 	private void renameCkp(String ckpPath) {
 		String finalCkpPath = ckpPath.replace(".tmp", ".ckp");
 		new File(ckpPath).renameTo(new File(finalCkpPath));
 		lastCkpPath = finalCkpPath;
+		deleteDeltas();
+	}
+
+	private void deleteDeltas() {
+		for (String deltaPath : deltaPaths)
+			new File(deltaPath).delete();
+		deltaPaths.clear();
+	}
+
+	/**
+	 * Compacts the deltas in the background thread. The checkpoints are read
+	 * and merged without the checkpoint lock, which is only taken to replace
+	 * them, so that checkpoints are written meanwhile.
+	 */
+	private void startCompaction() {
+		if (compacting)
+			return;
+		compacting = true;
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Checkpoint compaction thread");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		compactor.submit(new Runnable() {
+			@Override
+			public void run() {
+				String basePath;
+				List<String> deltas;
+				compactionLock.lock();
+				checkpointLock.lock();
+				basePath = lastCkpPath;
+				deltas = new ArrayList<String>(deltaPaths);
+				checkpointLock.unlock();
+
+				long start = System.currentTimeMillis();
+				int number = deltas.size();
+				String mergedPath = mergeCheckpoints(basePath, deltas);
+
+				checkpointLock.lock();
+				try {
+					if (mergedPath != null && deltas.size() < number) {
+						// a corrupted delta breaks the chain: the next checkpoint is a full one
+						new File(mergedPath).delete();
+						fullCkpNeeded = true;
+					} else if (mergedPath != null) {
+						installMerged(basePath, deltas, mergedPath);
+						System.out.println("(DiskStateLog) Compacted " + number + " delta checkpoints in "
+								+ (System.currentTimeMillis() - start) + " ms");
+					}
+				} finally {
+					compacting = false;
+					checkpointLock.unlock();
+					compactionLock.unlock();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compacts the deltas while holding the compaction and checkpoint locks,
+	 * so that the last full checkpoint has the whole state
+	 * 
+	 * @return false if a delta was corrupted, in which case it and the
+	 * following ones are not merged
+	 */
+	private boolean compactDeltas() {
+		if (lastCkpPath == null || deltaPaths.isEmpty())
+			return true;
+		List<String> deltas = new ArrayList<String>(deltaPaths);
+		String mergedPath = mergeCheckpoints(lastCkpPath, deltas);
+		if (mergedPath == null)
+			return deltas.isEmpty();
+		installMerged(lastCkpPath, deltas, mergedPath);
+		return deltaPaths.isEmpty();
+	}
+
+	/**
+	 * Merges a full checkpoint and deltas chained to it into a new full
+	 * checkpoint. The state is rebuilt in a temporary file, one page at a
+	 * time, and written with the hash and consensus id of the last delta.
+	 * 
+	 * @param deltas the deltas, which are reduced to the ones merged if one
+	 * of them is corrupted
+	 * @return the path of the new checkpoint, named after the last delta
+	 * merged (so the deltas written meanwhile still follow it), or null if
+	 * no delta was merged
+	 */
+	private String mergeCheckpoints(String basePath, List<String> deltas) {
+		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
+		String rawPath = deltas.get(deltas.size() - 1).replace(".dlt", ".raw");
+		try {
+			RandomAccessFile raw = new RandomAccessFile(rawPath, "rw");
+			try {
+				raw.setLength(0);
+				final FileChannel state = raw.getChannel();
+				ReadableByteChannel in = fr.openCkpState(basePath);
+				if (in == null) {
+					deltas.clear();
+					return null;
+				}
+				try {
+					long size = fr.getCkpStateSize();
+					long position = 0;
+					while (position < size)
+						position += state.transferFrom(in, position, size - position);
+				} finally {
+					in.close();
+				}
+
+				int merged = 0;
+				byte[] stateHash = null;
+				int consensusId = -1;
+				for (String deltaPath : deltas) {
+					in = fr.openCkpState(deltaPath);
+					if (in == null) {
+						System.err.println("(DiskStateLog) Corrupted delta checkpoint " + deltaPath);
+						break;
+					}
+					try {
+						PagedState.applyDelta(in, state);
+					} finally {
+						in.close();
+					}
+					stateHash = fr.getCkpStateHash();
+					consensusId = fr.getCkpLastConsensusId();
+					merged++;
+				}
+				deltas.subList(merged, deltas.size()).clear();
+				if (merged == 0)
+					return null;
+
+				String mergedPath = deltas.get(merged - 1).replace(".dlt", ".cmp");
+				writeCheckpoint(mergedPath, new SnapshotWriter() {
+					@Override
+					public void write(WritableByteChannel out) throws IOException {
+						long size = state.size();
+						long position = 0;
+						while (position < size)
+							position += state.transferTo(position, size - position, out);
+					}
+				}, new RootDigest(stateHash), consensusId);
+				return mergedPath;
+			} finally {
+				raw.close();
+				new File(rawPath).delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			deltas.clear();
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces a full checkpoint and the deltas merged into a new one, unless
+	 * a full checkpoint replaced them while they were merged
+	 */
+	private void installMerged(String basePath, List<String> deltas, String mergedPath) {
+		if (basePath.equals(lastCkpPath) && deltaPaths.size() >= deltas.size()
+				&& deltaPaths.subList(0, deltas.size()).equals(deltas)) {
+			String ckpPath = mergedPath.replace(".cmp", ".ckp");
+			new File(mergedPath).renameTo(new File(ckpPath));
+			lastCkpPath = ckpPath;
+			new File(basePath).delete();
+			for (String deltaPath : deltas)
+				new File(deltaPath).delete();
+			deltaPaths.subList(0, deltas.size()).clear();
+		} else {
+			new File(mergedPath).delete();
+		}
 	}
 
 	private void deleteLastCkp() {
@@ -165,11 +572,18 @@ public class DiskStateLog extends StateLog {
 			new File(lastCkpPath).delete();
 	}
 
+	private void deleteObsoleteLogs() {
+		for (String obsoleteLog : obsoleteLogs)
+			LogWriter.delete(obsoleteLog);
+		obsoleteLogs.clear();
+	}
+
 	private void deleteLogFile() {
 		try {
 			if(log != null)
 				log.close();
-			new File(logPath).delete();
+			if(logPath != null)
+				LogWriter.delete(logPath);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -196,37 +610,72 @@ public class DiskStateLog extends StateLog {
 			int size = eid - lastCheckpointEid;
 
 			FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
+			if (log != null)
+				log.flush();
 
+			compactionLock.lock();
+			checkpointLock.lock();
+			// the deltas are merged, so the last checkpoint has the whole state
+			compactDeltas();
 //			if (size > 0 && sendState) {
 			if (size > 0) {
-				CommandsInfo[] recoveredBatches = fr.getLogState(size, logPath);
-
-				batches = new CommandsInfo[size];
-
-				for (int i = 0; i < size; i++)
-					batches[i] = recoveredBatches[i];
+				batches = getBatches(fr, lastCheckpointEid + 1, size);
 			}
 			
-			checkpointLock.lock();
-			byte[] ckpState = fr.getCkpState(lastCkpPath);
+			// the checkpoint is opened before it can be replaced, and read as it is sent
+			ReadableByteChannel ckpState = null;
+			if (sendState)
+				ckpState = fr.openCkpState(lastCkpPath);
+			else
+				fr.recoverCkpHash(lastCkpPath);
 			byte[] ckpStateHash = fr.getCkpStateHash();
+			long ckpStateSize = fr.getCkpStateSize();
 			checkpointLock.unlock();
+			compactionLock.unlock();
 
 			System.out.println("--- FINISHED READING STATE");
 //			readingState = false;
 
 //			return new DefaultApplicationState((sendState ? batches : null), lastCheckpointEid,
-			return new DefaultApplicationState(batches, lastCheckpointEid,
+			DefaultApplicationState state = new DefaultApplicationState(batches, lastCheckpointEid,
 					getLastCheckpointRound(), getLastCheckpointLeader(), eid,
-					(sendState ? ckpState : null), ckpStateHash);
+					(byte[]) null, ckpStateHash);
+			if (ckpState != null)
+				state.setState(ckpState, ckpStateSize);
+			return state;
 
 		}
 		return null;
 	}
 	
+	/**
+	 * Reads the batches of a range of consensus, looked up in the log index.
+	 * While a checkpoint is taken in the background, the range starts in the
+	 * log files it replaces.
+	 */
+	private CommandsInfo[] getBatches(FileRecoverer fr, int firstEid, int number) {
+		CommandsInfo[] batches = new CommandsInfo[number];
+		int found = 0;
+		List<String> logs = new LinkedList<String>(obsoleteLogs);
+		logs.add(logPath);
+		for (String path : logs) {
+			CommandsInfo[] logBatches = (found < number) ? fr.getLogState(firstEid + found, number - found, path) : null;
+			if (logBatches != null) {
+				System.arraycopy(logBatches, 0, batches, found, logBatches.length);
+				found += logBatches.length;
+			}
+		}
+		return (found == number) ? batches : null;
+	}
+
 	public void transferApplicationState(SocketChannel sChannel, int eid) {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
+		compactionLock.lock();
+		checkpointLock.lock();
+		compactDeltas();
 		fr.transferCkpState(sChannel, lastCkpPath);
+		checkpointLock.unlock();
+		compactionLock.unlock();
 //		int lastCheckpointEid = getLastCheckpointEid();
 //		int lastEid = getLastEid();
 //		if (eid >= lastCheckpointEid && eid <= lastEid) {
@@ -237,15 +686,11 @@ public class DiskStateLog extends StateLog {
 
 	public void setLastEid(int eid, int checkpointPeriod, int checkpointPortion) {
 		super.setLastEid(eid);
-		// save the file pointer to retrieve log information later
+		// save the consensus id to retrieve log information later
 		if((eid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((eid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				System.out.println(" --- Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			System.out.println(" --- Replica " + ckpReplicaIndex + " took checkpoint at EID " + eid);
+			logPointers.put(ckpReplicaIndex, eid);
 		}
 	}
 
@@ -258,7 +703,33 @@ public class DiskStateLog extends StateLog {
 	 *            used to updated this log
 	 */
 	public void update(DefaultApplicationState transState) {
-		newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointEid());
+		if (transState.getCheckpointPath() != null && transState.getCheckpointPath().equals(lastCkpPath)) {
+			// the state was read from the last checkpoint, which is kept
+			checkpointLock.lock();
+			replaceCheckpoint(null);
+			checkpointLock.unlock();
+		} else if (transState.isStateInFile()) {
+			// a state received in chunks is copied to the checkpoint without reading it to memory
+			final DefaultApplicationState state = transState;
+			try {
+				newCheckpoint(new SnapshotWriter() {
+					public void write(WritableByteChannel out) throws IOException {
+						ReadableByteChannel in = state.openState();
+						if (in == null)
+							throw new IOException("The state to checkpoint could not be read");
+						try {
+							SnapshotChannels.copy(in, state.getStateSize(), out);
+						} finally {
+							in.close();
+						}
+					}
+				}, new RootDigest(transState.getStateHash()), transState.getLastCheckpointEid());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else {
+			newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointEid());
+		}
 		setLastCheckpointEid(transState.getLastCheckpointEid());
 	}
 	
@@ -266,17 +737,65 @@ public class DiskStateLog extends StateLog {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		lastCkpPath = fr.getLatestFile(".ckp");
 		logPath = fr.getLatestFile(".log");
-		byte[] checkpoint = null;
+		if (lastCkpPath != null)
+			lastTimestamp = FileRecoverer.getTimestamp(lastCkpPath);
+		for (String path : fr.getFiles(".cmp"))
+			new File(path).delete();
+		for (String path : fr.getFiles(".raw"))
+			new File(path).delete();
+
+		// the deltas written after the last full checkpoint are merged into it, older ones were merged already
+		for (String deltaPath : fr.getFiles(".dlt")) {
+			if (lastCkpPath != null && FileRecoverer.getTimestamp(deltaPath) > lastTimestamp)
+				deltaPaths.add(deltaPath);
+			else
+				new File(deltaPath).delete();
+		}
+		if (!deltaPaths.isEmpty())
+			lastTimestamp = FileRecoverer.getTimestamp(deltaPaths.get(deltaPaths.size() - 1));
+		compactionLock.lock();
+		checkpointLock.lock();
+		boolean chained = compactDeltas();
+		if (!chained) {
+			// the log follows the last delta, so it cannot be replayed on an older checkpoint
+			System.err.println("(DiskStateLog) Delta checkpoints were lost, the state is recovered from an older checkpoint");
+			deleteDeltas();
+			logPath = null;
+		}
+		checkpointLock.unlock();
+		compactionLock.unlock();
+
+		// the state is read from the checkpoint when it is installed
 		if(lastCkpPath != null)
-			checkpoint = fr.getCkpState(lastCkpPath);
+			fr.recoverCkpHash(lastCkpPath);
 		CommandsInfo[] log = null;
 		if(logPath !=null)
 			log = fr.getLogState(0, logPath);
 		int ckpLastConsensusId = fr.getCkpLastConsensusId();
 		int logLastConsensusId = fr.getLogLastConsensusId();
+
+		// a previous log file is needed if the replica stopped while a checkpoint was taken in the background
+		String previousLogPath = (logPath != null) ? fr.getLatestFile(".log", logPath) : null;
+		if (previousLogPath != null) {
+			boolean follows = (log != null && logLastConsensusId - log.length == ckpLastConsensusId);
+			CommandsInfo[] previousLog = follows ? null : fr.getLogState(0, previousLogPath);
+			if (previousLog != null && fr.getLogLastConsensusId() > ckpLastConsensusId) {
+				int previousLastConsensusId = fr.getLogLastConsensusId();
+				CommandsInfo[] batches = new CommandsInfo[previousLog.length + (log != null ? log.length : 0)];
+				System.arraycopy(previousLog, 0, batches, 0, previousLog.length);
+				if (log != null)
+					System.arraycopy(log, 0, batches, previousLog.length, log.length);
+				else
+					logLastConsensusId = previousLastConsensusId;
+				log = batches;
+				obsoleteLogs.add(previousLogPath);
+			} else {
+				LogWriter.delete(previousLogPath);
+			}
+		}
 		System.out.println("log last consensus di: " + logLastConsensusId);
 		ApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId, -1, -1,
-				logLastConsensusId, checkpoint, fr.getCkpStateHash());
+				logLastConsensusId, lastCkpPath, fr.getCkpStateHash());
 		if(logLastConsensusId > ckpLastConsensusId) {
 			super.setLastEid(logLastConsensusId);
 		} else
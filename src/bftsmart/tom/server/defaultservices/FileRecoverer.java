@@ -15,21 +15,28 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Checksum;
+
+import bftsmart.tom.util.CRC32C;
 
 public class FileRecoverer {
 
 	private byte[] ckpHash;
 	private int ckpLastConsensusId;
+	private long ckpStateSize;
 	private int logLastConsensusId;
 	
 	private int replicaId;
@@ -54,20 +61,19 @@ public class FileRecoverer {
 //	}
 
 	public CommandsInfo[] getLogState(int index, String logPath) {
-		RandomAccessFile log = null;
-
 		System.out.println("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, index);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		try {
+			LogReader log = new LogReader(logPath);
+			CommandsInfo[] logState = log.read(index);
+			if (log.getLastConsensusId() >= 0) {
+				logLastConsensusId = log.getLastConsensusId();
+				System.out.println("Recovered batches: " + logState.length + ", logLastConsensusId: " + logLastConsensusId);
 			}
-
 			return logState;
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err
+			.println("State recover was aborted due to an unexpected exception");
 		}
 
 		return null;
@@ -75,50 +81,174 @@ public class FileRecoverer {
 
 	/**
 	 * Recover portions of the log for collaborative state transfer.
-	 * @param start the index for which the commands start to be collected
+	 * @param firstConsensusId the consensus for which the commands start to be collected
 	 * @param number the number of commands retrieved
-	 * @return The commands for the period selected
+	 * @return The commands for the period selected that are in the log, or
+	 * null if it does not have the first one
 	 */
-	public CommandsInfo[] getLogState(long pointer, int startOffset,  int number, String logPath) {
-		RandomAccessFile log = null;
+	public CommandsInfo[] getLogState(int firstConsensusId, int number, String logPath) {
+		System.out.println("GETTING LOG FROM " + logPath + " FROM EID " + firstConsensusId);
+		try {
+			return new LogReader(logPath).read(firstConsensusId, number);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err
+			.println("State recover was aborted due to an unexpected exception");
+		}
 
-		System.out.println("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
+		return null;
+	}
+
+	public byte[] getCkpState(String ckpPath) {
+		RandomAccessFile ckp = null;
 
-			CommandsInfo[] logState = recoverLogState(log, pointer, startOffset, number);
+		System.out.println("GETTING CHECKPOINT FROM " + ckpPath);
+		if ((ckp = openLogFile(ckpPath)) != null) {
 
+			byte[] ckpState = null;
 			try {
-				log.close();
+				if (ckp.length() >= 4 && ckp.readInt() == LogFormat.STREAMED_CHECKPOINT) {
+					ckp.close();
+					ReadableByteChannel in = openCkpState(ckpPath);
+					if (in != null) {
+						try {
+							ckpState = SnapshotChannels.read(in, ckpStateSize);
+						} finally {
+							in.close();
+						}
+					}
+					return ckpState;
+				}
+				ckp.seek(0);
 			} catch (IOException e) {
 				e.printStackTrace();
+				System.err
+				.println("State recover was aborted due to an unexpected exception");
+				ckpHash = null;
+				return null;
 			}
 
-			return logState;
+			ckpState = recoverCkpState(ckp, ckpPath);
+
+			try {
+				ckp.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			return ckpState;
 		}
 
 		return null;
 	}
 
-	public byte[] getCkpState(String ckpPath) {
+	/**
+	 * Opens the state saved in a checkpoint to be read as a stream, after
+	 * verifying the checksum of the checkpoint. The hash, the size and the last
+	 * consensus id of the checkpoint are read as well.
+	 * 
+	 * @param ckpPath the checkpoint file
+	 * @return a channel from which getCkpStateSize() bytes of state are read,
+	 *         or null if the checkpoint is corrupted
+	 */
+	public ReadableByteChannel openCkpState(String ckpPath) {
 		RandomAccessFile ckp = null;
 
-		System.out.println("GETTING CHECKPOINT FROM " + ckpPath);
+		System.out.println("OPENING CHECKPOINT " + ckpPath);
 		if ((ckp = openLogFile(ckpPath)) != null) {
-
-			byte[] ckpState = recoverCkpState(ckp);
-
+			try {
+				long length = ckp.length();
+				int size = ckp.readInt();
+				boolean checked;
+				if (size == LogFormat.STREAMED_CHECKPOINT) {
+					checked = readStreamedCkpEnd(ckp);
+				} else {
+					ckpStateSize = size;
+					ckp.seek(4 + (long) size);
+					ckpHash = new byte[ckp.readInt()];
+					ckp.readFully(ckpHash);
+					ckp.readInt(); // EOF
+					ckpLastConsensusId = ckp.readInt();
+					// checkpoints written before the binary log format have no checksum
+					checked = ckp.getFilePointer() + 4 > length
+							|| verifyChecksum(ckp.getChannel(), length);
+				}
+				if (checked) {
+					System.out.println("LAST CKP read from file: " + ckpLastConsensusId);
+					return new StateChannel(ckp, 4, ckpStateSize);
+				}
+				System.err.println("Checkpoint " + ckpPath + " with a wrong checksum");
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.err
+				.println("State recover was aborted due to an unexpected exception");
+			}
+			ckpHash = null;
 			try {
 				ckp.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-
-			return ckpState;
 		}
 
 		return null;
 	}
 
+	/**
+	 * Reads the end of a streamed checkpoint and verifies its checksum
+	 */
+	private boolean readStreamedCkpEnd(RandomAccessFile ckp) throws IOException {
+		long length = ckp.length();
+		if (length < 4 + LogFormat.STREAMED_CHECKPOINT_END) {
+			return false;
+		}
+		ckp.seek(length - 16);
+		int hashSize = ckp.readInt();
+		ckp.readInt(); // EOF
+		ckpLastConsensusId = ckp.readInt();
+		long stateEnd = length - LogFormat.STREAMED_CHECKPOINT_END - hashSize;
+		if (hashSize < 0 || stateEnd < 4) {
+			return false;
+		}
+		ckp.seek(stateEnd);
+		ckpStateSize = ckp.readLong();
+		if (ckpStateSize != stateEnd - 4) {
+			return false;
+		}
+		ckpHash = new byte[hashSize];
+		ckp.readFully(ckpHash);
+		return verifyChecksum(ckp.getChannel(), length);
+	}
+
+	/**
+	 * Verifies the CRC32C written at the end of a checkpoint file
+	 */
+	private boolean verifyChecksum(FileChannel file, long length) throws IOException {
+		Checksum checksum = CRC32C.create();
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		long position = 0;
+		while (position < length - 4) {
+			buffer.clear();
+			if (length - 4 - position < buffer.capacity()) {
+				buffer.limit((int) (length - 4 - position));
+			}
+			int read = file.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			checksum.update(buffer.array(), 0, read);
+			position += read;
+		}
+		buffer.clear();
+		buffer.limit(4);
+		while (buffer.hasRemaining()) {
+			if (file.read(buffer, position + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return buffer.getInt(0) == (int) checksum.getValue();
+	}
+
 	public void recoverCkpHash(String ckpPath) {
 		RandomAccessFile ckp = null;
 
@@ -126,22 +256,41 @@ public class FileRecoverer {
 		if ((ckp = openLogFile(ckpPath)) != null) {
 			byte[] ckpHash = null;
 			try {
-				int ckpSize = ckp.readInt();
-				ckp.skipBytes(ckpSize);
-				int hashLength = ckp.readInt();
+				long ckpSize = ckp.readInt();
+				boolean streamed = (ckpSize == LogFormat.STREAMED_CHECKPOINT);
+				int hashLength;
+				if (streamed) {
+					ckp.seek(ckp.length() - 16);
+					hashLength = ckp.readInt();
+					ckp.seek(ckp.length() - LogFormat.STREAMED_CHECKPOINT_END - hashLength);
+					ckpSize = ckp.readLong();
+				} else {
+					ckp.skipBytes((int) ckpSize);
+					hashLength = ckp.readInt();
+				}
 				ckpHash = new byte[hashLength];
 				ckp.read(ckpHash);
+				if (streamed)
+					ckp.readInt(); // HASH_SIZE
+				ckp.readInt(); // EOF
+				ckpLastConsensusId = ckp.readInt();
 				System.out.println("--- Last ckp size: " + ckpSize + " Last ckp hash: " + Arrays.toString(ckpHash));
+				ckpStateSize = ckpSize;
 			} catch (Exception e) {
 				e.printStackTrace();
 				System.err
 				.println("State recover was aborted due to an unexpected exception");
 			}
+			try {
+				ckp.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 			this.ckpHash = ckpHash;
 		}
 	}
 
-	private byte[] recoverCkpState(RandomAccessFile ckp) {
+	private byte[] recoverCkpState(RandomAccessFile ckp, String ckpPath) {
 		byte[] ckpState = null;
 		try {
 			long ckpLength = ckp.length();
@@ -184,6 +333,14 @@ public class FileRecoverer {
 			if (ckp.readInt() == 0) {
 				ckpLastConsensusId = ckp.readInt();
 				System.out.println("LAST CKP read from file: " + ckpLastConsensusId);
+				// checkpoints written before the binary log format have no checksum
+				if (ckpState != null && ckp.getFilePointer() + 4 <= ckp.length()
+						&& ckp.readInt() != LogFormat.getCheckpointChecksum(ckpState,
+								(ckpHash != null ? ckpHash : new byte[0]), ckpLastConsensusId)) {
+					System.err.println("Checkpoint " + ckpPath + " with a wrong checksum");
+					ckpState = null;
+					ckpHash = null;
+				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -276,6 +433,10 @@ public class FileRecoverer {
 		return ckpHash;
 	}
 
+	public long getCkpStateSize() {
+		return ckpStateSize;
+	}
+
 	public int getCkpLastConsensusId() {
 		return ckpLastConsensusId;
 	}
@@ -293,135 +454,23 @@ public class FileRecoverer {
 		return null;
 	}
 
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, int endOffset) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-			System.out.println("filepointer: " + log.getFilePointer() + " loglength " + logLength + " endoffset " + endOffset);
-			while (mayRead) {
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-								state.add((CommandsInfo) ois.readObject());
-								if (++recoveredBatches == endOffset) {
-									System.out.println("read all " + endOffset + " log messages");
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								System.out.println("STATE CLEAR");
-								state.clear();
-							}
-						} else {
-							logLastConsensusId = log.readInt();
-							System.out.print("ELSE 1. Recovered batches: " + recoveredBatches);
-							System.out.println(", logLastConsensusId: " + logLastConsensusId);
-							return state.toArray(new CommandsInfo[state.size()]);
-						}
-					} else {
-						System.out.println("ELSE 2 " + recoveredBatches);
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-					state.clear();
-					mayRead = false;
-				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.err
-			.println("State recover was aborted due to an unexpected exception");
-		}
-
-		return null;
+	public String getLatestFile(String extention) {
+		return getLatestFile(extention, null);
 	}
 
 	/**
-	 * Searches the log file and retrieves the portion selected.
-	 * @param log The log file
-	 * @param start The offset to start retrieving commands
-	 * @param number The number of commands retrieved
-	 * @return The commands for the period selected
+	 * Searches the latest file with the given extension created before another one
+	 * @param extention the extension of the file
+	 * @param newerFile the path of the newer file, or null to get the latest file
+	 * @return the path of the file, or null if there is none
 	 */
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, long pointer, int startOffset, int number) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-
-			log.seek(pointer);
-
-			int index = 0;
-			while(index < startOffset) {
-				int size = log.readInt();
-				byte[] bytes = new byte[size];
-				log.read(bytes);
-				index++;
-			}
-
-			while (mayRead) {
-
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-
-								state.add((CommandsInfo) ois.readObject());
-
-								if (++recoveredBatches == number) {
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								System.out.println("recoverLogState (pointer,offset,number) STATE CLEAR");
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							System.out.println("recoverLogState (pointer,offset,number) ELSE 1");
-							mayRead = false;
-						}
-					} else {
-						System.out.println("recoverLogState (pointer,offset,number) ELSE 2 " + recoveredBatches);
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-					state.clear();
-					mayRead = false;
-				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.err
-			.println("State recover was aborted due to an unexpected exception");
-		}
-
-		return null;
-	}
-
-	public String getLatestFile(String extention) {
+	public String getLatestFile(String extention, String newerFile) {
 		File directory = new File(defaultDir);
 		String latestFile = null;
+		long limit = Long.MAX_VALUE;
+		if (newerFile != null) {
+			limit = Long.parseLong(new File(newerFile).getName().split("\\.")[1]);
+		}
 		if (directory.isDirectory()) {
 			File[] serverLogs = directory.listFiles(new FileListFilter(
 					replicaId, extention));
@@ -429,7 +478,7 @@ public class FileRecoverer {
 			for (File f : serverLogs) {
 				String[] nameItems = f.getName().split("\\.");
 				long filets = new Long(nameItems[1]).longValue();
-				if(filets > timestamp) {
+				if(filets > timestamp && filets < limit) {
 					timestamp = filets;
 					latestFile = f.getAbsolutePath();
 				}
@@ -438,6 +487,82 @@ public class FileRecoverer {
 		return latestFile;
 	}
 
+	/**
+	 * Lists the files with the given extension, the oldest first
+	 * @param extention the extension of the files
+	 * @return the paths of the files
+	 */
+	public List<String> getFiles(String extention) {
+		List<String> files = new ArrayList<String>();
+		File directory = new File(defaultDir);
+		if (directory.isDirectory()) {
+			for (File f : directory.listFiles(new FileListFilter(replicaId, extention)))
+				files.add(f.getAbsolutePath());
+		}
+		Collections.sort(files, new Comparator<String>() {
+			@Override
+			public int compare(String file1, String file2) {
+				long timestamp1 = getTimestamp(file1);
+				long timestamp2 = getTimestamp(file2);
+				return (timestamp1 < timestamp2) ? -1 : ((timestamp1 == timestamp2) ? 0 : 1);
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * @return the timestamp in the name of a log or checkpoint file
+	 */
+	public static long getTimestamp(String path) {
+		return Long.parseLong(new File(path).getName().split("\\.")[1]);
+	}
+
+	/**
+	 * Reads a region of a checkpoint file, closing the file when closed
+	 */
+	private static class StateChannel implements ReadableByteChannel {
+
+		private RandomAccessFile file;
+		private long position;
+		private long end;
+
+		StateChannel(RandomAccessFile file, long offset, long size) {
+			this.file = file;
+			this.position = offset;
+			this.end = offset + size;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			ByteBuffer region = dst;
+			if (dst.remaining() > end - position) {
+				region = dst.duplicate();
+				region.limit(region.position() + (int) (end - position));
+			}
+			int read = file.getChannel().read(region, position);
+			if (read > 0) {
+				if (region != dst) {
+					dst.position(region.position());
+				}
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return file.getChannel().isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
 	private class FileListFilter implements FilenameFilter {
 
 		private int id;
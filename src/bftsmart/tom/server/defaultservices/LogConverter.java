@@ -0,0 +1,108 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Rewrites log (.log) and checkpoint (.ckp) files in the format of
+ * LogFormat: log batches serialized with Java serialization become binary
+ * records, and checkpoints get their checksum. The replicas must be
+ * stopped while their files are converted.
+ *
+ * Usage: java bftsmart.tom.server.defaultservices.LogConverter <file>...
+ */
+public class LogConverter {
+
+	private static final String SUFFIX = ".converting";
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: java bftsmart.tom.server.defaultservices.LogConverter <file>...");
+			System.exit(-1);
+		}
+		for (String path : args) {
+			try {
+				if (path.endsWith(".log")) {
+					convertLog(path);
+				} else if (path.endsWith(".ckp")) {
+					convertCheckpoint(path);
+				} else {
+					System.out.println("Skipping " + path + ": not a .log or .ckp file");
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Could not convert " + path);
+			}
+		}
+	}
+
+	private static void convertLog(String path) throws IOException {
+		LogReader reader = new LogReader(path);
+		int consensusId = reader.getFirstConsensusId();
+		if (consensusId < 0) {
+			System.out.println("Skipping " + path + ": empty log");
+			return;
+		}
+
+		String converted = path + SUFFIX;
+		LogWriter.delete(converted);
+		LogWriter writer = new LogWriter(converted, true, LogWriter.DEFAULT_GROUP_SIZE,
+				LogWriter.DEFAULT_GROUP_DELAY, 0);
+		reader.rewind();
+		int batches = 0;
+		CommandsInfo batch;
+		while ((batch = reader.next()) != null) {
+			writer.append(batch, consensusId++);
+			batches++;
+		}
+		writer.close();
+
+		LogWriter.delete(path);
+		rename(LogWriter.getIndexPath(converted), LogWriter.getIndexPath(path));
+		for (int segment = 0; new File(LogWriter.getSegmentPath(converted, segment)).exists(); segment++) {
+			rename(LogWriter.getSegmentPath(converted, segment), LogWriter.getSegmentPath(path, segment));
+		}
+		System.out.println("Converted " + path + ": " + batches + " batches, up to consensus " + (consensusId - 1));
+	}
+
+	private static void convertCheckpoint(String path) throws IOException {
+		FileRecoverer fr = new FileRecoverer(-1, "");
+		byte[] state = fr.getCkpState(path);
+		if (state == null) {
+			throw new IOException("Could not read checkpoint " + path);
+		}
+		byte[] stateHash = fr.getCkpStateHash() != null ? fr.getCkpStateHash() : new byte[0];
+
+		String converted = path + SUFFIX;
+		RandomAccessFile ckp = new RandomAccessFile(converted, "rw");
+		ckp.setLength(0);
+		ckp.write(LogFormat.getCheckpoint(state, stateHash, fr.getCkpLastConsensusId()));
+		ckp.getFD().sync();
+		ckp.close();
+		new File(path).delete();
+		rename(converted, path);
+		System.out.println("Converted " + path + ": checkpoint of consensus " + fr.getCkpLastConsensusId());
+	}
+
+	private static void rename(String from, String to) throws IOException {
+		if (!new File(from).renameTo(new File(to))) {
+			throw new IOException("Could not rename " + from + " to " + to);
+		}
+	}
+}
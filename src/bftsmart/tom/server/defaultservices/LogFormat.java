@@ -0,0 +1,346 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.util.CRC32C;
+
+/**
+ * Binary format of the batches in the log and of the checkpoints.
+ *
+ * A batch record (version 1) is VERSION(byte) + ROUND(int) + LEADER(int) +
+ * NUMBER_OF_COMMANDS(int) + [LENGTH(int) + COMMAND]* + NUMBER_OF_CONTEXTS(int) +
+ * [TIMESTAMP(long) + REGENCY(int) + CONSENSUS_ID(int) + SENDER(int)]* +
+ * CRC32C(int), with -1 for null arrays. Records written with Java
+ * serialization, before this format, are still read.
+ *
+ * A checkpoint is STATE_SIZE(int) + STATE + HASH_SIZE(int) + HASH + EOF(int) +
+ * LAST_CONSENSUS_ID(int) + CRC32C(int). The CRC was not in older checkpoints.
+ * A checkpoint streamed by the application, whose size is only known at the
+ * end, is STREAMED_CHECKPOINT(int) + STATE + STATE_SIZE(long) + HASH +
+ * HASH_SIZE(int) + EOF(int) + LAST_CONSENSUS_ID(int) + CRC32C(int), read from
+ * its end.
+ */
+public class LogFormat {
+
+	public static final byte VERSION = 1;
+	public static final int STREAMED_CHECKPOINT = -1;
+	// size of the end of a streamed checkpoint, without the hash
+	public static final int STREAMED_CHECKPOINT_END = 8 + 4 * 4;
+
+	private static final int INT_BYTE_SIZE = 4;
+	private static final int CONTEXT_SIZE = 8 + 3 * INT_BYTE_SIZE;
+	private static final int EOF = 0;
+	// first bytes of a Java serialization stream
+	private static final byte STREAM_MAGIC = (byte) 0xAC;
+
+	private static final ThreadLocal<Checksum> checksums = new ThreadLocal<Checksum>() {
+		@Override
+		protected Checksum initialValue() {
+			return CRC32C.create();
+		}
+	};
+
+	/**
+	 * @return the size of the record of a batch
+	 */
+	public static int getRecordSize(CommandsInfo batch) {
+		int size = 1 + 4 * INT_BYTE_SIZE;
+		if (batch.commands != null) {
+			for (byte[] command : batch.commands) {
+				size += INT_BYTE_SIZE + (command != null ? command.length : 0);
+			}
+		}
+		if (batch.msgCtx != null) {
+			size += batch.msgCtx.length * CONTEXT_SIZE;
+		}
+		return size + INT_BYTE_SIZE;
+	}
+
+	/**
+	 * Writes the record of a batch in a heap buffer, with getRecordSize(batch)
+	 * bytes remaining
+	 */
+	public static void writeRecord(CommandsInfo batch, ByteBuffer buffer) {
+		int start = buffer.position();
+		buffer.put(VERSION);
+		buffer.putInt(batch.round);
+		buffer.putInt(batch.leader);
+		if (batch.commands != null) {
+			buffer.putInt(batch.commands.length);
+			for (byte[] command : batch.commands) {
+				if (command != null) {
+					buffer.putInt(command.length);
+					buffer.put(command);
+				} else {
+					buffer.putInt(-1);
+				}
+			}
+		} else {
+			buffer.putInt(-1);
+		}
+		if (batch.msgCtx != null) {
+			buffer.putInt(batch.msgCtx.length);
+			for (MessageContext msgCtx : batch.msgCtx) {
+				buffer.putLong(msgCtx.getTimestamp());
+				buffer.putInt(msgCtx.getRegency());
+				buffer.putInt(msgCtx.getConsensusId());
+				buffer.putInt(msgCtx.getSender());
+			}
+		} else {
+			buffer.putInt(-1);
+		}
+		buffer.putInt(checksum(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start));
+	}
+
+	/**
+	 * Reads the record of a batch, in this format or serialized
+	 * 
+	 * @param record the bytes of the record, from position to limit
+	 * @return the batch
+	 * @throws IOException if the record is corrupted
+	 */
+	public static CommandsInfo readRecord(ByteBuffer record) throws IOException {
+		if (!record.hasRemaining()) {
+			throw new IOException("Empty log record");
+		}
+		byte version = record.get(record.position());
+		if (version == STREAM_MAGIC) {
+			return deserialize(record);
+		}
+		if (version != VERSION) {
+			throw new IOException("Unknown log record version " + version);
+		}
+
+		byte[] bytes;
+		int offset;
+		int length = record.remaining();
+		if (record.hasArray()) {
+			bytes = record.array();
+			offset = record.arrayOffset() + record.position();
+		} else {
+			bytes = new byte[length];
+			record.duplicate().get(bytes);
+			offset = 0;
+		}
+		if (length < 1 + 5 * INT_BYTE_SIZE) {
+			throw new IOException("Incomplete log record");
+		}
+		ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+		if (in.getInt(offset + length - INT_BYTE_SIZE) != checksum(bytes, offset, length - INT_BYTE_SIZE)) {
+			throw new IOException("Log record with a wrong checksum");
+		}
+		try {
+			in.get();
+			int round = in.getInt();
+			int leader = in.getInt();
+			byte[][] commands = null;
+			int numberOfCommands = in.getInt();
+			if (numberOfCommands >= 0) {
+				commands = new byte[numberOfCommands][];
+				for (int i = 0; i < numberOfCommands; i++) {
+					int commandLength = in.getInt();
+					if (commandLength >= 0) {
+						commands[i] = new byte[commandLength];
+						in.get(commands[i]);
+					}
+				}
+			}
+			MessageContext[] msgCtx = null;
+			int numberOfContexts = in.getInt();
+			if (numberOfContexts >= 0) {
+				msgCtx = new MessageContext[numberOfContexts];
+				for (int i = 0; i < numberOfContexts; i++) {
+					msgCtx[i] = new MessageContext(in.getLong(), null, in.getInt(), in.getInt(), in.getInt(), null);
+				}
+			}
+			return new CommandsInfo(commands, msgCtx, round, leader);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed log record", e);
+		}
+	}
+
+	/**
+	 * @return the bytes of a checkpoint
+	 */
+	public static byte[] getCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+		ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
+				+ 5 * INT_BYTE_SIZE);
+		bf.putInt(state.length);
+		bf.put(state);
+		bf.putInt(stateHash.length);
+		bf.put(stateHash);
+		bf.putInt(EOF);
+		bf.putInt(consensusId);
+		bf.putInt(checksum(bf.array(), 0, bf.position()));
+		return bf.array();
+	}
+
+	/**
+	 * @return the CRC32C written at the end of a checkpoint
+	 */
+	public static int getCheckpointChecksum(byte[] state, byte[] stateHash, int consensusId) {
+		Checksum checksum = checksums.get();
+		checksum.reset();
+		ByteBuffer ints = ByteBuffer.allocate(2 * INT_BYTE_SIZE);
+		ints.putInt(state.length);
+		checksum.update(ints.array(), 0, INT_BYTE_SIZE);
+		checksum.update(state, 0, state.length);
+		ints.putInt(0, stateHash.length);
+		checksum.update(ints.array(), 0, INT_BYTE_SIZE);
+		checksum.update(stateHash, 0, stateHash.length);
+		ints.putInt(0, EOF);
+		ints.putInt(INT_BYTE_SIZE, consensusId);
+		checksum.update(ints.array(), 0, 2 * INT_BYTE_SIZE);
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * Writes a checkpoint streamed by the application, in a single pass that
+	 * also computes the hash and the checksum of the state
+	 * 
+	 * @param file the checkpoint file, at its start
+	 * @param snapshot the writer of the state
+	 * @param digest the digest for the hash of the state
+	 * @param consensusId the consensus of the checkpoint
+	 * @return the hash of the state
+	 */
+	public static byte[] writeCheckpoint(FileChannel file, SnapshotWriter snapshot, MessageDigest digest,
+			int consensusId) throws IOException {
+		CheckpointChannel out = new CheckpointChannel(file);
+		ByteBuffer ints = ByteBuffer.allocate(8 + 3 * INT_BYTE_SIZE);
+		ints.putInt(STREAMED_CHECKPOINT);
+		ints.flip();
+		out.write(ints);
+
+		out.digest = digest;
+		snapshot.write(out);
+		out.digest = null;
+		byte[] stateHash = digest.digest();
+
+		ints.clear();
+		ints.putLong(out.stateSize);
+		ints.flip();
+		out.write(ints);
+		out.write(ByteBuffer.wrap(stateHash));
+		ints.clear();
+		ints.putInt(stateHash.length);
+		ints.putInt(EOF);
+		ints.putInt(consensusId);
+		ints.flip();
+		out.write(ints);
+		out.finish();
+		return stateHash;
+	}
+
+	/**
+	 * @return the CRC32C of the bytes, as written after records and checkpoints
+	 */
+	public static int checksum(byte[] bytes, int offset, int length) {
+		Checksum checksum = checksums.get();
+		checksum.reset();
+		checksum.update(bytes, offset, length);
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * Buffers the writes of a streamed checkpoint, updating its checksum and
+	 * (while the state is written) the hash of the state
+	 */
+	private static class CheckpointChannel implements WritableByteChannel {
+
+		private FileChannel file;
+		private byte[] buffer = new byte[262144];
+		private int buffered = 0;
+		private Checksum checksum = CRC32C.create();
+		private MessageDigest digest;
+		private long stateSize = 0;
+
+		CheckpointChannel(FileChannel file) {
+			this.file = file;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int written = src.remaining();
+			while (src.hasRemaining()) {
+				int length = Math.min(src.remaining(), buffer.length - buffered);
+				src.get(buffer, buffered, length);
+				checksum.update(buffer, buffered, length);
+				if (digest != null) {
+					digest.update(buffer, buffered, length);
+					stateSize += length;
+				}
+				buffered += length;
+				if (buffered == buffer.length) {
+					flush();
+				}
+			}
+			return written;
+		}
+
+		/**
+		 * Writes the checksum of all the bytes written
+		 */
+		void finish() throws IOException {
+			flush();
+			ByteBuffer crc = ByteBuffer.allocate(INT_BYTE_SIZE);
+			crc.putInt((int) checksum.getValue());
+			crc.flip();
+			while (crc.hasRemaining()) {
+				file.write(crc);
+			}
+		}
+
+		private void flush() throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, buffered);
+			while (bytes.hasRemaining()) {
+				file.write(bytes);
+			}
+			buffered = 0;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return file.isOpen();
+		}
+
+		@Override
+		public void close() {
+			// the checkpoint file is closed by its writer
+		}
+	}
+
+	private static CommandsInfo deserialize(ByteBuffer record) throws IOException {
+		byte[] bytes = new byte[record.remaining()];
+		record.duplicate().get(bytes);
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (CommandsInfo) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+}
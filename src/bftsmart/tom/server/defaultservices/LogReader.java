@@ -0,0 +1,387 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the batches of a log written by LogWriter. The segments are
+ * memory-mapped, and the batches of a consensus are located with the index:
+ * at most INDEX_INTERVAL batches are skipped (reading only their size) to
+ * reach the first one requested, whatever the size of the log. Batches
+ * can be read one at a time with seek and next, to replay a log without
+ * holding all of it in memory.
+ *
+ * Logs without index (written before it existed, or whose index was not
+ * written before a crash) are indexed in memory when opened, from the
+ * consensus id in their EOF mark.
+ *
+ * A range of batches can also be sent as it is in the segments, with
+ * locate and transferTo, and read back with readRecords.
+ */
+public class LogReader {
+
+	private static final int INT_BYTE_SIZE = 4;
+
+	private String path;
+	private List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+	// index entries, in consensus order
+	private int entries = 0;
+	private int[] consensusIds = new int[64];
+	private int[] entrySegments = new int[64];
+	private long[] entryOffsets = new long[64];
+
+	private int lastConsensusId = -1;
+
+	// position of the next batch read
+	private int segment;
+	private int offset;
+
+	// regions (segment, start, end) of the records found by locate
+	private List<long[]> regions = new ArrayList<long[]>();
+
+	/**
+	 * Opens a log
+	 * 
+	 * @param path the path of the log (of its first segment)
+	 */
+	public LogReader(String path) throws IOException {
+		this.path = path;
+		for (int i = 0; new File(LogWriter.getSegmentPath(path, i)).exists(); i++) {
+			RandomAccessFile file = new RandomAccessFile(LogWriter.getSegmentPath(path, i), "r");
+			try {
+				FileChannel channel = file.getChannel();
+				segments.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			} finally {
+				file.close();
+			}
+		}
+		if (segments.isEmpty()) {
+			throw new IOException("Log " + path + " not found");
+		}
+		loadIndex();
+		if (entries == 0) {
+			rebuildIndex();
+		}
+	}
+
+	/**
+	 * Reads the batches from the start of the log
+	 * 
+	 * @param number the number of batches to read, or 0 to read all of them
+	 * @return the batches read, or null if the log is corrupted
+	 */
+	public CommandsInfo[] read(int number) throws IOException {
+		rewind();
+		ArrayList<CommandsInfo> batches = new ArrayList<CommandsInfo>();
+		CommandsInfo batch;
+		while ((number == 0 || batches.size() < number) && (batch = next()) != null) {
+			batches.add(batch);
+		}
+		if (number == 0 && lastConsensusId < 0) {
+			return null;
+		}
+		return batches.toArray(new CommandsInfo[batches.size()]);
+	}
+
+	/**
+	 * Reads the batches of a range of consensus
+	 * 
+	 * @param firstConsensusId the consensus of the first batch
+	 * @param number the number of batches to read
+	 * @return the batches of the range that are in the log (less than number
+	 * if the log ends before), or null if the first one is not in the log
+	 */
+	public CommandsInfo[] read(int firstConsensusId, int number) throws IOException {
+		if (!seek(firstConsensusId)) {
+			return null;
+		}
+		ArrayList<CommandsInfo> batches = new ArrayList<CommandsInfo>();
+		CommandsInfo batch;
+		while (batches.size() < number && (batch = next()) != null) {
+			batches.add(batch);
+		}
+		return batches.toArray(new CommandsInfo[batches.size()]);
+	}
+
+	/**
+	 * Locates the records of a range of consensus in the segments, to send
+	 * them with transferTo
+	 * 
+	 * @param firstConsensusId the consensus of the first batch, or -1 to
+	 * start from the first batch in the log
+	 * @param number the number of batches
+	 * @return the size of the records of the range that are in the log
+	 * (each one with its size), or -1 if the first one is not in the log
+	 */
+	public long locate(int firstConsensusId, int number) throws IOException {
+		regions.clear();
+		if (firstConsensusId < 0) {
+			rewind();
+		} else if (!seek(firstConsensusId)) {
+			return -1;
+		}
+		long size = 0;
+		ByteBuffer record;
+		for (int i = 0; i < number && (record = nextRecord()) != null; i++) {
+			long start = record.position() - INT_BYTE_SIZE;
+			long[] last = regions.isEmpty() ? null : regions.get(regions.size() - 1);
+			if (last != null && last[0] == segment && last[2] == start) {
+				last[2] = record.limit();
+			} else {
+				regions.add(new long[]{segment, start, record.limit()});
+			}
+			size += record.limit() - start;
+		}
+		return size;
+	}
+
+	/**
+	 * Sends the records found by the last call to locate, as they are in the
+	 * segments, with FileChannel.transferTo
+	 * 
+	 * @param target the channel to send the records to
+	 */
+	public void transferTo(WritableByteChannel target) throws IOException {
+		for (long[] region : regions) {
+			RandomAccessFile file = new RandomAccessFile(LogWriter.getSegmentPath(path, (int) region[0]), "r");
+			try {
+				FileChannel channel = file.getChannel();
+				long position = region[1];
+				while (position < region[2]) {
+					position += channel.transferTo(position, region[2] - position, target);
+				}
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the batches of records sent by transferTo and saved in a file
+	 * 
+	 * @param path the file with the records
+	 * @return the batches
+	 * @throws IOException if a batch is corrupted
+	 */
+	public static CommandsInfo[] readRecords(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		ByteBuffer records;
+		try {
+			FileChannel channel = file.getChannel();
+			records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		ArrayList<CommandsInfo> batches = new ArrayList<CommandsInfo>();
+		while (records.remaining() >= INT_BYTE_SIZE) {
+			int size = records.getInt();
+			if (size <= 0 || size > records.remaining()) {
+				throw new IOException("Incomplete batch at " + (records.position() - INT_BYTE_SIZE) + " of " + path);
+			}
+			ByteBuffer record = records.slice();
+			record.limit(size);
+			batches.add(LogFormat.readRecord(record));
+			records.position(records.position() + size);
+		}
+		return batches.toArray(new CommandsInfo[batches.size()]);
+	}
+
+	/**
+	 * Moves to the start of the log
+	 */
+	public void rewind() {
+		segment = 0;
+		offset = 0;
+		lastConsensusId = -1;
+	}
+
+	/**
+	 * Moves to the batch of a consensus, so that it is the next one read
+	 * 
+	 * @return false if the batch is not in the log
+	 */
+	public boolean seek(int consensusId) throws IOException {
+		int entry = findEntry(consensusId);
+		if (entry < 0) {
+			return false;
+		}
+		segment = entrySegments[entry];
+		offset = (int) entryOffsets[entry];
+		for (int i = consensusIds[entry]; i < consensusId; i++) {
+			if (nextRecord() == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next batch
+	 * 
+	 * @return the batch, or null at the end of the log
+	 * @throws IOException if the batch is corrupted
+	 */
+	public CommandsInfo next() throws IOException {
+		ByteBuffer record = nextRecord();
+		return record != null ? LogFormat.readRecord(record) : null;
+	}
+
+	/**
+	 * @return the consensus of the first batch in the log, or -1 if it is empty
+	 */
+	public int getFirstConsensusId() {
+		return entries > 0 ? consensusIds[0] : -1;
+	}
+
+	/**
+	 * @return the consensus in the EOF mark of the log, read by read(0) or
+	 * when the log was indexed in memory, or -1 if it was not reached
+	 */
+	public int getLastConsensusId() {
+		return lastConsensusId;
+	}
+
+	/**
+	 * Moves to the next batch
+	 * 
+	 * @return the record of the batch, in the mapped segment, or null at the
+	 * end of the log
+	 */
+	private ByteBuffer nextRecord() throws IOException {
+		while (true) {
+			ByteBuffer buffer = segments.get(segment);
+			int size = offset + INT_BYTE_SIZE <= buffer.limit() ? buffer.getInt(offset) : 0;
+			if (size > 0) {
+				if (offset + INT_BYTE_SIZE + size > buffer.limit()) {
+					throw new IOException("Incomplete batch at " + offset + " of "
+							+ LogWriter.getSegmentPath(path, segment));
+				}
+				ByteBuffer record = buffer.duplicate();
+				record.position(offset + INT_BYTE_SIZE);
+				record.limit(offset + INT_BYTE_SIZE + size);
+				offset += INT_BYTE_SIZE + size;
+				return record;
+			}
+			// EOF mark: the log continues in the next segment, if any
+			if (offset + 2 * INT_BYTE_SIZE <= buffer.limit() && (segment == 0 || offset > 0)) {
+				lastConsensusId = buffer.getInt(offset + INT_BYTE_SIZE);
+			}
+			if (segment + 1 == segments.size()) {
+				return null;
+			}
+			segment++;
+			offset = 0;
+		}
+	}
+
+	/**
+	 * @return the last index entry at or before the given consensus, or -1
+	 */
+	private int findEntry(int consensusId) {
+		int entry = Arrays.binarySearch(consensusIds, 0, entries, consensusId);
+		return entry >= 0 ? entry : -entry - 2;
+	}
+
+	/**
+	 * Loads the index entries, up to the first one that is not valid: the
+	 * index may end with entries whose batches were not written before a
+	 * crash
+	 */
+	private void loadIndex() throws IOException {
+		File indexFile = new File(LogWriter.getIndexPath(path));
+		if (!indexFile.exists()) {
+			return;
+		}
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			while (index.remaining() >= LogWriter.INDEX_ENTRY_SIZE) {
+				int consensusId = index.getInt();
+				int entrySegment = index.getInt();
+				long entryOffset = index.getLong();
+				boolean valid = entrySegment >= 0 && entrySegment < segments.size()
+						&& entryOffset >= 0 && entryOffset + INT_BYTE_SIZE <= segments.get(entrySegment).limit()
+						&& segments.get(entrySegment).getInt((int) entryOffset) > 0
+						&& (entries == 0 || (consensusId > consensusIds[entries - 1]
+								&& entrySegment >= entrySegments[entries - 1]));
+				if (!valid) {
+					break;
+				}
+				addEntry(consensusId, entrySegment, entryOffset);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Indexes the log in memory, numbering its batches back from the
+	 * consensus in its EOF mark
+	 */
+	private void rebuildIndex() throws IOException {
+		rewind();
+		ArrayList<long[]> positions = new ArrayList<long[]>();
+		int batches = 0;
+		while (true) {
+			int batchSegment = segment;
+			int batchOffset = offset;
+			if (nextRecord() == null) {
+				break;
+			}
+			// the segment may have changed in nextRecord()
+			if (segment != batchSegment) {
+				batchSegment = segment;
+				batchOffset = 0;
+			}
+			if (batches % LogWriter.INDEX_INTERVAL == 0) {
+				positions.add(new long[]{batches, batchSegment, batchOffset});
+			}
+			batches++;
+		}
+		segment = 0;
+		offset = 0;
+		if (lastConsensusId < 0) {
+			return;
+		}
+		int firstConsensusId = lastConsensusId - batches + 1;
+		for (long[] position : positions) {
+			addEntry(firstConsensusId + (int) position[0], (int) position[1], position[2]);
+		}
+	}
+
+	private void addEntry(int consensusId, int entrySegment, long entryOffset) {
+		if (entries == consensusIds.length) {
+			consensusIds = Arrays.copyOf(consensusIds, entries * 2);
+			entrySegments = Arrays.copyOf(entrySegments, entries * 2);
+			entryOffsets = Arrays.copyOf(entryOffsets, entries * 2);
+		}
+		consensusIds[entries] = consensusId;
+		entrySegments[entries] = entrySegment;
+		entryOffsets[entries] = entryOffset;
+		entries++;
+	}
+}
@@ -0,0 +1,443 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends batches to a log file with group commit. The batches appended
+ * while a group is being written are collected in a direct buffer and
+ * written (and forced to disk, with sync) together, in one write and one
+ * force. A group is written as soon as some thread waits for it, when it
+ * reaches the maximum group size, or when its oldest batch is older than
+ * the maximum group delay.
+ *
+ * The file format is the one read by FileRecoverer: each batch is written
+ * as SIZE(int) + record (see LogFormat), and the last one is followed by EOF(int) +
+ * LAST_CONSENSUS_ID(int), overwritten by the next group. While there is
+ * nothing to write, the file is extended with zeros to keep a chunk of the
+ * preallocation size ahead of the last group, so that most writes do not
+ * change its length.
+ *
+ * A group that does not fit in the segment size is written to a new segment
+ * file (path.1, path.2, ...), so the log is a sequence of files of about that
+ * size. The index file (path.idx) has an entry CONSENSUS_ID(int) +
+ * SEGMENT(int) + OFFSET(long) for the first batch of each segment and for
+ * every INDEX_INTERVAL batches, written after the batches it points to. It
+ * is read by LogReader to locate the batches of a consensus.
+ */
+public class LogWriter {
+
+	public static final int DEFAULT_GROUP_SIZE = 1048576;
+	public static final int DEFAULT_GROUP_DELAY = 1000; // microseconds
+	public static final long DEFAULT_PREALLOCATION = 1048576;
+	public static final long DEFAULT_SEGMENT_SIZE = 16777216;
+	public static final int INDEX_INTERVAL = 32;
+	public static final int INDEX_ENTRY_SIZE = 16;
+
+	private static final int INT_BYTE_SIZE = 4;
+	private static final int EOF = 0;
+	private static final int ZEROS_SIZE = 65536;
+
+	private String path;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private RandomAccessFile indexFile;
+	private FileChannel indexChannel;
+	private boolean sync;
+	private int maxGroupBytes;
+	private long maxGroupDelay; // nanoseconds
+	private long preallocation;
+	private long segmentSize;
+
+	// batches appended since the last group was taken, and the group being written
+	private ByteBuffer filling;
+	private ByteBuffer writing;
+	private ByteBuffer zeros;
+	private ByteBuffer record = ByteBuffer.allocate(4096);
+
+	// index entries (CONSENSUS_ID + log position) of the batches in filling and in writing
+	private ByteBuffer fillingEntries = ByteBuffer.allocate(64 * (INT_BYTE_SIZE + 8));
+	private ByteBuffer writingEntries = ByteBuffer.allocate(64 * (INT_BYTE_SIZE + 8));
+	private ByteBuffer indexEntries = ByteBuffer.allocateDirect(64 * INDEX_ENTRY_SIZE);
+
+	private long appendPosition; // log position (over all segments) of the next batch appended
+	private int groupFirstConsensusId; // consensus of the first batch in filling
+	// used by the flusher only
+	private int segment = 0;
+	private long segmentStart = 0; // log position of the first batch of the segment
+	private long writePosition; // segment position of the next group written
+	private long indexPosition = 0;
+	private long allocated; // length of the segment, including the preallocated zeros
+	private int lastConsensusId;
+	private long appended = 0; // number of batches appended
+	private long written = 0; // number of batches written (and forced, with sync)
+	private long groupStart; // when the oldest batch of the group was appended
+	private int waiting = 0;
+	private boolean closed = false;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition groupReady = lock.newCondition();
+	private Condition groupWritten = lock.newCondition();
+	private Thread flusher;
+
+	public LogWriter(String path, boolean sync, int maxGroupBytes, int maxGroupDelay,
+			long preallocation) throws IOException {
+		this(path, sync, maxGroupBytes, maxGroupDelay, preallocation, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates a writer for a new log file
+	 * 
+	 * @param path the path of the log file
+	 * @param sync if each group must be forced to disk
+	 * @param maxGroupBytes size from which a group is written right away
+	 * @param maxGroupDelay how long (in microseconds) a batch can wait for a group to be written
+	 * @param preallocation size of the chunks the file is extended with (0 for none)
+	 * @param segmentSize size from which the log continues in a new segment file
+	 */
+	public LogWriter(String path, boolean sync, int maxGroupBytes, int maxGroupDelay,
+			long preallocation, long segmentSize) throws IOException {
+		this.path = path;
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		this.indexFile = new RandomAccessFile(getIndexPath(path), "rw");
+		this.indexChannel = indexFile.getChannel();
+		this.sync = sync;
+		this.maxGroupBytes = maxGroupBytes;
+		this.maxGroupDelay = TimeUnit.MICROSECONDS.toNanos(maxGroupDelay);
+		this.preallocation = Math.min(preallocation, segmentSize);
+		this.segmentSize = segmentSize;
+		this.filling = ByteBuffer.allocateDirect(Math.max(maxGroupBytes, ZEROS_SIZE));
+		this.writing = ByteBuffer.allocateDirect(Math.max(maxGroupBytes, ZEROS_SIZE));
+
+		flusher = new Thread("Log writer for " + path) {
+			@Override
+			public void run() {
+				flushGroups();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @return the path of a segment of the log
+	 */
+	public static String getSegmentPath(String path, int segment) {
+		return segment == 0 ? path : path + "." + segment;
+	}
+
+	/**
+	 * @return the path of the index of the log
+	 */
+	public static String getIndexPath(String path) {
+		return path + ".idx";
+	}
+
+	/**
+	 * Deletes the segments and the index of a log
+	 */
+	public static void delete(String path) {
+		new File(getIndexPath(path)).delete();
+		for (int segment = 0; new File(getSegmentPath(path, segment)).delete(); segment++);
+	}
+
+	/**
+	 * Appends a batch to the log. It returns before the batch is written:
+	 * use awaitWritten to wait for it.
+	 * 
+	 * @param commandsInfo the batch
+	 * @param consensusId the consensus of the batch
+	 * @return the number of batches appended so far, to be used with awaitWritten
+	 */
+	public long append(CommandsInfo commandsInfo, int consensusId) {
+		lock.lock();
+		try {
+			int size = LogFormat.getRecordSize(commandsInfo);
+			if (record.capacity() < size) {
+				record = ByteBuffer.allocate(Math.max(record.capacity() * 2, size));
+			}
+			record.clear();
+			LogFormat.writeRecord(commandsInfo, record);
+			record.flip();
+
+			// room for the batch and for the EOF mark written after the group
+			ensureCapacity(INT_BYTE_SIZE + size + 2 * INT_BYTE_SIZE);
+			if (filling.position() == 0) {
+				groupStart = System.nanoTime();
+				groupFirstConsensusId = consensusId;
+			}
+			if (appended % INDEX_INTERVAL == 0) {
+				if (fillingEntries.remaining() < INT_BYTE_SIZE + 8) {
+					ByteBuffer larger = ByteBuffer.allocate(fillingEntries.capacity() * 2);
+					fillingEntries.flip();
+					larger.put(fillingEntries);
+					fillingEntries = larger;
+				}
+				fillingEntries.putInt(consensusId);
+				fillingEntries.putLong(appendPosition);
+			}
+			filling.putInt(size);
+			filling.put(record);
+
+			appendPosition += INT_BYTE_SIZE + size;
+			lastConsensusId = consensusId;
+			appended++;
+			groupReady.signal();
+		} finally {
+			lock.unlock();
+		}
+		return appended;
+	}
+
+	/**
+	 * Waits until the given number of batches are written to the file (and
+	 * forced to disk, with sync)
+	 * 
+	 * @param batches the value returned by append for the last batch to wait for
+	 */
+	public void awaitWritten(long batches) {
+		lock.lock();
+		waiting++;
+		groupReady.signal();
+		while (written < batches && flusher.isAlive()) {
+			groupWritten.awaitUninterruptibly();
+		}
+		waiting--;
+		lock.unlock();
+	}
+
+	/**
+	 * Waits until all the batches appended are written
+	 */
+	public void flush() {
+		lock.lock();
+		long batches = appended;
+		lock.unlock();
+		awaitWritten(batches);
+	}
+
+	/**
+	 * Writes the batches appended and closes the file
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		closed = true;
+		groupReady.signal();
+		lock.unlock();
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		finishSegment();
+		channel.close();
+		file.close();
+		indexChannel.close();
+		indexFile.close();
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (filling.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(filling.capacity() * 2,
+					filling.position() + bytes));
+			filling.flip();
+			larger.put(filling);
+			filling = larger;
+		}
+	}
+
+	private boolean isGroupReady() {
+		return filling.position() > 0 && (closed || waiting > 0
+				|| filling.position() >= maxGroupBytes
+				|| System.nanoTime() - groupStart >= maxGroupDelay);
+	}
+
+	private void flushGroups() {
+		while (true) {
+			ByteBuffer group;
+			ByteBuffer entries;
+			long groupBatches;
+			int groupFirst;
+			int groupLastConsensusId;
+			boolean idle = false;
+
+			lock.lock();
+			try {
+				while (!isGroupReady()) {
+					if (closed) {
+						return;
+					}
+					if (filling.position() == 0) {
+						if (allocated < Math.min(writePosition + preallocation, segmentSize)) {
+							idle = true;
+							break;
+						}
+						groupReady.awaitUninterruptibly();
+					} else {
+						groupReady.awaitNanos(groupStart + maxGroupDelay - System.nanoTime());
+					}
+				}
+				if (idle) {
+					group = null;
+					entries = null;
+					groupBatches = 0;
+					groupFirst = 0;
+					groupLastConsensusId = 0;
+				} else {
+					// the batches appended from now on go to the other buffers
+					group = filling;
+					filling = writing;
+					filling.clear();
+					writing = group;
+					entries = fillingEntries;
+					fillingEntries = writingEntries;
+					fillingEntries.clear();
+					writingEntries = entries;
+					groupBatches = appended;
+					groupFirst = groupFirstConsensusId;
+					groupLastConsensusId = lastConsensusId;
+				}
+			} catch (InterruptedException e) {
+				continue;
+			} finally {
+				lock.unlock();
+			}
+
+			if (idle) {
+				try {
+					preallocate(Math.min(writePosition + preallocation, segmentSize));
+				} catch (IOException e) {
+					e.printStackTrace();
+					preallocation = 0;
+				}
+				continue;
+			}
+
+			int groupBytes = group.position();
+			group.putInt(EOF);
+			group.putInt(groupLastConsensusId);
+			group.flip();
+			entries.flip();
+			try {
+				if (writePosition > 0 && writePosition + groupBytes > segmentSize) {
+					nextSegment();
+				}
+				if (writePosition == 0 && !(entries.hasRemaining()
+						&& entries.getLong(INT_BYTE_SIZE) == segmentStart)) {
+					// the first batch of each segment is indexed
+					addIndexEntry(groupFirst, segmentStart);
+				}
+				preallocate(writePosition + group.remaining());
+				long position = writePosition;
+				while (group.hasRemaining()) {
+					position += channel.write(group, position);
+				}
+				if (sync) {
+					channel.force(false);
+				}
+				// the index only points to batches already written
+				while (entries.hasRemaining()) {
+					addIndexEntry(entries.getInt(), entries.getLong());
+				}
+				writeIndexEntries();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			// the next group overwrites the EOF mark
+			writePosition += groupBytes;
+			group.clear();
+			entries.clear();
+
+			lock.lock();
+			written = groupBatches;
+			groupWritten.signalAll();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the current segment, which ends with the EOF mark of its last
+	 * group, and continues the log in a new one
+	 */
+	private void nextSegment() throws IOException {
+		finishSegment();
+		channel.close();
+		file.close();
+		segment++;
+		segmentStart += writePosition;
+		writePosition = 0;
+		allocated = 0;
+		file = new RandomAccessFile(getSegmentPath(path, segment), "rw");
+		channel = file.getChannel();
+	}
+
+	/**
+	 * Drops the preallocated zeros after the EOF mark of the segment
+	 */
+	private void finishSegment() throws IOException {
+		long length = writePosition + 2 * INT_BYTE_SIZE;
+		if (writePosition > 0 && allocated > length) {
+			channel.truncate(length);
+			allocated = length;
+		}
+	}
+
+	private void addIndexEntry(int consensusId, long position) throws IOException {
+		if (indexEntries.remaining() < INDEX_ENTRY_SIZE) {
+			writeIndexEntries();
+		}
+		indexEntries.putInt(consensusId);
+		indexEntries.putInt(segment);
+		indexEntries.putLong(position - segmentStart);
+	}
+
+	private void writeIndexEntries() throws IOException {
+		indexEntries.flip();
+		while (indexEntries.hasRemaining()) {
+			indexPosition += indexChannel.write(indexEntries, indexPosition);
+		}
+		indexEntries.clear();
+	}
+
+	private void preallocate(long length) throws IOException {
+		if (preallocation <= 0 || length <= allocated) {
+			return;
+		}
+		if (zeros == null) {
+			zeros = ByteBuffer.allocateDirect(ZEROS_SIZE);
+		}
+		long newLength = allocated;
+		while (newLength < length) {
+			newLength += preallocation;
+		}
+		while (allocated < newLength) {
+			zeros.clear();
+			if (newLength - allocated < ZEROS_SIZE) {
+				zeros.limit((int) (newLength - allocated));
+			}
+			allocated += channel.write(zeros, allocated);
+		}
+	}
+}
@@ -0,0 +1,416 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import bftsmart.tom.util.MerkleTree;
+
+/**
+ * A state kept in pages of a fixed size, with a Merkle tree over them (see
+ * MerkleTree) that is updated incrementally: writes only mark their pages,
+ * which are hashed again when the root is needed. Used as the hash of the
+ * checkpoints (see DefaultRecoverable.getPagedState), the root costs in
+ * proportion to the data written since the last checkpoint, and the state
+ * transfer can fetch only the pages that differ from the ones of the
+ * recovering replica (see ChunkedStateManager).
+ *
+ * The snapshots of the state are its pages one after the other. The pages
+ * of a snapshot taken with snapshot() are copied before they are written,
+ * so the snapshot can be serialized in the background. A snapshot can also
+ * be written as a delta: only the pages changed since the previous snapshot,
+ * which DiskStateLog chains to the last full checkpoint.
+ */
+public class PagedState implements SnapshotWriter {
+
+    private final int pageSize;
+    private long size;
+    private byte[][] pages;
+    private boolean[] shared; // pages that are part of a snapshot
+    private BitSet dirty = new BitSet(); // pages written since they were hashed
+    private BitSet changed = new BitSet(); // pages written since the last snapshot
+    private MerkleTree tree;
+
+    /**
+     * Creates a state filled with zeros
+     *
+     * @param size the size of the state, in bytes
+     * @param pageSize the size of the pages
+     */
+    public PagedState(long size, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size " + pageSize);
+        }
+        this.pageSize = pageSize;
+        this.pages = new byte[0][];
+        this.shared = new boolean[0];
+        setSize(size);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * @return the size of a page, smaller than getPageSize() for the last one
+     */
+    public synchronized int getPageLength(int page) {
+        return (int) Math.min(pageSize, size - (long) page * pageSize);
+    }
+
+    /**
+     * Changes the size of the state. Bytes added are zeros.
+     */
+    public synchronized void setSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        int count = MerkleTree.getChunkCount(size, pageSize);
+        int kept = Math.min(count, pages.length);
+        int lastKeptLength = (kept > 0) ? getPageLength(kept - 1) : 0;
+        pages = Arrays.copyOf(pages, count);
+        shared = Arrays.copyOf(shared, count);
+        if (count < dirty.length()) {
+            dirty.clear(count, dirty.length());
+        }
+        if (count < changed.length()) {
+            changed.clear(count, changed.length());
+        }
+        byte[][] leaves = new byte[count][];
+        for (int i = 0; i < kept; i++) {
+            leaves[i] = tree.getLeaf(i);
+        }
+        this.size = size;
+
+        // the bytes after the end of the state are kept as zeros
+        if (kept > 0 && getPageLength(kept - 1) != lastKeptLength) {
+            if (getPageLength(kept - 1) < lastKeptLength) {
+                Arrays.fill(writablePage(kept - 1), getPageLength(kept - 1), lastKeptLength, (byte) 0);
+            }
+            dirty.set(kept - 1);
+            changed.set(kept - 1);
+        }
+        byte[] zeros = new byte[pageSize];
+        byte[] zeroLeaf = MerkleTree.leafHash(zeros, 0, pageSize);
+        for (int i = kept; i < count; i++) {
+            pages[i] = new byte[pageSize];
+            changed.set(i);
+            leaves[i] = (getPageLength(i) == pageSize) ? zeroLeaf : MerkleTree.leafHash(zeros, 0, getPageLength(i));
+        }
+        tree = new MerkleTree(leaves);
+    }
+
+    /**
+     * Reads bytes of the state
+     */
+    public synchronized void read(long position, byte[] dst, int offset, int length) {
+        checkRange(position, length);
+        while (length > 0) {
+            int page = (int) (position / pageSize);
+            int pageOffset = (int) (position % pageSize);
+            int count = Math.min(length, pageSize - pageOffset);
+            System.arraycopy(pages[page], pageOffset, dst, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes bytes of the state, marking the pages written
+     */
+    public synchronized void write(long position, byte[] src, int offset, int length) {
+        checkRange(position, length);
+        while (length > 0) {
+            int page = (int) (position / pageSize);
+            int pageOffset = (int) (position % pageSize);
+            int count = Math.min(length, pageSize - pageOffset);
+            System.arraycopy(src, offset, writablePage(page), pageOffset, count);
+            dirty.set(page);
+            changed.set(page);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copies a page to an array
+     */
+    public synchronized void readPage(int page, byte[] dst, int offset) {
+        System.arraycopy(pages[page], 0, dst, offset, getPageLength(page));
+    }
+
+    /**
+     * @return the hash of a page, as a leaf of the tree
+     */
+    public synchronized byte[] getPageHash(int page) {
+        hashDirtyPages();
+        return tree.getLeaf(page);
+    }
+
+    /**
+     * @return the root of the tree of the pages, hashing the pages written
+     *         since it was last computed
+     */
+    public synchronized byte[] getRoot() {
+        hashDirtyPages();
+        return tree.getRoot();
+    }
+
+    /**
+     * Writes the pages to a channel
+     */
+    @Override
+    public synchronized void write(WritableByteChannel out) throws IOException {
+        writePages(pages, size, pageSize, out);
+    }
+
+    /**
+     * @return the pages one after the other
+     */
+    public byte[] toByteArray() {
+        try {
+            return SnapshotChannels.toByteArray(this);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Replaces the state with the one read from a channel, as written by
+     * write. Only the pages that change are hashed again.
+     *
+     * @param in the channel
+     * @param size the size of the state
+     */
+    public synchronized void install(ReadableByteChannel in, long size) throws IOException {
+        setSize(size);
+        byte[] buffer = new byte[pageSize];
+        for (int i = 0; i < pages.length; i++) {
+            int length = getPageLength(i);
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+            while (bytes.hasRemaining()) {
+                if (in.read(bytes) < 0) {
+                    throw new IOException("The state ended after " + ((long) i * pageSize + bytes.position()) + " of " + size + " bytes");
+                }
+            }
+            if (!equals(pages[i], buffer, length)) {
+                System.arraycopy(buffer, 0, writablePage(i), 0, length);
+                dirty.set(i);
+                changed.set(i);
+            }
+        }
+    }
+
+    public void install(byte[] state) {
+        try {
+            install(SnapshotChannels.open(state), state.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the pages, with the root of their tree and the
+     * pages changed since the previous snapshot. The pages are not copied
+     * until they are written.
+     */
+    public synchronized Snapshot snapshot() {
+        byte[] root = getRoot();
+        Arrays.fill(shared, true);
+        Snapshot snapshot = new Snapshot(pages.clone(), size, pageSize, root, changed);
+        changed = new BitSet();
+        return snapshot;
+    }
+
+    /**
+     * Applies a delta written by Snapshot.getDelta to a state kept in a file,
+     * as its pages one after the other
+     *
+     * @param in the channel to read the delta from
+     * @param state the file with the state
+     */
+    public static void applyDelta(ReadableByteChannel in, FileChannel state) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8 + 2 * 4);
+        readFully(in, header);
+        header.flip();
+        long size = header.getLong();
+        int pageSize = header.getInt();
+        int count = header.getInt();
+        if (state.size() > size) {
+            state.truncate(size);
+        }
+        ByteBuffer index = ByteBuffer.allocate(4);
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        for (int i = 0; i < count; i++) {
+            index.clear();
+            readFully(in, index);
+            long position = (long) index.getInt(0) * pageSize;
+            page.clear();
+            page.limit((int) Math.min(pageSize, size - position));
+            readFully(in, page);
+            page.flip();
+            while (page.hasRemaining()) {
+                position += state.write(page, position);
+            }
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new IOException("The delta ended before it was complete");
+            }
+        }
+    }
+
+    private byte[] writablePage(int page) {
+        if (shared[page]) {
+            pages[page] = pages[page].clone();
+            shared[page] = false;
+        }
+        return pages[page];
+    }
+
+    private void hashDirtyPages() {
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            tree.setLeaf(i, MerkleTree.leafHash(pages[i], 0, getPageLength(i)));
+        }
+        dirty.clear();
+    }
+
+    private void checkRange(long position, int length) {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IndexOutOfBoundsException("Range " + position + "+" + length + " out of a state of " + size + " bytes");
+        }
+    }
+
+    private static boolean equals(byte[] page, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            if (page[i] != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writePages(byte[][] pages, long size, int pageSize, WritableByteChannel out) throws IOException {
+        for (int i = 0; i < pages.length; i++) {
+            ByteBuffer bytes = ByteBuffer.wrap(pages[i], 0, (int) Math.min(pageSize, size - (long) i * pageSize));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * The pages of the state at the time it was taken, written in the
+     * background by asynchronous checkpoints
+     */
+    public static class Snapshot implements SnapshotHandle, SnapshotWriter {
+
+        private final byte[][] pages;
+        private final long size;
+        private final int pageSize;
+        private final byte[] root;
+        private final BitSet changed;
+
+        private Snapshot(byte[][] pages, long size, int pageSize, byte[] root, BitSet changed) {
+            this.pages = pages;
+            this.size = size;
+            this.pageSize = pageSize;
+            this.root = root;
+            this.changed = changed;
+        }
+
+        /**
+         * @return the root of the tree of the pages, used as the hash of the state
+         */
+        public byte[] getRoot() {
+            return root;
+        }
+
+        @Override
+        public void write(WritableByteChannel out) throws IOException {
+            writePages(pages, size, pageSize, out);
+        }
+
+        /**
+         * @return the number of pages changed since the previous snapshot
+         */
+        public int getChangedPages() {
+            return changed.cardinality();
+        }
+
+        /**
+         * Gets a writer of the pages changed since the previous snapshot,
+         * applied with applyDelta. The format is SIZE(long) + PAGE_SIZE(int)
+         * + COUNT(int) and, for each page, INDEX(int) + PAGE.
+         */
+        public SnapshotWriter getDelta() {
+            return new SnapshotWriter() {
+                @Override
+                public void write(WritableByteChannel out) throws IOException {
+                    ByteBuffer header = ByteBuffer.allocate(8 + 2 * 4);
+                    header.putLong(size);
+                    header.putInt(pageSize);
+                    header.putInt(changed.cardinality());
+                    header.flip();
+                    while (header.hasRemaining()) {
+                        out.write(header);
+                    }
+                    ByteBuffer index = ByteBuffer.allocate(4);
+                    for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                        index.clear();
+                        index.putInt(i);
+                        index.flip();
+                        while (index.hasRemaining()) {
+                            out.write(index);
+                        }
+                        ByteBuffer bytes = ByteBuffer.wrap(pages[i], 0, (int) Math.min(pageSize, size - (long) i * pageSize));
+                        while (bytes.hasRemaining()) {
+                            out.write(bytes);
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public byte[] serialize() {
+            try {
+                return SnapshotChannels.toByteArray(this);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
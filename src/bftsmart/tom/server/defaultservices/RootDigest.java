@@ -0,0 +1,53 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.security.MessageDigest;
+
+import bftsmart.tom.util.MerkleTree;
+
+/**
+ * A digest that ignores the bytes it is given and returns a hash computed
+ * beforehand: the root of a PagedState, or the hash of a state transferred
+ * from other replicas, so that the state is streamed to the log (which hashes
+ * it while it is written) with that hash.
+ */
+class RootDigest extends MessageDigest {
+
+    private final byte[] root;
+
+    RootDigest(byte[] root) {
+        super("Merkle-" + MerkleTree.ALGORITHM);
+        this.root = root;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        return root.clone();
+    }
+
+    @Override
+    protected void engineReset() {
+    }
+}
@@ -0,0 +1,138 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Adapters between snapshots serialized to byte arrays and snapshots
+ * written to and read from channels
+ */
+public class SnapshotChannels {
+
+    /**
+     * Writes a serialized state to a channel
+     */
+    public static void write(byte[] state, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a state from a channel to a byte array
+     *
+     * @param in the channel
+     * @param size the size of the state
+     * @return the serialized state
+     */
+    public static byte[] read(ReadableByteChannel in, long size) throws IOException {
+        if (in instanceof ByteArrayChannel && ((ByteArrayChannel) in).buffer.position() == 0
+                && ((ByteArrayChannel) in).buffer.remaining() == size) {
+            // the array is not copied
+            return ((ByteArrayChannel) in).buffer.array();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("A state of " + size + " bytes does not fit in a byte array");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new IOException("State ended after " + buffer.position() + " of " + size + " bytes");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Copies a state from a channel to another, without keeping it in memory
+     *
+     * @param in the channel the state is read from
+     * @param size the size of the state
+     * @param out the channel the state is written to
+     */
+    public static void copy(ReadableByteChannel in, long size, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 1 << 16));
+        long copied = 0;
+        while (copied < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - copied));
+            if (in.read(buffer) < 0) {
+                throw new IOException("State ended after " + copied + " of " + size + " bytes");
+            }
+            buffer.flip();
+            copied += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes a state to a byte array
+     */
+    public static byte[] toByteArray(SnapshotWriter snapshot) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        snapshot.write(Channels.newChannel(bos));
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return a channel to read a serialized state
+     */
+    public static ReadableByteChannel open(byte[] state) {
+        return new ByteArrayChannel(state);
+    }
+
+    private static class ByteArrayChannel implements ReadableByteChannel {
+
+        private ByteBuffer buffer;
+        private boolean open = true;
+
+        ByteArrayChannel(byte[] state) {
+            this.buffer = ByteBuffer.wrap(state);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(dst.remaining(), buffer.remaining());
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            buffer.position(buffer.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+/**
+ * A view of the application state at the moment a checkpoint was requested,
+ * used by DefaultRecoverable when checkpoints are taken in the background.
+ * Obtaining the handle must be cheap (e.g., a copy-on-write reference or a
+ * version number), since the execution of requests is blocked meanwhile;
+ * serializing it is done by another thread, while the application keeps
+ * changing its current state.
+ */
+public interface SnapshotHandle {
+
+    /**
+     * Serializes the state captured by this handle. Invoked only once, by
+     * the checkpoint thread.
+     *
+     * @return the serialized state, in the format accepted by installSnapshot
+     */
+    public byte[] serialize();
+}
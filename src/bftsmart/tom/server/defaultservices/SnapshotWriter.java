@@ -0,0 +1,37 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a snapshot of the application state to a channel, so that it is
+ * saved in a checkpoint without being serialized to a byte array. A
+ * SnapshotHandle that also implements this interface is written this way
+ * when checkpoints are taken in the background.
+ */
+public interface SnapshotWriter {
+
+    /**
+     * Writes the state, in the format accepted by installSnapshot. The
+     * channel can be wrapped with Channels.newOutputStream, and must not be
+     * closed.
+     *
+     * @param out the channel to write the state to
+     */
+    public void write(WritableByteChannel out) throws IOException;
+}
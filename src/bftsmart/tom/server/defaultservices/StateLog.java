@@ -15,6 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.DefaultApplicationState;
 
@@ -79,22 +82,63 @@ public class StateLog {
 	}
     
     /**
-     * Sets the state associated with the last checkpoint, and updates the execution ID associated with it
+     * Sets the state associated with the last checkpoint, and updates the execution ID associated with it.
+     * The batches of the consensus instances after the checkpoint (logged while it was taken in the
+     * background) are kept
      * @param state State associated with the last checkpoint
      */
     public void newCheckpoint(byte[] state, byte[] stateHash, int lastConsensusId) {
 
+        int keep = 0;
     	if(messageBatches != null) {
-    		for (int i = 0; i < this.messageBatches.length; i++)
+            keep = Math.max(0, Math.min(position, lastEid - lastConsensusId));
+            System.arraycopy(messageBatches, position - keep, messageBatches, 0, keep);
+    		for (int i = keep; i < this.messageBatches.length; i++)
                 messageBatches[i] = null;
     	}
 
-        position = 0;
+        position = keep;
         this.state = state;
         this.stateHash = stateHash;
                        
     }
 
+    /**
+     * Sets the state associated with the last checkpoint, written by the application to a channel
+     * instead of being serialized to an array. The hash of the state is computed while it is
+     * written. A log kept in memory reads the whole state to an array
+     * @param snapshot Writer of the state associated with the last checkpoint
+     * @param digest Digest used to compute the hash of the state
+     * @param lastConsensusId Execution ID of the checkpoint
+     * @return Hash of the state
+     */
+    public byte[] newCheckpoint(SnapshotWriter snapshot, MessageDigest digest, int lastConsensusId) throws IOException {
+        byte[] state = SnapshotChannels.toByteArray(snapshot);
+        byte[] stateHash = digest.digest(state);
+        newCheckpoint(state, stateHash, lastConsensusId);
+        return stateHash;
+    }
+
+    /**
+     * Invoked when a checkpoint of the given consensus starts being taken in the background. Until
+     * it is installed with newCheckpoint, the batches up to that consensus must be kept, as well as
+     * the ones added after it
+     * @param consensusId Execution ID of the checkpoint
+     */
+    public void checkpointStarted(int consensusId) {
+    }
+
+    /**
+     * Makes a checkpoint taken in the background durable, before it is installed with newCheckpoint.
+     * It is invoked while batches are being added to the log, so it must not change them. A log kept
+     * in memory has nothing to do here
+     * @param state State associated with the checkpoint
+     * @param stateHash Hash of the state
+     * @param consensusId Execution ID of the checkpoint
+     */
+    public void prepareCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+    }
+
     /**
      * Sets the execution ID for the last checkpoint
      * @param lastCheckpointEid Execution ID for the last checkpoint
@@ -197,6 +241,14 @@ public class StateLog {
         setLastEid(lastConsensusId);
     }
 
+    /**
+     * Waits until the batches added to the log are durable. It is invoked
+     * after each group of batches delivered together, so that a log kept on
+     * disk can write them at once. A log kept in memory has nothing to wait for
+     */
+    public void sync() {
+    }
+
     /**
      * Returns a batch of messages, given its correspondent execution ID
      * @param eid Execution ID associated with the batch to be fetched
@@ -15,6 +15,9 @@ limitations under the License.
  */
 package bftsmart.tom.server.defaultservices.durability;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -32,6 +35,7 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.SnapshotChannels;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 
@@ -235,10 +239,20 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 					+ lastCheckpointEid + " to EID " + lastEid);
 
 			stateLock.lock();
-			if(state.getSerializedState() != null) {
-				System.out.println("The state is not null. Will install it");
-				log.update(state);
-				installSnapshot(state.getSerializedState());
+			try {
+				// the state is in memory or, when received from another replica, in the checkpoint file
+				ReadableByteChannel in = state.openState();
+				if (in != null) {
+					System.out.println("The state is not null. Will install it");
+					log.update(state);
+					try {
+						installSnapshot(in, state.getStateSize());
+					} finally {
+						in.close();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
 			}
 
 			System.out.print("--- Installing log from " + (lastCheckpointEid+1) + " to " + lastEid);
@@ -323,6 +337,8 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				}
 			}
 		}
+		// the batches of all the consensus delivered together are written at once
+		log.sync();
 		logLock.unlock();
 	}
 
@@ -332,6 +348,16 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		return ret;
 	}
 
+	/**
+	 * Sends the part of the state requested by a recovering replica,
+	 * streaming the checkpoint and the log from disk
+	 * 
+	 * @see DurableStateLog#sendState(CSTRequest, java.nio.channels.WritableByteChannel)
+	 */
+	public void sendState(CSTRequest cstRequest, WritableByteChannel out) throws IOException {
+		log.sendState(cstRequest, out);
+	}
+
 	@Override
 	public void setReplicaContext(ReplicaContext replicaContext) {
 		this.config = replicaContext.getStaticConfiguration();
@@ -347,7 +373,9 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				boolean syncLog = config.isToWriteSyncLog();
 				boolean syncCkp = config.isToWriteSyncCkp();
 //				log = new DurableStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
-				log = new DurableStateLog(replicaId, null, null, isToLog, syncLog, syncCkp);
+				log = new DurableStateLog(replicaId, null, null, isToLog, syncLog, syncCkp,
+						config.getLogGroupSize(), config.getLogGroupDelay(), config.getLogPreallocation(),
+						config.getLogSegmentSize());
 				CSTState storedState = log.loadDurableState();
 				if(storedState.getLastEid() > -1) {
 					System.out.println("LAST EID RECOVERED FROM LOG: " + storedState.getLastEid());
@@ -396,6 +424,19 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		return currentStateHash;
 	}
 
+	/**
+	 * Installs a state read from a channel. By default the state is read to
+	 * an array and installed with installSnapshot(byte[]). The checkpoints
+	 * received in the collaborative state transfer are read from the file
+	 * they were received in; checkpoints are still taken with getSnapshot.
+	 * 
+	 * @param in the channel to read the state from
+	 * @param size the size of the state, in bytes
+	 */
+	public void installSnapshot(ReadableByteChannel in, long size) throws IOException {
+		installSnapshot(SnapshotChannels.read(in, size));
+	}
+
 	public abstract void installSnapshot(byte[] state);
 	public abstract byte[] getSnapshot();
 	public abstract byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs);
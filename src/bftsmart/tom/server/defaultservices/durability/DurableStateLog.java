@@ -15,14 +15,12 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices.durability;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -30,9 +28,13 @@ import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.statemanagement.strategy.durability.CSTRequest;
 import bftsmart.statemanagement.strategy.durability.CSTRequestF1;
 import bftsmart.statemanagement.strategy.durability.CSTState;
+import bftsmart.statemanagement.strategy.durability.StateSender;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.server.defaultservices.LogFormat;
+import bftsmart.tom.server.defaultservices.LogReader;
+import bftsmart.tom.server.defaultservices.LogWriter;
 import bftsmart.tom.server.defaultservices.StateLog;
 import bftsmart.tom.util.TOMUtil;
 
@@ -41,27 +43,44 @@ public class DurableStateLog extends StateLog {
 	private int id;
 	public final static String DEFAULT_DIR = "files".concat(System
 			.getProperty("file.separator"));
-	private static final int INT_BYTE_SIZE = 4;
-	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private LogWriter log;
 	private boolean syncLog;
+	private int logGroupSize;
+	private int logGroupDelay;
+	private long logPreallocation;
+	private long logSegmentSize;
 	private String logPath;
 	private String lastCkpPath;
 	private boolean syncCkp;
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
-	private Map<Integer, Long> logPointers;
+	private Map<Integer, Integer> logPointers;
 	private FileRecoverer fr;
 	
 	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
+		this(id, initialState, initialHash, isToLog, syncLog, syncCkp, LogWriter.DEFAULT_GROUP_SIZE,
+				LogWriter.DEFAULT_GROUP_DELAY, LogWriter.DEFAULT_PREALLOCATION, LogWriter.DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates a log whose batches are written with group commit, in segments
+	 * (see LogWriter)
+	 */
+	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
+			boolean isToLog, boolean syncLog, boolean syncCkp,
+			int logGroupSize, int logGroupDelay, long logPreallocation, long logSegmentSize) {
 		super(initialState, initialHash);
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
 		this.syncCkp = syncCkp;
-		this.logPointers = new HashMap<Integer, Long>();
+		this.logGroupSize = logGroupSize;
+		this.logGroupDelay = logGroupDelay;
+		this.logPreallocation = logPreallocation;
+		this.logSegmentSize = logSegmentSize;
+		this.logPointers = new HashMap<Integer, Integer>();
 		this.fr = new FileRecoverer(id, DEFAULT_DIR);
 	}
 
@@ -69,8 +88,8 @@ public class DurableStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-		} catch (FileNotFoundException e) {
+			log = new LogWriter(logPath, syncLog, logGroupSize, logGroupDelay, logPreallocation, logSegmentSize);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
@@ -91,33 +110,17 @@ public class DurableStateLog extends StateLog {
 		if (isToLog) {
 			if(log == null)
 				createLogFile();
-			writeCommandToDisk(command, consensusId);
+			log.append(command, consensusId);
 		}
 	}
 
-	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-	    }
+	/**
+	 * Waits until the batches added are written to disk, with sync_log.
+	 * The batches added since the last call are written together.
+	 */
+	public void sync() {
+		if (isToLog && syncLog && log != null)
+			log.flush();
 	}
 	
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
@@ -128,26 +131,12 @@ public class DurableStateLog extends StateLog {
 			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
 					(syncCkp ? "rwd" : "rw"));
 
-			ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
-					+ 4 * INT_BYTE_SIZE);
-			bf.putInt(state.length);
-			bf.put(state);
-			bf.putInt(stateHash.length);
-			bf.put(stateHash);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-
-			byte[] ckpState = bf.array();
+			byte[] ckpState = LogFormat.getCheckpoint(state, stateHash, consensusId);
 			
 			ckp.write(ckpState);
 			ckp.close();
 
-			if (isToLog)
-				deleteLogFile();
-			deleteLastCkp();
-			renameCkp(ckpPath);
-			if (isToLog)
-				createLogFile();
+			replaceCheckpoint(ckpPath);
 			
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
@@ -160,6 +149,19 @@ public class DurableStateLog extends StateLog {
 		}
 	}
 
+	/**
+	 * Installs a new checkpoint in place of the last one, starting a new
+	 * log file
+	 */
+	private void replaceCheckpoint(String ckpPath) {
+		if (isToLog)
+			deleteLogFile();
+		deleteLastCkp();
+		renameCkp(ckpPath);
+		if (isToLog)
+			createLogFile();
+	}
+
 	private void renameCkp(String ckpPath) {
 		String finalCkpPath = ckpPath.replace(".tmp", ".ckp");
 		new File(ckpPath).renameTo(new File(finalCkpPath));
@@ -175,7 +177,8 @@ public class DurableStateLog extends StateLog {
 		try {
 			if(log != null)
 				log.close();
-			new File(logPath).delete();
+			if(logPath != null)
+				LogWriter.delete(logPath);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -190,6 +193,9 @@ public class DurableStateLog extends StateLog {
 		System.out.println("EID = " + eid);
 		System.out.println("LAST EID = " + lastEid);
 		
+		if (log != null)
+			log.flush();
+
 		if(cstRequest instanceof CSTRequestF1) {
 			CSTRequestF1 requestF1 = (CSTRequestF1)cstRequest;
 			if(id == requestF1.getCheckpointReplica()) {
@@ -199,7 +205,7 @@ public class DurableStateLog extends StateLog {
 				checkpointLock.unlock();
 	    		System.out.println("--- sending checkpoint: " + ckpState.length);
 	    		CommandsInfo[] logLower = fr.getLogState(requestF1.getLogLowerSize(), logPath);
-	    		CommandsInfo[] logUpper = fr.getLogState(logPointers.get(requestF1.getLogUpper()), 0, requestF1.getLogUpperSize(), logPath);
+	    		CommandsInfo[] logUpper = fr.getLogState(logPointers.get(requestF1.getLogUpper()) + 1, requestF1.getLogUpperSize(), logPath);
 	    		byte[] logLowerBytes = TOMUtil.getBytes(logLower);
 	    		System.out.println(logLower.length + " Log lower bytes size: " + logLowerBytes.length);
 	    		byte[] logLowerHash = TOMUtil.computeHash(logLowerBytes);
@@ -211,7 +217,7 @@ public class DurableStateLog extends StateLog {
 			} else if(id == requestF1.getLogLower()) {
 				// This replica is expected to send the lower part of the log
 	    		System.out.print("--- sending lower log: " + requestF1.getLogLowerSize() + " from " + logPointers.get(requestF1.getCheckpointReplica())) ;
-	    		CommandsInfo[] logLower = fr.getLogState(logPointers.get(requestF1.getCheckpointReplica()), 0, requestF1.getLogLowerSize(), logPath);
+	    		CommandsInfo[] logLower = fr.getLogState(logPointers.get(requestF1.getCheckpointReplica()) + 1, requestF1.getLogLowerSize(), logPath);
 	    		System.out.println(" " + TOMUtil.getBytes(logLower).length + " bytes");
 	    		CSTState cstState = new CSTState(null, null, logLower, null, null, null, lastCheckpointEid, lastEid);
 	    		return cstState;
@@ -253,6 +259,87 @@ public class DurableStateLog extends StateLog {
 		return null;
 	}
 	
+	/**
+	 * Sends the part of the state this replica is expected to send in the
+	 * collaborative state transfer, in the frames of StateSender. The
+	 * checkpoint and the portions of the log are sent as they are in the
+	 * files, with FileChannel.transferTo, instead of being read to memory.
+	 * 
+	 * @param cstRequest the request of the recovering replica
+	 * @param out the channel to the recovering replica
+	 */
+	public void sendState(CSTRequest cstRequest, WritableByteChannel out) throws IOException {
+		int lastCheckpointEid = getLastCheckpointEid();
+		int lastEid = getLastEid();
+		System.out.println("LAST CKP EID = " + lastCheckpointEid);
+		System.out.println("EID = " + cstRequest.getEid());
+		System.out.println("LAST EID = " + lastEid);
+
+		if (log != null)
+			log.flush();
+
+		if(cstRequest instanceof CSTRequestF1) {
+			CSTRequestF1 requestF1 = (CSTRequestF1)cstRequest;
+			if(id == requestF1.getCheckpointReplica()) {
+				// This replica is expected to send the checkpoint plus the hashes of lower and upper log portions
+	    		CommandsInfo[] logLower = fr.getLogState(requestF1.getLogLowerSize(), logPath);
+	    		CommandsInfo[] logUpper = fr.getLogState(logPointers.get(requestF1.getLogUpper()) + 1, requestF1.getLogUpperSize(), logPath);
+	    		byte[] logLowerHash = TOMUtil.computeHash(TOMUtil.getBytes(logLower));
+	    		byte[] logUpperHash = TOMUtil.computeHash(TOMUtil.getBytes(logUpper));
+	    		StateSender.writeState(out, new CSTState(null, null, null, logLowerHash, null, logUpperHash, lastCheckpointEid, lastEid));
+				// the file is kept open if a new checkpoint replaces it meanwhile
+				RandomAccessFile ckp = null;
+				checkpointLock.lock();
+				try {
+					if (lastCkpPath != null)
+						ckp = new RandomAccessFile(lastCkpPath, "r");
+				} finally {
+					checkpointLock.unlock();
+				}
+				if (ckp != null) {
+					try {
+			    		System.out.println("--- sending checkpoint: " + ckp.length());
+						StateSender.writeFile(out, StateSender.CHECKPOINT, ckp.getChannel(), 0, ckp.length());
+					} finally {
+						ckp.close();
+					}
+				}
+			} else if(id == requestF1.getLogLower()) {
+				// This replica is expected to send the lower part of the log
+	    		System.out.println("--- sending lower log: " + requestF1.getLogLowerSize() + " from " + logPointers.get(requestF1.getCheckpointReplica()));
+	    		StateSender.writeState(out, new CSTState(null, null, null, null, null, null, lastCheckpointEid, lastEid));
+	    		sendLog(out, StateSender.LOG_LOWER, logPointers.get(requestF1.getCheckpointReplica()) + 1, requestF1.getLogLowerSize());
+			} else {
+				// This replica is expected to send the upper part of the log plus the hash for its checkpoint
+	    		System.out.println("--- sending upper log: " + requestF1.getLogUpperSize());
+				checkpointLock.lock();
+				fr.recoverCkpHash(lastCkpPath);
+				byte[] ckpHash = fr.getCkpStateHash();
+				checkpointLock.unlock();
+	    		int lastEidInState = lastCheckpointEid + requestF1.getLogUpperSize();
+	    		StateSender.writeState(out, new CSTState(null, ckpHash, null, null, null, null, lastCheckpointEid, lastEidInState));
+	    		sendLog(out, StateSender.LOG_UPPER, -1, requestF1.getLogUpperSize());
+			}
+		}
+		StateSender.writeHeader(out, StateSender.END, 0);
+	}
+
+	/**
+	 * Sends the records of a portion of the log in a frame, if the log has
+	 * its first batch (-1 for the first batch of the log)
+	 */
+	private void sendLog(WritableByteChannel out, byte frame, int firstConsensusId, int number) throws IOException {
+		if (logPath == null)
+			return;
+		LogReader reader = new LogReader(logPath);
+		long size = reader.locate(firstConsensusId, number);
+		if (size < 0)
+			return;
+		System.out.println("--- sending " + size + " bytes of log");
+		StateSender.writeHeader(out, frame, size);
+		reader.transferTo(out);
+	}
+
 	public void transferApplicationState(SocketChannel sChannel, int eid) {
 		fr.transferCkpState(sChannel, lastCkpPath);
 		
@@ -266,15 +353,11 @@ public class DurableStateLog extends StateLog {
 
 	public void setLastEid(int eid, int checkpointPeriod, int checkpointPortion) {
 		super.setLastEid(eid);
-		// save the file pointer to retrieve log information later
+		// save the consensus id to retrieve log information later
 		if((eid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((eid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				System.out.println(" --- Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			System.out.println(" --- Replica " + ckpReplicaIndex + " took checkpoint at EID " + eid);
+			logPointers.put(ckpReplicaIndex, eid);
 		}
 	}
 
@@ -286,7 +369,14 @@ public class DurableStateLog extends StateLog {
 	 * used to updated this log
 	 */
 	public void update(CSTState state) {
-		newCheckpoint(state.getSerializedState(), state.getStateHash(), state.getCheckpointEid());
+		if (state.getCheckpointPath() != null) {
+			// the checkpoint received is already in a file
+			checkpointLock.lock();
+			replaceCheckpoint(state.getCheckpointPath());
+			checkpointLock.unlock();
+		} else {
+			newCheckpoint(state.getSerializedState(), state.getStateHash(), state.getCheckpointEid());
+		}
 		setLastCheckpointEid(state.getCheckpointEid());
 	}
 
@@ -26,6 +26,11 @@ import bftsmart.tom.core.messages.TOMMessage;
  * Batch format: TIMESTAMP(long) + N_NONCES(int) + SEED(long) +
  *               N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte),SIG(byte)] +
  *
+ * Batch of digests: TIMESTAMP(long) + N_NONCES(int) + SEED(long) +
+ *               ~N_MESSAGES(int) + N_MESSAGES*[SENDER(int),SEQUENCE(int),DIGEST(byte)]
+ *
+ * The message count of a batch of digests is stored complemented (always
+ * negative), which distinguishes both formats.
  *
  * The methods does not try to enforce any constraint, so be correct when using it.
  *
@@ -36,7 +41,7 @@ public final class BatchBuilder {
 
 	/** build buffer */
 	private byte[] createBatch(long timestamp, int numberOfNonces, int numberOfMessages, int totalMessagesSize,
-			boolean useSignatures, byte[][] messages, byte[][] signatures, ServerViewController controller) {
+			boolean useSignatures, ByteBuffer[] messages, byte[][] signatures, ServerViewController controller) {
 		int size = 20 + //timestamp 8, nonces 4, nummessages 4
 				(numberOfNonces > 0 ? 8 : 0) + //seed if needed
 				(numberOfMessages*(4+(useSignatures?TOMUtil.getSignatureSize(controller):0)))+ // msglength + signature for each msg
@@ -61,8 +66,8 @@ public final class BatchBuilder {
 		return proposalBuffer.array();
 	}
 
-	private void putMessage(ByteBuffer proposalBuffer, byte[] message, boolean isHash, byte[] signature) {
-		proposalBuffer.putInt(isHash?0:message.length);
+	private void putMessage(ByteBuffer proposalBuffer, ByteBuffer message, boolean isHash, byte[] signature) {
+		proposalBuffer.putInt(isHash?0:message.remaining());
 		proposalBuffer.put(message);
 
 		if(signature != null) {
@@ -70,12 +75,45 @@ public final class BatchBuilder {
 		}
 	}
 
+	/**
+	 * Creates a batch with only the sender, sequence number and digest of each
+	 * request, which the replicas resolve using the requests they received
+	 * from the clients (see BatchReader).
+	 */
+	public byte[] makeDigestBatch(Collection<TOMMessage> msgs, int numNounces, long timestamp) {
+		int numMsgs = msgs.size();
+		int size = 20 + //timestamp 8, nonces 4, nummessages 4
+				(numNounces > 0 ? 8 : 0) + //seed if needed
+				(numMsgs * (8 + TOMUtil.REQUEST_DIGEST_SIZE)); // sender, sequence and digest of each msg
+
+		ByteBuffer proposalBuffer = ByteBuffer.allocate(size);
+
+		proposalBuffer.putLong(timestamp);
+
+		proposalBuffer.putInt(numNounces);
+
+		if(numNounces>0){
+			proposalBuffer.putLong(rnd.nextLong());
+		}
+
+		proposalBuffer.putInt(~numMsgs);
+
+		for (TOMMessage msg : msgs) {
+			proposalBuffer.putInt(msg.getSender());
+			proposalBuffer.putInt(msg.getSequence());
+			proposalBuffer.put(TOMUtil.getRequestDigest(msg));
+		}
+
+		return proposalBuffer.array();
+	}
+
 	public byte[] makeBatch(Collection<TOMMessage> msgs, int numNounces, long timestamp, ServerViewController controller) {
 
 		int numMsgs = msgs.size();
 		int totalMessageSize = 0; //total size of the messages being batched
 
-		byte[][] messages = new byte[numMsgs][]; //bytes of the message (or its hash)
+		//bytes of the messages (views, so that requests read from a previous batch are only copied here)
+		ByteBuffer[] messages = new ByteBuffer[numMsgs];
 		byte[][] signatures = new byte[numMsgs][]; //bytes of the message (or its hash)
 
 		// Fill the array of bytes for the messages/signatures being batched
@@ -83,10 +121,10 @@ public final class BatchBuilder {
 		for (TOMMessage msg : msgs) {
 			//TOMMessage msg = msgs.next();
 			//Logger.println("(TOMLayer.run) adding req " + msg + " to PROPOSE");
-			messages[i] = msg.serializedMessage;
+			messages[i] = msg.getSerializedBuffer();
 			signatures[i] = msg.serializedMessageSignature;
 
-			totalMessageSize += messages[i].length;
+			totalMessageSize += messages[i].remaining();
 			i++;
 		}
 
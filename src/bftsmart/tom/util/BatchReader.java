@@ -15,9 +15,10 @@ limitations under the License.
 */
 package bftsmart.tom.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 import bftsmart.reconfiguration.ServerViewController;
@@ -27,16 +28,99 @@ import bftsmart.tom.core.messages.TOMMessage;
  * Batch format: N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte)] +
  *               TIMESTAMP(long) + N_NONCES(int) + NONCES(byte[])
  *
+ * Batches of digests (see BatchBuilder.makeDigestBatch) are resolved
+ * against a RequestStore holding the requests received from the clients.
+ *
+ * The requests are not copied out of the batch: their content and
+ * serialized form are views over it (see TOMMessage.wrap), so the batch
+ * must not be changed once it is read.
+ *
  */
 public final class BatchReader {
 
+    /** Size of each entry of a batch of digests: sender, sequence and digest */
+    public static final int DIGEST_ENTRY_SIZE = 8 + TOMUtil.REQUEST_DIGEST_SIZE;
+
+    /**
+     * Source of the requests referenced by a batch of digests
+     */
+    public interface RequestStore {
+
+        /**
+         * Returns the request with the given sender and sequence number whose
+         * digest matches the given one, or null if it is not available
+         */
+        public TOMMessage getRequest(int sender, int sequence, byte[] digest);
+    }
+
     private ByteBuffer proposalBuffer;
     private boolean useSignatures;
+    private RequestStore store;
+    private List<byte[]> missingEntries = new LinkedList<byte[]>();
 
     /** wrap buffer */
     public BatchReader(byte[] batch, boolean useSignatures) {
+        this(batch, useSignatures, null);
+    }
+
+    /** wrap buffer, resolving batches of digests with the given store */
+    public BatchReader(byte[] batch, boolean useSignatures, RequestStore store) {
         proposalBuffer = ByteBuffer.wrap(batch);
         this.useSignatures = useSignatures;
+        this.store = store;
+    }
+
+    /**
+     * Indicates if the batch carries only the digests of the requests
+     */
+    public static boolean isDigestBatch(byte[] batch) {
+        if (batch == null || batch.length < 16) return false;
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        buffer.position(8);
+        int numberOfNonces = buffer.getInt();
+        if (numberOfNonces > 0) {
+            if (batch.length < 24) return false;
+            buffer.position(20);
+        }
+        return buffer.getInt() < 0;
+    }
+
+    /**
+     * Returns the entries (sender, sequence and digest) of a batch of digests
+     * that could not be resolved by the last call to deserialiseRequests
+     */
+    public List<byte[]> getMissingEntries() {
+        return missingEntries;
+    }
+
+    /**
+     * Looks up the requests of a batch of digests in the store, without
+     * deserialising them
+     *
+     * @return the entries (sender, sequence and digest) not found in the store
+     */
+    public List<byte[]> findMissingEntries() {
+        List<byte[]> missing = new LinkedList<byte[]>();
+        ByteBuffer buffer = ByteBuffer.wrap(proposalBuffer.array());
+        buffer.position(8);
+        if (buffer.getInt() > 0) {
+            buffer.getLong();
+        }
+        int numberOfMessages = ~buffer.getInt();
+
+        for (int i = 0; i < numberOfMessages; i++) {
+            byte[] entry = new byte[DIGEST_ENTRY_SIZE];
+            buffer.get(entry);
+            ByteBuffer entryBuffer = ByteBuffer.wrap(entry);
+            int sender = entryBuffer.getInt();
+            int sequence = entryBuffer.getInt();
+            byte[] digest = Arrays.copyOfRange(entry, 8, entry.length);
+
+            if (store == null || store.getRequest(sender, sequence, digest) == null) {
+                missing.add(entry);
+            }
+        }
+        return missing;
     }
 
     public TOMMessage[] deserialiseRequests(ServerViewController controller) {
@@ -53,14 +137,19 @@ public final class BatchReader {
 
         int numberOfMessages = proposalBuffer.getInt();
 
+        if (numberOfMessages < 0) {
+            return deserialiseDigests(~numberOfMessages, numberOfNonces, rnd, timestamp);
+        }
+
         TOMMessage[] requests = new TOMMessage[numberOfMessages];
 
         for (int i = 0; i < numberOfMessages; i++) {
             //read the message and its signature from the batch
             int messageSize = proposalBuffer.getInt();
 
-            byte[] message = new byte[messageSize];
-            proposalBuffer.get(message);
+            ByteBuffer message = proposalBuffer.duplicate();
+            message.limit(message.position() + messageSize);
+            proposalBuffer.position(proposalBuffer.position() + messageSize);
 
             byte[] signature = null;
             if(useSignatures){
@@ -73,12 +162,10 @@ public final class BatchReader {
                 rnd.nextBytes(nonces);
             }
             try {
-                DataInputStream ois = new DataInputStream(new ByteArrayInputStream(message));
-                TOMMessage tm = new TOMMessage();
-                tm.rExternal(ois);
+                TOMMessage tm = TOMMessage.wrap(message);
 
-                tm.serializedMessage = message;
                 tm.serializedMessageSignature = signature;
+                tm.signed = (signature != null);
                 tm.nonces = nonces;
                 tm.timestamp = timestamp;
                 requests[i] = tm;
@@ -89,4 +176,49 @@ public final class BatchReader {
         }
         return requests;
     }
+
+    private TOMMessage[] deserialiseDigests(int numberOfMessages, int numberOfNonces, Random rnd, long timestamp) {
+
+        missingEntries.clear();
+        TOMMessage[] requests = new TOMMessage[numberOfMessages];
+
+        for (int i = 0; i < numberOfMessages; i++) {
+            byte[] entry = new byte[DIGEST_ENTRY_SIZE];
+            proposalBuffer.get(entry);
+            ByteBuffer entryBuffer = ByteBuffer.wrap(entry);
+            int sender = entryBuffer.getInt();
+            int sequence = entryBuffer.getInt();
+            byte[] digest = Arrays.copyOfRange(entry, 8, entry.length);
+
+            //obtain the nonces to be delivered to the application
+            byte[] nonces = new byte[numberOfNonces];
+            if (nonces.length > 0) {
+                rnd.nextBytes(nonces);
+            }
+
+            TOMMessage stored = (store == null) ? null : store.getRequest(sender, sequence, digest);
+            if (stored == null) {
+                missingEntries.add(entry);
+                continue;
+            }
+            try {
+                //use a fresh message (sharing the bytes), so that the stored request is not changed
+                TOMMessage tm = TOMMessage.wrap(stored.getSerializedBuffer());
+
+                tm.serializedMessage = stored.serializedMessage;
+                tm.serializedMessageSignature = stored.serializedMessageSignature;
+                tm.signed = stored.signed;
+                tm.signatureVerified = stored.signatureVerified;
+                tm.requestDigest = digest;
+                tm.nonces = nonces;
+                tm.timestamp = timestamp;
+                requests[i] = tm;
+
+            } catch (Exception e) {
+                e.printStackTrace(System.out);
+                missingEntries.add(entry);
+            }
+        }
+        return missingEntries.isEmpty() ? requests : null;
+    }
 }
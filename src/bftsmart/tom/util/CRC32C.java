@@ -0,0 +1,104 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, computed 8 bytes at a time with
+ * precomputed tables (slicing-by-8). Use create() to get the intrinsic
+ * implementation of the JVM (java.util.zip.CRC32C) when it has one.
+ */
+public class CRC32C implements Checksum {
+
+    private static final int POLYNOMIAL = 0x82F63B78; // reversed
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xFF];
+            }
+        }
+    }
+
+    private static Class<?> intrinsic;
+
+    static {
+        try {
+            intrinsic = Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException e) {
+            intrinsic = null;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    /**
+     * @return a CRC-32C checksum, the one of the JVM if available
+     */
+    public static Checksum create() {
+        if (intrinsic != null) {
+            try {
+                return (Checksum) intrinsic.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                intrinsic = null;
+            }
+        }
+        return new CRC32C();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+        while (end - off >= 8) {
+            c ^= (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+            c = TABLES[7][c & 0xFF] ^ TABLES[6][(c >>> 8) & 0xFF]
+                    ^ TABLES[5][(c >>> 16) & 0xFF] ^ TABLES[4][c >>> 24]
+                    ^ TABLES[3][b[off + 4] & 0xFF] ^ TABLES[2][b[off + 5] & 0xFF]
+                    ^ TABLES[1][b[off + 6] & 0xFF] ^ TABLES[0][b[off + 7] & 0xFF];
+            off += 8;
+        }
+        while (off < end) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ b[off++]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,230 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Binary hash tree over the chunks of a serialized state. The root
+ * identifies the whole state, and each chunk can be verified against it
+ * with the hashes of its siblings up to the root (its proof), without the
+ * other chunks.
+ *
+ * Leaves are H(0 || chunk) and inner nodes H(1 || left || right), so that a
+ * chunk cannot be taken for an inner node. The last node of a level without
+ * a sibling is moved up unchanged. An empty state has a single empty chunk.
+ *
+ * Leaves can be replaced with setLeaf: the inner nodes above them are
+ * computed again when the root or a proof is needed, so the cost of an
+ * update is proportional to the leaves changed. Trees are not thread-safe.
+ */
+public class MerkleTree {
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private byte[][][] levels; // levels[0] are the leaves, the last level is the root
+    private BitSet changed = new BitSet(); // leaves replaced since the inner nodes were computed
+
+    /**
+     * Creates the tree of the given leaves
+     *
+     * @param leaves the hashes of the chunks, as computed by leafHash
+     */
+    public MerkleTree(byte[][] leaves) {
+        if (leaves.length == 0) {
+            throw new IllegalArgumentException("A tree needs at least one leaf");
+        }
+        int height = 1;
+        for (int n = leaves.length; n > 1; n = (n + 1) / 2) {
+            height++;
+        }
+        levels = new byte[height][][];
+        levels[0] = leaves;
+        for (int level = 1; level < height; level++) {
+            byte[][] children = levels[level - 1];
+            byte[][] nodes = new byte[(children.length + 1) / 2][];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = (2 * i + 1 < children.length) ? nodeHash(children[2 * i], children[2 * i + 1])
+                        : children[2 * i];
+            }
+            levels[level] = nodes;
+        }
+    }
+
+    /**
+     * Creates the tree of a state split in chunks of the given size
+     *
+     * @param state the serialized state
+     * @param chunkSize the size of the chunks (the last one may be smaller)
+     * @return the tree
+     */
+    public static MerkleTree build(byte[] state, int chunkSize) {
+        int count = getChunkCount(state.length, chunkSize);
+        byte[][] leaves = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunkSize;
+            leaves[i] = leafHash(state, offset, Math.min(chunkSize, state.length - offset));
+        }
+        return new MerkleTree(leaves);
+    }
+
+    /**
+     * @return the number of chunks of a state
+     */
+    public static int getChunkCount(long stateSize, int chunkSize) {
+        return (int) Math.max(1, (stateSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return the hash of a chunk, as a leaf of the tree
+     */
+    public static byte[] leafHash(byte[] chunk, int offset, int length) {
+        MessageDigest md = digests.get();
+        md.update(LEAF);
+        md.update(chunk, offset, length);
+        return md.digest();
+    }
+
+    private static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest md = digests.get();
+        md.update(NODE);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    public byte[] getRoot() {
+        update();
+        return levels[levels.length - 1][0];
+    }
+
+    public int getLeafCount() {
+        return levels[0].length;
+    }
+
+    public byte[] getLeaf(int index) {
+        return levels[0][index];
+    }
+
+    /**
+     * @return a copy of the leaves of the tree
+     */
+    public byte[][] getLeaves() {
+        return levels[0].clone();
+    }
+
+    /**
+     * Replaces a leaf. The nodes above it are computed when needed.
+     *
+     * @param index the index of the chunk
+     * @param leaf the hash of the chunk, as computed by leafHash
+     */
+    public void setLeaf(int index, byte[] leaf) {
+        if (!Arrays.equals(levels[0][index], leaf)) {
+            levels[0][index] = leaf;
+            changed.set(index);
+        }
+    }
+
+    /**
+     * Computes the inner nodes above the leaves replaced, level by level
+     */
+    private void update() {
+        BitSet nodes = changed;
+        for (int level = 1; level < levels.length && !nodes.isEmpty(); level++) {
+            byte[][] children = levels[level - 1];
+            BitSet parents = new BitSet();
+            for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+                int parent = i / 2;
+                if (!parents.get(parent)) {
+                    parents.set(parent);
+                    levels[level][parent] = (2 * parent + 1 < children.length)
+                            ? nodeHash(children[2 * parent], children[2 * parent + 1]) : children[2 * parent];
+                }
+            }
+            nodes = parents;
+        }
+        changed = new BitSet();
+    }
+
+    /**
+     * Gets the hashes needed to verify a chunk against the root: the
+     * sibling of each of its ancestors that has one, from the leaf up
+     *
+     * @param index the index of the chunk
+     * @return the proof of the chunk
+     */
+    public byte[][] getProof(int index) {
+        update();
+        byte[][] proof = new byte[levels.length - 1][];
+        int length = 0;
+        for (int level = 0; level < levels.length - 1; level++) {
+            int sibling = index ^ 1;
+            if (sibling < levels[level].length) {
+                proof[length++] = levels[level][sibling];
+            }
+            index /= 2;
+        }
+        return Arrays.copyOf(proof, length);
+    }
+
+    /**
+     * Verifies a chunk against the root of a tree
+     *
+     * @param root the root of the tree
+     * @param index the index of the chunk
+     * @param count the number of chunks in the tree
+     * @param leaf the hash of the chunk, as computed by leafHash
+     * @param proof the proof of the chunk, as returned by getProof
+     * @return true if the chunk is the one in the tree
+     */
+    public static boolean verify(byte[] root, int index, int count, byte[] leaf, byte[][] proof) {
+        if (index < 0 || index >= count || proof == null) {
+            return false;
+        }
+        byte[] hash = leaf;
+        int used = 0;
+        for (int n = count; n > 1; n = (n + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < n) {
+                if (used == proof.length || proof[used] == null) {
+                    return false;
+                }
+                hash = (index % 2 == 0) ? nodeHash(hash, proof[used]) : nodeHash(proof[used], hash);
+                used++;
+            }
+            index /= 2;
+        }
+        return used == proof.length && MessageDigest.isEqual(hash, root);
+    }
+}
@@ -20,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -30,6 +31,7 @@ import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.reconfiguration.ViewController;
+import bftsmart.tom.core.messages.TOMMessage;
 
 public class TOMUtil {
 
@@ -46,9 +48,16 @@ public class TOMUtil {
     public static final int SM_REPLY = 7;
     public static final int SM_ASK_INITIAL = 11;
     public static final int SM_REPLY_INITIAL = 12;
+    public static final int FETCH_REQUEST = 13;
+    public static final int FETCH_REPLY = 14;
+    public static final int SM_CHUNK_REQUEST = 15;
+    public static final int SM_CHUNK_REPLY = 16;
 
     public static final int TRIGGER_LC_LOCALLY = 8;
     public static final int TRIGGER_SM_LOCALLY = 9;
+
+    //size of the digests used in batches of digests
+    public static final int REQUEST_DIGEST_SIZE = 32;
     
     //the signature engine used in the system and the signatureSize
     private static Signature signatureEngine;
@@ -206,6 +215,15 @@ public class TOMUtil {
         //sem.release()
     }
 
+    /**
+     * Same as above, for a message held in a buffer (e.g., a request within a
+     * batch), which is not copied
+     */
+    public static boolean verifySignature(Signature initializedSignatureEngine, ByteBuffer message, byte[] signature) throws SignatureException {
+        initializedSignatureEngine.update(message);
+        return initializedSignatureEngine.verify(signature);
+    }
+
     public static String byteArrayToString(byte[] b) {
         String s = "";
         for (int i = 0; i < b.length; i++) {
@@ -220,6 +238,44 @@ public class TOMUtil {
         return Arrays.equals(h2, h2);
     }
 
+    private static ThreadLocal<MessageDigest> requestDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * Computes the digest that identifies a request in a batch of digests. It uses
+     * a collision-resistant function, as the request is taken from the local copy
+     * of each replica.
+     *
+     * @param serializedMessage the serialized request
+     * @return the digest (REQUEST_DIGEST_SIZE bytes)
+     */
+    public static byte[] computeRequestDigest(byte[] serializedMessage) {
+        return requestDigest.get().digest(serializedMessage);
+    }
+
+    /**
+     * Gets the digest of a request, computing it only the first time.
+     *
+     * @param request the request
+     * @return the digest of its serialized message
+     */
+    public static byte[] getRequestDigest(TOMMessage request) {
+        byte[] digest = request.requestDigest;
+        if (digest == null) {
+            digest = computeRequestDigest(request.getSerializedMessage());
+            request.requestDigest = digest;
+        }
+        return digest;
+    }
+
     public static final byte[] computeHash(byte[] data) {
         
         lock.lock();